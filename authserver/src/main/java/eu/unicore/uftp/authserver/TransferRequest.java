@@ -4,6 +4,7 @@ import java.util.Random;
 
 import eu.unicore.uftp.authserver.messages.AuthRequest;
 import eu.unicore.uftp.dpc.Utils;
+import eu.unicore.uftp.dpc.Utils.CompressionAlgorithm;
 import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
 import eu.unicore.uftp.server.requests.UFTPSessionRequest;
 
@@ -38,6 +39,11 @@ public final class TransferRequest extends UFTPSessionRequest {
         	setEncryptionAlgorithm(EncryptionAlgorithm.valueOf(alg.toUpperCase()));
         }
         setCompress(authRequest.compress);
+        String compressAlg = authRequest.compressionAlgorithm;
+        if(compressAlg!=null) {
+        	setCompressionAlgorithm(CompressionAlgorithm.valueOf(compressAlg.toUpperCase()));
+        }
+        setCompressionLevel(authRequest.compressionLevel);
         setIncludes(authData.includes);
         setExcludes(authData.excludes);
         setRateLimit(authData.rateLimit);
@@ -8,6 +8,8 @@ public class AuthRequest {
 	public int streamCount = 1;
 	public boolean append = false;
 	public boolean compress = false;
+	public String compressionAlgorithm = null;
+	public int compressionLevel = 0;
 	public String encryptionKey = null;
 	public String encryptionAlgorithm = null;
 	public String group = null;
@@ -15,8 +15,8 @@ import org.json.JSONArray;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
-import eu.unicore.uftp.dpc.Utils;
 import eu.unicore.uftp.server.FileWatcher;
+import eu.unicore.uftp.server.ServerExecutors;
 import eu.unicore.util.Log;
 
 /**
@@ -38,7 +38,7 @@ public class Reservations {
 			loadReservations();
 			setupWatchDog();
 		}
-		Utils.getExecutor().scheduleWithFixedDelay( () -> cleanup(),
+		ServerExecutors.getHousekeepingExecutor().scheduleWithFixedDelay( () -> cleanup(),
 				30, 30, TimeUnit.SECONDS);
 	}
 
@@ -10,9 +10,13 @@ import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import eu.unicore.uftp.dpc.AuthorizationFailureException;
+import eu.unicore.uftp.dpc.CompressionStats;
+import eu.unicore.uftp.dpc.CryptoContext;
 import eu.unicore.uftp.dpc.DPCClient;
 import eu.unicore.uftp.dpc.Utils;
+import eu.unicore.uftp.dpc.Utils.CompressionAlgorithm;
 import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
+import eu.unicore.uftp.jparss.PConfig;
 import eu.unicore.uftp.jparss.PSocket;
 
 /**
@@ -46,11 +50,23 @@ public abstract class AbstractUFTPClient implements Closeable {
 
 	protected byte[] key;
 	protected EncryptionAlgorithm algo = EncryptionAlgorithm.BLOWFISH;
+	// prepared key material and ciphers, created on first use
+	private CryptoContext cryptoContext;
 
 	protected boolean compress = false;
+	protected CompressionAlgorithm compressionAlgorithm = CompressionAlgorithm.GZIP;
+	// compression level (1-9), 0 for the algorithm's default
+	protected int compressionLevel = 0;
+	protected final CompressionStats compressionStats = new CompressionStats();
 
 	protected int numcons = 1;
 
+	// use multiple streams in "decoupled" (non-lockstep) mode
+	protected boolean decoupledStreams = false;
+
+	// chunk size for sending in decoupled mode
+	protected int chunkSize = PConfig.defaultChunkSize;
+
 	protected UFTPProgressListener progressListener = null;
 
 	protected final DPCClient client = new DPCClient();
@@ -59,6 +75,8 @@ public abstract class AbstractUFTPClient implements Closeable {
 	protected Socket socket = null;
 	protected InputStream reader = null;
 	protected OutputStream writer = null;
+	// the reader or writer on the data connection side
+	private Closeable dataStream = null;
 
 	protected volatile boolean cancelled = false;
 
@@ -88,9 +106,13 @@ public abstract class AbstractUFTPClient implements Closeable {
 	 */
 	public void openDataConnection() throws IOException {
 		if (socket == null) {
-			if(key!=null && EncryptionAlgorithm.AES==algo) {
-				// old servers don't have AES
-				assertFeature("CRYPTED-AES");
+			if(key!=null && EncryptionAlgorithm.BLOWFISH!=algo) {
+				// old servers don't have AES, AES_GCM, ...
+				assertFeature("CRYPTED-"+algo);
+			}
+			if(compress && CompressionAlgorithm.GZIP!=compressionAlgorithm) {
+				// old servers only have GZIP
+				assertFeature("COMPRESSED-"+compressionAlgorithm);
 			}
 			socket = createSocket(numcons, client, key, compress, algo);
 		}
@@ -116,17 +138,18 @@ public abstract class AbstractUFTPClient implements Closeable {
 	protected void setupForGet(OutputStream localTarget) throws IOException {
 		if (numcons == 1) {
 			if (key != null) {
-				reader = Utils.getDecryptStream(socket.getInputStream(), key, algo);
+				reader = Utils.getDecryptStream(socket.getInputStream(), getCryptoContext());
 			} else {
 				reader = socket.getInputStream();
 			}
 			if (compress) {
-				reader = Utils.getDecompressStream(reader);
+				reader = Utils.getDecompressStream(reader, compressionAlgorithm, compressionStats);
 			}
 		} else {
 			reader = socket.getInputStream();
 		}
 		writer = localTarget;
+		dataStream = reader;
 	}
 
 	/**
@@ -141,13 +164,24 @@ public abstract class AbstractUFTPClient implements Closeable {
 		writer = socket.getOutputStream();
 		if (numcons == 1) {
 			if (key != null) {
-				writer = Utils.getEncryptStream(writer, key, algo);
+				writer = Utils.getEncryptStream(writer, getCryptoContext());
 			}
 			if (compress) {
-				writer = Utils.getCompressStream(writer);
+				writer = Utils.getCompressStream(writer, compressionAlgorithm, compressionLevel, compressionStats);
 			}
 		}
 		reader = localSource;
+		dataStream = writer;
+	}
+
+	/**
+	 * after a failed transfer, release the data stream (including any
+	 * helper threads) and close the data connection
+	 */
+	protected void abortData() {
+		Utils.closeQuietly(dataStream);
+		dataStream = null;
+		closeData();
 	}
 
 	protected Socket createSocket(int numConnections, DPCClient client, byte[] key, EncryptionAlgorithm algo) throws IOException {
@@ -161,9 +195,13 @@ public abstract class AbstractUFTPClient implements Closeable {
 		// server may have given us less connections than we requested
 		numcons = dataCons.size();
 		if (numcons > 1) {
-			localSocket = new PSocket(key, compress, algo);
+			localSocket = PSocket.create(key, compress, algo);
 			PSocket parallelSocket = (PSocket) localSocket;
 			parallelSocket.init(1, numcons);
+			parallelSocket.setCompression(compressionAlgorithm, compressionLevel, compressionStats);
+			if(key!=null)parallelSocket.setCryptoContext(getCryptoContext());
+			parallelSocket.setDecoupled(decoupledStreams);
+			parallelSocket.setChunkSize(chunkSize);
 			for (Socket dataCon : dataCons) {
 				parallelSocket.addSocketStream(dataCon);
 			}
@@ -207,16 +245,51 @@ public abstract class AbstractUFTPClient implements Closeable {
 	 */
 	public void setKey(byte[] key) {
 		this.key = key;
+		this.cryptoContext = null;
 	}
 
 	public void setEncryptionAlgorithm(EncryptionAlgorithm algo) {
 		this.algo = algo;
+		this.cryptoContext = null;
+	}
+
+	/**
+	 * the crypto context for the current key, shared by all data streams
+	 */
+	protected CryptoContext getCryptoContext() throws IOException {
+		if(cryptoContext==null) {
+			try {
+				cryptoContext = new CryptoContext(key, algo);
+			}catch(IllegalArgumentException ex) {
+				throw new IOException(ex);
+			}
+		}
+		return cryptoContext;
 	}
 
 	public void setCompress(boolean compress) {
 		this.compress = compress;
 	}
 
+	public void setCompressionAlgorithm(CompressionAlgorithm compressionAlgorithm) {
+		this.compressionAlgorithm = compressionAlgorithm;
+	}
+
+	/**
+	 * @param level - compression level (1-9), 0 for the algorithm's default
+	 */
+	public void setCompressionLevel(int level) {
+		this.compressionLevel = level;
+	}
+
+	/**
+	 * statistics on the data compressed or decompressed by this client
+	 * (only for LZ4 and DEFLATE)
+	 */
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+
 	public void setProgressListener(UFTPProgressListener progressListener) {
 		this.progressListener = progressListener;
 	}
@@ -6,8 +6,10 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
@@ -18,13 +20,24 @@ import java.util.concurrent.TimeUnit;
 import org.apache.logging.log4j.Logger;
 
 import eu.unicore.uftp.dpc.AuthorizationFailureException;
+import eu.unicore.uftp.dpc.MultipartHash;
 import eu.unicore.uftp.dpc.Reply;
 import eu.unicore.uftp.dpc.Utils;
+import eu.unicore.uftp.jparss.PConfig;
+import eu.unicore.uftp.jparss.PBaseSocket;
+import eu.unicore.uftp.jparss.PSocket;
+import eu.unicore.uftp.rsync.Checksum;
 import eu.unicore.uftp.rsync.Follower;
 import eu.unicore.uftp.rsync.Leader;
+import eu.unicore.uftp.rsync.Murmur3Digest;
+import eu.unicore.uftp.rsync.PartitionedFollower;
+import eu.unicore.uftp.rsync.PartitionedLeader;
 import eu.unicore.uftp.rsync.RsyncStats;
 import eu.unicore.uftp.rsync.SocketFollowerChannel;
 import eu.unicore.uftp.rsync.SocketLeaderChannel;
+import eu.unicore.uftp.rsync.TreeFollower;
+import eu.unicore.uftp.rsync.TreeLeader;
+import eu.unicore.uftp.rsync.TreeSyncStats;
 import eu.unicore.uftp.server.UFTPCommands;
 import eu.unicore.util.Pair;
 
@@ -46,7 +59,8 @@ public class UFTPSessionClient extends AbstractUFTPClient {
 
 	/**
 	 * set the size of the buffer used for data copy operations
-	 * (only effective if the number of parallel streams is "1")
+	 * (only effective if the number of parallel streams is "1",
+	 * or if the streams are used in decoupled mode)
 	 * @param buffersize
 	 */
 	public void setBuffersize(int buffersize) {
@@ -72,6 +86,9 @@ public class UFTPSessionClient extends AbstractUFTPClient {
 		if(getServerFeatures().contains(UFTPCommands.FEATURE_RFC_RANG)) {
 			rfcCompliantRange = true;
 		}
+		if(getServerFeatures().contains(UFTPCommands.MULTISTREAM_DECOUPLED)) {
+			enableDecoupledStreams();
+		}
 	}
 
 	public void resetDataConnections() throws IOException {
@@ -484,6 +501,92 @@ public class UFTPSessionClient extends AbstractUFTPClient {
 		runCommand("TYPE "+type);
 	}
 
+	private String syncChecksum = Checksum.MD5;
+
+	public boolean supportsSyncChecksums() {
+		return getServerFeatures().contains(UFTPCommands.SYNC_CHECKSUM);
+	}
+
+	/**
+	 * choose the strong checksum used for the rsync blocks (one of
+	 * {@link Checksum#STRONG_CHECKSUMS}, default is MD5). The faster
+	 * {@link Murmur3Digest#ALGORITHM} requires server support, see
+	 * {@link #supportsSyncChecksums()}
+	 *
+	 * @return the algorithm as confirmed by the server
+	 */
+	public String setSyncChecksum(String algorithm) throws IOException {
+		checkConnected();
+		String algo = Checksum.checkStrongChecksum(algorithm);
+		if(!Checksum.MD5.equals(algo) || supportsSyncChecksums()) {
+			Reply reply = runCommand("OPTS "+UFTPCommands.SYNC_CHECKSUM+" "+algo, 200);
+			algo = reply.getStatusLine().split("200 ")[1];
+		}
+		syncChecksum = algo;
+		return syncChecksum;
+	}
+
+	private int syncBlockSize = 0;
+
+	/**
+	 * set the rsync block size. By default, it is chosen depending on the file
+	 * size (see {@link Follower#reasonableBlockSize(long)}). The block size is
+	 * used for syncing local files, and sent to the server (if supported) for
+	 * syncing remote files, which then requires server support for
+	 * {@link UFTPCommands#SYNC_BLOCKSIZE}.
+	 *
+	 * @param blockSize - block size, or 0 to choose it automatically
+	 * @return the block size (as confirmed by the server, if supported)
+	 */
+	public String setSyncBlockSize(int blockSize) throws IOException {
+		checkConnected();
+		String size = blockSize>0 ? String.valueOf(Follower.checkBlockSize(blockSize)) : "AUTO";
+		if(getServerFeatures().contains(UFTPCommands.SYNC_BLOCKSIZE)) {
+			Reply reply = runCommand("OPTS "+UFTPCommands.SYNC_BLOCKSIZE+" "+size, 200);
+			size = reply.getStatusLine().split("200 ")[1];
+		}
+		syncBlockSize = "AUTO".equals(size) ? 0 : Integer.parseInt(size);
+		return size;
+	}
+
+	private boolean syncInPlace = false;
+
+	/**
+	 * in-place mode: the out-of-date file is updated in place instead of being
+	 * replaced by a new copy, so that only changed parts are written. This works
+	 * best for files that are modified at the end, e.g. by appending data.
+	 * Requires server support for {@link UFTPCommands#SYNC_INPLACE}
+	 */
+	public void setSyncInPlace(boolean inPlace) throws IOException {
+		checkConnected();
+		if(inPlace)assertFeature(UFTPCommands.SYNC_INPLACE);
+		if(getServerFeatures().contains(UFTPCommands.SYNC_INPLACE)) {
+			runCommand("OPTS "+UFTPCommands.SYNC_INPLACE+" "+(inPlace ? "ON" : "OFF"), 200);
+		}
+		syncInPlace = inPlace;
+	}
+
+	private boolean syncParallel = false;
+
+	/**
+	 * if multiple data streams are used, sync a single file using one partition
+	 * per stream, which are processed in parallel (not used in in-place mode).
+	 * Requires server support for {@link UFTPCommands#SYNC_PARALLEL}
+	 */
+	public void setSyncParallel(boolean parallel) throws IOException {
+		checkConnected();
+		if(parallel)assertFeature(UFTPCommands.SYNC_PARALLEL);
+		if(getServerFeatures().contains(UFTPCommands.SYNC_PARALLEL)) {
+			runCommand("OPTS "+UFTPCommands.SYNC_PARALLEL+" "+(parallel ? "ON" : "OFF"), 200);
+		}
+		syncParallel = parallel;
+	}
+
+	// must be the same decision as on the server side
+	private boolean useSyncPartitions() {
+		return syncParallel && !syncInPlace && socket instanceof PBaseSocket;
+	}
+
 	/**
 	 * sync a local file with its up-to-date remote version
 	 *
@@ -496,9 +599,25 @@ public class UFTPSessionClient extends AbstractUFTPClient {
 			// sync can take a long time to compute the checksums
 			setTimeout(0, TimeUnit.MILLISECONDS);
 			runCommand("SYNC-TO-CLIENT " + remotePrimary);
-			return new Follower(local, new SocketFollowerChannel(socket),
-					local.getAbsolutePath())
-					.call();
+			if(useSyncPartitions()) {
+				PartitionedFollower follower = new PartitionedFollower(local,
+						SocketFollowerChannel.perStream((PBaseSocket)socket), syncBlockSize, socket);
+				follower.setChecksumAlgorithm(syncChecksum);
+				return follower.call();
+			}
+			Follower follower;
+			if(syncBlockSize>0) {
+				follower = new Follower(new RandomAccessFile(local, "r"), new SocketFollowerChannel(socket),
+						local.getAbsolutePath(), Follower.checkBlockSize(syncBlockSize, local.length()));
+				follower.setBlocksizeChoice(Follower.BLOCKSIZE_REQUESTED);
+			}
+			else {
+				follower = new Follower(local, new SocketFollowerChannel(socket),
+						local.getAbsolutePath());
+			}
+			follower.setChecksumAlgorithm(syncChecksum);
+			follower.setInPlace(syncInPlace);
+			return follower.call();
 		}finally {
 			setTimeout(t, TimeUnit.MILLISECONDS);
 		}
@@ -516,10 +635,67 @@ public class UFTPSessionClient extends AbstractUFTPClient {
 		try {
 			// sync can take a long time to compute the checksums
 			setTimeout(0, TimeUnit.MILLISECONDS);
+			// the server's Follower uses the requested block size
+			if(syncBlockSize>0)assertFeature(UFTPCommands.SYNC_BLOCKSIZE);
 			runCommand("SYNC-TO-SERVER " + remote);
-			return new Leader(localPrimary, new SocketLeaderChannel(socket),
-					localPrimary.getAbsolutePath())
-					.call();
+			if(useSyncPartitions()) {
+				PartitionedLeader leader = new PartitionedLeader(localPrimary,
+						SocketLeaderChannel.perStream((PBaseSocket)socket), localPrimary.getAbsolutePath(), socket);
+				leader.setChecksumAlgorithm(syncChecksum);
+				return leader.call();
+			}
+			Leader leader = new Leader(localPrimary, new SocketLeaderChannel(socket),
+					localPrimary.getAbsolutePath());
+			leader.setChecksumAlgorithm(syncChecksum);
+			leader.setInPlace(syncInPlace);
+			return leader.call();
+		}finally {
+			setTimeout(t, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * sync a local directory tree with its up-to-date remote version: changed files
+	 * are updated using rsync, new files are transferred as a whole. Local files
+	 * that do not exist remotely are kept.
+	 * Requires server support for {@link UFTPCommands#SYNC_TREE}
+	 *
+	 * @param remotePrimary - the remote directory (up of date)
+	 * @param local - the local directory (out of date)
+	 */
+	public TreeSyncStats syncLocalTree(String remotePrimary, File local) throws Exception {
+		assertFeature(UFTPCommands.SYNC_TREE);
+		int t = this.timeout;
+		try {
+			setTimeout(0, TimeUnit.MILLISECONDS);
+			runCommand("SYNC-TREE-TO-CLIENT " + remotePrimary);
+			TreeFollower follower = new TreeFollower(local, socket.getInputStream(),
+					socket.getOutputStream(), socket);
+			follower.setChecksumAlgorithm(syncChecksum);
+			follower.setInPlace(syncInPlace);
+			return follower.call();
+		}finally {
+			setTimeout(t, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * sync a remote directory tree with its up-to-date local version
+	 * Requires server support for {@link UFTPCommands#SYNC_TREE}
+	 *
+	 * @param localPrimary - the local directory (up of date)
+	 * @param remote - the remote directory (out of date, will be created if necessary)
+	 */
+	public TreeSyncStats syncRemoteTree(File localPrimary, String remote) throws Exception {
+		assertFeature(UFTPCommands.SYNC_TREE);
+		int t = this.timeout;
+		try {
+			setTimeout(0, TimeUnit.MILLISECONDS);
+			runCommand("SYNC-TREE-TO-SERVER " + remote);
+			TreeLeader leader = new TreeLeader(localPrimary, socket.getInputStream(), socket.getOutputStream());
+			leader.setChecksumAlgorithm(syncChecksum);
+			leader.setInPlace(syncInPlace);
+			return leader.call();
 		}finally {
 			setTimeout(t, TimeUnit.MILLISECONDS);
 		}
@@ -598,10 +774,33 @@ public class UFTPSessionClient extends AbstractUFTPClient {
 		return reply.getStatusLine().split("200 ")[1];
 	}
 
+	public boolean supportsMultipartHashes() throws IOException {
+		return getServerFeatures().contains(UFTPCommands.HASH_PARTS);
+	}
+
+	/**
+	 * request multi-part hashes, where the server splits the file range into
+	 * parts of the given size and hashes them in parallel. The parts are returned
+	 * in {@link HashInfo#parts}, and the root hash is computed from the part hashes
+	 * (see {@link MultipartHash}).
+	 *
+	 * @param partSize - size of the parts in bytes, or 0 to get single hashes
+	 * @return the part size as confirmed by the server
+	 */
+	public String setHashPartSize(long partSize) throws IOException {
+		checkConnected();
+		Reply reply = runCommand("OPTS "+UFTPCommands.HASH_PARTS+" "+(partSize>0 ? String.valueOf(partSize) : "OFF"), 200);
+		return reply.getStatusLine().split("200 ")[1];
+	}
+
 	public HashInfo getHash(String file) throws IOException {
 		return getHash(file, 0, -1);
 	}
 
+	/**
+	 * get the hash of the given range of the remote file. In case of a multi-part hash
+	 * (see {@link #setHashPartSize(long)}) the root hash is verified against the part hashes.
+	 */
 	public HashInfo getHash(String remoteFile, long offset, long length) throws IOException {
 		checkConnected();
 		if(offset>=0 && length>0) sendRangeCommand(offset, length);
@@ -613,7 +812,42 @@ public class UFTPSessionClient extends AbstractUFTPClient {
 		long last = Long.parseLong(range[1]);
 		String hash = tokens[3];
 		String path = tokens[4];
-		return new HashInfo(path, hash, algo, first, last);
+		HashInfo info = new HashInfo(path, hash, algo, first, last);
+		if(reply.getResults().size()>0) {
+			info.parts = parseParts(info, reply.getResults());
+		}
+		return info;
+	}
+
+	// parse the part hashes and check that they cover the range and match the root hash
+	private List<HashInfo> parseParts(HashInfo root, List<String> lines) throws IOException {
+		List<HashInfo> parts = new ArrayList<>();
+		List<String> hashes = new ArrayList<>();
+		long expectedFirst = root.firstByte;
+		for(String line: lines) {
+			String[] tokens = line.split(" ");
+			String[] range = tokens[1].split("-");
+			long first = Long.parseLong(range[0]);
+			long last = Long.parseLong(range[1]);
+			if(Integer.parseInt(tokens[0])!=parts.size() || first!=expectedFirst) {
+				throw new IOException("Invalid multi-part hash: unexpected part <"+line+">");
+			}
+			parts.add(new HashInfo(root.path, tokens[2], root.algorithm, first, last));
+			hashes.add(tokens[2]);
+			expectedFirst = last+1;
+		}
+		if(expectedFirst!=root.lastByte+1) {
+			throw new IOException("Invalid multi-part hash: parts do not cover range "
+						+root.firstByte+"-"+root.lastByte);
+		}
+		try {
+			if(!MultipartHash.verify(root.algorithm, hashes, root.hash)) {
+				throw new IOException("Invalid multi-part hash: root hash does not match part hashes");
+			}
+		}catch(NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		return parts;
 	}
 
 	public void setSessionOption(String key, String value) throws IOException {
@@ -636,6 +870,8 @@ public class UFTPSessionClient extends AbstractUFTPClient {
 		public long lastByte;  // including this byte
 		public String hash;
 		public String path;
+		// part hashes in case of a multi-part hash, otherwise null
+		public List<HashInfo> parts;
 
 		public HashInfo(String path, String  hash, String algorithm, long firstByte, long lastByte) {
 			this.path = path;
@@ -669,32 +905,38 @@ public class UFTPSessionClient extends AbstractUFTPClient {
 		long want = 0;
 		long remaining = maxBytes;
 		long total = 0;
-		int _s = numcons==1? buffersize : BUFFSIZE;
+		// in lockstep mode, sender and receiver must use the same buffer size
+		int _s = numcons==1 || decoupledStreams ? buffersize : BUFFSIZE;
 		byte[] buffer = new byte[_s];
 
-		while (streamingMode || remaining > 0 && !cancelled) {
-			want = streamingMode? buffer.length : (buffer.length > remaining ? remaining : buffer.length);  
-			n = reader.read(buffer,0,(int)want);
-			if (n < 0) {
-				break;
-			}
-			remaining -= n;
-			total += n;
-			writer.write(buffer, 0, n);
-			if (notify) {
-				if (c % 200 == 0) {
-					progressListener.notifyTotalBytesTransferred(total);
+		try {
+			while (streamingMode || remaining > 0 && !cancelled) {
+				want = streamingMode? buffer.length : (buffer.length > remaining ? remaining : buffer.length);  
+				n = reader.read(buffer,0,(int)want);
+				if (n < 0) {
+					break;
+				}
+				remaining -= n;
+				total += n;
+				writer.write(buffer, 0, n);
+				if (notify) {
+					if (c % 200 == 0) {
+						progressListener.notifyTotalBytesTransferred(total);
+					}
+					c++;
+				}
+				if (controlRate) {
+					try{
+						controlRate(total, time);
+					}catch(Exception ex) {}
 				}
-				c++;
-			}
-			if (controlRate) {
-				try{
-					controlRate(total, time);
-				}catch(Exception ex) {}
 			}
+			Utils.finishWriting(writer);
+			writer.flush();
+		}catch(IOException | RuntimeException ex) {
+			abortData();
+			throw ex;
 		}
-		writer.flush();
-		Utils.finishWriting(writer);
 		if (notify) {
 			progressListener.notifyTotalBytesTransferred(total);
 		}
@@ -799,6 +1041,56 @@ public class UFTPSessionClient extends AbstractUFTPClient {
 		keepAlive = reply.isOK();
 	}
 
+	private void enableDecoupledStreams() throws IOException {
+		if(Boolean.parseBoolean(Utils.getProperty("UFTP_DISABLE_DECOUPLED_STREAMS", "false"))) {
+			logger.debug("Decoupled multistream mode disabled via environment");
+			return;
+		}
+		Reply reply = runCommand("OPTS "+UFTPCommands.MULTISTREAM+" DECOUPLED");
+		decoupledStreams = reply.isOK();
+		if(socket instanceof PSocket) {
+			((PSocket)socket).setDecoupled(decoupledStreams);
+		}
+		if(decoupledStreams && chunkSize!=PConfig.defaultChunkSize) {
+			sendChunkSize();
+		}
+	}
+
+	public boolean isDecoupledStreams() {
+		return decoupledStreams;
+	}
+
+	/**
+	 * set the size of the chunks used to send data over multiple streams
+	 * in decoupled mode. Small writes are coalesced into chunks of this size.
+	 * The setting is applied to both client and server side.
+	 *
+	 * @param chunkSize - size in bytes (will be limited to the range 
+	 *   [{@link PConfig#minChunkSize}, {@link PConfig#maxChunkSize}]),
+	 *   or {@link PConfig#AUTO_CHUNKSIZE} to adapt the chunk size to the 
+	 *   measured throughput
+	 */
+	public void setChunkSize(int chunkSize) throws IOException {
+		this.chunkSize = PConfig.checkChunkSize(chunkSize);
+		if(isConnected() && decoupledStreams) {
+			sendChunkSize();
+		}
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	private void sendChunkSize() throws IOException {
+		if(getServerFeatures().contains(UFTPCommands.CHUNKSIZE)) {
+			String size = chunkSize==PConfig.AUTO_CHUNKSIZE ? "AUTO" : String.valueOf(chunkSize);
+			runCommand("OPTS "+UFTPCommands.CHUNKSIZE+" "+size);
+		}
+		if(socket instanceof PSocket) {
+			((PSocket)socket).setChunkSize(chunkSize);
+		}
+	}
+
 	private void checkConnected() throws IOException {
 		if (!isConnected()) {
 			throw new IOException("Not connected!");
@@ -10,6 +10,7 @@ import java.util.List;
 
 import org.apache.logging.log4j.Logger;
 
+import eu.unicore.uftp.dpc.BufferPool;
 import eu.unicore.uftp.dpc.Utils;
 
 /**
@@ -20,6 +21,8 @@ public class AsyncProducer implements Runnable {
 
 	private static final Logger logger = Utils.getLogger(Utils.LOG_CLIENT, AsyncProducer.class);
 
+	private static final int BUFFER_SIZE = 8192;
+
 	private final List<Holder> operations = new ArrayList<>();
 
 	public AsyncProducer() throws IOException {
@@ -65,20 +68,28 @@ public class AsyncProducer implements Runnable {
 		if(sink.size()>4)return false;
 		Long toRead = holder.toRead;
 		try{
-			// TODO pool these?
-			final ByteBuffer buffer = ByteBuffer.allocate(8192);
 			int n=0;
 			if(toRead>0) {
+				// the consumer hands the buffer back to the pool
+				final ByteBuffer buffer = BufferPool.DIRECT.acquire(BUFFER_SIZE);
 				if(toRead<buffer.capacity()) {
 					buffer.limit(toRead.intValue());
 				}
-				n = source.read(buffer);
+				try {
+					n = source.read(buffer);
+				}catch(IOException ioe) {
+					BufferPool.DIRECT.release(buffer);
+					throw ioe;
+				}
 				if(n>0) {
 					toRead -= buffer.position();
 					buffer.flip();
 					sink.offer(buffer);
 					holder.toRead = toRead;
 				}
+				else {
+					BufferPool.DIRECT.release(buffer);
+				}
 			}
 			return (n<0 || toRead<=0 || !source.isOpen());
 		}catch(IOException ioe) {
@@ -14,6 +14,7 @@ import java.util.List;
 import org.apache.logging.log4j.Logger;
 
 import eu.unicore.uftp.client.UFTPSessionClient;
+import eu.unicore.uftp.dpc.BufferPool;
 import eu.unicore.uftp.dpc.Utils;
 
 /**
@@ -76,29 +77,34 @@ public class AsyncUploader implements Runnable {
 		if(buffer==null)return;
 		Long toWrite = attached.toWrite;
 		WritableByteChannel sink = (WritableByteChannel)key.channel();
+		if(!key.isWritable()) {
+			source.offerFirst(buffer);
+			return;
+		}
 		try{
-			if(key.isWritable()) {
-				if(toWrite>0) {
-					if(toWrite<buffer.limit()) {
-						buffer.limit(toWrite.intValue());
-					}
-					int n = buffer.limit();
-					int written = 0;
-					while(written<n) {
-						int wrote = sink.write(buffer);
-						written += wrote;
-						toWrite -= wrote;
-					}
-					attached.toWrite = toWrite;
+			if(toWrite>0) {
+				if(toWrite<buffer.limit()) {
+					buffer.limit(toWrite.intValue());
 				}
-				if(toWrite<=0 || !sink.isOpen()) {
-					keys.remove(key);
-					key.cancel();
-					attached.client.readControl();
+				int n = buffer.limit();
+				int written = 0;
+				while(written<n) {
+					int wrote = sink.write(buffer);
+					written += wrote;
+					toWrite -= wrote;
 				}
+				attached.toWrite = toWrite;
+			}
+			if(toWrite<=0 || !sink.isOpen()) {
+				keys.remove(key);
+				key.cancel();
+				attached.client.readControl();
 			}
 		}catch(IOException ioe) {
 			logger.error("Error handling selection event: "+ioe);
+		}finally {
+			// buffers are produced by the AsyncProducer
+			BufferPool.DIRECT.release(buffer);
 		}
 	}
 	
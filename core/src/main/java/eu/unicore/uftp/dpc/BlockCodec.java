@@ -0,0 +1,39 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+
+/**
+ * compresses and decompresses independent blocks of data, see {@link BlockCompression}.
+ * An instance is used by one thread at a time.
+ */
+public interface BlockCodec {
+
+	/**
+	 * the maximum length of the compressed data for a block of the given length
+	 */
+	public int maxCompressedLength(int length);
+
+	/**
+	 * compress a block
+	 *
+	 * @param in - the data
+	 * @param length - the length of the data
+	 * @param out - must have room for {@link #maxCompressedLength(int)} bytes from outOff
+	 * @param outOff - offset in the output buffer
+	 * @return the length of the compressed data
+	 */
+	public int compress(byte[] in, int length, byte[] out, int outOff) throws IOException;
+
+	/**
+	 * decompress a block
+	 *
+	 * @param in - the compressed data
+	 * @param off - offset of the compressed data
+	 * @param length - length of the compressed data
+	 * @param out - buffer for the decompressed data
+	 * @param rawLength - expected length of the decompressed data
+	 * @throws IOException if the data is corrupt
+	 */
+	public void decompress(byte[] in, int off, int length, byte[] out, int rawLength) throws IOException;
+
+}
@@ -0,0 +1,219 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.commons.io.IOUtils;
+
+import eu.unicore.uftp.dpc.Utils.CompressionAlgorithm;
+
+/**
+ * compression of independent blocks, so that blocks can be compressed
+ * in parallel. <br/>
+ *
+ * Compression is adaptive: blocks that look incompressible (judged by the byte
+ * entropy of a sample), or that do not get noticeably smaller when compressed,
+ * are sent as they are.<br/>
+ *
+ * On the wire, each block is a frame consisting of an int header (the length of
+ * the block as sent, the highest bit marks the last block), an int containing
+ * the length of the uncompressed block, a flag byte ({@link #STORED} or
+ * {@link #COMPRESSED}) and the block data.
+ */
+public class BlockCompression {
+
+	/**
+	 * property for setting the number of threads for compressing blocks
+	 * in parallel. With a value of 1, blocks are compressed inline.
+	 */
+	public static final String COMPRESS_THREADS = "UFTP_COMPRESS_THREADS";
+
+	public static final int HEADER_LENGTH = 9;
+
+	// maximum amount of uncompressed data per block
+	public static final int BLOCK_SIZE = 131072;
+
+	static final int LAST_BLOCK = 0x80000000;
+
+	// block types
+	static final byte STORED = 0;
+
+	static final byte COMPRESSED = 1;
+
+	// bits per byte above which a block is not even tried to compress
+	static final double MAX_ENTROPY = 7.7;
+
+	// number of bytes sampled for estimating the entropy
+	static final int SAMPLE_SIZE = 4096;
+
+	// a compressed block is sent only if it saves at least 1/32 (~3%)
+	static final int MIN_SAVINGS = 32;
+
+	private BlockCompression() {}
+
+	/**
+	 * whether the algorithm uses blocks (instead of a GZIP stream)
+	 */
+	public static boolean isBlocked(CompressionAlgorithm algo) {
+		return algo==CompressionAlgorithm.LZ4 || algo==CompressionAlgorithm.DEFLATE;
+	}
+
+	/**
+	 * create a codec
+	 *
+	 * @param algo - LZ4 or DEFLATE
+	 * @param level - compression level (1-9), 0 for the codec's default
+	 */
+	public static BlockCodec createCodec(CompressionAlgorithm algo, int level) {
+		switch(algo) {
+		case LZ4:
+			return new LZ4BlockCodec(level);
+		case DEFLATE:
+			return new DeflateBlockCodec(level);
+		default:
+			throw new IllegalArgumentException("Not a block compression algorithm: "+algo);
+		}
+	}
+
+	/**
+	 * maximum length of a frame produced by the given codec
+	 */
+	public static int maxFrameLength(BlockCodec codec) {
+		return HEADER_LENGTH + Math.max(BLOCK_SIZE, codec.maxCompressedLength(BLOCK_SIZE));
+	}
+
+	/**
+	 * an encoder producing frames using the given codec
+	 */
+	public static ChunkEncoder encoder(BlockCodec codec) {
+		return encoder(codec, null);
+	}
+
+	/**
+	 * an encoder producing frames using the given codec
+	 *
+	 * @param codec - the codec
+	 * @param stats - statistics to update (can be null)
+	 */
+	public static ChunkEncoder encoder(BlockCodec codec, CompressionStats stats) {
+		final int[] histogram = new int[256];
+		return (seq, last, chunk, length, frame) -> {
+			long start = stats!=null ? CompressionStats.cpuTime() : 0;
+			int n = -1;
+			if(!looksIncompressible(chunk, length, histogram)) {
+				n = codec.compress(chunk, length, frame, HEADER_LENGTH);
+			}
+			boolean compressed = n>=0 && n <= length - length/MIN_SAVINGS && n < length;
+			if(!compressed) {
+				System.arraycopy(chunk, 0, frame, HEADER_LENGTH, length);
+				n = length;
+			}
+			writeInt(last ? LAST_BLOCK | n : n, frame, 0);
+			writeInt(length, frame, 4);
+			frame[8] = compressed ? COMPRESSED : STORED;
+			if(stats!=null) {
+				stats.add(length, n, compressed, CompressionStats.cpuTime()-start);
+			}
+			return HEADER_LENGTH + n;
+		};
+	}
+
+	/**
+	 * estimates the entropy (in bits per byte) of a sample of the data,
+	 * and checks whether it is higher than {@link #MAX_ENTROPY}
+	 */
+	static boolean looksIncompressible(byte[] data, int length, int[] histogram) {
+		if(length<SAMPLE_SIZE)return false;
+		Arrays.fill(histogram, 0);
+		// 16 runs of 256 bytes spread over the block
+		int runs = SAMPLE_SIZE / 256;
+		int stride = length / runs;
+		for(int r=0; r<runs; r++) {
+			int start = r*stride;
+			for(int i=start; i<start+256; i++) {
+				histogram[data[i] & 0xff]++;
+			}
+		}
+		double entropy = 0;
+		for(int c: histogram) {
+			if(c==0)continue;
+			double p = (double)c / SAMPLE_SIZE;
+			entropy -= p * Math.log(p);
+		}
+		return entropy / Math.log(2) > MAX_ENTROPY;
+	}
+
+	/**
+	 * read the next frame header, and then the compressed block into the given buffer
+	 *
+	 * @param buffer - must have room for {@link #maxFrameLength(BlockCodec)} bytes
+	 * @return the header, see {@link #isLast(int)} and {@link #blockLength(int)},
+	 *         or -1 if the stream is empty
+	 */
+	static int readFrame(InputStream in, byte[] buffer, BlockCodec codec, long seq) throws IOException {
+		int n = IOUtils.read(in, buffer, 0, HEADER_LENGTH);
+		if(n==0 && seq==0)return -1;
+		if(n<HEADER_LENGTH)throw new IOException("Compressed stream ended without last block");
+		int header = readInt(buffer, 0);
+		int length = blockLength(header);
+		int rawLength = rawLength(buffer);
+		byte type = buffer[8];
+		if(rawLength<0 || rawLength>BLOCK_SIZE || length>maxFrameLength(codec)-HEADER_LENGTH
+				|| (type!=STORED && type!=COMPRESSED) || (type==STORED && length!=rawLength)) {
+			throw new IOException("Invalid header of compressed block "+seq+": "+length+"/"+rawLength+"/"+type);
+		}
+		if(IOUtils.read(in, buffer, HEADER_LENGTH, length)<length) {
+			throw new IOException("Compressed stream ended without last block");
+		}
+		return header;
+	}
+
+	static boolean isLast(int header) {
+		return (header & LAST_BLOCK) != 0;
+	}
+
+	static int blockLength(int header) {
+		return header & ~LAST_BLOCK;
+	}
+
+	static int rawLength(byte[] frame) {
+		return readInt(frame, 4);
+	}
+
+	static boolean isCompressed(byte[] frame) {
+		return frame[8]==COMPRESSED;
+	}
+
+	private static void writeInt(int i, byte[] b, int off) {
+		b[off] = (byte)(i >>> 24);
+		b[off+1] = (byte)(i >>> 16);
+		b[off+2] = (byte)(i >>> 8);
+		b[off+3] = (byte)i;
+	}
+
+	private static int readInt(byte[] b, int off) {
+		return (b[off] & 0xff) << 24 | (b[off+1] & 0xff) << 16 | (b[off+2] & 0xff) << 8 | (b[off+3] & 0xff);
+	}
+
+	private static ForkJoinPool pool;
+
+	/**
+	 * number of threads for compressing blocks in parallel, see {@link #COMPRESS_THREADS}
+	 */
+	public static int getThreads() {
+		return ParallelChunkedOutputStream.getThreads(COMPRESS_THREADS);
+	}
+
+	/**
+	 * shared pool for compressing blocks in parallel
+	 */
+	public static synchronized ForkJoinPool getPool() {
+		if(pool == null) {
+			pool = ParallelChunkedOutputStream.createPool("Compress", getThreads());
+		}
+		return pool;
+	}
+
+}
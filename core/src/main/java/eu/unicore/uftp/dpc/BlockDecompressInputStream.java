@@ -0,0 +1,121 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import eu.unicore.uftp.dpc.Utils.CompressionAlgorithm;
+
+/**
+ * decompresses the data written by a {@link ChunkedOutputStream} using
+ * a {@link BlockCompression} encoder. <br/>
+ *
+ * Reading stops after the last block, without consuming any further data from
+ * the underlying stream. If the underlying stream ends before the last block,
+ * an IOException is thrown.
+ */
+public class BlockDecompressInputStream extends InputStream {
+
+	private final InputStream in;
+
+	private final BlockCodec codec;
+
+	private final CompressionStats stats;
+
+	private final byte[] frame;
+
+	private final byte[] buffer = new byte[BlockCompression.BLOCK_SIZE];
+
+	private final byte[] single = new byte[1];
+
+	private int pos = 0;
+
+	private int limit = 0;
+
+	private long seq = 0;
+
+	private boolean last = false;
+
+	public BlockDecompressInputStream(InputStream in, CompressionAlgorithm algo) {
+		this(in, algo, null);
+	}
+
+	/**
+	 * @param in - the underlying stream
+	 * @param algo - LZ4 or DEFLATE
+	 * @param stats - statistics to update (can be null)
+	 */
+	public BlockDecompressInputStream(InputStream in, CompressionAlgorithm algo, CompressionStats stats) {
+		this.in = in;
+		this.stats = stats;
+		this.codec = BlockCompression.createCodec(algo, 0);
+		this.frame = new byte[BlockCompression.maxFrameLength(codec)];
+	}
+
+	@Override
+	public int read() throws IOException {
+		int n = read(single, 0, 1);
+		return n<0 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len==0)return 0;
+		while(pos==limit) {
+			if(last || !nextBlock())return -1;
+		}
+		int n = Math.min(len, limit-pos);
+		System.arraycopy(buffer, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while(skipped<n) {
+			if(pos==limit && (last || !nextBlock()))break;
+			int s = (int)Math.min(n-skipped, limit-pos);
+			pos += s;
+			skipped += s;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return limit-pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		in.close();
+	}
+
+	private boolean nextBlock() throws IOException {
+		int header = BlockCompression.readFrame(in, frame, codec, seq);
+		if(header==-1) {
+			// nothing was written
+			last = true;
+			return false;
+		}
+		long start = stats!=null ? CompressionStats.cpuTime() : 0;
+		int rawLength = BlockCompression.rawLength(frame);
+		int length = BlockCompression.blockLength(header);
+		boolean compressed = BlockCompression.isCompressed(frame);
+		if(compressed) {
+			codec.decompress(frame, BlockCompression.HEADER_LENGTH, length, buffer, rawLength);
+		}
+		else {
+			System.arraycopy(frame, BlockCompression.HEADER_LENGTH, buffer, 0, rawLength);
+		}
+		if(stats!=null) {
+			stats.add(rawLength, length, compressed, CompressionStats.cpuTime()-start);
+		}
+		pos = 0;
+		limit = rawLength;
+		last = BlockCompression.isLast(header);
+		seq++;
+		return true;
+	}
+
+}
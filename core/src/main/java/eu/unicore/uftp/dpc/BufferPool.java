@@ -0,0 +1,214 @@
+package eu.unicore.uftp.dpc;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of re-usable buffers, organised in size classes (powers of two
+ * from {@link #MIN_SIZE} to {@link #MAX_SIZE}). Buffers are borrowed via
+ * {@link #acquire(int)} and must be handed back via {@link #release(ByteBuffer)}.
+ * If the pool is full, released buffers are simply left to the garbage collector.
+ * Requests larger than the largest size class are served with unpooled buffers.<br/>
+ *
+ * There are two pools: {@link #DIRECT} for channel I/O and {@link #HEAP} for
+ * code working with byte arrays. Their capacity in bytes can be set via the
+ * {@link #DIRECT_POOL_SIZE} and {@link #HEAP_POOL_SIZE} properties.<br/>
+ *
+ * For testing, leak detection can be switched on (see {@link #setLeakDetection(boolean)}
+ * or the {@link #LEAK_DETECTION} property). Then all outstanding buffers are tracked
+ * together with the stack trace of their acquisition, and {@link #checkLeaks()}
+ * fails if buffers have not been released.
+ */
+public class BufferPool {
+
+	public static final String DIRECT_POOL_SIZE = "UFTP_DIRECT_BUFFERPOOL_SIZE";
+
+	public static final String HEAP_POOL_SIZE = "UFTP_HEAP_BUFFERPOOL_SIZE";
+
+	public static final String LEAK_DETECTION = "UFTP_BUFFERPOOL_LEAK_DETECTION";
+
+	public static final int MIN_SIZE = 4096;
+
+	public static final int MAX_SIZE = 16 * 1024 * 1024;
+
+	private static final int MIN_SHIFT = Integer.numberOfTrailingZeros(MIN_SIZE);
+
+	private static final int NUM_CLASSES = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+
+	public static final BufferPool DIRECT = new BufferPool(true, getLong(DIRECT_POOL_SIZE, 64 * 1024 * 1024));
+
+	public static final BufferPool HEAP = new BufferPool(false, getLong(HEAP_POOL_SIZE, 64 * 1024 * 1024));
+
+	private final boolean direct;
+
+	private final long maxPooledBytes;
+
+	private final List<ConcurrentLinkedDeque<ByteBuffer>> freeLists = new ArrayList<>();
+
+	private final AtomicLong pooledBytes = new AtomicLong(0);
+
+	private final AtomicLong allocated = new AtomicLong(0);
+
+	private final AtomicLong reused = new AtomicLong(0);
+
+	private final AtomicLong outstanding = new AtomicLong(0);
+
+	private volatile boolean leakDetection = Boolean.parseBoolean(Utils.getProperty(LEAK_DETECTION, "false"));
+
+	// when leak detection is on: outstanding buffers and where they were acquired
+	private final Map<ByteBuffer, Exception> tracked = new IdentityHashMap<>();
+
+	public BufferPool(boolean direct, long maxPooledBytes) {
+		this.direct = direct;
+		this.maxPooledBytes = maxPooledBytes;
+		for(int i=0; i<NUM_CLASSES; i++) {
+			freeLists.add(new ConcurrentLinkedDeque<>());
+		}
+	}
+
+	/**
+	 * borrow a buffer with at least the given capacity. The buffer's position
+	 * is zero and its limit is the requested size.
+	 */
+	public ByteBuffer acquire(int size) {
+		if(size<0)throw new IllegalArgumentException("Negative buffer size");
+		int sizeClass = sizeClass(size);
+		ByteBuffer buffer = null;
+		if(sizeClass>=0) {
+			buffer = freeLists.get(sizeClass).pollFirst();
+		}
+		if(buffer!=null) {
+			pooledBytes.addAndGet(-buffer.capacity());
+			reused.incrementAndGet();
+		}
+		else {
+			int capacity = sizeClass>=0 ? MIN_SIZE << sizeClass : size;
+			buffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+			allocated.incrementAndGet();
+		}
+		buffer.clear().limit(size);
+		outstanding.incrementAndGet();
+		if(leakDetection) {
+			synchronized (tracked) {
+				tracked.put(buffer, new Exception("Buffer of size "+size+" acquired here"));
+			}
+		}
+		return buffer;
+	}
+
+	/**
+	 * hand back a buffer obtained from {@link #acquire(int)}. The caller must not
+	 * use the buffer afterwards. <code>null</code> is ignored.
+	 */
+	public void release(ByteBuffer buffer) {
+		if(buffer==null)return;
+		if(leakDetection) {
+			synchronized (tracked) {
+				if(tracked.remove(buffer)==null) {
+					throw new IllegalStateException("Buffer released twice or not acquired from this pool");
+				}
+			}
+		}
+		outstanding.decrementAndGet();
+		if(buffer.isDirect()!=direct)return;
+		int capacity = buffer.capacity();
+		int sizeClass = sizeClass(capacity);
+		if(sizeClass<0 || capacity != MIN_SIZE << sizeClass)return;
+		if(pooledBytes.addAndGet(capacity) > maxPooledBytes) {
+			pooledBytes.addAndGet(-capacity);
+			return;
+		}
+		freeLists.get(sizeClass).offerFirst(buffer);
+	}
+
+	// index of the smallest size class that fits, or -1 if too large
+	private static int sizeClass(int size) {
+		if(size>MAX_SIZE)return -1;
+		if(size<=MIN_SIZE)return 0;
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * number of buffers currently borrowed
+	 */
+	public long getOutstanding() {
+		return outstanding.get();
+	}
+
+	/**
+	 * number of bytes currently held by the pool
+	 */
+	public long getPooledBytes() {
+		return pooledBytes.get();
+	}
+
+	/**
+	 * number of newly allocated buffers
+	 */
+	public long getAllocated() {
+		return allocated.get();
+	}
+
+	/**
+	 * number of buffer requests served from the pool
+	 */
+	public long getReused() {
+		return reused.get();
+	}
+
+	public void setLeakDetection(boolean leakDetection) {
+		synchronized (tracked) {
+			this.leakDetection = leakDetection;
+			tracked.clear();
+		}
+	}
+
+	/**
+	 * with leak detection switched on: throws an IllegalStateException if buffers
+	 * have been acquired but not released, with the stack trace of one of the
+	 * acquisitions as cause
+	 */
+	public void checkLeaks() {
+		synchronized (tracked) {
+			if(!tracked.isEmpty()) {
+				throw new IllegalStateException(tracked.size()+" buffer(s) not released",
+						tracked.values().iterator().next());
+			}
+		}
+	}
+
+	/**
+	 * drop all pooled buffers
+	 */
+	public void clear() {
+		for(ConcurrentLinkedDeque<ByteBuffer> l: freeLists) {
+			ByteBuffer b;
+			while((b = l.pollFirst())!=null) {
+				pooledBytes.addAndGet(-b.capacity());
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return (direct ? "direct" : "heap")+" buffer pool: outstanding="+outstanding.get()
+				+" pooled="+pooledBytes.get()+" allocated="+allocated.get()+" reused="+reused.get();
+	}
+
+	private static long getLong(String property, long defaultValue) {
+		try {
+			return Long.parseLong(Utils.getProperty(property, String.valueOf(defaultValue)));
+		}catch(NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+}
@@ -0,0 +1,256 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.io.IOUtils;
+
+import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
+
+/**
+ * authenticated encryption (AES-GCM or ChaCha20-Poly1305) of independent chunks. <br/>
+ *
+ * Each stream starts with a random base nonce, the nonce of a chunk is the base
+ * nonce XOR the chunk's sequence number, so chunks cannot be re-ordered, dropped or
+ * replayed without being detected. The last chunk of a stream is marked (via the
+ * associated data), so that truncation is detected, too. Since chunks do not depend
+ * on each other, they can be processed in parallel (using one instance per thread).<br/>
+ *
+ * On the wire, each chunk is a frame consisting of an int header (the length of the
+ * encrypted chunk, the highest bit marks the last chunk) and the encrypted chunk.
+ * The first frame is preceded by the base nonce.
+ */
+public class ChunkCipher {
+
+	/**
+	 * property for setting the number of threads for encrypting/decrypting
+	 * chunks in parallel. With a value of 1, chunks are processed inline.
+	 */
+	public static final String CRYPTO_THREADS = "UFTP_CRYPTO_THREADS";
+
+	public static final int KEY_LENGTH = 32;
+
+	public static final int NONCE_LENGTH = 12;
+
+	public static final int TAG_LENGTH = 16;
+
+	public static final int HEADER_LENGTH = 4;
+
+	// maximum amount of plain data per chunk
+	public static final int CHUNK_SIZE = 65536;
+
+	// maximum length of a frame, including the base nonce
+	public static final int MAX_FRAME_LENGTH = NONCE_LENGTH + HEADER_LENGTH + CHUNK_SIZE + TAG_LENGTH;
+
+	static final int LAST_CHUNK = 0x80000000;
+
+	private static final byte[] DATA = {0};
+
+	private static final byte[] LAST = {1};
+
+	private static final SecureRandom random = new SecureRandom();
+
+	private final EncryptionAlgorithm algo;
+
+	private final SecretKeySpec key;
+
+	private final Cipher cipher;
+
+	// the nonce of the current chunk
+	private final byte[] nonce = new byte[NONCE_LENGTH];
+
+	private final byte[] newNonce = new byte[NONCE_LENGTH];
+
+	public ChunkCipher(byte[] key, EncryptionAlgorithm algo) throws GeneralSecurityException {
+		this(keySpec(key, algo), algo);
+	}
+
+	ChunkCipher(SecretKeySpec key, EncryptionAlgorithm algo) throws GeneralSecurityException {
+		this.algo = algo;
+		this.key = key;
+		this.cipher = Cipher.getInstance(algo==EncryptionAlgorithm.AES_GCM ? "AES/GCM/NoPadding" : "ChaCha20-Poly1305");
+	}
+
+	/**
+	 * check the key and create the key spec for the given algorithm
+	 */
+	static SecretKeySpec keySpec(byte[] key, EncryptionAlgorithm algo) {
+		if(!isChunked(algo))throw new IllegalArgumentException("Not an authenticated encryption algorithm: "+algo);
+		if(key.length!=KEY_LENGTH)throw new IllegalArgumentException("Key length must be "+KEY_LENGTH);
+		return new SecretKeySpec(key, algo==EncryptionAlgorithm.AES_GCM ? "AES" : "ChaCha20");
+	}
+
+	/**
+	 * whether the algorithm uses chunks (instead of a cipher stream)
+	 */
+	public static boolean isChunked(EncryptionAlgorithm algo) {
+		return algo==EncryptionAlgorithm.AES_GCM || algo==EncryptionAlgorithm.CHACHA20;
+	}
+
+	/**
+	 * create a random base nonce for a new stream
+	 */
+	public static byte[] newBaseNonce() {
+		byte[] base = new byte[NONCE_LENGTH];
+		random.nextBytes(base);
+		return base;
+	}
+
+	/**
+	 * encrypt a chunk
+	 *
+	 * @return the length of the encrypted chunk (len + {@link #TAG_LENGTH})
+	 */
+	public int encrypt(byte[] baseNonce, long seq, boolean last, byte[] in, int off, int len, byte[] out, int outOff)
+			throws GeneralSecurityException {
+		init(Cipher.ENCRYPT_MODE, baseNonce, seq, last);
+		return cipher.doFinal(in, off, len, out, outOff);
+	}
+
+	/**
+	 * encrypt a chunk into a complete frame (preceded by the base nonce if this is the first chunk)
+	 *
+	 * @param frame - must have room for {@link #MAX_FRAME_LENGTH} bytes
+	 * @return the length of the frame
+	 */
+	public int encryptFrame(byte[] baseNonce, long seq, boolean last, byte[] in, int off, int len, byte[] frame)
+			throws IOException {
+		int o = 0;
+		if(seq==0) {
+			System.arraycopy(baseNonce, 0, frame, 0, NONCE_LENGTH);
+			o = NONCE_LENGTH;
+		}
+		int n;
+		try{
+			n = encrypt(baseNonce, seq, last, in, off, len, frame, o+HEADER_LENGTH);
+		}catch(GeneralSecurityException ex) {
+			throw new IOException(ex);
+		}
+		int header = last ? LAST_CHUNK | n : n;
+		frame[o] = (byte)(header >>> 24);
+		frame[o+1] = (byte)(header >>> 16);
+		frame[o+2] = (byte)(header >>> 8);
+		frame[o+3] = (byte)header;
+		return o+HEADER_LENGTH+n;
+	}
+
+	/**
+	 * an encoder producing the frames of the stream with the given base nonce
+	 */
+	public ChunkEncoder encoder(byte[] baseNonce) {
+		return (seq, last, chunk, length, frame) -> encryptFrame(baseNonce, seq, last, chunk, 0, length, frame);
+	}
+
+	/**
+	 * decrypt and verify a chunk
+	 *
+	 * @return the length of the decrypted data (len - {@link #TAG_LENGTH})
+	 * @throws IOException if the chunk is not authentic
+	 */
+	public int decrypt(byte[] baseNonce, long seq, boolean last, byte[] in, int off, int len, byte[] out, int outOff)
+			throws IOException {
+		try {
+			init(Cipher.DECRYPT_MODE, baseNonce, seq, last);
+			return cipher.doFinal(in, off, len, out, outOff);
+		}catch(AEADBadTagException ex) {
+			throw new IOException("Authentication of encrypted chunk "+seq+" failed");
+		}catch(GeneralSecurityException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	private void init(int mode, byte[] baseNonce, long seq, boolean last) throws GeneralSecurityException {
+		System.arraycopy(baseNonce, 0, newNonce, 0, NONCE_LENGTH);
+		for(int i=0; i<8; i++) {
+			newNonce[NONCE_LENGTH-1-i] ^= (byte)(seq >>> (8*i));
+		}
+		boolean sameNonce = Arrays.equals(nonce, newNonce);
+		System.arraycopy(newNonce, 0, nonce, 0, NONCE_LENGTH);
+		if(sameNonce && mode==Cipher.DECRYPT_MODE) {
+			// ChaCha20 refuses to be initialised twice with the same key and nonce,
+			// which happens if a re-used instance decrypts the chunk it has just
+			// encrypted (or decrypted). For encryption, this is an error
+			newNonce[0] ^= 1;
+			cipher.init(mode, key, spec(newNonce));
+		}
+		cipher.init(mode, key, spec(nonce));
+		cipher.updateAAD(last ? LAST : DATA);
+	}
+
+	private AlgorithmParameterSpec spec(byte[] nonce) {
+		return algo==EncryptionAlgorithm.AES_GCM ?
+				new GCMParameterSpec(8*TAG_LENGTH, nonce) : new IvParameterSpec(nonce);
+	}
+
+	/**
+	 * read the base nonce at the start of a stream
+	 *
+	 * @return the nonce, or null if the stream is empty
+	 */
+	static byte[] readBaseNonce(InputStream in) throws IOException {
+		byte[] nonce = new byte[NONCE_LENGTH];
+		return readFully(in, nonce, NONCE_LENGTH, true) ? nonce : null;
+	}
+
+	/**
+	 * read the next frame header, and then the encrypted chunk into the given buffer
+	 *
+	 * @return the header, see {@link #isLast(int)} and {@link #chunkLength(int)}
+	 */
+	static int readFrame(InputStream in, byte[] buffer, long seq) throws IOException {
+		readFully(in, buffer, HEADER_LENGTH, false);
+		int header = (buffer[0] & 0xff) << 24 | (buffer[1] & 0xff) << 16 | (buffer[2] & 0xff) << 8 | (buffer[3] & 0xff);
+		int length = chunkLength(header);
+		if(length<TAG_LENGTH || length>CHUNK_SIZE+TAG_LENGTH) {
+			throw new IOException("Invalid length of encrypted chunk "+seq+": "+length);
+		}
+		readFully(in, buffer, length, false);
+		return header;
+	}
+
+	static boolean isLast(int header) {
+		return (header & LAST_CHUNK) != 0;
+	}
+
+	static int chunkLength(int header) {
+		return header & ~LAST_CHUNK;
+	}
+
+	private static boolean readFully(InputStream in, byte[] b, int len, boolean allowEOF) throws IOException {
+		int n = IOUtils.read(in, b, 0, len);
+		if(n==0 && allowEOF)return false;
+		if(n<len)throw new IOException("Encrypted stream ended without last chunk");
+		return true;
+	}
+
+	private static ForkJoinPool pool;
+
+	/**
+	 * number of threads for processing chunks in parallel, see {@link #CRYPTO_THREADS}
+	 */
+	public static int getThreads() {
+		return ParallelChunkedOutputStream.getThreads(CRYPTO_THREADS);
+	}
+
+	/**
+	 * shared pool for encrypting/decrypting chunks in parallel
+	 */
+	public static synchronized ForkJoinPool getPool() {
+		if(pool == null) {
+			pool = ParallelChunkedOutputStream.createPool("Crypto", getThreads());
+		}
+		return pool;
+	}
+
+}
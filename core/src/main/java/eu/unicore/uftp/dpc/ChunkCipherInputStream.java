@@ -0,0 +1,121 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+
+import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
+
+/**
+ * decrypts and verifies the data written by a {@link ChunkCipherOutputStream}. <br/>
+ *
+ * Reading stops after the last chunk, without consuming any further data from
+ * the underlying stream. If the underlying stream ends before the last chunk,
+ * an IOException is thrown.
+ */
+public class ChunkCipherInputStream extends InputStream {
+
+	private final InputStream in;
+
+	private final CryptoContext context;
+
+	private ChunkCipher cipher;
+
+	private byte[] baseNonce;
+
+	private final byte[] frame = new byte[ChunkCipher.CHUNK_SIZE + ChunkCipher.TAG_LENGTH];
+
+	private final byte[] buffer = new byte[ChunkCipher.CHUNK_SIZE];
+
+	private final byte[] single = new byte[1];
+
+	private int pos = 0;
+
+	private int limit = 0;
+
+	private long seq = 0;
+
+	private boolean last = false;
+
+	public ChunkCipherInputStream(InputStream in, byte[] key, EncryptionAlgorithm algo) throws GeneralSecurityException {
+		this(in, new CryptoContext(key, algo));
+	}
+
+	public ChunkCipherInputStream(InputStream in, CryptoContext context) throws GeneralSecurityException {
+		this.in = in;
+		this.context = context;
+		this.cipher = context.getChunkCipher();
+	}
+
+	@Override
+	public int read() throws IOException {
+		int n = read(single, 0, 1);
+		return n<0 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len==0)return 0;
+		while(pos==limit) {
+			if(last || !nextChunk())return -1;
+		}
+		int n = Math.min(len, limit-pos);
+		System.arraycopy(buffer, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while(skipped<n) {
+			if(pos==limit && (last || !nextChunk()))break;
+			int s = (int)Math.min(n-skipped, limit-pos);
+			pos += s;
+			skipped += s;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return limit-pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try{
+			in.close();
+		}finally{
+			releaseCipher();
+		}
+	}
+
+	// no more chunks to decrypt, so the cipher can be re-used
+	private void releaseCipher() {
+		context.release(cipher);
+		cipher = null;
+	}
+
+	private boolean nextChunk() throws IOException {
+		if(baseNonce==null) {
+			baseNonce = ChunkCipher.readBaseNonce(in);
+			if(baseNonce==null) {
+				// nothing was written
+				last = true;
+				releaseCipher();
+				return false;
+			}
+		}
+		if(cipher==null)throw new IOException("Stream closed");
+		int header = ChunkCipher.readFrame(in, frame, seq);
+		boolean isLast = ChunkCipher.isLast(header);
+		limit = cipher.decrypt(baseNonce, seq, isLast, frame, 0, ChunkCipher.chunkLength(header), buffer, 0);
+		pos = 0;
+		last = isLast;
+		seq++;
+		if(last)releaseCipher();
+		return true;
+	}
+
+}
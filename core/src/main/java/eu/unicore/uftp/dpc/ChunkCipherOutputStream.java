@@ -0,0 +1,41 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+
+import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
+
+/**
+ * encrypts data in chunks using a {@link ChunkCipher}
+ */
+public class ChunkCipherOutputStream extends ChunkedOutputStream {
+
+	private final CryptoContext context;
+
+	private ChunkCipher cipher;
+
+	public ChunkCipherOutputStream(OutputStream out, byte[] key, EncryptionAlgorithm algo) throws GeneralSecurityException {
+		this(out, new CryptoContext(key, algo));
+	}
+
+	public ChunkCipherOutputStream(OutputStream out, CryptoContext context) throws GeneralSecurityException {
+		this(out, context, context.getChunkCipher());
+	}
+
+	private ChunkCipherOutputStream(OutputStream out, CryptoContext context, ChunkCipher cipher) {
+		super(out, cipher.encoder(ChunkCipher.newBaseNonce()),
+				ChunkCipher.CHUNK_SIZE, ChunkCipher.MAX_FRAME_LENGTH);
+		this.context = context;
+		this.cipher = cipher;
+	}
+
+	@Override
+	public void finish() throws IOException {
+		super.finish();
+		// no more chunks, so the cipher can be re-used
+		context.release(cipher);
+		cipher = null;
+	}
+
+}
@@ -0,0 +1,23 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+
+/**
+ * encodes (e.g. encrypts or compresses) a chunk of data into a self-contained
+ * frame, see {@link ChunkedOutputStream} and {@link ParallelChunkedOutputStream}.
+ * An instance is used by one thread at a time.
+ */
+@FunctionalInterface
+public interface ChunkEncoder {
+
+	/**
+	 * @param seq - sequence number of the chunk
+	 * @param last - whether this is the last chunk of the stream
+	 * @param chunk - the data
+	 * @param length - the length of the data
+	 * @param frame - buffer for the frame
+	 * @return the length of the frame
+	 */
+	public int encode(long seq, boolean last, byte[] chunk, int length, byte[] frame) throws IOException;
+
+}
@@ -0,0 +1,101 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * collects the data in chunks, which are encoded into frames and written
+ * to the underlying stream. <br/>
+ *
+ * Flushing the stream sends the data written so far as a (short) chunk.
+ * {@link #finish()} sends the remaining data as the last chunk, without closing
+ * the underlying stream.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+	private final OutputStream out;
+
+	private final ChunkEncoder encoder;
+
+	private final byte[] buffer;
+
+	private final byte[] frame;
+
+	private final byte[] single = new byte[1];
+
+	private int pos = 0;
+
+	private long seq = 0;
+
+	private boolean finished = false;
+
+	/**
+	 * @param out - the underlying stream
+	 * @param encoder - the encoder
+	 * @param chunkSize - maximum size of a chunk
+	 * @param maxFrameLength - maximum length of an encoded chunk
+	 */
+	public ChunkedOutputStream(OutputStream out, ChunkEncoder encoder, int chunkSize, int maxFrameLength) {
+		this.out = out;
+		this.encoder = encoder;
+		this.buffer = new byte[chunkSize];
+		this.frame = new byte[maxFrameLength];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		single[0] = (byte)b;
+		write(single, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(finished)throw new IOException("Stream already finished");
+		while(len>0) {
+			// a full chunk is only sent when there is more data, so that
+			// the last chunk always contains data
+			if(pos==buffer.length)emit(false);
+			int n = Math.min(len, buffer.length-pos);
+			System.arraycopy(b, off, buffer, pos, n);
+			pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if(!finished && pos>0)emit(false);
+		out.flush();
+	}
+
+	/**
+	 * send the last chunk, finish the underlying stream (if necessary) and flush,
+	 * without closing the underlying stream. If nothing was written at all,
+	 * nothing is sent.
+	 */
+	public void finish() throws IOException {
+		if(finished)return;
+		if(seq>0 || pos>0)emit(true);
+		finished = true;
+		Utils.finishWriting(out);
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try{
+			finish();
+		}finally{
+			out.close();
+		}
+	}
+
+	private void emit(boolean last) throws IOException {
+		int n = encoder.encode(seq, last, buffer, pos, frame);
+		out.write(frame, 0, n);
+		seq++;
+		pos = 0;
+	}
+
+}
@@ -0,0 +1,84 @@
+package eu.unicore.uftp.dpc;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * statistics on block compression / decompression, collected e.g. per session.
+ * Blocks may be processed by several threads concurrently.
+ */
+public class CompressionStats {
+
+	private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	private static final boolean cpuTimeSupported = threads.isCurrentThreadCpuTimeSupported();
+
+	private final LongAdder rawBytes = new LongAdder();
+
+	private final LongAdder encodedBytes = new LongAdder();
+
+	private final LongAdder blocks = new LongAdder();
+
+	private final LongAdder compressedBlocks = new LongAdder();
+
+	private final LongAdder cpuNanos = new LongAdder();
+
+	/**
+	 * @param rawLength - length of the uncompressed data
+	 * @param encodedLength - length of the data as sent
+	 * @param compressed - whether the block was sent compressed
+	 * @param cpuTime - time spent on the block (in nanoseconds), see {@link #cpuTime()}
+	 */
+	public void add(int rawLength, int encodedLength, boolean compressed, long cpuTime) {
+		rawBytes.add(rawLength);
+		encodedBytes.add(encodedLength);
+		blocks.increment();
+		if(compressed)compressedBlocks.increment();
+		cpuNanos.add(cpuTime);
+	}
+
+	public long getRawBytes() {
+		return rawBytes.sum();
+	}
+
+	public long getEncodedBytes() {
+		return encodedBytes.sum();
+	}
+
+	public long getBlocks() {
+		return blocks.sum();
+	}
+
+	public long getCompressedBlocks() {
+		return compressedBlocks.sum();
+	}
+
+	public long getCPUMillis() {
+		return cpuNanos.sum() / 1000000;
+	}
+
+	/**
+	 * ratio of uncompressed to sent data
+	 */
+	public double getRatio() {
+		long encoded = getEncodedBytes();
+		return encoded>0 ? (double)getRawBytes()/encoded : 1.0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ratio %.2f (%d -> %d bytes), %d of %d blocks compressed, %d ms CPU",
+				getRatio(), getRawBytes(), getEncodedBytes(), getCompressedBlocks(), getBlocks(), getCPUMillis());
+	}
+
+	/**
+	 * CPU time of the current thread in nanoseconds (or wall clock time,
+	 * if not supported, e.g. for virtual threads)
+	 */
+	public static long cpuTime() {
+		long t = cpuTimeSupported ? threads.getCurrentThreadCpuTime() : -1;
+		return t>=0 ? t : System.nanoTime();
+	}
+
+}
@@ -0,0 +1,118 @@
+package eu.unicore.uftp.dpc;
+
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
+
+/**
+ * key material and cipher instances for one key, e.g. per job. <br/>
+ *
+ * The key is checked and prepared once, and cipher instances are kept for
+ * re-use, so that creating encrypting / decrypting streams only requires to
+ * (re-)initialise an existing cipher. A cipher taken from the context must
+ * be used by one thread at a time, and must be returned when it is no longer
+ * used. The context itself is thread-safe.
+ */
+public class CryptoContext {
+
+	private static String BLOWFISH_SPEC = "Blowfish/ECB/PKCS5Padding";
+
+	private static String AES_SPEC = "AES/CBC/PKCS5Padding";
+
+	private final EncryptionAlgorithm algo;
+
+	private final SecretKeySpec key;
+
+	private final IvParameterSpec iv;
+
+	// for BLOWFISH and AES
+	private final ConcurrentLinkedQueue<Cipher> ciphers = new ConcurrentLinkedQueue<>();
+
+	// for AES_GCM and CHACHA20
+	private final ConcurrentLinkedQueue<ChunkCipher> chunkCiphers = new ConcurrentLinkedQueue<>();
+
+	/**
+	 * @param key - the key (for AES: 16 bytes IV followed by the key)
+	 * @param algo - the encryption algorithm
+	 * @throws IllegalArgumentException if the key is not valid for the algorithm
+	 */
+	public CryptoContext(byte[] key, EncryptionAlgorithm algo) {
+		this.algo = algo;
+		switch (algo) {
+		case BLOWFISH:
+			if(key.length>56)throw new IllegalArgumentException("Blowfish key length cannot be longer than 56");
+			this.key = new SecretKeySpec(key, "Blowfish");
+			this.iv = null;
+			break;
+		case AES:
+			if(key.length<32)throw new IllegalArgumentException("AES key length must be > 32 (16 iv, rest for key)");
+			int keyLength = key.length - 16;
+			if(keyLength != 16 && keyLength != 24 && keyLength != 32) {
+				throw new IllegalArgumentException("Illegal AES key length");
+			}
+			this.iv = new IvParameterSpec(key, 0, 16);
+			this.key = new SecretKeySpec(key, 16, keyLength, "AES");
+			break;
+		default:
+			this.key = ChunkCipher.keySpec(key, algo);
+			this.iv = null;
+		}
+	}
+
+	public EncryptionAlgorithm getEncryptionAlgorithm() {
+		return algo;
+	}
+
+	/**
+	 * get an initialised BLOWFISH or AES cipher (see {@link #release(Cipher)})
+	 *
+	 * @param mode - Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE
+	 */
+	public Cipher getCipher(int mode) throws GeneralSecurityException {
+		if(ChunkCipher.isChunked(algo)) {
+			throw new IllegalArgumentException(algo+" is encrypted in chunks, use getChunkCipher()");
+		}
+		Cipher c = ciphers.poll();
+		if(c==null) {
+			c = Cipher.getInstance(algo==EncryptionAlgorithm.AES ? AES_SPEC : BLOWFISH_SPEC);
+		}
+		if(iv!=null) {
+			c.init(mode, key, iv);
+		}
+		else {
+			c.init(mode, key);
+		}
+		return c;
+	}
+
+	/**
+	 * return a cipher obtained via {@link #getCipher(int)} for re-use
+	 */
+	public void release(Cipher cipher) {
+		if(cipher!=null)ciphers.add(cipher);
+	}
+
+	/**
+	 * get a cipher for AES_GCM or CHACHA20 (see {@link #release(ChunkCipher)})
+	 */
+	public ChunkCipher getChunkCipher() throws GeneralSecurityException {
+		if(!ChunkCipher.isChunked(algo)) {
+			throw new IllegalArgumentException(algo+" is not encrypted in chunks, use getCipher()");
+		}
+		ChunkCipher c = chunkCiphers.poll();
+		return c!=null ? c : new ChunkCipher(key, algo);
+	}
+
+	/**
+	 * return a cipher obtained via {@link #getChunkCipher()} for re-use
+	 */
+	public void release(ChunkCipher cipher) {
+		if(cipher!=null)chunkCiphers.add(cipher);
+	}
+
+}
@@ -194,6 +194,14 @@ public class DPCServer {
 				UFTPCommands.APPE,
 				UFTPCommands.KEEP_ALIVE,
 				UFTPCommands.ARCHIVE,
+				UFTPCommands.MULTISTREAM_DECOUPLED,
+				UFTPCommands.CHUNKSIZE,
+				UFTPCommands.HASH_PARTS,
+				UFTPCommands.SYNC_CHECKSUM,
+				UFTPCommands.SYNC_BLOCKSIZE,
+				UFTPCommands.SYNC_INPLACE,
+				UFTPCommands.SYNC_PARALLEL,
+				UFTPCommands.SYNC_TREE,
 		};
 	}
 
@@ -0,0 +1,73 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * raw deflate (without GZIP/ZLIB headers and checksums) of independent blocks.
+ * Better compression than {@link LZ4BlockCodec}, at a higher CPU cost.
+ */
+public class DeflateBlockCodec implements BlockCodec {
+
+	public static final int DEFAULT_LEVEL = 3;
+
+	private final int level;
+
+	private Deflater deflater;
+
+	private Inflater inflater;
+
+	/**
+	 * @param level - 1 (fastest) to 9 (best compression), 0 for the default
+	 */
+	public DeflateBlockCodec(int level) {
+		this.level = level>0 ? Math.min(level, Deflater.BEST_COMPRESSION) : DEFAULT_LEVEL;
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		return length + length/255 + 16;
+	}
+
+	@Override
+	public int compress(byte[] in, int length, byte[] out, int outOff) throws IOException {
+		if(deflater==null)deflater = new Deflater(level, true);
+		try {
+			deflater.setInput(in, 0, length);
+			deflater.finish();
+			int max = maxCompressedLength(length);
+			int n = 0;
+			while(!deflater.finished() && n<max) {
+				n += deflater.deflate(out, outOff+n, max-n);
+			}
+			if(!deflater.finished())throw new IOException("Compressed block exceeds buffer");
+			return n;
+		}finally {
+			deflater.reset();
+		}
+	}
+
+	@Override
+	public void decompress(byte[] in, int off, int length, byte[] out, int rawLength) throws IOException {
+		if(inflater==null)inflater = new Inflater(true);
+		try {
+			inflater.setInput(in, off, length);
+			int n = 0;
+			while(n<rawLength) {
+				int r = inflater.inflate(out, n, rawLength-n);
+				if(r==0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))break;
+				n += r;
+			}
+			if(n!=rawLength) {
+				throw new IOException("Corrupt compressed block: expected "+rawLength+" bytes, got "+n);
+			}
+		}catch(DataFormatException ex) {
+			throw new IOException("Corrupt compressed block", ex);
+		}finally {
+			inflater.reset();
+		}
+	}
+
+}
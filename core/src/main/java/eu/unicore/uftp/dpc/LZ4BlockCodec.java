@@ -0,0 +1,195 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * a fast compressor producing the LZ4 block format, and the corresponding
+ * decompressor. The compressor uses a single hash table (like the LZ4 "fast"
+ * mode), the level controls how quickly incompressible data is skipped.
+ */
+public class LZ4BlockCodec implements BlockCodec {
+
+	public static final int DEFAULT_LEVEL = 3;
+
+	private static final int MIN_MATCH = 4;
+
+	// the last match must start at least 12 bytes before the end of the block
+	private static final int MFLIMIT = 12;
+
+	// the last 5 bytes are always literals
+	private static final int LAST_LITERALS = 5;
+
+	private static final int MAX_DISTANCE = 65535;
+
+	private static final int HASH_LOG = 14;
+
+	private static final int RUN_MASK = 15;
+
+	private final int skipTrigger;
+
+	// positions of previously seen 4-byte sequences (+1, so 0 means empty)
+	private final int[] table = new int[1 << HASH_LOG];
+
+	/**
+	 * @param level - 1 (fastest) to 9 (best compression), 0 for the default
+	 */
+	public LZ4BlockCodec(int level) {
+		this.skipTrigger = 3 + (level>0 ? Math.min(level, 9) : DEFAULT_LEVEL);
+	}
+
+	@Override
+	public int maxCompressedLength(int length) {
+		return length + length/255 + 16;
+	}
+
+	@Override
+	public int compress(byte[] src, int length, byte[] dst, int outOff) throws IOException {
+		int op = outOff;
+		int anchor = 0;
+		if(length >= MFLIMIT+1) {
+			Arrays.fill(table, 0);
+			final int mflimit = length - MFLIMIT;
+			final int matchLimit = length - LAST_LITERALS;
+			int ip = 0;
+			table[hash(readInt(src, 0))] = 1;
+			ip++;
+			search:
+			while(true) {
+				// find a match
+				int ref;
+				int attempts = 1 << skipTrigger;
+				while(true) {
+					if(ip > mflimit)break search;
+					int h = hash(readInt(src, ip));
+					ref = table[h] - 1;
+					table[h] = ip + 1;
+					if(ref >= 0 && ip-ref <= MAX_DISTANCE && readInt(src, ref) == readInt(src, ip))break;
+					ip += attempts++ >>> skipTrigger;
+				}
+				// extend backwards
+				while(ip > anchor && ref > 0 && src[ip-1] == src[ref-1]) {
+					ip--;
+					ref--;
+				}
+				// extend forwards
+				int matchLength = MIN_MATCH;
+				while(ip+matchLength < matchLimit && src[ip+matchLength] == src[ref+matchLength]) {
+					matchLength++;
+				}
+				op = writeSequence(src, anchor, ip-anchor, ip-ref, matchLength, dst, op);
+				ip += matchLength;
+				anchor = ip;
+				if(ip > mflimit)break;
+				table[hash(readInt(src, ip-2))] = ip - 1;
+			}
+		}
+		// the remaining data as literals
+		return writeSequence(src, anchor, length-anchor, 0, 0, dst, op) - outOff;
+	}
+
+	private int writeSequence(byte[] src, int literalsStart, int literals, int offset, int matchLength,
+			byte[] dst, int op) {
+		int tokenPos = op++;
+		int token;
+		if(literals >= RUN_MASK) {
+			token = RUN_MASK << 4;
+			op = writeLength(literals - RUN_MASK, dst, op);
+		}
+		else {
+			token = literals << 4;
+		}
+		System.arraycopy(src, literalsStart, dst, op, literals);
+		op += literals;
+		if(matchLength > 0) {
+			dst[op++] = (byte)offset;
+			dst[op++] = (byte)(offset >>> 8);
+			int m = matchLength - MIN_MATCH;
+			if(m >= RUN_MASK) {
+				token |= RUN_MASK;
+				op = writeLength(m - RUN_MASK, dst, op);
+			}
+			else {
+				token |= m;
+			}
+		}
+		dst[tokenPos] = (byte)token;
+		return op;
+	}
+
+	private static int writeLength(int length, byte[] dst, int op) {
+		while(length >= 255) {
+			dst[op++] = (byte)255;
+			length -= 255;
+		}
+		dst[op++] = (byte)length;
+		return op;
+	}
+
+	@Override
+	public void decompress(byte[] src, int off, int length, byte[] dst, int rawLength) throws IOException {
+		final int end = off + length;
+		int ip = off;
+		int op = 0;
+		while(true) {
+			if(ip >= end)throw corrupt();
+			int token = src[ip++] & 0xff;
+			// literals
+			int literals = token >>> 4;
+			if(literals == RUN_MASK) {
+				int b;
+				do {
+					if(ip >= end)throw corrupt();
+					b = src[ip++] & 0xff;
+					literals += b;
+				}while(b == 255 && literals <= rawLength);
+			}
+			if(literals > end-ip || literals > rawLength-op)throw corrupt();
+			System.arraycopy(src, ip, dst, op, literals);
+			ip += literals;
+			op += literals;
+			if(ip == end)break;
+			// match
+			if(end-ip < 2)throw corrupt();
+			int offset = (src[ip] & 0xff) | (src[ip+1] & 0xff) << 8;
+			ip += 2;
+			if(offset == 0 || offset > op)throw corrupt();
+			int matchLength = token & RUN_MASK;
+			if(matchLength == RUN_MASK) {
+				int b;
+				do {
+					if(ip >= end)throw corrupt();
+					b = src[ip++] & 0xff;
+					matchLength += b;
+				}while(b == 255 && matchLength <= rawLength);
+			}
+			matchLength += MIN_MATCH;
+			if(matchLength > rawLength-op)throw corrupt();
+			int ref = op - offset;
+			if(offset >= matchLength) {
+				System.arraycopy(dst, ref, dst, op, matchLength);
+				op += matchLength;
+			}
+			else {
+				// overlapping copy
+				for(int i=0; i<matchLength; i++) {
+					dst[op++] = dst[ref++];
+				}
+			}
+		}
+		if(op != rawLength)throw corrupt();
+	}
+
+	private static IOException corrupt() {
+		return new IOException("Corrupt LZ4 compressed block");
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xff) | (b[i+1] & 0xff) << 8 | (b[i+2] & 0xff) << 16 | (b[i+3] & 0xff) << 24;
+	}
+
+	private static int hash(int v) {
+		return (v * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+}
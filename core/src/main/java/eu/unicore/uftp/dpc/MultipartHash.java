@@ -0,0 +1,174 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Multi-part hash of a file range: the range is split into parts of a fixed
+ * size, which are hashed independently (and in parallel). The root digest is
+ * the digest (using the same algorithm) of the concatenated part digests,
+ * similar to S3 multipart checksums.<br/>
+ *
+ * On the wire (reply to "HASH" if the "HASH-PARTS" option is set), each part
+ * is reported as " &lt;index&gt; &lt;first&gt;-&lt;last&gt; &lt;hex digest&gt;",
+ * followed by the usual "213 &lt;algo&gt; &lt;first&gt;-&lt;last&gt; &lt;root digest&gt; &lt;path&gt;"
+ */
+public class MultipartHash {
+
+	public static final long MIN_PART_SIZE = 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	/**
+	 * receives the part digests in order
+	 */
+	public static interface Callback {
+
+		public void part(int index, long first, long last, byte[] digest) throws IOException;
+
+		/**
+		 * called regularly while waiting for the next part
+		 */
+		public default void waiting() throws IOException {}
+	}
+
+	private MultipartHash() {}
+
+	public static long checkPartSize(long partSize) {
+		if(partSize<MIN_PART_SIZE) {
+			throw new IllegalArgumentException("Part size must be at least "+MIN_PART_SIZE);
+		}
+		return partSize;
+	}
+
+	public static int numberOfParts(long length, long partSize) {
+		return length<=0 ? 1 : (int)((length + partSize - 1) / partSize);
+	}
+
+	/**
+	 * compute the root digest from the part digests
+	 */
+	public static byte[] combine(String algorithm, List<byte[]> parts) throws NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance(algorithm);
+		for(byte[] part: parts) {
+			md.update(part);
+		}
+		return md.digest();
+	}
+
+	/**
+	 * check that the root digest matches the given part digests
+	 *
+	 * @param algorithm - hash algorithm
+	 * @param parts - hex encoded part digests
+	 * @param root - hex encoded root digest
+	 */
+	public static boolean verify(String algorithm, List<String> parts, String root) throws NoSuchAlgorithmException {
+		List<byte[]> digests = new ArrayList<>(parts.size());
+		for(String part: parts) {
+			digests.add(decodeHex(part));
+		}
+		return Utils.hexString(combine(algorithm, digests)).equalsIgnoreCase(root);
+	}
+
+	private static byte[] decodeHex(String hex) {
+		if(hex.length()%2!=0)throw new IllegalArgumentException("Not a valid hex string: "+hex);
+		byte[] res = new byte[hex.length()/2];
+		for(int i=0; i<res.length; i++) {
+			res[i] = (byte)Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+		}
+		return res;
+	}
+
+	/**
+	 * hash the given range of the file using positional reads,
+	 * so the file channel can be shared between threads
+	 */
+	public static byte[] hashPart(FileChannel file, String algorithm, long position, long length)
+			throws IOException, NoSuchAlgorithmException {
+		MessageDigest md = MessageDigest.getInstance(algorithm);
+		ByteBuffer buf = BufferPool.HEAP.acquire(BUFFER_SIZE);
+		try {
+			long remaining = length;
+			while(remaining>0) {
+				buf.clear();
+				buf.limit((int)Math.min(BUFFER_SIZE, remaining));
+				int n = file.read(buf, position);
+				if(n<0)break;
+				md.update(buf.array(), 0, n);
+				position += n;
+				remaining -= n;
+			}
+		}finally {
+			BufferPool.HEAP.release(buf);
+		}
+		return md.digest();
+	}
+
+	/**
+	 * hash the parts of the given range on the pool, and pass the part digests to
+	 * the callback in order. Only a limited number of parts is processed ahead of
+	 * the one the callback is waiting for.
+	 *
+	 * @return part digests
+	 */
+	public static List<byte[]> compute(FileChannel file, String algorithm, long offset, long length,
+			long partSize, ForkJoinPool pool, Callback callback) throws IOException, NoSuchAlgorithmException {
+		int numParts = numberOfParts(length, partSize);
+		int window = 2 * pool.getParallelism();
+		List<byte[]> result = new ArrayList<>(numParts);
+		Deque<Future<byte[]>> running = new ArrayDeque<>();
+		int submitted = 0;
+		try {
+			for(int i=0; i<numParts; i++) {
+				while(submitted<numParts && running.size()<window) {
+					final long first = offset + submitted*partSize;
+					final long len = Math.min(partSize, offset + length - first);
+					running.add(pool.submit(()->hashPart(file, algorithm, first, len)));
+					submitted++;
+				}
+				byte[] digest = await(running.poll(), callback);
+				long first = offset + i*partSize;
+				long last = Math.min(first + partSize, offset + length) - 1;
+				result.add(digest);
+				if(callback!=null)callback.part(i, first, last, digest);
+			}
+		}finally {
+			for(Future<byte[]> f: running) {
+				f.cancel(true);
+			}
+		}
+		return result;
+	}
+
+	private static byte[] await(Future<byte[]> f, Callback callback) throws IOException, NoSuchAlgorithmException {
+		while(true) {
+			try {
+				return f.get(30, TimeUnit.SECONDS);
+			}catch(TimeoutException te) {
+				if(callback!=null)callback.waiting();
+			}catch(InterruptedException ie) {
+				Thread.currentThread().interrupt();
+				throw new IOException(ie);
+			}catch(ExecutionException ee) {
+				Throwable cause = ee.getCause();
+				if(cause instanceof IOException)throw (IOException)cause;
+				if(cause instanceof NoSuchAlgorithmException)throw (NoSuchAlgorithmException)cause;
+				throw new IOException(cause);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,59 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+
+/**
+ * a {@link CipherInputStream} that returns its cipher to a {@link CryptoContext}
+ * for re-use when it is closed
+ */
+public class MyCipherInputStream extends CipherInputStream {
+
+	private final Cipher cipher;
+	private final CryptoContext context;
+	private boolean closed = false;
+
+	public MyCipherInputStream(InputStream is, Cipher c, CryptoContext context) {
+		super(is, c);
+		this.cipher = c;
+		this.context = context;
+	}
+
+	@Override
+	public int read() throws IOException {
+		checkOpen();
+		return super.read();
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkOpen();
+		return super.read(b, off, len);
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		checkOpen();
+		return super.skip(n);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closed)return;
+		closed = true;
+		try {
+			// resets the cipher
+			super.close();
+		}finally {
+			context.release(cipher);
+		}
+	}
+
+	private void checkOpen() throws IOException {
+		if(closed)throw new IOException("Stream closed");
+	}
+
+}
@@ -16,14 +16,39 @@ public class MyCipherOutputStream extends CipherOutputStream {
 
 	private Cipher cipher;
 	private OutputStream os;
+	private final CryptoContext context;
+	private boolean finished = false;
 	
 	public MyCipherOutputStream(OutputStream os, Cipher c) {
+		this(os, c, null);
+	}
+
+	/**
+	 * @param os - the underlying stream
+	 * @param c - the cipher
+	 * @param context - if not null, the cipher is returned to this context when the stream is finished
+	 */
+	public MyCipherOutputStream(OutputStream os, Cipher c, CryptoContext context) {
 		super(os, c);
 		this.cipher = c;
 		this.os = os;
-	}	
+		this.context = context;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if(finished)throw new IOException("Stream already finished");
+		super.write(b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(finished)throw new IOException("Stream already finished");
+		super.write(b, off, len);
+	}
 
 	public void finish() throws IOException {
+		if(finished)return;
 		flush();
 		byte[] buf;
 		try{ 
@@ -31,8 +56,27 @@ public class MyCipherOutputStream extends CipherOutputStream {
 		}catch(Exception ex){
 			throw new IOException(ex);
 		}
+		finished = true;
+		if(context!=null) {
+			context.release(cipher);
+		}
 		os.write(buf);
 		os.flush();
 	}
 
+	@Override
+	public void close() throws IOException {
+		if(!finished) {
+			super.close();
+			finished = true;
+			if(context!=null) {
+				context.release(cipher);
+			}
+		}
+		else {
+			// the cipher must not be touched any more
+			os.close();
+		}
+	}
+
 }
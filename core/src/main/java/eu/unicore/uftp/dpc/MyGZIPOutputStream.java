@@ -2,6 +2,7 @@ package eu.unicore.uftp.dpc;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.GZIPOutputStream;
 
 public class MyGZIPOutputStream extends GZIPOutputStream {
@@ -9,8 +10,17 @@ public class MyGZIPOutputStream extends GZIPOutputStream {
 	private final OutputStream out;
 
 	public MyGZIPOutputStream(OutputStream out) throws IOException {
+		this(out, 0);
+	}
+
+	/**
+	 * @param out - the underlying stream
+	 * @param level - compression level (1-9), 0 for the default
+	 */
+	public MyGZIPOutputStream(OutputStream out, int level) throws IOException {
 		super(out);
 		this.out = out;
+		if(level>0)def.setLevel(Math.min(level, Deflater.BEST_COMPRESSION));
 	}
 
 	@Override
@@ -23,6 +33,9 @@ public class MyGZIPOutputStream extends GZIPOutputStream {
 				throw new IOException(ex);
 			}
 		}
+		else {
+			Utils.finishWriting(out);
+		}
 	}
 	
 }
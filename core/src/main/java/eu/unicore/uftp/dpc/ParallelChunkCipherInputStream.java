@@ -0,0 +1,234 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
+
+/**
+ * reads the same data as a {@link ChunkCipherInputStream}, but in a pipeline:
+ * a reader thread reads the frames from the underlying stream, which are decrypted
+ * by a pool of worker threads, and the caller gets the decrypted chunks in the
+ * correct order. The number of chunks in the pipeline is bounded, and the buffers
+ * are taken from the {@link BufferPool}. <br/>
+ *
+ * The reader thread is started on the first read, and it stops after the last chunk,
+ * without consuming any further data from the underlying stream.
+ */
+public class ParallelChunkCipherInputStream extends InputStream {
+
+	private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+	// marks the end of the data
+	private static final Future<ByteBuffer> EOS = CompletableFuture.completedFuture(null);
+
+	private final InputStream in;
+
+	private final CryptoContext context;
+
+	private final ExecutorService pool;
+
+	// decrypted chunks, in the order they have to be returned
+	private final BlockingQueue<Future<ByteBuffer>> pending;
+
+	private final byte[] single = new byte[1];
+
+	private ByteBuffer current;
+
+	private Thread reader;
+
+	private boolean eof = false;
+
+	private volatile boolean closed = false;
+
+	/**
+	 * @param in - the underlying stream
+	 * @param key - the key
+	 * @param algo - AES_GCM or CHACHA20
+	 * @param pool - the workers
+	 * @param depth - maximum number of chunks in the pipeline
+	 */
+	public ParallelChunkCipherInputStream(InputStream in, byte[] key, EncryptionAlgorithm algo,
+			ExecutorService pool, int depth) throws GeneralSecurityException {
+		this(in, new CryptoContext(key, algo), pool, depth);
+	}
+
+	/**
+	 * @param in - the underlying stream
+	 * @param context - provides the ciphers
+	 * @param pool - the workers
+	 * @param depth - maximum number of chunks in the pipeline
+	 */
+	public ParallelChunkCipherInputStream(InputStream in, CryptoContext context,
+			ExecutorService pool, int depth) {
+		this.in = in;
+		this.context = context;
+		this.pool = pool;
+		this.pending = new ArrayBlockingQueue<>(Math.max(1, depth));
+	}
+
+	@Override
+	public int read() throws IOException {
+		int n = read(single, 0, 1);
+		return n<0 ? -1 : single[0] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len==0)return 0;
+		while(current==null || !current.hasRemaining()) {
+			if(!nextChunk())return -1;
+		}
+		int n = Math.min(len, current.remaining());
+		current.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while(skipped<n) {
+			if((current==null || !current.hasRemaining()) && !nextChunk())break;
+			int s = (int)Math.min(n-skipped, current.remaining());
+			current.position(current.position()+s);
+			skipped += s;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current!=null ? current.remaining() : 0;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		try{
+			in.close();
+		}finally{
+			if(reader!=null)reader.interrupt();
+			BufferPool.HEAP.release(current);
+			current = null;
+			Future<ByteBuffer> f;
+			while((f = pending.poll())!=null) {
+				discard(f);
+			}
+		}
+	}
+
+	private boolean nextChunk() throws IOException {
+		BufferPool.HEAP.release(current);
+		current = null;
+		if(eof)return false;
+		if(closed)throw new IOException("Stream closed");
+		if(reader==null) {
+			reader = Utils.newThread(this::runReader, "UFTP-Crypto-Reader-"+threadCount.incrementAndGet());
+			// must not keep the JVM alive if the stream is abandoned
+			reader.setDaemon(true);
+			reader.start();
+		}
+		try {
+			Future<ByteBuffer> next = pending.take();
+			if(next==EOS) {
+				eof = true;
+				return false;
+			}
+			current = next.get();
+			return true;
+		}catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}catch(ExecutionException ee) {
+			eof = true;
+			Throwable cause = ee.getCause();
+			throw cause instanceof IOException ? (IOException)cause : new IOException(cause);
+		}
+	}
+
+	private void runReader() {
+		try {
+			final byte[] baseNonce = ChunkCipher.readBaseNonce(in);
+			if(baseNonce==null) {
+				// nothing was written
+				put(EOS);
+				return;
+			}
+			long seq = 0;
+			boolean last = false;
+			while(!last) {
+				ByteBuffer frame = BufferPool.HEAP.acquire(ChunkCipher.CHUNK_SIZE + ChunkCipher.TAG_LENGTH);
+				int header;
+				try {
+					header = ChunkCipher.readFrame(in, frame.array(), seq);
+				}catch(IOException ex) {
+					BufferPool.HEAP.release(frame);
+					throw ex;
+				}
+				last = ChunkCipher.isLast(header);
+				put(decrypt(baseNonce, seq++, last, frame, ChunkCipher.chunkLength(header)));
+			}
+			put(EOS);
+		}catch(InterruptedException ie) {
+			// closed
+		}catch(Exception ex) {
+			try {
+				put(CompletableFuture.failedFuture(ex));
+			}catch(InterruptedException ie) {}
+		}
+	}
+
+	private Future<ByteBuffer> decrypt(byte[] baseNonce, long seq, boolean last, ByteBuffer frame, int length) {
+		return pool.submit(()->{
+			ByteBuffer plain = BufferPool.HEAP.acquire(ChunkCipher.CHUNK_SIZE);
+			ChunkCipher cipher = null;
+			try {
+				cipher = context.getChunkCipher();
+				int n = cipher.decrypt(baseNonce, seq, last, frame.array(), 0, length, plain.array(), 0);
+				plain.limit(n);
+				return plain;
+			}catch(Exception ex) {
+				BufferPool.HEAP.release(plain);
+				throw ex;
+			}
+			finally {
+				context.release(cipher);
+				BufferPool.HEAP.release(frame);
+			}
+		});
+	}
+
+	private void put(Future<ByteBuffer> f) throws InterruptedException {
+		while(!pending.offer(f, 100, TimeUnit.MILLISECONDS)) {
+			if(closed) {
+				discard(f);
+				throw new InterruptedException();
+			}
+		}
+		if(closed) {
+			// close() may have missed it
+			Future<ByteBuffer> d;
+			while((d = pending.poll())!=null) {
+				discard(d);
+			}
+		}
+	}
+
+	private void discard(Future<ByteBuffer> f) {
+		try {
+			BufferPool.HEAP.release(f.get());
+		}catch(Exception ex) {}
+	}
+
+}
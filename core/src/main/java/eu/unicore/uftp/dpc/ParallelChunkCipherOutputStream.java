@@ -0,0 +1,60 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ExecutorService;
+
+import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
+
+/**
+ * produces the same data as a {@link ChunkCipherOutputStream}, but
+ * encrypts the chunks in parallel, see {@link ParallelChunkedOutputStream}
+ */
+public class ParallelChunkCipherOutputStream extends ParallelChunkedOutputStream {
+
+	/**
+	 * @param out - the underlying stream
+	 * @param key - the key
+	 * @param algo - AES_GCM or CHACHA20
+	 * @param pool - the workers
+	 * @param depth - maximum number of chunks in the pipeline
+	 */
+	public ParallelChunkCipherOutputStream(OutputStream out, byte[] key, EncryptionAlgorithm algo,
+			ExecutorService pool, int depth) throws Exception {
+		this(out, new CryptoContext(key, algo), pool, depth);
+	}
+
+	/**
+	 * @param out - the underlying stream
+	 * @param context - provides the ciphers
+	 * @param pool - the workers
+	 * @param depth - maximum number of chunks in the pipeline
+	 */
+	public ParallelChunkCipherOutputStream(OutputStream out, CryptoContext context,
+			ExecutorService pool, int depth) throws Exception {
+		this(out, encoder(context, ChunkCipher.newBaseNonce()), pool, depth);
+	}
+
+	private ParallelChunkCipherOutputStream(OutputStream out, ChunkEncoder encoder,
+			ExecutorService pool, int depth) throws Exception {
+		super(out, ()->encoder, ChunkCipher.CHUNK_SIZE, ChunkCipher.MAX_FRAME_LENGTH, pool, depth);
+	}
+
+	// takes a cipher from the context for each chunk
+	private static ChunkEncoder encoder(CryptoContext context, byte[] baseNonce) {
+		return (seq, last, chunk, length, frame) -> {
+			ChunkCipher cipher;
+			try {
+				cipher = context.getChunkCipher();
+			}catch(Exception ex) {
+				throw new IOException(ex);
+			}
+			try {
+				return cipher.encryptFrame(baseNonce, seq, last, chunk, 0, length, frame);
+			}finally {
+				context.release(cipher);
+			}
+		};
+	}
+
+}
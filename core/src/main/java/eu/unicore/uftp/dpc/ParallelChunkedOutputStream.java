@@ -0,0 +1,322 @@
+package eu.unicore.uftp.dpc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * produces the same data as a {@link ChunkedOutputStream}, but in a pipeline:
+ * the caller fills chunks, which are encoded by a pool of worker threads, and
+ * a writer thread writes the frames to the underlying stream in the correct order.
+ * The number of chunks in the pipeline is bounded, and the buffers are taken
+ * from the {@link BufferPool}.
+ */
+public class ParallelChunkedOutputStream extends OutputStream {
+
+	private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+	// marks the end of the queue for the writer thread
+	private static final Future<ByteBuffer> EOS = CompletableFuture.completedFuture(null);
+
+	private final OutputStream out;
+
+	private final Callable<ChunkEncoder> encoderFactory;
+
+	private final int chunkSize;
+
+	private final int maxFrameLength;
+
+	private final ExecutorService pool;
+
+	// encoders not currently in use by a worker
+	private final ConcurrentLinkedQueue<ChunkEncoder> encoders = new ConcurrentLinkedQueue<>();
+
+	// encoded frames, in the order they have to be written
+	private final BlockingQueue<Future<ByteBuffer>> pending;
+
+	private final byte[] single = new byte[1];
+
+	private ByteBuffer current;
+
+	private long seq = 0;
+
+	private Thread writer;
+
+	private long submitted = 0;
+
+	private long written = 0;
+
+	private IOException error;
+
+	private boolean finished = false;
+
+	/**
+	 * @param out - the underlying stream
+	 * @param encoderFactory - creates the encoders (one per worker thread)
+	 * @param chunkSize - maximum size of a chunk
+	 * @param maxFrameLength - maximum length of an encoded chunk
+	 * @param pool - the workers
+	 * @param depth - maximum number of chunks in the pipeline
+	 */
+	public ParallelChunkedOutputStream(OutputStream out, Callable<ChunkEncoder> encoderFactory,
+			int chunkSize, int maxFrameLength, ExecutorService pool, int depth) throws Exception {
+		this.out = out;
+		this.encoderFactory = encoderFactory;
+		this.chunkSize = chunkSize;
+		this.maxFrameLength = maxFrameLength;
+		this.pool = pool;
+		this.pending = new ArrayBlockingQueue<>(Math.max(1, depth));
+		// check the encoder settings right away
+		encoders.add(encoderFactory.call());
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		single[0] = (byte)b;
+		write(single, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if(finished)throw new IOException("Stream already finished");
+		checkError();
+		while(len>0) {
+			if(current==null) {
+				current = BufferPool.HEAP.acquire(chunkSize);
+			}
+			// a full chunk is only sent when there is more data, so that
+			// the last chunk always contains data
+			else if(!current.hasRemaining()) {
+				submit(false);
+				continue;
+			}
+			int n = Math.min(len, current.remaining());
+			current.put(b, off, n);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * sends the data written so far and waits until it has been written
+	 */
+	@Override
+	public void flush() throws IOException {
+		if(!finished) {
+			if(current!=null && current.position()>0)submit(false);
+			drain();
+		}
+		out.flush();
+	}
+
+	/**
+	 * send the last chunk, finish the underlying stream (if necessary) and flush,
+	 * without closing the underlying stream. If nothing was written at all,
+	 * nothing is sent.
+	 */
+	public void finish() throws IOException {
+		if(finished)return;
+		if(seq>0 || (current!=null && current.position()>0))submit(true);
+		finished = true;
+		try {
+			drain();
+		}finally {
+			stopWriter();
+			release();
+		}
+		Utils.finishWriting(out);
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try{
+			finish();
+		}finally{
+			stopWriter();
+			release();
+			out.close();
+		}
+	}
+
+	private void submit(boolean last) throws IOException {
+		final ByteBuffer chunk = current==null ? BufferPool.HEAP.acquire(0) : current;
+		final long s = seq++;
+		current = null;
+		Future<ByteBuffer> frame = pool.submit(()->{
+			ByteBuffer result = BufferPool.HEAP.acquire(maxFrameLength);
+			ChunkEncoder encoder = encoders.poll();
+			try {
+				if(encoder==null)encoder = encoderFactory.call();
+				int n = encoder.encode(s, last, chunk.array(), chunk.position(), result.array());
+				result.limit(n);
+				return result;
+			}catch(Exception ex) {
+				BufferPool.HEAP.release(result);
+				throw ex;
+			}
+			finally {
+				if(encoder!=null)encoders.add(encoder);
+				BufferPool.HEAP.release(chunk);
+			}
+		});
+		synchronized (this) {
+			submitted++;
+		}
+		if(writer==null) {
+			writer = Utils.newThread(this::runWriter, "UFTP-Chunk-Writer-"+threadCount.incrementAndGet());
+			// must not keep the JVM alive if the stream is abandoned
+			writer.setDaemon(true);
+			writer.start();
+		}
+		put(frame);
+	}
+
+	private void put(Future<ByteBuffer> frame) throws IOException {
+		try {
+			// the writer stops after an error, so the queue may stay full
+			while(!pending.offer(frame, 100, TimeUnit.MILLISECONDS)) {
+				if(hasFailed()) {
+					discard(frame);
+					checkError();
+				}
+			}
+		}catch(InterruptedException ie) {
+			discard(frame);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		// the writer may have stopped in the meantime
+		if(hasFailed())discardPending();
+	}
+
+	// wait until everything submitted has been written
+	private synchronized void drain() throws IOException {
+		try {
+			while(written<submitted && error==null) {
+				wait();
+			}
+		}catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		checkError();
+	}
+
+	private void stopWriter() throws IOException {
+		if(writer!=null) {
+			if(hasFailed())discardPending();
+			else put(EOS);
+			writer = null;
+		}
+	}
+
+	private void release() {
+		BufferPool.HEAP.release(current);
+		current = null;
+	}
+
+	private synchronized void checkError() throws IOException {
+		if(error!=null) {
+			throw new IOException("Error processing data", error);
+		}
+	}
+
+	private void runWriter() {
+		try {
+			while(!hasFailed()) {
+				Future<ByteBuffer> next = pending.take();
+				if(next==EOS)return;
+				write(next);
+			}
+		}catch(InterruptedException ie) {
+			failed(new InterruptedIOException());
+		}
+		// after an error, the remaining frames are discarded and the writer stops
+		discardPending();
+	}
+
+	private void write(Future<ByteBuffer> next) {
+		ByteBuffer frame = null;
+		try {
+			frame = next.get();
+			out.write(frame.array(), 0, frame.limit());
+		}catch(ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			failed(cause instanceof IOException ? (IOException)cause : new IOException(cause));
+		}catch(InterruptedException ie) {
+			failed(new InterruptedIOException());
+		}catch(IOException ioe) {
+			failed(ioe);
+		}finally {
+			BufferPool.HEAP.release(frame);
+			synchronized (this) {
+				written++;
+				notifyAll();
+			}
+		}
+	}
+
+	private void discardPending() {
+		Future<ByteBuffer> f;
+		while((f = pending.poll())!=null) {
+			discard(f);
+		}
+	}
+
+	private void discard(Future<ByteBuffer> f) {
+		try {
+			BufferPool.HEAP.release(f.get());
+		}catch(Exception ex) {}
+	}
+
+	private synchronized boolean hasFailed() {
+		return error!=null;
+	}
+
+	private synchronized void failed(IOException ex) {
+		if(error==null)error = ex;
+		notifyAll();
+	}
+
+	/**
+	 * get the number of threads set via the given property (default: number of CPUs)
+	 */
+	public static int getThreads(String property) {
+		try {
+			return Math.max(1, Integer.parseInt(Utils.getProperty(property,
+					String.valueOf(Runtime.getRuntime().availableProcessors()))));
+		}catch(NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	/**
+	 * create a pool of worker threads for processing chunks
+	 */
+	public static ForkJoinPool createPool(String name, int threads) {
+		final AtomicInteger count = new AtomicInteger(0);
+		ForkJoinPool pool = new ForkJoinPool(threads,
+				(p)->{
+					ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+					t.setName("UFTP-"+name+"-"+count.incrementAndGet());
+					return t;
+				}, null, false);
+		Runtime.getRuntime().addShutdownHook(new Thread(()->pool.shutdownNow()));
+		return pool;
+	}
+
+}
@@ -21,6 +21,9 @@ import org.apache.commons.io.FilenameUtils;
 import eu.unicore.uftp.client.FileInfo;
 import eu.unicore.uftp.client.UFTPSessionClient;
 import eu.unicore.uftp.dpc.DPCServer.Connection;
+import eu.unicore.uftp.jparss.PConfig;
+import eu.unicore.uftp.rsync.Checksum;
+import eu.unicore.uftp.rsync.Follower;
 import eu.unicore.uftp.server.FileAccess;
 import eu.unicore.uftp.server.UFTPCommands;
 import eu.unicore.uftp.server.UserFileAccess;
@@ -50,6 +53,12 @@ public class Session {
 	// keep data connections alive during a session
 	private boolean keepAlive = false;
 
+	// use multiple streams in "decoupled" (non-lockstep) mode
+	private boolean decoupledStreams = false;
+
+	// chunk size for sending in decoupled mode
+	private int chunkSize = PConfig.defaultChunkSize;
+
 	private final UserFileAccess fileAccess;
 
 	private RandomAccessFile localRandomAccessFile;
@@ -80,6 +89,10 @@ public class Session {
 
 	public static final int ACTION_RECEIVE_FILE = 10;
 
+	public static final int ACTION_SYNC_TREE_TO_CLIENT = 11;
+
+	public static final int ACTION_SYNC_TREE_TO_SERVER = 12;
+
 	private final File baseDirectory;
 
 	private File currentDirectory;
@@ -98,6 +111,16 @@ public class Session {
 	private String hashAlgorithm = "MD5";
 	private final String[] supportedHashAlgorithms = new String[] { "MD5", "SHA-1", "SHA-256", "SHA-512" };
 	private MessageDigest md;
+	// part size for multi-part hashes, 0 = single hash
+	private long hashPartSize = 0;
+	// strong checksum used for rsync
+	private String syncChecksum = Checksum.MD5;
+	// rsync block size requested by the client, 0 = chosen automatically
+	private int syncBlockSize = 0;
+	// rsync updates the file in place
+	private boolean syncInPlace = false;
+	// rsync uses one partition per data stream
+	private boolean syncParallel = false;
 
 	private final Map<String, Pattern>patterns = new HashMap<>();
 
@@ -219,6 +242,14 @@ public class Session {
 			boolean ok = setupSyncFile(cmd);
 			return ok ? ACTION_SYNC_TO_SERVER : ACTION_NONE;
 		}
+		else if (chk.startsWith("SYNC-TREE-TO-CLIENT ")) {
+			boolean ok = setupSyncTree(cmd, Mode.READ);
+			return ok ? ACTION_SYNC_TREE_TO_CLIENT : ACTION_NONE;
+		}
+		else if (chk.startsWith("SYNC-TREE-TO-SERVER ")) {
+			boolean ok = setupSyncTree(cmd, Mode.WRITE);
+			return ok ? ACTION_SYNC_TREE_TO_SERVER : ACTION_NONE;
+		}
 		else if (chk.startsWith("RNFR ")) {
 			handleRenameFrom(cmd);
 		}
@@ -687,6 +718,26 @@ public class Session {
 		return true;
 	}
 
+	private boolean setupSyncTree(String cmd, Mode mode) throws IOException {
+		assertMode(mode);
+		String[] tok = cmd.trim().split(" ", 2);
+		localFile = getFile(tok[1]);
+		try {
+			assertACL(localFile, mode);
+			if(mode==Mode.WRITE && !localFile.exists()) {
+				fileAccess.mkdir(localFile.getAbsolutePath());
+			}
+			if(!localFile.isDirectory()) {
+				throw new IOException("Not a directory");
+			}
+		} catch (Exception ex) {
+			connection.sendError("Can't sync directory "+tok[1]+": " + ex.getMessage());
+			return false;
+		}
+		connection.sendControl(UFTPCommands.OK);
+		return true;
+	}
+
 	public void setRange(long offset, long numberOfBytes) {
 		this.offset = offset;
 		this.numberOfBytes = numberOfBytes;
@@ -772,6 +823,9 @@ public class Session {
 		if(job.getKey()!=null) {
 			connection.sendControl(" CRYPTED-" + job.getEncryptionAlgorithm());
 		}
+		if(job.isCompress()) {
+			connection.sendControl(" COMPRESSED-" + job.getCompressionAlgorithm());
+		}
 		StringBuilder hashFeature = new StringBuilder();
 		hashFeature.append(" HASH ");
 		for(String supp: supportedHashAlgorithms)
@@ -791,7 +845,14 @@ public class Session {
 			if(tokens.length<2){
 				connection.sendControl("211-OPTS");
 				connection.sendControl(" HASH "+hashAlgorithm);
+				connection.sendControl(" HASH-PARTS "+hashPartsDesc());
+				connection.sendControl(" SYNC-CHECKSUM "+syncChecksum);
+				connection.sendControl(" SYNC-BLOCKSIZE "+syncBlockSizeDesc());
+				connection.sendControl(" SYNC-INPLACE "+(syncInPlace ? "ON" : "OFF"));
+				connection.sendControl(" SYNC-PARALLEL "+(syncParallel ? "ON" : "OFF"));
 				connection.sendControl(" KEEP-ALIVE "+keepAlive);
+				connection.sendControl(" "+UFTPCommands.MULTISTREAM+" "+(decoupledStreams ? "DECOUPLED" : "LOCKSTEP"));
+				connection.sendControl(" "+UFTPCommands.CHUNKSIZE+" "+chunkSizeDesc());
 				connection.sendControl("211 END");
 				return;
 			}
@@ -813,6 +874,84 @@ public class Session {
 				}
 				connection.sendControl("200 "+hashAlgorithm);
 			}
+			else if(UFTPCommands.HASH_PARTS.equalsIgnoreCase(optArg)) {
+				if(tokens.length==3) {
+					String size = tokens[2];
+					hashPartSize = "OFF".equalsIgnoreCase(size) ?
+							0 : MultipartHash.checkPartSize(Long.parseLong(size));
+				}
+				connection.sendControl("200 "+hashPartsDesc());
+			}
+			else if(UFTPCommands.SYNC_CHECKSUM.equalsIgnoreCase(optArg)) {
+				if(tokens.length==3) {
+					syncChecksum = Checksum.checkStrongChecksum(tokens[2]);
+				}
+				connection.sendControl("200 "+syncChecksum);
+			}
+			else if(UFTPCommands.SYNC_BLOCKSIZE.equalsIgnoreCase(optArg)) {
+				if(tokens.length==3) {
+					String size = tokens[2];
+					syncBlockSize = "AUTO".equalsIgnoreCase(size) ?
+							0 : Follower.checkBlockSize(Integer.parseInt(size));
+				}
+				connection.sendControl("200 "+syncBlockSizeDesc());
+			}
+			else if(UFTPCommands.SYNC_INPLACE.equalsIgnoreCase(optArg)) {
+				if(tokens.length==3) {
+					String mode = tokens[2];
+					if("ON".equalsIgnoreCase(mode)) {
+						syncInPlace = true;
+					}
+					else if("OFF".equalsIgnoreCase(mode)) {
+						syncInPlace = false;
+					}
+					else {
+						throw new IllegalArgumentException("Sync mode '"+mode+"' not supported. "
+								+ "Must be one of: [ON, OFF]");
+					}
+				}
+				connection.sendControl("200 "+(syncInPlace ? "ON" : "OFF"));
+			}
+			else if(UFTPCommands.SYNC_PARALLEL.equalsIgnoreCase(optArg)) {
+				if(tokens.length==3) {
+					String mode = tokens[2];
+					if("ON".equalsIgnoreCase(mode)) {
+						syncParallel = true;
+					}
+					else if("OFF".equalsIgnoreCase(mode)) {
+						syncParallel = false;
+					}
+					else {
+						throw new IllegalArgumentException("Sync mode '"+mode+"' not supported. "
+								+ "Must be one of: [ON, OFF]");
+					}
+				}
+				connection.sendControl("200 "+(syncParallel ? "ON" : "OFF"));
+			}
+			else if(UFTPCommands.MULTISTREAM.equalsIgnoreCase(optArg)) {
+				if(tokens.length==3) {
+					String mode = tokens[2];
+					if("DECOUPLED".equalsIgnoreCase(mode)) {
+						decoupledStreams = true;
+					}
+					else if("LOCKSTEP".equalsIgnoreCase(mode)) {
+						decoupledStreams = false;
+					}
+					else {
+						throw new IllegalArgumentException("Multistream mode '"+mode+"' not supported. "
+								+ "Must be one of: [DECOUPLED, LOCKSTEP]");
+					}
+				}
+				connection.sendControl("200 "+(decoupledStreams ? "DECOUPLED" : "LOCKSTEP"));
+			}
+			else if(UFTPCommands.CHUNKSIZE.equalsIgnoreCase(optArg)) {
+				if(tokens.length==3) {
+					String size = tokens[2];
+					chunkSize = "AUTO".equalsIgnoreCase(size) ?
+							PConfig.AUTO_CHUNKSIZE : PConfig.checkChunkSize(Integer.parseInt(size));
+				}
+				connection.sendControl("200 "+chunkSizeDesc());
+			}
 			else {
 				throw new IllegalArgumentException("Parameters to 'OPTS' command not understood");
 			}
@@ -845,6 +984,18 @@ public class Session {
 		}
 	}
 
+	private String chunkSizeDesc() {
+		return chunkSize==PConfig.AUTO_CHUNKSIZE ? "AUTO" : String.valueOf(chunkSize);
+	}
+
+	private String hashPartsDesc() {
+		return hashPartSize>0 ? String.valueOf(hashPartSize) : "OFF";
+	}
+
+	private String syncBlockSizeDesc() {
+		return syncBlockSize>0 ? String.valueOf(syncBlockSize) : "AUTO";
+	}
+
 
 	private void handleType(String cmd) throws IOException {
 		assertMode(Mode.READ);
@@ -891,7 +1042,7 @@ public class Session {
 		RCPThread t = new RCPThread(localFile, remotePath, serverSpec, password);
 		configureRCP(t);
 		String id = t.getName();
-		t.start();
+		Utils.start(t, id);
 		connection.sendControl("299 OK transfer-process-ID=" + id);
 	}
 
@@ -917,7 +1068,7 @@ public class Session {
 		RCPThread t = new RCPThread(remotePath, localFile, serverSpec, password);
 		configureRCP(t);
 		String id = t.getName();
-		t.start();
+		Utils.start(t, id);
 		connection.sendControl("299 OK transfer-process-ID=" + id);
 	}
 	
@@ -933,6 +1084,7 @@ public class Session {
 		t.setRange(this.offset, size);
 		t.setEncryption(job.getKey(), job.getEncryptionAlgorithm());
 		t.setCompress(job.isCompress());
+		t.setCompression(job.getCompressionAlgorithm(), job.getCompressionLevel());
 	}
 
 	public long getOffset() {
@@ -1015,6 +1167,17 @@ public class Session {
 		return keepAlive;
 	}
 
+	public boolean isDecoupledStreams() {
+		return decoupledStreams;
+	}
+
+	/**
+	 * @return chunk size for decoupled mode, or {@link PConfig#AUTO_CHUNKSIZE}
+	 */
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
 	public boolean isArchiveMode() {
 		return archiveMode;
 	}
@@ -1027,6 +1190,41 @@ public class Session {
 		return hashAlgorithm;
 	}
 
+	/**
+	 * @return part size for multi-part hashes, or 0 if a single hash should be computed
+	 */
+	public long getHashPartSize() {
+		return hashPartSize;
+	}
+
+	/**
+	 * @return the strong checksum algorithm for rsync
+	 */
+	public String getSyncChecksum() {
+		return syncChecksum;
+	}
+
+	/**
+	 * @return the rsync block size requested by the client, or 0 if it should be chosen automatically
+	 */
+	public int getSyncBlockSize() {
+		return syncBlockSize;
+	}
+
+	/**
+	 * @return <code>true</code> if rsync should update the file in place
+	 */
+	public boolean isSyncInPlace() {
+		return syncInPlace;
+	}
+
+	/**
+	 * @return <code>true</code> if rsync should use one partition per data stream
+	 */
+	public boolean isSyncParallel() {
+		return syncParallel;
+	}
+
 	private FileInfo[] listFiles(File directory) throws IOException {
 		return fileAccess.listFiles(directory);
 	}
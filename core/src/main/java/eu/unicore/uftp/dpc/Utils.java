@@ -10,24 +10,25 @@ import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.security.MessageDigest;
+import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
 
 import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.Logger;
 
+import eu.unicore.uftp.jparss.PDecoupledOutputStream;
+import eu.unicore.uftp.jparss.POutputStream;
 import eu.unicore.uftp.server.DefaultFileAccess;
 import eu.unicore.uftp.server.FileAccess;
 import eu.unicore.util.Log;
@@ -38,13 +39,20 @@ public class Utils {
 	public static final String LOG_SERVER = "uftp.server";
 	public static final String LOG_CLIENT = "uftp.client";
 	public static final String LOG_SECURITY = "uftp.security";
-
-	private static String BLOWFISH_SPEC = "Blowfish/ECB/PKCS5Padding";
-	private static String AES_SPEC = "AES/CBC/PKCS5Padding";
 	
 	public static enum EncryptionAlgorithm {
 		BLOWFISH,
-		AES
+		AES,
+		// authenticated encryption in chunks, see ChunkCipher
+		AES_GCM,
+		CHACHA20
+	};
+
+	public static enum CompressionAlgorithm {
+		GZIP,
+		// fast compression in blocks, see BlockCompression
+		LZ4,
+		DEFLATE
 	};
 	
 	public static Logger getLogger(String prefix, Class<?>clazz){
@@ -61,7 +69,30 @@ public class Utils {
 	 */
 	public static InputStream getDecryptStream(InputStream source, byte[] key, EncryptionAlgorithm algo) throws IOException {
 		try {
-			return new CipherInputStream(source, Utils.makeDecryptionCipher(key, algo));
+			return getDecryptStream(source, new CryptoContext(key, algo));
+		} catch (IllegalArgumentException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	/**
+	 * returns a stream that decrypts data, using (and returning) a cipher from the given context
+	 *
+	 * @param source - the underlying physical stream
+	 * @param context - provides the ciphers
+	 * 
+	 * @throws IOException
+	 */
+	public static InputStream getDecryptStream(InputStream source, CryptoContext context) throws IOException {
+		try {
+			if(ChunkCipher.isChunked(context.getEncryptionAlgorithm())) {
+				int threads = ChunkCipher.getThreads();
+				if(threads>1) {
+					return new ParallelChunkCipherInputStream(source, context, ChunkCipher.getPool(), 2*threads);
+				}
+				return new ChunkCipherInputStream(source, context);
+			}
+			return new MyCipherInputStream(source, context.getCipher(Cipher.DECRYPT_MODE), context);
 		} catch (Exception ex) {
 			throw new IOException(ex);
 		}
@@ -77,41 +108,134 @@ public class Utils {
 	 */
 	public static OutputStream getEncryptStream(OutputStream sink, byte[] key, EncryptionAlgorithm algo) throws IOException {
 		try {
-			return new MyCipherOutputStream(sink, Utils.makeEncryptionCipher(key, algo));
+			return getEncryptStream(sink, new CryptoContext(key, algo));
+		} catch (IllegalArgumentException ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	/**
+	 * returns a stream that encrypts data, using (and returning) a cipher from the given context
+	 *
+	 * @param sink - the underlying physical stream
+	 * @param context - provides the ciphers
+	 * 
+	 * @throws IOException
+	 */
+	public static OutputStream getEncryptStream(OutputStream sink, CryptoContext context) throws IOException {
+		try {
+			if(ChunkCipher.isChunked(context.getEncryptionAlgorithm())) {
+				int threads = ChunkCipher.getThreads();
+				if(threads>1) {
+					return new ParallelChunkCipherOutputStream(sink, context, ChunkCipher.getPool(), 2*threads);
+				}
+				return new ChunkCipherOutputStream(sink, context);
+			}
+			return new MyCipherOutputStream(sink, context.getCipher(Cipher.ENCRYPT_MODE), context);
 		} catch (Exception ex) {
 			throw new IOException(ex);
 		}
 	}
 
 	/**
-	 * returns a stream that compresses data
+	 * returns a stream that compresses data using GZIP
 	 *
 	 * @param sink - the underlying physical stream
 	 * 
 	 * @throws IOException
 	 */
 	public static OutputStream getCompressStream(OutputStream sink) throws IOException {
+		return getCompressStream(sink, CompressionAlgorithm.GZIP, 0);
+	}
+
+	/**
+	 * returns a stream that compresses data
+	 *
+	 * @param sink - the underlying physical stream
+	 * @param algo - compression algorithm
+	 * @param level - compression level (1-9), 0 for the algorithm's default
+	 * 
+	 * @throws IOException
+	 */
+	public static OutputStream getCompressStream(OutputStream sink, CompressionAlgorithm algo, int level) throws IOException {
+		return getCompressStream(sink, algo, level, null);
+	}
+
+	/**
+	 * returns a stream that compresses data
+	 *
+	 * @param sink - the underlying physical stream
+	 * @param algo - compression algorithm
+	 * @param level - compression level (1-9), 0 for the algorithm's default
+	 * @param stats - statistics to update (not supported for GZIP, can be null)
+	 * 
+	 * @throws IOException
+	 */
+	public static OutputStream getCompressStream(OutputStream sink, CompressionAlgorithm algo, int level,
+			CompressionStats stats) throws IOException {
 		try {
-			return new MyGZIPOutputStream(sink);
+			if(BlockCompression.isBlocked(algo)) {
+				BlockCodec codec = BlockCompression.createCodec(algo, level);
+				int maxFrameLength = BlockCompression.maxFrameLength(codec);
+				int threads = BlockCompression.getThreads();
+				if(threads>1) {
+					return new ParallelChunkedOutputStream(sink,
+							()->BlockCompression.encoder(BlockCompression.createCodec(algo, level), stats),
+							BlockCompression.BLOCK_SIZE, maxFrameLength, BlockCompression.getPool(), 2*threads);
+				}
+				return new ChunkedOutputStream(sink, BlockCompression.encoder(codec, stats),
+						BlockCompression.BLOCK_SIZE, maxFrameLength);
+			}
+			return new MyGZIPOutputStream(sink, level);
 		} catch (Exception ex) {
 			throw new IOException(ex);
 		}
 	}
 
 	/**
-	 * returns a stream that uncompresses data
+	 * returns a stream that uncompresses GZIP data
 	 *
 	 * @param source - the underlying physical stream
 	 * 
 	 * @throws IOException
 	 */
 	public static InputStream getDecompressStream(InputStream source) throws IOException {
+		return getDecompressStream(source, CompressionAlgorithm.GZIP);
+	}
+
+	/**
+	 * returns a stream that uncompresses data
+	 *
+	 * @param source - the underlying physical stream
+	 * @param algo - compression algorithm
+	 * 
+	 * @throws IOException
+	 */
+	public static InputStream getDecompressStream(InputStream source, CompressionAlgorithm algo) throws IOException {
+		return getDecompressStream(source, algo, null);
+	}
+
+	/**
+	 * returns a stream that uncompresses data
+	 *
+	 * @param source - the underlying physical stream
+	 * @param algo - compression algorithm
+	 * @param stats - statistics to update (not supported for GZIP, can be null)
+	 * 
+	 * @throws IOException
+	 */
+	public static InputStream getDecompressStream(InputStream source, CompressionAlgorithm algo,
+			CompressionStats stats) throws IOException {
 		try {
+			if(BlockCompression.isBlocked(algo)) {
+				return new BlockDecompressInputStream(source, algo, stats);
+			}
 			return new GZIPInputStream(source);
 		} catch (Exception ex) {
 			throw new IOException(ex);
 		}
 	}
+
 	public static String encodeBase64(byte[] data) {
 		if (data == null) {
 			return null;
@@ -127,54 +251,11 @@ public class Utils {
 	}
 	
 	public static Cipher makeEncryptionCipher(byte[] key, EncryptionAlgorithm algo) throws Exception {
-		Cipher c = null;
-		switch (algo) {
-		case BLOWFISH:
-			if(key.length>56)throw new IllegalArgumentException("Blowfish key length cannot be longer than 56");
-			c = Cipher.getInstance(BLOWFISH_SPEC);
-			c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "Blowfish"));
-			break;
-		case AES:
-			if(key.length<32)throw new IllegalArgumentException("AES key length must be > 32 (16 iv, rest for key)");
-			int keyLength = key.length - 16;
-			if(keyLength != 16 && keyLength != 24 && keyLength != 32) {
-				throw new IllegalArgumentException("Illegal AES key length");
-			}
-			c = Cipher.getInstance(AES_SPEC);
-			byte[] iv = new byte[16];
-			System.arraycopy(key, 0, iv, 0, 16);
-			byte[] aesKey = new byte[keyLength];
-			System.arraycopy(key, 16, aesKey , 0, keyLength);
-			c.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aesKey, "AES"), new IvParameterSpec(iv));
-			break;
-		}
-		return c;
+		return new CryptoContext(key, algo).getCipher(Cipher.ENCRYPT_MODE);
 	}
 
 	public static Cipher makeDecryptionCipher(byte[] key, EncryptionAlgorithm algo) throws Exception {
-		Cipher c = null;
-		switch (algo) {
-		case BLOWFISH:
-			c = Cipher.getInstance(BLOWFISH_SPEC);
-			c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "Blowfish"));
-			break;
-		case AES:
-			if(key.length<32) {
-				throw new IllegalArgumentException("AES key length must be > 32 (16 iv, rest for key)");
-			}
-			int keyLength = key.length - 16;
-			if(keyLength != 16 && keyLength != 24 && keyLength != 32) {
-				throw new IllegalArgumentException("Illegal AES key length");
-			}
-			c = Cipher.getInstance(AES_SPEC);
-			byte[] iv = new byte[16];
-			System.arraycopy(key, 0, iv, 0, 16);
-			byte[] aesKey = new byte[keyLength];
-			System.arraycopy(key, 16, aesKey, 0, keyLength);
-			c.init(Cipher.DECRYPT_MODE, new SecretKeySpec(aesKey, "AES"), new IvParameterSpec(iv));
-			break;
-		}
-		return c;
+		return new CryptoContext(key, algo).getCipher(Cipher.DECRYPT_MODE);
 	}
 
 	/**
@@ -193,6 +274,11 @@ public class Utils {
 			key = new byte[16+32];
 			new Random().nextBytes(key);
 			break;
+		case AES_GCM:
+		case CHACHA20:
+			key = new byte[ChunkCipher.KEY_LENGTH];
+			new SecureRandom().nextBytes(key);
+			break;
 		}
 		return key;
 	}
@@ -265,9 +351,12 @@ public class Utils {
 
 	private static ScheduledExecutorService executor;
 
+	/**
+	 * general purpose executor e.g. for client-side tasks. The server uses
+	 * dedicated executors, see {@link eu.unicore.uftp.server.ServerExecutors}
+	 */
 	public static synchronized ScheduledExecutorService getExecutor() {
 		if(executor == null){
-			//TODO configure thread pool
 			executor = new ScheduledThreadPoolExecutor(10);
 			Runtime.getRuntime().addShutdownHook(new Thread(){
 				public void run(){
@@ -278,6 +367,72 @@ public class Utils {
 		return executor;
 	}
 
+	/**
+	 * property for enabling virtual threads (requires Java 21 or later)
+	 */
+	public static final String VIRTUAL_THREADS = "UFTP_VIRTUAL_THREADS";
+
+	private static final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+
+	private static volatile boolean virtualThreads = virtualThreadFactory!=null &&
+			Boolean.parseBoolean(getProperty(VIRTUAL_THREADS, "false"));
+
+	// looked up via reflection, since we still support Java versions without virtual threads
+	private static ThreadFactory createVirtualThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory)Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		}catch(Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * whether virtual threads are available on this JVM
+	 */
+	public static boolean isVirtualThreadsSupported() {
+		return virtualThreadFactory!=null;
+	}
+
+	public static boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * enable or disable the use of virtual threads
+	 * @return <code>true</code> if virtual threads are now used
+	 */
+	public static boolean setVirtualThreads(boolean enable) {
+		virtualThreads = enable && isVirtualThreadsSupported();
+		return virtualThreads;
+	}
+
+	/**
+	 * create a new (not yet started) thread for the given task. This is a virtual
+	 * thread if enabled, otherwise a normal platform thread.
+	 *
+	 * @param task
+	 * @param name - thread name (can be null)
+	 */
+	public static Thread newThread(Runnable task, String name) {
+		Thread t = virtualThreads ? virtualThreadFactory.newThread(task) : new Thread(task);
+		if(name!=null)t.setName(name);
+		return t;
+	}
+
+	/**
+	 * run the given task in a new thread, which is a virtual thread if enabled
+	 *
+	 * @param task
+	 * @param name - thread name (can be null)
+	 * @return the thread running the task
+	 */
+	public static Thread start(Runnable task, String name) {
+		Thread t = newThread(task, name);
+		t.start();
+		return t;
+	}
+
 	/**
 	 * this removes leading and trailing \" characters
 	 *
@@ -341,6 +496,18 @@ public class Utils {
 		else if(target instanceof MyCipherOutputStream){
 			((MyCipherOutputStream)target).finish();
 		}
+		else if(target instanceof ChunkedOutputStream){
+			((ChunkedOutputStream)target).finish();
+		}
+		else if(target instanceof ParallelChunkedOutputStream){
+			((ParallelChunkedOutputStream)target).finish();
+		}
+		else if(target instanceof POutputStream){
+			((POutputStream)target).finish();
+		}
+		else if(target instanceof PDecoupledOutputStream){
+			((PDecoupledOutputStream)target).finish();
+		}
 	}
 
 	public static void closeQuietly(Closeable x) {
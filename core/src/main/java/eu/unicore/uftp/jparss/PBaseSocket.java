@@ -10,14 +10,20 @@
  */
 package eu.unicore.uftp.jparss;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
 
+import eu.unicore.uftp.dpc.CompressionStats;
+import eu.unicore.uftp.dpc.CryptoContext;
 import eu.unicore.uftp.dpc.Utils;
+import eu.unicore.uftp.dpc.Utils.CompressionAlgorithm;
 import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
 
 public class PBaseSocket extends Socket {
@@ -34,6 +40,14 @@ public class PBaseSocket extends Socket {
 	final byte[] key;
 
 	final boolean compress;
+
+	protected CompressionAlgorithm compressionAlgorithm = CompressionAlgorithm.GZIP;
+
+	protected int compressionLevel = 0;
+
+	protected CompressionStats compressionStats;
+
+	protected CryptoContext cryptoContext;
 	
 	/**
 	 * Internal ID number assigned by server
@@ -50,17 +64,83 @@ public class PBaseSocket extends Socket {
 	 */
 	protected int numStreams_ = 0;
 
+	/**
+	 * Use the "decoupled" mode where the streams are not running in lockstep.
+	 * This must be set the same way on both sides.
+	 */
+	protected boolean decoupled_ = false;
+
+	/**
+	 * Streams which need to be closed to stop their worker threads
+	 * or to release their channels
+	 */
+	protected final List<Closeable> managedStreams_ = new ArrayList<>();
+
+	/**
+	 * Chunk size for sending data in decoupled mode
+	 */
+	protected int chunkSize_ = PConfig.defaultChunkSize;
+
+	public void setDecoupled(boolean decoupled) {
+		this.decoupled_ = decoupled;
+	}
+
+	public boolean isDecoupled() {
+		return decoupled_;
+	}
+
+	/**
+	 * set the chunk size for sending data in decoupled mode
+	 *
+	 * @param chunkSize - size in bytes, or {@link PConfig#AUTO_CHUNKSIZE}
+	 */
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize_ = PConfig.checkChunkSize(chunkSize);
+	}
+
+	public int getChunkSize() {
+		return chunkSize_;
+	}
+
+	/**
+	 * set the crypto context to use (instead of creating one from the key),
+	 * so that ciphers are shared with other sockets using the same key
+	 */
+	public synchronized void setCryptoContext(CryptoContext context) {
+		this.cryptoContext = context;
+	}
+
+	protected synchronized CryptoContext getCryptoContext() {
+		if(cryptoContext==null) {
+			cryptoContext = new CryptoContext(key, algo);
+		}
+		return cryptoContext;
+	}
+
+	/**
+	 * set the compression algorithm and level (if compression is enabled).
+	 * The algorithm must be set the same way on both sides.
+	 *
+	 * @param algo - compression algorithm
+	 * @param level - compression level (1-9), 0 for the algorithm's default
+	 * @param stats - compression statistics to update (can be null)
+	 */
+	public void setCompression(CompressionAlgorithm algo, int level, CompressionStats stats) {
+		this.compressionAlgorithm = algo;
+		this.compressionLevel = level;
+		this.compressionStats = stats;
+	}
+
 	/**
 	 * Returns an input stream for this socket.
 	 */
 	public InputStream getInputStream() throws IOException {
 		InputStream[] tinputs = new InputStream[numStreams_];
 		for (int i = 0; i < numStreams_; i++){
-			InputStream source=sockets_[i].getInputStream();
-			tinputs[i] = key!=null? Utils.getDecryptStream(source, key, algo) : source;
-			if(compress){
-				tinputs[i] = Utils.getDecompressStream(tinputs[i]);
-			}
+			tinputs[i] = getInputStream(i);
+		}
+		if(decoupled_) {
+			return track(new PDecoupledInputStream(tinputs));
 		}
 		return new PInputStream(tinputs);
 	}
@@ -72,15 +152,57 @@ public class PBaseSocket extends Socket {
 		// set up parallel data streams
 		OutputStream[] toutputs = new OutputStream[numStreams_];
 		for (int i = 0; i < numStreams_; i++){
-			OutputStream sink=sockets_[i].getOutputStream();
-			toutputs[i] = key!=null ? Utils.getEncryptStream(sink, key, algo) : sink;
-			if(compress){
-				toutputs[i] = Utils.getCompressStream(toutputs[i]);
-			}
+			toutputs[i] = getOutputStream(i);
+		}
+		if(decoupled_) {
+			return track(new PDecoupledOutputStream(toutputs, chunkSize_));
 		}
 		return new POutputStream(toutputs);
 	}
 
+	/**
+	 * Returns an input stream for the given individual stream (with
+	 * decryption and decompression, if enabled), for protocols that
+	 * use the streams independently of each other
+	 */
+	public InputStream getInputStream(int stream) throws IOException {
+		InputStream source=sockets_[stream].getInputStream();
+		InputStream in = key!=null? Utils.getDecryptStream(source, getCryptoContext()) : source;
+		return compress ? Utils.getDecompressStream(in, compressionAlgorithm, compressionStats) : in;
+	}
+
+	/**
+	 * Returns an output stream for the given individual stream (with
+	 * encryption and compression, if enabled)
+	 */
+	public OutputStream getOutputStream(int stream) throws IOException {
+		OutputStream sink=sockets_[stream].getOutputStream();
+		OutputStream out = key!=null ? Utils.getEncryptStream(sink, getCryptoContext()) : sink;
+		return compress ? Utils.getCompressStream(out, compressionAlgorithm, compressionLevel, compressionStats) : out;
+	}
+
+	/**
+	 * Returns the number of individual streams
+	 */
+	public int getNumberOfStreams() {
+		return numStreams_;
+	}
+
+	protected synchronized <T extends Closeable> T track(T stream) {
+		managedStreams_.add(stream);
+		return stream;
+	}
+
+	/**
+	 * quietly close the streams that need to be closed explicitly
+	 */
+	protected synchronized void closeManagedStreams() {
+		for(Closeable c: managedStreams_) {
+			Utils.closeQuietly(c);
+		}
+		managedStreams_.clear();
+	}
+
 	/**
 	 * Returns the address to which the socket is connected.
 	 */
@@ -18,6 +18,12 @@ public class PConfig {
 	 */
 	public static final short magic = (short) 0xcebf;
 
+	/**
+	 * Magic number used in "decoupled" mode, where streams are not
+	 * running in lockstep
+	 */
+	public static final short dmagic = (short) 0xcec0;
+
 	/**
 	 * Connection magic number.
 	 */
@@ -30,10 +36,21 @@ public class PConfig {
 
 	public static String USE_THREADS = "UFTP.multistream.usethreads";
 
+	/**
+	 * Use non-blocking channels driven by a shared selector pool,
+	 * instead of reader/writer threads per stream.
+	 */
+	public static boolean usenio = false;
+
+	public static String USE_NIO = "UFTP.multistream.usenio";
+
 	static {
 		try{
 			usethreads = Boolean.parseBoolean(Utils.getProperty(USE_THREADS, "true"));
 		}catch(Exception e) {}
+		try{
+			usenio = Boolean.parseBoolean(Utils.getProperty(USE_NIO, "false"));
+		}catch(Exception e) {}
 	}
 
 	/**
@@ -46,4 +63,55 @@ public class PConfig {
 	 */
 	public static final int pheaderlen = 16;
 
+	/**
+	 * In decoupled mode: maximum number of out-of-order chunks the receiving side
+	 * will buffer before it stops reading from the streams that are ahead
+	 */
+	public static int reorderWindow = 64;
+
+	/**
+	 * In decoupled mode: maximum number of out-of-order bytes the receiving side
+	 * will buffer before it stops reading from the streams that are ahead
+	 */
+	public static int reorderWindowBytes = 128 * 1024 * 1024;
+
+	/**
+	 * In decoupled mode: default size of the chunks, i.e. small writes are
+	 * coalesced into chunks of this size
+	 */
+	public static final int defaultChunkSize = 1024 * 1024;
+
+	/**
+	 * In decoupled mode: minimum chunk size
+	 */
+	public static final int minChunkSize = 16384;
+
+	/**
+	 * In decoupled mode: maximum chunk size
+	 */
+	public static final int maxChunkSize = 8 * 1024 * 1024;
+
+	/**
+	 * In decoupled mode: chunk size is tuned automatically based on the 
+	 * measured per-stream throughput
+	 */
+	public static final int AUTO_CHUNKSIZE = -1;
+
+	/**
+	 * In decoupled mode with automatic chunk size: the chunk size is chosen such
+	 * that sending one chunk over one stream takes about this long
+	 */
+	public static int autoChunkMillis = 100;
+
+	/**
+	 * limit the given chunk size to the allowed range
+	 *
+	 * @param size - requested chunk size, or {@link #AUTO_CHUNKSIZE}
+	 * @return chunk size within [minChunkSize, maxChunkSize], or {@link #AUTO_CHUNKSIZE}
+	 */
+	public static int checkChunkSize(int size) {
+		if(size == AUTO_CHUNKSIZE)return size;
+		return Math.max(minChunkSize, Math.min(maxChunkSize, size));
+	}
+
 };
@@ -0,0 +1,221 @@
+package eu.unicore.uftp.jparss;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.unicore.uftp.dpc.Utils;
+
+/**
+ * Parallel input stream for reading data written by a {@link PDecoupledOutputStream}.<br/>
+ *
+ * There is one reader thread per stream, which reads chunks as fast as its stream
+ * delivers them and puts them into a re-ordering window. The data is returned to
+ * the caller in sequence number order. A reader thread stops reading from its stream
+ * when its next chunk is too far ahead, i.e. outside the window of
+ * {@link PConfig#reorderWindow} chunks or {@link PConfig#reorderWindowBytes} bytes.<br/>
+ *
+ * Since the chunk boundaries are not visible to the caller, reads of any size are
+ * possible.
+ */
+public class PDecoupledInputStream extends InputStream {
+
+	private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+	private final InputStream[] inputs_;
+
+	private final int windowSize_;
+
+	// received chunks, keyed by sequence number
+	private final Map<Integer, byte[]> window_ = new HashMap<>();
+
+	// total size of the chunks in the window
+	private long bufferedBytes_ = 0;
+
+	// sequence number of the next chunk to be returned
+	private int next_ = 0;
+
+	// the chunk that is currently being read from, and the read position
+	private byte[] current_ = null;
+
+	private int currentPos_ = 0;
+
+	private int finishedReaders_ = 0;
+
+	private IOException error_ = null;
+
+	private boolean done_ = false;
+
+	public PDecoupledInputStream(InputStream[] streams) {
+		inputs_ = streams.clone();
+		windowSize_ = Math.max(PConfig.reorderWindow, inputs_.length);
+		for (int i = 0; i < inputs_.length; i++) {
+			final int pos = i;
+			Thread reader = Utils.newThread(()->runReader(pos), "ParallelReaderThread-"+threadCount.incrementAndGet());
+			reader.start();
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int v = read(b, 0, 1);
+		return v!=-1 ? b[0] & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		while (current_ == null) {
+			if (error_ != null) {
+				throw new IOException("Internal input stream error", error_);
+			}
+			if (done_) {
+				throw new IOException("Stream closed.");
+			}
+			current_ = window_.remove(next_);
+			if (current_ != null) {
+				currentPos_ = 0;
+				bufferedBytes_ -= current_.length;
+				break;
+			}
+			if (finishedReaders_ == inputs_.length) {
+				if (window_.isEmpty()) {
+					return -1;
+				}
+				throw new IOException("Unexpected end of stream: missing chunk <"+next_+">");
+			}
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+		int n = Math.min(len, current_.length - currentPos_);
+		System.arraycopy(current_, currentPos_, b, off, n);
+		currentPos_ += n;
+		if (currentPos_ == current_.length) {
+			current_ = null;
+			next_++;
+			// readers waiting for the window to move
+			notifyAll();
+		}
+		return n;
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		return current_ != null ? current_.length - currentPos_ : 0;
+	}
+
+	/**
+	 * stops the reader threads and closes the individual streams
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (done_) {
+				return;
+			}
+			done_ = true;
+			notifyAll();
+		}
+		for (InputStream is: inputs_) {
+			is.close();
+		}
+	}
+
+	/**
+	 * called by the reader threads: put the chunk into the window,
+	 * waiting if it is too far ahead
+	 */
+	private synchronized void put(int seq, byte[] data) throws IOException, InterruptedException {
+		while (outsideWindow(seq, data.length) && !done_ && error_ == null) {
+			wait();
+		}
+		if (seq < next_ || window_.containsKey(seq)) {
+			throw new IOException("Duplicate chunk <"+seq+">");
+		}
+		window_.put(seq, data);
+		bufferedBytes_ += data.length;
+		notifyAll();
+	}
+
+	// the next expected chunk is always accepted, so we cannot dead-lock
+	private boolean outsideWindow(int seq, int length) {
+		if (seq == next_) return false;
+		return seq >= next_ + windowSize_ || bufferedBytes_ + length > PConfig.reorderWindowBytes;
+	}
+
+	private synchronized void readerFinished(IOException error) {
+		finishedReaders_++;
+		if (error != null && error_ == null && !done_) {
+			error_ = error;
+		}
+		notifyAll();
+	}
+
+	private synchronized boolean finished() {
+		return done_ || error_ != null;
+	}
+
+	private void runReader(int pos) {
+		PReader.activeReaders.incrementAndGet();
+		DataInputStream in = new DataInputStream(inputs_[pos]);
+		byte[] header = new byte[PConfig.pheaderlen];
+		ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+		IOException error = null;
+		try {
+			while (!finished()) {
+				// clean EOF is only allowed at a chunk boundary
+				int first = in.read();
+				if (first < 0) {
+					break;
+				}
+				header[0] = (byte) first;
+				in.readFully(header, 1, header.length - 1);
+				headerBuffer.clear();
+				short magic = headerBuffer.getShort();
+				short streamPos = headerBuffer.getShort();
+				int seq = headerBuffer.getInt();
+				headerBuffer.getInt();
+				int numtoread = headerBuffer.getInt();
+				if (magic != PConfig.dmagic)
+					throw new IOException("Bad magic number (non-matching stream mode?)");
+				if (streamPos < 0 || streamPos >= inputs_.length)
+					throw new IOException("Parallel stream position error");
+				if (seq < 0)
+					throw new IOException("Negative sequence number");
+				if (numtoread <= 0 || numtoread > PConfig.maxChunkSize)
+					throw new IOException("Invalid chunk size <"+numtoread+">");
+				byte[] data = new byte[numtoread];
+				in.readFully(data);
+				put(seq, data);
+			}
+		} catch (IOException e) {
+			error = e;
+		} catch (InterruptedException e) {
+			// exit
+		} finally {
+			readerFinished(error);
+			PReader.activeReaders.decrementAndGet();
+		}
+	}
+
+}
@@ -0,0 +1,333 @@
+package eu.unicore.uftp.jparss;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.unicore.uftp.dpc.Utils;
+
+/**
+ * Parallel output stream where the streams do not run in lockstep.<br/>
+ *
+ * Writes are coalesced into sequence-numbered chunks, which are put into a bounded
+ * queue. There is one writer thread per stream, which takes the next chunk from
+ * the queue as soon as its stream is free. Thus a slow stream does not hold back
+ * the others. The receiving {@link PDecoupledInputStream} re-orders the chunks
+ * using their sequence number.<br/>
+ *
+ * The chunk size can be fixed, or ({@link PConfig#AUTO_CHUNKSIZE}) adapted
+ * to the measured per-stream throughput, such that sending a chunk takes about
+ * {@link PConfig#autoChunkMillis}.<br/>
+ *
+ * The chunk header has the same layout as in the lockstep mode, but uses
+ * {@link PConfig#dmagic} as magic number. Both the "total" and the "number to read"
+ * fields contain the chunk length.
+ */
+public class PDecoupledOutputStream extends OutputStream {
+
+	private static final AtomicInteger threadCount = new AtomicInteger(0);
+
+	// marks the end of the data
+	private static final Chunk EOS = new Chunk(-1, null, 0);
+
+	private final OutputStream[] outputs_;
+
+	private final Thread[] writers_;
+
+	private final BlockingQueue<Chunk> queue_;
+
+	// written chunk buffers for re-use
+	private final ConcurrentLinkedQueue<byte[]> free_ = new ConcurrentLinkedQueue<>();
+
+	private final boolean autoTune_;
+
+	// current chunk size - changes only in auto-tune mode
+	private volatile int chunkSize_;
+
+	// measured throughput per stream (bytes/sec), in auto-tune mode
+	private double rate_ = 0;
+
+	// chunk currently being filled
+	private byte[] current_ = null;
+
+	private int currentLen_ = 0;
+
+	// sequence number of the next chunk
+	private int seq_ = 0;
+
+	// guards pending_, rate_ and error_
+	private final Object lock_ = new Object();
+
+	// number of chunks queued but not yet written
+	private int pending_ = 0;
+
+	private IOException error_ = null;
+
+	private boolean closed_ = false;
+
+	public PDecoupledOutputStream(OutputStream[] streams) {
+		this(streams, PConfig.defaultChunkSize);
+	}
+
+	/**
+	 * @param streams - the individual streams
+	 * @param chunkSize - chunk size in bytes, or {@link PConfig#AUTO_CHUNKSIZE}
+	 */
+	public PDecoupledOutputStream(OutputStream[] streams, int chunkSize) {
+		outputs_ = streams.clone();
+		autoTune_ = chunkSize == PConfig.AUTO_CHUNKSIZE;
+		chunkSize_ = autoTune_ ? PConfig.defaultChunkSize : PConfig.checkChunkSize(chunkSize);
+		queue_ = new ArrayBlockingQueue<>(outputs_.length);
+		writers_ = new Thread[outputs_.length];
+		for (int i = 0; i < outputs_.length; i++) {
+			final int pos = i;
+			writers_[i] = Utils.newThread(()->runWriter(pos), "ParallelWriterThread-"+threadCount.incrementAndGet());
+			writers_[i].start();
+		}
+	}
+
+	/**
+	 * the current chunk size
+	 */
+	public int getChunkSize() {
+		return chunkSize_;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte)(b & 0xFF)}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		checkState();
+		while (len > 0) {
+			if (current_ == null) {
+				current_ = allocate();
+				currentLen_ = 0;
+			}
+			int n = Math.min(len, current_.length - PConfig.pheaderlen - currentLen_);
+			System.arraycopy(b, off, current_, PConfig.pheaderlen + currentLen_, n);
+			currentLen_ += n;
+			off += n;
+			len -= n;
+			if (PConfig.pheaderlen + currentLen_ == current_.length) {
+				sendCurrent();
+			}
+		}
+	}
+
+	/**
+	 * sends any buffered data, waits until all queued chunks have been written,
+	 * and flushes the individual streams
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		checkState();
+		sendCurrent();
+		waitWriters();
+		checkState();
+		for (OutputStream os: outputs_) {
+			os.flush();
+		}
+	}
+
+	/**
+	 * flushes this stream and finishes the individual streams (which may be
+	 * compressed and/or encrypted), without closing them
+	 */
+	public synchronized void finish() throws IOException {
+		flush();
+		for (OutputStream os: outputs_) {
+			Utils.finishWriting(os);
+		}
+	}
+
+	/**
+	 * writes all pending data, stops the writer threads
+	 * and closes the individual streams
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed_) {
+			return;
+		}
+		closed_ = true;
+		try {
+			if (!haveError()) {
+				sendCurrent();
+			}
+			waitWriters();
+			for (int i = 0; i < writers_.length; i++) {
+				queue_.put(EOS);
+			}
+			for (Thread t: writers_) {
+				t.join();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} finally {
+			free_.clear();
+			for (OutputStream os: outputs_) {
+				os.close();
+			}
+		}
+		checkError();
+	}
+
+	private byte[] allocate() {
+		int size = PConfig.pheaderlen + chunkSize_;
+		byte[] buf;
+		while ((buf = free_.poll()) != null) {
+			// buffers of the wrong size (after a chunk size change) are dropped
+			if (buf.length == size) {
+				return buf;
+			}
+		}
+		return new byte[size];
+	}
+
+	private void sendCurrent() throws IOException {
+		if (current_ == null || currentLen_ == 0) {
+			return;
+		}
+		Chunk chunk = new Chunk(seq_++, current_, currentLen_);
+		current_ = null;
+		currentLen_ = 0;
+		synchronized (lock_) {
+			pending_++;
+		}
+		try {
+			queue_.put(chunk);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	private void waitWriters() throws InterruptedIOException {
+		synchronized (lock_) {
+			while (pending_ > 0) {
+				try {
+					lock_.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+	}
+
+	private void chunkWritten(Chunk chunk, long nanos, IOException error) {
+		synchronized (lock_) {
+			if (error != null && error_ == null) {
+				error_ = error;
+			}
+			if (autoTune_ && error == null) {
+				tune(chunk.len, nanos);
+			}
+			pending_--;
+			lock_.notifyAll();
+		}
+		free_.offer(chunk.data);
+	}
+
+	/**
+	 * update the measured per-stream throughput and adapt the chunk size,
+	 * rounding to a power of two to avoid frequent small changes
+	 */
+	private void tune(int bytes, long nanos) {
+		double sample = 1e9 * bytes / Math.max(nanos, 1);
+		rate_ = rate_ == 0 ? sample : 0.75 * rate_ + 0.25 * sample;
+		long target = (long) (rate_ * PConfig.autoChunkMillis / 1000);
+		int size = Integer.highestOneBit((int) Math.min(PConfig.maxChunkSize, Math.max(1, target)));
+		chunkSize_ = PConfig.checkChunkSize(size);
+	}
+
+	private void checkState() throws IOException {
+		if (closed_) {
+			throw new IOException("Stream closed.");
+		}
+		checkError();
+	}
+
+	private void checkError() throws IOException {
+		synchronized (lock_) {
+			if (error_ != null) {
+				throw new IOException("Internal stream write error", error_);
+			}
+		}
+	}
+
+	private boolean haveError() {
+		synchronized (lock_) {
+			return error_ != null;
+		}
+	}
+
+	private void runWriter(int pos) {
+		PWriter.activeWriters.incrementAndGet();
+		OutputStream os = outputs_[pos];
+		try {
+			while (true) {
+				Chunk c = queue_.take();
+				if (c == EOS) {
+					break;
+				}
+				IOException error = null;
+				long start = System.nanoTime();
+				// after an error, we keep draining the queue, so the producer does not block
+				if (!haveError()) {
+					try {
+						ByteBuffer header = ByteBuffer.wrap(c.data, 0, PConfig.pheaderlen);
+						header.putShort(PConfig.dmagic);
+						header.putShort((short) pos);
+						header.putInt(c.seq);
+						header.putInt(c.len);
+						header.putInt(c.len);
+						os.write(c.data, 0, PConfig.pheaderlen + c.len);
+					} catch (IOException e) {
+						error = e;
+					}
+				}
+				chunkWritten(c, System.nanoTime() - start, error);
+			}
+		} catch (InterruptedException e) {
+			// exit
+		} finally {
+			PWriter.activeWriters.decrementAndGet();
+		}
+	}
+
+	/**
+	 * a sequence-numbered chunk of data, with space for the header in front
+	 */
+	static class Chunk {
+
+		final int seq;
+
+		final byte[] data;
+
+		final int len;
+
+		Chunk(int seq, byte[] data, int len) {
+			this.seq = seq;
+			this.data = data;
+			this.len = len;
+		}
+	}
+}
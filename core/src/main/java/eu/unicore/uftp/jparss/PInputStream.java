@@ -17,6 +17,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import eu.unicore.uftp.dpc.Utils;
+
 public class PInputStream extends InputStream {
 	/**
 	 * internal list of streams
@@ -80,8 +82,7 @@ public class PInputStream extends InputStream {
 			for (i = 0; i < inputs_.length; i++) {
 				readers_[i] = new PReader(this, inputs_[i], i, inputs_.length);
 				// fire this thread
-				worker = new Thread(readers_[i]);
-				worker.setName("ParallelReaderThread-"+threadCount.incrementAndGet());
+				worker = Utils.newThread(readers_[i], "ParallelReaderThread-"+threadCount.incrementAndGet());
 				worker.start();
 			}
 		}
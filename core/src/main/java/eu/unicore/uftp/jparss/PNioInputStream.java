@@ -0,0 +1,511 @@
+package eu.unicore.uftp.jparss;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parallel input stream using non-blocking socket channels, which are
+ * driven by the threads of the shared {@link PSelectorPool} instead of
+ * one reader thread per stream. It reads data written by a
+ * {@link POutputStream} (lockstep mode) or a {@link PDecoupledOutputStream}
+ * (decoupled mode), or by a {@link PNioOutputStream}.<br/>
+ *
+ * In lockstep mode, each read() call reads one part from each channel directly
+ * into the caller's array, so the same buffer size restrictions as for the
+ * {@link PInputStream} apply. In decoupled mode, chunks are read as soon as
+ * the channels deliver them, and re-ordered in a window with the same limits
+ * as used by the {@link PDecoupledInputStream}.
+ */
+public class PNioInputStream extends InputStream {
+
+	private final SocketChannel[] channels_;
+
+	private final SelectionKey[] keys_;
+
+	private final PSelectorPool.Loop loop_;
+
+	private final boolean decoupled_;
+
+	// read timeout of the underlying sockets
+	private final int timeout_;
+
+	// per channel: the header being read
+	private final ByteBuffer[] header_;
+
+	// per channel: the data being read, null while reading the header
+	private final ByteBuffer[] data_;
+
+	// per channel: sequence number of the chunk being read
+	private final int[] seq_;
+
+	// per channel: EOF was reached
+	private final boolean[] finished_;
+
+	private int finishedCount_ = 0;
+
+	// incremented whenever data was read
+	private long progress_ = 0;
+
+	private long lastProgress_ = 0;
+
+	private long lastProgressTime_ = 0;
+
+	private IOException error_ = null;
+
+	private boolean closed_ = false;
+
+	// lockstep mode: target of the current read() call
+	private byte[] target_ = null;
+
+	private int targetOff_ = 0;
+
+	private int targetLen_ = 0;
+
+	// lockstep mode: number of channels that have not yet delivered their part
+	private int pending_ = 0;
+
+	// lockstep mode: expected sequence number
+	private int expectedSeq_ = -1;
+
+	// decoupled mode: received chunks, keyed by sequence number
+	private final Map<Integer, byte[]> window_ = new HashMap<>();
+
+	private final int windowSize_;
+
+	private long bufferedBytes_ = 0;
+
+	// decoupled mode: channels which stopped reading since their next chunk is outside the window
+	private final boolean[] paused_;
+
+	// decoupled mode: sequence number of the next chunk to be returned
+	private int next_ = 0;
+
+	// decoupled mode: the chunk that is currently being read from, and the read position
+	private byte[] current_ = null;
+
+	private int currentPos_ = 0;
+
+	public PNioInputStream(SocketChannel[] channels, boolean decoupled) throws IOException {
+		channels_ = channels.clone();
+		decoupled_ = decoupled;
+		int num = channels_.length;
+		timeout_ = channels_[0].socket().getSoTimeout();
+		windowSize_ = Math.max(PConfig.reorderWindow, num);
+		header_ = new ByteBuffer[num];
+		data_ = new ByteBuffer[num];
+		seq_ = new int[num];
+		finished_ = new boolean[num];
+		paused_ = new boolean[num];
+		keys_ = new SelectionKey[num];
+		loop_ = PSelectorPool.get().next();
+		try {
+			for (int i = 0; i < num; i++) {
+				final int pos = i;
+				header_[i] = ByteBuffer.allocate(PConfig.pheaderlen);
+				keys_[i] = loop_.register(channels_[i], new PSelectorPool.Handler() {
+					@Override
+					public void ready(SelectionKey key) throws IOException {
+						readable(pos);
+					}
+					@Override
+					public void failed(Exception error) {
+						setError(error);
+					}
+				});
+			}
+		} catch (IOException e) {
+			release();
+			throw e;
+		}
+		if (decoupled_) {
+			// start reading right away
+			for (SelectionKey key: keys_) {
+				key.interestOps(SelectionKey.OP_READ);
+			}
+			loop_.wakeup();
+		}
+	}
+
+	public boolean isDecoupled() {
+		return decoupled_;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int v = read(b, 0, 1);
+		return v!=-1 ? b[0] & 0xFF : -1;
+	}
+
+	@Override
+	public int read(byte[] b) throws IOException {
+		return read(b, 0, b.length);
+	}
+
+	@Override
+	public synchronized int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (closed_) {
+			throw new IOException("Stream closed.");
+		}
+		checkError();
+		if (len == 0) {
+			return 0;
+		}
+		return decoupled_ ? readDecoupled(b, off, len) : readLockstep(b, off, len);
+	}
+
+	@Override
+	public synchronized int available() throws IOException {
+		return current_ != null ? current_.length - currentPos_ : 0;
+	}
+
+	/**
+	 * closes the individual channels
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed_) {
+				return;
+			}
+			closed_ = true;
+			notifyAll();
+		}
+		// not holding the lock, since the selector thread may need it
+		try {
+			release();
+		} finally {
+			for (SocketChannel c: channels_) {
+				c.close();
+			}
+		}
+	}
+
+	private int readLockstep(byte[] b, int off, int len) throws IOException {
+		if (finishedCount_ == channels_.length) {
+			return -1;
+		}
+		target_ = b;
+		targetOff_ = off;
+		targetLen_ = len;
+		pending_ = 0;
+		for (int i = 0; i < channels_.length; i++) {
+			if (!finished_[i]) {
+				pending_++;
+				data_[i] = null;
+				keys_[i].interestOps(SelectionKey.OP_READ);
+			}
+		}
+		loop_.wakeup();
+		try {
+			startWait();
+			while (pending_ > 0 && error_ == null && !closed_) {
+				await();
+			}
+		} finally {
+			target_ = null;
+		}
+		checkError();
+		if (closed_) {
+			throw new IOException("Stream closed.");
+		}
+		if (finishedCount_ == channels_.length) {
+			return -1;
+		}
+		int value = 0;
+		for (int i = 0; i < channels_.length; i++) {
+			if (data_[i] != null) {
+				value += data_[i].limit();
+				data_[i] = null;
+			}
+		}
+		if (expectedSeq_ != -1) {
+			expectedSeq_++;
+		}
+		return value;
+	}
+
+	private int readDecoupled(byte[] b, int off, int len) throws IOException {
+		startWait();
+		while (current_ == null) {
+			checkError();
+			if (closed_) {
+				throw new IOException("Stream closed.");
+			}
+			current_ = window_.remove(next_);
+			if (current_ != null) {
+				currentPos_ = 0;
+				bufferedBytes_ -= current_.length;
+				break;
+			}
+			if (finishedCount_ == channels_.length) {
+				if (window_.isEmpty()) {
+					return -1;
+				}
+				throw new IOException("Unexpected end of stream: missing chunk <"+next_+">");
+			}
+			await();
+		}
+		int n = Math.min(len, current_.length - currentPos_);
+		System.arraycopy(current_, currentPos_, b, off, n);
+		currentPos_ += n;
+		if (currentPos_ == current_.length) {
+			current_ = null;
+			next_++;
+			resume();
+		}
+		return n;
+	}
+
+	/**
+	 * decoupled: let the channels that are waiting for the window to move continue reading
+	 */
+	private void resume() {
+		boolean wakeup = false;
+		for (int i = 0; i < channels_.length; i++) {
+			if (paused_[i]) {
+				paused_[i] = false;
+				keys_[i].interestOps(SelectionKey.OP_READ);
+				wakeup = true;
+			}
+		}
+		if (wakeup) {
+			loop_.wakeup();
+		}
+	}
+
+	/**
+	 * called in the selector thread when the channel has data
+	 */
+	private synchronized void readable(int pos) throws IOException {
+		if (closed_) {
+			keys_[pos].interestOps(0);
+			return;
+		}
+		if (decoupled_) {
+			readChunk(pos);
+		}
+		else {
+			readPart(pos);
+		}
+	}
+
+	/**
+	 * lockstep: read the header and data from one channel,
+	 * putting the data into the caller's array
+	 */
+	private void readPart(int pos) throws IOException {
+		SocketChannel channel = channels_[pos];
+		ByteBuffer header = header_[pos];
+		if (data_[pos] == null) {
+			if (!readHeader(pos)) {
+				if (finished_[pos]) {
+					partDone(pos);
+				}
+				return;
+			}
+			short magic = header.getShort();
+			short streamPos = header.getShort();
+			int seq = header.getInt();
+			int totalnum = header.getInt();
+			int numtoread = header.getInt();
+			if (magic != PConfig.magic)
+				throw new IOException("Bad magic number (non-matching stream mode?)");
+			if (streamPos < 0 || streamPos >= channels_.length)
+				throw new IOException("Parallel stream position error");
+			if (seq < 0)
+				throw new IOException("Negative sequence number");
+			if (totalnum < 0 || totalnum > targetLen_)
+				throw new IOException("Total number of bytes error");
+			if (numtoread < 0)
+				throw new IOException("Number to read is negative");
+			if (expectedSeq_ == -1)
+				expectedSeq_ = seq;
+			else if (expectedSeq_ != seq)
+				throw new IOException("Sequence number mismatch");
+			int chunk = totalnum / channels_.length;
+			int tlen = streamPos == channels_.length - 1 ? targetLen_ - streamPos * chunk : chunk;
+			if (numtoread > tlen)
+				throw new IOException("Read buffer overflow");
+			// slice, so the number of bytes read can be computed from the buffer
+			data_[pos] = ByteBuffer.wrap(target_, targetOff_ + streamPos * chunk, numtoread).slice();
+		}
+		if (readData(pos)) {
+			header.clear();
+			partDone(pos);
+		}
+	}
+
+	private void partDone(int pos) {
+		keys_[pos].interestOps(0);
+		pending_--;
+		notifyAll();
+	}
+
+	/**
+	 * decoupled: read the header and data of the next chunk from one channel
+	 * and put it into the window
+	 */
+	private void readChunk(int pos) throws IOException {
+		ByteBuffer header = header_[pos];
+		if (data_[pos] == null) {
+			if (!readHeader(pos)) {
+				if (finished_[pos]) {
+					keys_[pos].interestOps(0);
+					notifyAll();
+				}
+				return;
+			}
+			short magic = header.getShort();
+			short streamPos = header.getShort();
+			int seq = header.getInt();
+			header.getInt();
+			int numtoread = header.getInt();
+			if (magic != PConfig.dmagic)
+				throw new IOException("Bad magic number (non-matching stream mode?)");
+			if (streamPos < 0 || streamPos >= channels_.length)
+				throw new IOException("Parallel stream position error");
+			if (seq < 0)
+				throw new IOException("Negative sequence number");
+			if (numtoread <= 0 || numtoread > PConfig.maxChunkSize)
+				throw new IOException("Invalid chunk size <"+numtoread+">");
+			if (outsideWindow(seq, numtoread)) {
+				// keep the header, and continue when the window has moved
+				header.position(header.limit());
+				paused_[pos] = true;
+				keys_[pos].interestOps(0);
+				return;
+			}
+			seq_[pos] = seq;
+			data_[pos] = ByteBuffer.allocate(numtoread);
+		}
+		if (readData(pos)) {
+			int seq = seq_[pos];
+			if (seq < next_ || window_.containsKey(seq)) {
+				throw new IOException("Duplicate chunk <"+seq+">");
+			}
+			byte[] data = data_[pos].array();
+			window_.put(seq, data);
+			bufferedBytes_ += data.length;
+			data_[pos] = null;
+			header.clear();
+			notifyAll();
+		}
+	}
+
+	// the next expected chunk is always accepted, so we cannot dead-lock
+	private boolean outsideWindow(int seq, int length) {
+		if (seq == next_) return false;
+		return seq >= next_ + windowSize_ || bufferedBytes_ + length > PConfig.reorderWindowBytes;
+	}
+
+	/**
+	 * read (the rest of) the header
+	 *
+	 * @return <code>true</code> if the header is complete and ready for parsing
+	 */
+	private boolean readHeader(int pos) throws IOException {
+		ByteBuffer header = header_[pos];
+		if (header.hasRemaining()) {
+			int n = channels_[pos].read(header);
+			if (n < 0) {
+				// clean EOF is only allowed at a chunk boundary
+				if (header.position() > 0) {
+					throw new EOFException("Unexpected EOF");
+				}
+				finished_[pos] = true;
+				finishedCount_++;
+				return false;
+			}
+			if (n > 0) {
+				progress_++;
+			}
+			if (header.hasRemaining()) {
+				return false;
+			}
+		}
+		header.flip();
+		return true;
+	}
+
+	/**
+	 * read (the rest of) the data
+	 *
+	 * @return <code>true</code> if the data is complete
+	 */
+	private boolean readData(int pos) throws IOException {
+		ByteBuffer data = data_[pos];
+		if (data.hasRemaining()) {
+			int n = channels_[pos].read(data);
+			if (n < 0) {
+				throw new EOFException("Unexpected EOF");
+			}
+			if (n > 0) {
+				progress_++;
+			}
+		}
+		return !data.hasRemaining();
+	}
+
+	private synchronized void setError(Exception error) {
+		if (error_ == null && !closed_) {
+			error_ = error instanceof IOException ? (IOException) error : new IOException(error);
+		}
+		for (SelectionKey key: keys_) {
+			if (key != null && key.isValid()) {
+				key.interestOps(0);
+			}
+		}
+		notifyAll();
+	}
+
+	private void startWait() {
+		lastProgress_ = progress_;
+		lastProgressTime_ = System.currentTimeMillis();
+	}
+
+	/**
+	 * wait for a state change, and fail if the timeout (if set)
+	 * has passed without any data being read
+	 */
+	private void await() throws IOException {
+		try {
+			wait(timeout_);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		if (progress_ != lastProgress_) {
+			startWait();
+		}
+		else if (timeout_ > 0 && System.currentTimeMillis() - lastProgressTime_ >= timeout_) {
+			setError(new SocketTimeoutException("Read timed out"));
+		}
+	}
+
+	private void checkError() throws IOException {
+		if (error_ != null) {
+			throw new IOException("Internal input stream error", error_);
+		}
+	}
+
+	private void release() throws IOException {
+		for (SelectionKey key: keys_) {
+			if (key != null) {
+				loop_.deregister(key);
+			}
+		}
+	}
+
+}
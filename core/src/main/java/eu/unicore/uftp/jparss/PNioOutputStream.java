@@ -0,0 +1,350 @@
+package eu.unicore.uftp.jparss;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Parallel output stream using non-blocking socket channels, which are
+ * driven by the threads of the shared {@link PSelectorPool} instead of
+ * one writer thread per stream.<br/>
+ *
+ * In lockstep mode, the data passed to each write() call is split across the
+ * streams exactly like {@link POutputStream} does, and the call returns when
+ * all parts have been written. In decoupled mode, data is coalesced into
+ * chunks (like {@link PDecoupledOutputStream} does), and each chunk goes to
+ * the next stream that is ready for writing.<br/>
+ *
+ * Header and data are sent using a single gathering write, and the
+ * wire format is the same as with the thread-based streams.
+ */
+public class PNioOutputStream extends OutputStream {
+
+	private final SocketChannel[] channels_;
+
+	private final SelectionKey[] keys_;
+
+	private final PSelectorPool.Loop loop_;
+
+	private final boolean decoupled_;
+
+	private final int chunkSize_;
+
+	// read timeout of the underlying sockets
+	private final int timeout_;
+
+	// per channel: buffers that are currently being written, null if idle
+	private final ByteBuffer[][] current_;
+
+	// decoupled mode: chunks waiting for a free channel
+	private final ArrayDeque<ByteBuffer> queue_ = new ArrayDeque<>();
+
+	// decoupled mode: written chunk buffers for re-use
+	private final ArrayDeque<byte[]> free_ = new ArrayDeque<>();
+
+	// decoupled mode: chunk currently being filled
+	private byte[] fill_ = null;
+
+	private int fillLen_ = 0;
+
+	private int seq_ = 0;
+
+	// number of channels that have data to write
+	private int busy_ = 0;
+
+	// incremented whenever data was written
+	private long progress_ = 0;
+
+	private long lastProgress_ = 0;
+
+	private long lastProgressTime_ = 0;
+
+	private IOException error_ = null;
+
+	private boolean closed_ = false;
+
+	/**
+	 * @param channels - the individual channels
+	 * @param decoupled - whether to use decoupled mode
+	 * @param chunkSize - chunk size in decoupled mode. Automatic tuning is not
+	 *                    supported, {@link PConfig#AUTO_CHUNKSIZE} selects the default chunk size
+	 */
+	public PNioOutputStream(SocketChannel[] channels, boolean decoupled, int chunkSize) throws IOException {
+		channels_ = channels.clone();
+		decoupled_ = decoupled;
+		chunkSize_ = chunkSize == PConfig.AUTO_CHUNKSIZE ?
+				PConfig.defaultChunkSize : PConfig.checkChunkSize(chunkSize);
+		timeout_ = channels_[0].socket().getSoTimeout();
+		current_ = new ByteBuffer[channels_.length][];
+		keys_ = new SelectionKey[channels_.length];
+		loop_ = PSelectorPool.get().next();
+		try {
+			for (int i = 0; i < channels_.length; i++) {
+				final int pos = i;
+				keys_[i] = loop_.register(channels_[i], new PSelectorPool.Handler() {
+					@Override
+					public void ready(SelectionKey key) throws IOException {
+						writable(pos);
+					}
+					@Override
+					public void failed(Exception error) {
+						setError(error);
+					}
+				});
+			}
+		} catch (IOException e) {
+			release();
+			throw e;
+		}
+	}
+
+	public boolean isDecoupled() {
+		return decoupled_;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte)(b & 0xFF)}, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b) throws IOException {
+		write(b, 0, b.length);
+	}
+
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off + len > b.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		checkState();
+		if (len == 0) {
+			return;
+		}
+		if (decoupled_) {
+			writeDecoupled(b, off, len);
+		} else {
+			writeLockstep(b, off, len);
+		}
+	}
+
+	/**
+	 * sends any buffered data and waits until everything has been written
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		checkState();
+		sendCurrent();
+		waitIdle();
+		checkError();
+	}
+
+	/**
+	 * writes all pending data and closes the individual channels
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			if (closed_) {
+				return;
+			}
+			closed_ = true;
+		}
+		try {
+			synchronized (this) {
+				if (error_ == null) {
+					sendCurrent();
+					waitIdle();
+				}
+			}
+		} finally {
+			// not holding the lock, since the selector thread may need it
+			release();
+			for (SocketChannel c: channels_) {
+				c.close();
+			}
+		}
+		synchronized (this) {
+			checkError();
+		}
+	}
+
+	/**
+	 * lockstep: split the data across the channels and wait until all parts
+	 * are written. The caller's array is used directly, since it is not
+	 * modified before this method returns
+	 */
+	private void writeLockstep(byte[] b, int off, int len) throws IOException {
+		int num = channels_.length;
+		int chunk = len / num;
+		for (int i = 0; i < num; i++) {
+			int tlen = i == num - 1 ? len - i * chunk : chunk;
+			ByteBuffer header = ByteBuffer.allocate(PConfig.pheaderlen);
+			header.putShort(PConfig.magic);
+			header.putShort((short) i);
+			header.putInt(seq_);
+			header.putInt(len);
+			header.putInt(tlen);
+			header.flip();
+			current_[i] = new ByteBuffer[] { header, ByteBuffer.wrap(b, off + i * chunk, tlen) };
+		}
+		busy_ = num;
+		for (SelectionKey key: keys_) {
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+		loop_.wakeup();
+		waitIdle();
+		seq_++;
+		checkError();
+	}
+
+	private void writeDecoupled(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (fill_ == null) {
+				fill_ = free_.isEmpty() ? new byte[PConfig.pheaderlen + chunkSize_] : free_.poll();
+				fillLen_ = 0;
+			}
+			int n = Math.min(len, chunkSize_ - fillLen_);
+			System.arraycopy(b, off, fill_, PConfig.pheaderlen + fillLen_, n);
+			fillLen_ += n;
+			off += n;
+			len -= n;
+			if (fillLen_ == chunkSize_) {
+				sendCurrent();
+			}
+		}
+	}
+
+	/**
+	 * decoupled: queue the current chunk, waiting if the queue is full,
+	 * and make the idle channels pick it up
+	 */
+	private void sendCurrent() throws IOException {
+		if (fill_ == null || fillLen_ == 0) {
+			return;
+		}
+		ByteBuffer chunk = ByteBuffer.wrap(fill_, 0, PConfig.pheaderlen + fillLen_);
+		chunk.putShort(0, PConfig.dmagic);
+		chunk.putInt(4, seq_++);
+		chunk.putInt(8, fillLen_);
+		chunk.putInt(12, fillLen_);
+		fill_ = null;
+		fillLen_ = 0;
+		startWait();
+		while (queue_.size() >= channels_.length && error_ == null) {
+			await();
+		}
+		checkError();
+		queue_.add(chunk);
+		for (int i = 0; i < channels_.length; i++) {
+			if (current_[i] == null) {
+				keys_[i].interestOps(SelectionKey.OP_WRITE);
+			}
+		}
+		loop_.wakeup();
+	}
+
+	/**
+	 * called in the selector thread when the channel can be written to
+	 */
+	private synchronized void writable(int pos) throws IOException {
+		if (current_[pos] == null) {
+			ByteBuffer next = decoupled_ ? queue_.poll() : null;
+			if (next == null) {
+				keys_[pos].interestOps(0);
+				return;
+			}
+			next.putShort(2, (short) pos);
+			current_[pos] = new ByteBuffer[] { next };
+			busy_++;
+			// there is space in the queue now
+			notifyAll();
+		}
+		ByteBuffer[] buffers = current_[pos];
+		if (channels_[pos].write(buffers) > 0) {
+			progress_++;
+		}
+		if (buffers[buffers.length - 1].hasRemaining()) {
+			return;
+		}
+		if (decoupled_) {
+			free_.add(buffers[0].array());
+		}
+		else {
+			keys_[pos].interestOps(0);
+		}
+		current_[pos] = null;
+		busy_--;
+		notifyAll();
+	}
+
+	private synchronized void setError(Exception error) {
+		if (error_ == null) {
+			error_ = error instanceof IOException ? (IOException) error : new IOException(error);
+		}
+		for (SelectionKey key: keys_) {
+			if (key != null && key.isValid()) {
+				key.interestOps(0);
+			}
+		}
+		notifyAll();
+	}
+
+	private void waitIdle() throws IOException {
+		startWait();
+		while ((busy_ > 0 || !queue_.isEmpty()) && error_ == null) {
+			await();
+		}
+	}
+
+	private void startWait() {
+		lastProgress_ = progress_;
+		lastProgressTime_ = System.currentTimeMillis();
+	}
+
+	/**
+	 * wait for a state change, and fail if the timeout (if set)
+	 * has passed without any data being written
+	 */
+	private void await() throws IOException {
+		try {
+			wait(timeout_);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+		if (progress_ != lastProgress_) {
+			startWait();
+		}
+		else if (timeout_ > 0 && System.currentTimeMillis() - lastProgressTime_ >= timeout_) {
+			setError(new SocketTimeoutException("Write timed out"));
+		}
+	}
+
+	private void checkState() throws IOException {
+		if (closed_) {
+			throw new IOException("Stream closed.");
+		}
+		checkError();
+	}
+
+	private void checkError() throws IOException {
+		if (error_ != null) {
+			throw new IOException("Internal stream write error", error_);
+		}
+	}
+
+	private void release() throws IOException {
+		for (SelectionKey key: keys_) {
+			if (key != null) {
+				loop_.deregister(key);
+			}
+		}
+	}
+
+}
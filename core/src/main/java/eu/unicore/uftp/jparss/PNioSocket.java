@@ -0,0 +1,67 @@
+package eu.unicore.uftp.jparss;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SocketChannel;
+
+import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
+
+/**
+ * Parallel socket which uses the {@link PNioInputStream} and
+ * {@link PNioOutputStream}, i.e. non-blocking channels driven by the
+ * shared {@link PSelectorPool}, instead of reader/writer threads per stream.<br/>
+ *
+ * The wire format is the same, so the peer may use either implementation.
+ * If the data is encrypted or compressed, or if the individual sockets do
+ * not have a channel, the thread-based streams are used.
+ */
+public class PNioSocket extends PSocket {
+
+	public PNioSocket(byte[] key, boolean compress, EncryptionAlgorithm algo) {
+		super(key, compress, algo);
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		SocketChannel[] channels = getChannels();
+		if(channels == null) {
+			return super.getInputStream();
+		}
+		return track(new PNioInputStream(channels, decoupled_));
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		SocketChannel[] channels = getChannels();
+		if(channels == null) {
+			return super.getOutputStream();
+		}
+		return track(new PNioOutputStream(channels, decoupled_, chunkSize_));
+	}
+
+	/**
+	 * whether the NIO streams can be used
+	 */
+	public boolean isNio() {
+		return getChannels() != null;
+	}
+
+	/**
+	 * get the channels of the individual sockets, or <code>null</code>
+	 * if the NIO streams cannot be used
+	 */
+	protected SocketChannel[] getChannels() {
+		if(key != null || compress || sockets_ == null) {
+			return null;
+		}
+		SocketChannel[] channels = new SocketChannel[numStreams_];
+		for (int i = 0; i < numStreams_; i++) {
+			if(sockets_[i] == null || sockets_[i].getChannel() == null) {
+				return null;
+			}
+			channels[i] = sockets_[i].getChannel();
+		}
+		return channels;
+	}
+}
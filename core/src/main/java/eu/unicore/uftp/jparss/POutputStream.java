@@ -15,6 +15,8 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import eu.unicore.uftp.dpc.Utils;
+
 public class POutputStream extends OutputStream {
 	/**
 	 * internal list of streams
@@ -66,8 +68,7 @@ public class POutputStream extends OutputStream {
 			for (int i = 0; i < outputs_.length; i++) {
 				writers_[i] = new PWriter(this, outputs_[i], i, outputs_.length);
 				// fire this thread
-				worker = new Thread(writers_[i]);
-				worker.setName("ParallelWriterThread-"+threadCount.incrementAndGet());
+				worker = Utils.newThread(writers_[i], "ParallelWriterThread-"+threadCount.incrementAndGet());
 				worker.start();
 			}
 		}
@@ -132,6 +133,16 @@ public class POutputStream extends OutputStream {
 			outputs_[i].flush();
 	}
 
+	/**
+	 * flushes this stream and finishes the individual streams (which may be
+	 * compressed and/or encrypted), without closing them
+	 */
+	public void finish() throws IOException {
+		flush();
+		for (int i = 0; i < outputs_.length; i++)
+			Utils.finishWriting(outputs_[i]);
+	}
+
 	/**
 	 * Writes the specified byte to this output stream. The general contract for
 	 * write is that one byte is written to the output stream. The byte to be
@@ -0,0 +1,182 @@
+package eu.unicore.uftp.jparss;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.unicore.uftp.dpc.Utils;
+
+/**
+ * A small, shared pool of selector threads which drive the non-blocking
+ * I/O of the {@link PNioSocket} streams. The number of selector threads
+ * is set via the {@link #POOL_SIZE} property.
+ */
+public class PSelectorPool {
+
+	public static final String POOL_SIZE = "UFTP.multistream.selectors";
+
+	private static PSelectorPool instance;
+
+	public static synchronized PSelectorPool get() throws IOException {
+		if (instance == null) {
+			int size = 2;
+			try{
+				size = Integer.parseInt(Utils.getProperty(POOL_SIZE, "2"));
+			}catch(Exception e) {}
+			instance = new PSelectorPool(Math.max(1, size));
+		}
+		return instance;
+	}
+
+	private final Loop[] loops;
+
+	private final AtomicInteger next = new AtomicInteger(0);
+
+	private PSelectorPool(int size) throws IOException {
+		loops = new Loop[size];
+		for (int i = 0; i < size; i++) {
+			loops[i] = new Loop();
+			Thread t = Utils.newThread(loops[i], "ParallelSelectorThread-"+(i+1));
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * get the next selector loop (round-robin)
+	 */
+	public Loop next() {
+		return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+	}
+
+	public int getSize() {
+		return loops.length;
+	}
+
+	/**
+	 * callback for channels registered with a selector loop
+	 */
+	public static interface Handler {
+
+		/**
+		 * invoked in the selector thread when the channel is ready
+		 */
+		public void ready(SelectionKey key) throws IOException;
+
+		/**
+		 * invoked in the selector thread if ready() failed
+		 */
+		public void failed(Exception error);
+
+	}
+
+	public static class Loop implements Runnable {
+
+		private final Selector selector;
+
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+		Loop() throws IOException {
+			selector = Selector.open();
+		}
+
+		/**
+		 * run the given task in the selector thread
+		 */
+		public void execute(Runnable task) {
+			tasks.add(task);
+			selector.wakeup();
+		}
+
+		/**
+		 * make sure interest op changes become effective
+		 */
+		public void wakeup() {
+			selector.wakeup();
+		}
+
+		/**
+		 * switch the channel to non-blocking mode and register it (with no interest ops)
+		 */
+		public SelectionKey register(SelectableChannel channel, Handler handler) throws IOException {
+			CompletableFuture<SelectionKey> result = new CompletableFuture<>();
+			execute(()->{
+				try {
+					channel.configureBlocking(false);
+					result.complete(channel.register(selector, 0, handler));
+				} catch (Exception e) {
+					result.completeExceptionally(e);
+				}
+			});
+			return await(result);
+		}
+
+		/**
+		 * de-register the channel and switch it back to blocking mode,
+		 * if it is still open
+		 */
+		public void deregister(SelectionKey key) throws IOException {
+			CompletableFuture<SelectionKey> result = new CompletableFuture<>();
+			execute(()->{
+				try {
+					key.cancel();
+					selector.selectNow();
+					if (key.channel().isOpen()) {
+						key.channel().configureBlocking(true);
+					}
+					result.complete(key);
+				} catch (Exception e) {
+					result.completeExceptionally(e);
+				}
+			});
+			await(result);
+		}
+
+		private SelectionKey await(CompletableFuture<SelectionKey> result) throws IOException {
+			try {
+				return result.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+			}
+		}
+
+		@Override
+		public void run() {
+			while (selector.isOpen()) {
+				try {
+					selector.select();
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						task.run();
+					}
+					Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+					while (keys.hasNext()) {
+						SelectionKey key = keys.next();
+						keys.remove();
+						Handler handler = (Handler) key.attachment();
+						try {
+							if (key.isValid()) {
+								handler.ready(key);
+							}
+						} catch (Exception e) {
+							handler.failed(e);
+						}
+					}
+				} catch (Exception e) {
+					// keep the loop running
+				}
+			}
+		}
+	}
+}
@@ -25,6 +25,16 @@ public class PSocket extends PBaseSocket {
 		super(key,compress, algo);
 	}
 
+	/**
+	 * Creates an unconnected socket, using the NIO based implementation
+	 * if {@link PConfig#usenio} is set
+	 *
+	 * @param key - encoded key for encryption/decryption. Set no <code>null</code> for no encryption
+	 */
+	public static PSocket create(byte[]key, boolean compress, EncryptionAlgorithm algo) {
+		return PConfig.usenio ? new PNioSocket(key, compress, algo) : new PSocket(key, compress, algo);
+	}
+
 	/**
 	 * Set up this socket.
 	 */
@@ -69,9 +79,13 @@ public class PSocket extends PBaseSocket {
 
 	@Override
 	public void close() throws IOException {
-		if (sockets_ != null) {
-			for (int i = 0; i < numStreams_; i++)
-				sockets_[i].close();
+		try {
+			if (sockets_ != null) {
+				for (int i = 0; i < numStreams_; i++)
+					sockets_[i].close();
+			}
+		} finally {
+			closeManagedStreams();
 		}
 	}
 }
@@ -1,5 +1,8 @@
 package eu.unicore.uftp.rsync;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -56,26 +59,85 @@ public class Checksum {
 		return sum( a(block), b(block, start, finish) ); 
 	}
 
+	/**
+	 * computes the (weak) checksum for a part of the given array
+	 *
+	 * @param data - data
+	 * @param offset - start of the block in the array
+	 * @param length - length of the block
+	 * @return checksum
+	 */
+	public static long blockChecksum(byte[]data, int offset, int length){
+		long a=0, b=0;
+		for(int i=0; i<length; i++){
+			int x = data[offset+i] & 0xFF;
+			a+=x;
+			b+=(long)(length-i)*x;
+		}
+		return sum(a & 0xFFFF, b & 0xFFFF);
+	}
+
+	public static final String MD5 = "MD5";
+
+	/**
+	 * supported strong checksums (all of them 16 bytes long), the first one is the default
+	 */
+	public static final String[] STRONG_CHECKSUMS = { MD5, Murmur3Digest.ALGORITHM };
+
+	/**
+	 * create a new instance of the given strong checksum algorithm
+	 */
+	public static MessageDigest strongChecksum(String algorithm) throws NoSuchAlgorithmException {
+		if(Murmur3Digest.ALGORITHM.equalsIgnoreCase(algorithm)) {
+			return new Murmur3Digest();
+		}
+		return MessageDigest.getInstance(checkStrongChecksum(algorithm));
+	}
+
+	/**
+	 * @return the name of the given strong checksum algorithm
+	 * @throws IllegalArgumentException if it is not supported
+	 */
+	public static String checkStrongChecksum(String algorithm) {
+		for(String supported: STRONG_CHECKSUMS) {
+			if(supported.equalsIgnoreCase(algorithm))return supported;
+		}
+		throw new IllegalArgumentException("Checksum algorithm '"+algorithm+"' not supported. "
+				+ "Must be one of: "+Arrays.asList(STRONG_CHECKSUMS));
+	}
+
 	public static class ChecksumHolder {
 
 		int blocksize;
 		
-		List<Long> weakChecksums;
-		
-		List<byte[]> strongChecksums;
-		
-	}
-	
-	public static class BlockReference {
-		
-		final int index;
-	
-		final byte[] strongChecksum;
+		long[] weakChecksums;
 		
-		public BlockReference(int index, byte[]strongChecksum) {
-			this.index = index;
-			this.strongChecksum = strongChecksum;
+		// strong checksums of all blocks, each 'digestLength' bytes
+		byte[] strongChecksums;
+
+		int digestLength = 16;
+
+		// number of blocks received so far (when receiving checksums in batches)
+		volatile int received;
+
+		int numBlocks() {
+			return weakChecksums.length;
 		}
-	}
 
+		static ChecksumHolder create(List<Long> weakChecksums, List<byte[]> strongChecksums, int blocksize) {
+			ChecksumHolder holder = new ChecksumHolder();
+			holder.blocksize = blocksize;
+			int numBlocks = weakChecksums.size();
+			holder.weakChecksums = new long[numBlocks];
+			holder.strongChecksums = new byte[numBlocks*holder.digestLength];
+			for(int i=0; i<numBlocks; i++) {
+				holder.weakChecksums[i] = weakChecksums.get(i);
+				System.arraycopy(strongChecksums.get(i), 0, holder.strongChecksums,
+						i*holder.digestLength, holder.digestLength);
+			}
+			holder.received = numBlocks;
+			return holder;
+		}
+	}
+	
 }
@@ -0,0 +1,165 @@
+package eu.unicore.uftp.rsync;
+
+import java.util.Arrays;
+
+/**
+ * Lookup table from weak checksum to block index, used by the Leader
+ * to find matching blocks. <br/>
+ *
+ * Blocks are stored in flat arrays (the block number is the position in
+ * the arrays), the table uses open addressing with linear probing, so
+ * several blocks with the same weak checksum are simply stored in
+ * different slots. A bitset acts as a prefilter, so that most misses
+ * are detected without probing the table. Lookups do not allocate.
+ */
+public class ChecksumIndex {
+
+	private final int digestLength;
+
+	// weak checksums (which have 32 bits) and strong checksums, by block number
+	private int[] weak;
+	private byte[] strong;
+	private int size = 0;
+
+	// slots contain block number + 1, 0 means empty
+	private int[] slots;
+	private int mask;
+
+	// prefilter
+	private long[] filter;
+	private int filterShift;
+
+	/**
+	 * @param expectedBlocks - number of blocks (the index will grow if necessary)
+	 * @param digestLength - length of the strong checksums
+	 */
+	public ChecksumIndex(int expectedBlocks, int digestLength) {
+		this.digestLength = digestLength;
+		int capacity = Math.max(16, expectedBlocks);
+		weak = new int[capacity];
+		strong = new byte[capacity*digestLength];
+		initTable(capacity);
+	}
+
+	private void initTable(int capacity) {
+		// keep load factor <= 0.5
+		int tableSize = Integer.highestOneBit(Math.max(16, capacity-1)) << 2;
+		slots = new int[tableSize];
+		mask = tableSize - 1;
+		// about 8 bits per block, between 64K and 256M bits
+		int filterBits = Math.min(1<<28, Math.max(1<<16, tableSize << 2));
+		filter = new long[filterBits >>> 6];
+		filterShift = 32 - Integer.numberOfTrailingZeros(filterBits);
+	}
+
+	/**
+	 * add the checksums of the next block
+	 */
+	public void add(long weakChecksum, byte[] strongChecksum) {
+		add(weakChecksum, strongChecksum, 0);
+	}
+
+	/**
+	 * add the checksums of the next block, with the strong checksum
+	 * taken from the given array at the given offset
+	 */
+	public void add(long weakChecksum, byte[] strongChecksums, int offset) {
+		if(size==weak.length)grow();
+		int w = (int)weakChecksum;
+		weak[size] = w;
+		System.arraycopy(strongChecksums, offset, strong, size*digestLength, digestLength);
+		size++;
+		insert(w, size);
+	}
+
+	private void insert(int w, int entry) {
+		int slot = hash(w) & mask;
+		while(slots[slot]!=0) {
+			slot = (slot + 1) & mask;
+		}
+		slots[slot] = entry;
+		int f = hash(w) >>> filterShift;
+		filter[f >>> 6] |= 1L << f;
+	}
+
+	private void grow() {
+		int capacity = weak.length * 2;
+		weak = Arrays.copyOf(weak, capacity);
+		strong = Arrays.copyOf(strong, capacity*digestLength);
+		initTable(capacity);
+		for(int i=0; i<size; i++) {
+			insert(weak[i], i+1);
+		}
+	}
+
+	/**
+	 * quick check whether there is a block with the given weak checksum
+	 */
+	public boolean containsWeak(long weakChecksum) {
+		int w = (int)weakChecksum;
+		int h = hash(w);
+		int f = h >>> filterShift;
+		if((filter[f >>> 6] & (1L << f)) == 0)return false;
+		int slot = h & mask;
+		int entry;
+		while((entry = slots[slot])!=0) {
+			if(weak[entry-1]==w)return true;
+			slot = (slot + 1) & mask;
+		}
+		return false;
+	}
+
+	/**
+	 * find a block with the given checksums
+	 *
+	 * @param weakChecksum - weak checksum
+	 * @param strongChecksum - array containing the strong checksum
+	 * @param offset - start of the strong checksum in the array
+	 * @return block number or -1 if there is no such block
+	 */
+	public int find(long weakChecksum, byte[] strongChecksum, int offset) {
+		return find(weakChecksum, strongChecksum, offset, 0);
+	}
+
+	/**
+	 * find a block with the given checksums, whose block number is at least 'minBlock'
+	 *
+	 * @param weakChecksum - weak checksum
+	 * @param strongChecksum - array containing the strong checksum
+	 * @param offset - start of the strong checksum in the array
+	 * @param minBlock - smallest acceptable block number
+	 * @return block number or -1 if there is no such block
+	 */
+	public int find(long weakChecksum, byte[] strongChecksum, int offset, int minBlock) {
+		int w = (int)weakChecksum;
+		int slot = hash(w) & mask;
+		int entry;
+		while((entry = slots[slot])!=0) {
+			int block = entry - 1;
+			if(weak[block]==w && block>=minBlock) {
+				int start = block*digestLength;
+				if(Arrays.equals(strong, start, start+digestLength,
+						strongChecksum, offset, offset+digestLength)) {
+					return block;
+				}
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getDigestLength() {
+		return digestLength;
+	}
+
+	// the weak checksum's two halves are not well distributed, so mix the bits
+	private static int hash(int w) {
+		int h = w * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+}
@@ -6,12 +6,23 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import eu.unicore.uftp.dpc.BufferPool;
+import eu.unicore.uftp.dpc.Utils;
+import eu.unicore.uftp.rsync.Checksum.ChecksumHolder;
 import eu.unicore.uftp.server.DefaultFileAccess;
 import eu.unicore.uftp.server.UserFileAccess;
 
@@ -31,9 +42,28 @@ public class Follower implements Callable<RsyncStats>{
 
 	private final int blocksize;
 
-	private final List<Long>weakChecksums=new ArrayList<>();
+	// signatures: weak checksums and strong checksums (flat, 16 bytes each) per block
+	private long[] weakChecksums = new long[0];
 
-	private final List<byte[]>strongChecksums=new ArrayList<>();
+	private byte[] strongChecksums = new byte[0];
+
+	private static final int DIGEST_LENGTH = 16;
+
+	private String checksumAlgorithm = Checksum.MD5;
+
+	public static final String BLOCKSIZE_AUTO = "auto";
+
+	public static final String BLOCKSIZE_REQUESTED = "requested";
+
+	// how the block size was chosen (for the stats)
+	private String blocksizeChoice = null;
+
+	/**
+	 * signatures are computed in parallel for regions of (about) this size
+	 */
+	public static final int REGION_SIZE = 8 * 1024 * 1024;
+
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
 
 	public static final int DEFAULT_BLOCKSIZE=512;
 
@@ -54,6 +84,7 @@ public class Follower implements Callable<RsyncStats>{
 
 	public Follower(File file, FollowerChannel channel, String name)throws FileNotFoundException{
 		this(new RandomAccessFile(file, "r"), channel, name, reasonableBlockSize(file));
+		this.blocksizeChoice = BLOCKSIZE_AUTO;
 	}
 
 	public Follower(RandomAccessFile file, FollowerChannel channel, String name){
@@ -64,11 +95,45 @@ public class Follower implements Callable<RsyncStats>{
 		long start = System.currentTimeMillis();
 		RsyncStats stats=new RsyncStats(fileName);
 		stats.blocksize=blocksize;
-		computeChecksums();
-		stats.blocks = weakChecksums.size();
-		channel.sendToLeader(weakChecksums, strongChecksums, blocksize);
-		stats.transferred=weakChecksums.size()*20+4;
-		if(!dryRun)reconstructFile();
+		stats.blocksizeChoice=blocksizeChoice;
+		stats.checksumAlgorithm=checksumAlgorithm;
+		// checksums are sent while they are being computed
+		if(dryRun) {
+			computeChecksums(channel);
+		}
+		else if(inPlace) {
+			// the file must not be modified while the checksums are computed
+			computeChecksums(channel);
+			reconstructFile();
+		}
+		else {
+			// ... and the data from the leader is processed at the same time
+			FutureTask<Void> signatures = new FutureTask<>(()->{
+				try {
+					computeChecksums(channel);
+				}catch(Exception ex) {
+					channel.abort();
+					throw ex;
+				}
+				return null;
+			});
+			Utils.newThread(signatures, "rsync-signatures").start();
+			try {
+				reconstructFile();
+			}catch(Exception ex) {
+				// report the original problem if the checksums failed
+				if(signatures.isDone())await(signatures);
+				signatures.cancel(true);
+				channel.abort();
+				throw ex;
+			}
+			await(signatures);
+		}
+		stats.blocks = weakChecksums.length;
+		stats.cachedChecksums = cachedChecksums;
+		stats.inPlace = inPlace;
+		if(!dryRun)stats.written = written;
+		stats.transferred=weakChecksums.length*20+4;
 		stats.duration=System.currentTimeMillis()-start;
 		return stats;
 	}
@@ -79,50 +144,91 @@ public class Follower implements Callable<RsyncStats>{
 		if(bufsize<blocksize){
 			bufsize=blocksize*2;
 		}
+		if(regionTarget!=null){
+			reconstructRegion();
+			return;
+		}
+		if(inPlace){
+			reconstructInPlace();
+			return;
+		}
 		final File myVersion=new File(fileName);
 		final String name=myVersion.getName();
 		final File tmpfile=getTmpFile(myVersion);
 		
-		RandomAccessFile tmp = fileAccess.getRandomAccessFile(tmpfile, "rw");
-		FileChannel reconstruct = tmp.getChannel();
+		FileChannel source = file.getChannel();
+		long sourceLength = source.size();
+		// the temporary file is only written once the data differs from our version
+		FileChannel reconstruct = null;
+		long position = 0;
 		
 		RsyncData masterData=null;
-		ByteBuffer buf=ByteBuffer.allocate(bufsize);
-		byte[] buf2=new byte[blocksize];
-		do{
-			masterData=channel.receive();
-			// first write literal data			
-			long remaining=masterData.bytes;
-			int len;
-			if(remaining>0){
-				long expect=remaining;
-				while(remaining>0){
+		ByteBuffer buf=BufferPool.DIRECT.acquire(bufsize);
+		ByteBuffer compareBuf=null;
+		try{
+			do{
+				masterData=channel.receive();
+				// first write literal data			
+				long remaining=masterData.bytes;
+				int len;
+				if(remaining>0){
+					long expect=remaining;
+					while(remaining>0){
+						buf.clear();
+						if(remaining<bufsize)buf.limit((int)remaining);
+						len=masterData.data.read(buf);
+						if(len<0)throw new IOException("Unexpected end of data : expected "+expect+" missing "+remaining);
+						remaining-=len;
+						buf.flip();
+						if(reconstruct==null) {
+							if(compareBuf==null)compareBuf=BufferPool.DIRECT.acquire(bufsize);
+							if(!sameAsSource(buf, position, compareBuf)) {
+								reconstruct = startReconstruct(tmpfile, position);
+							}
+						}
+						position+=len;
+						if(reconstruct!=null)written+=reconstruct.write(buf);
+					}
+				}
+				// then write referenced block
+				long index=masterData.blockNumber;
+				if(index>=0){
+					long sourcePosition=index*blocksize;
+					if(reconstruct==null && sourcePosition==position) {
+						// unchanged block
+						position+=Math.min(blocksize, sourceLength-sourcePosition);
+						continue;
+					}
+					if(reconstruct==null)reconstruct = startReconstruct(tmpfile, position);
 					buf.clear();
-					if(remaining<bufsize)buf.limit((int)remaining);
-					len=masterData.data.read(buf);
-					if(len<0)throw new IOException("Unexpected end of data : expected "+expect+" missing "+remaining);
-					remaining-=len;
+					buf.limit(blocksize);
+					while(buf.hasRemaining()){
+						len=source.read(buf, sourcePosition);
+						if(len<0)break;
+						sourcePosition+=len;
+					}
 					buf.flip();
-					reconstruct.write(buf);
+					position+=buf.remaining();
+					written+=reconstruct.write(buf);
 				}
+				else {
+					// leader sent -1 as block number - terminate
+					break;
+				}
+			}while(true);
+			if(reconstruct==null && position!=sourceLength) {
+				// our version is longer
+				reconstruct = startReconstruct(tmpfile, position);
 			}
-			// then write referenced block
-			long index=masterData.blockNumber;
-			if(index>=0){
-				file.seek(index*blocksize);
-				len=file.read(buf2);
-				buf.clear();
-				buf.put(buf2,0,len);
-				buf.flip();
-				reconstruct.write(buf);
-			}
-			else {
-				// leader sent -1 as block number - terminate
-				break;
-			}
-		}while(true);
-
-		reconstruct.close();
+		}finally{
+			BufferPool.DIRECT.release(buf);
+			BufferPool.DIRECT.release(compareBuf);
+			if(reconstruct!=null)reconstruct.close();
+		}
+		if(reconstruct==null) {
+			// nothing has changed, keep our version
+			return;
+		}
 
 		Runnable r = new Runnable(){
 			public void run(){
@@ -136,29 +242,326 @@ public class Follower implements Callable<RsyncStats>{
 		
 	}
 
+	/**
+	 * update our version directly. Since the Leader only references blocks at or after
+	 * the current position, unchanged blocks stay where they are, and other blocks are
+	 * only moved towards the start of the file, i.e. from a region that has not been
+	 * written yet.
+	 */
+	private void reconstructInPlace()throws Exception{
+		File myVersion=new File(fileName);
+		try(RandomAccessFile target = fileAccess.getRandomAccessFile(myVersion, "rw")){
+			FileChannel fc = target.getChannel();
+			long originalLength = fc.size();
+			long position = 0;
+			ByteBuffer buf=BufferPool.DIRECT.acquire(bufsize);
+			try{
+				RsyncData masterData;
+				while(true){
+					masterData=channel.receive();
+					long remaining=masterData.bytes;
+					while(remaining>0){
+						buf.clear();
+						if(remaining<bufsize)buf.limit((int)remaining);
+						int len=masterData.data.read(buf);
+						if(len<0)throw new IOException("Unexpected end of data : expected "+masterData.bytes+" missing "+remaining);
+						remaining-=len;
+						buf.flip();
+						position = write(fc, buf, position);
+					}
+					long index=masterData.blockNumber;
+					if(index<0)break;
+					long sourcePosition=index*blocksize;
+					if(sourcePosition<position){
+						throw new IOException("Cannot update file in place: block "+index+" has already been overwritten");
+					}
+					if(sourcePosition==position){
+						// unchanged block
+						position+=Math.min(blocksize, originalLength-sourcePosition);
+						continue;
+					}
+					buf.clear();
+					buf.limit((int)Math.min(blocksize, originalLength-sourcePosition));
+					while(buf.hasRemaining()){
+						if(fc.read(buf, sourcePosition+buf.position())<0)break;
+					}
+					buf.flip();
+					position = write(fc, buf, position);
+				}
+			}finally{
+				BufferPool.DIRECT.release(buf);
+			}
+			if(fc.size()>position)fc.truncate(position);
+		}
+	}
+
+	/**
+	 * write the Leader's version of the region to the target channel
+	 */
+	private void reconstructRegion()throws Exception{
+		FileChannel source = file.getChannel();
+		long position = regionTargetOffset;
+		ByteBuffer buf=BufferPool.DIRECT.acquire(bufsize);
+		try{
+			RsyncData masterData;
+			while(true){
+				masterData=channel.receive();
+				long remaining=masterData.bytes;
+				while(remaining>0){
+					buf.clear();
+					if(remaining<bufsize)buf.limit((int)remaining);
+					int len=masterData.data.read(buf);
+					if(len<0)throw new IOException("Unexpected end of data : expected "+masterData.bytes+" missing "+remaining);
+					remaining-=len;
+					buf.flip();
+					position = write(regionTarget, buf, position);
+				}
+				long index=masterData.blockNumber;
+				if(index<0)break;
+				long sourcePosition=index*blocksize;
+				buf.clear();
+				buf.limit((int)Math.min(blocksize, regionLength-sourcePosition));
+				while(buf.hasRemaining()){
+					if(source.read(buf, regionOffset+sourcePosition+buf.position())<0)break;
+				}
+				buf.flip();
+				position = write(regionTarget, buf, position);
+			}
+		}finally{
+			BufferPool.DIRECT.release(buf);
+		}
+	}
+
+	private long write(FileChannel fc, ByteBuffer buf, long position) throws IOException {
+		while(buf.hasRemaining()){
+			int n = fc.write(buf, position);
+			position+=n;
+			written+=n;
+		}
+		return position;
+	}
+
+	// number of bytes written while reconstructing the file
+	private long written = 0;
+
+	// compare the given data with our version at the given position
+	private boolean sameAsSource(ByteBuffer data, long position, ByteBuffer compareBuf) throws IOException {
+		FileChannel source = file.getChannel();
+		compareBuf.clear();
+		compareBuf.limit(data.remaining());
+		while(compareBuf.hasRemaining()){
+			if(source.read(compareBuf, position+compareBuf.position())<0)return false;
+		}
+		compareBuf.flip();
+		return compareBuf.equals(data);
+	}
+
+	// create the temporary file, starting with the first 'length' bytes of our version
+	private FileChannel startReconstruct(File tmpfile, long length) throws IOException {
+		RandomAccessFile tmp = fileAccess.getRandomAccessFile(tmpfile, "rw");
+		FileChannel reconstruct = tmp.getChannel();
+		try {
+			reconstruct.truncate(0);
+			FileChannel source = file.getChannel();
+			long position = 0;
+			while(position<length) {
+				long n = source.transferTo(position, length-position, reconstruct);
+				if(n<=0)throw new IOException("Unexpected end of file at position "+position);
+				position+=n;
+				written+=n;
+			}
+		}catch(IOException ex) {
+			reconstruct.close();
+			throw ex;
+		}
+		return reconstruct;
+	}
+
 	protected void computeChecksums()throws IOException, NoSuchAlgorithmException {
-		MessageDigest md = MessageDigest.getInstance("MD5");
-		file.seek(0);
-		long size = file.length();
-		long offset = 0;
-		byte[]buf = new byte[blocksize];
-		long remaining = size;
-		int c = 0;
-		int len = blocksize;
-		while(remaining>0){
-			if(remaining<blocksize) {
-				len = (int)remaining;
-				buf = new byte[len];
+		computeChecksums(null);
+	}
+
+	/**
+	 * compute the checksums of all blocks. The file is split into regions which
+	 * are processed in parallel. If a channel is given, the checksums are sent
+	 * region by region (in order) as soon as they are available.
+	 */
+	protected void computeChecksums(FollowerChannel sendTo)throws IOException, NoSuchAlgorithmException {
+		final int regionBlocks = Math.max(1, REGION_SIZE / blocksize);
+		SignatureCache.Key cacheKey = null;
+		if(signatureCache!=null && regionTarget==null) {
+			cacheKey = SignatureCache.Key.of(new File(fileName), blocksize, checksumAlgorithm);
+			ChecksumHolder cached = signatureCache.get(cacheKey);
+			if(cached!=null) {
+				weakChecksums = cached.weakChecksums;
+				strongChecksums = cached.strongChecksums;
+				cachedChecksums = true;
+				if(sendTo!=null) {
+					sendTo.sendChecksumHeader(blocksize, weakChecksums.length);
+					for(int from=0; from<weakChecksums.length; from+=regionBlocks) {
+						sendTo.sendChecksums(weakChecksums, strongChecksums, from,
+								Math.min(weakChecksums.length, from + regionBlocks));
+					}
+				}
+				return;
 			}
-			c=file.read(buf,0,len);
-			if(c<0)break;
-			remaining -= c;
-			weakChecksums.add(Checksum.checksum(buf, offset, offset+len-1));
-			md.reset();
-			strongChecksums.add(md.digest(buf));
-			offset+=len;
 		}
-		file.seek(0);
+		long size = regionTarget!=null ? regionLength : file.length();
+		long blocks = (size + blocksize - 1) / blocksize;
+		if(blocks > Integer.MAX_VALUE / DIGEST_LENGTH) {
+			throw new IOException("Block size "+blocksize+" is too small for <"+fileName+"> ("+size+" bytes)");
+		}
+		int numBlocks = (int)blocks;
+		weakChecksums = new long[numBlocks];
+		strongChecksums = new byte[numBlocks*DIGEST_LENGTH];
+		if(sendTo!=null)sendTo.sendChecksumHeader(blocksize, numBlocks);
+		final int numRegions = (numBlocks + regionBlocks - 1) / regionBlocks;
+		final FileChannel fc = file.getChannel();
+		final int window = 2 * pool.getParallelism();
+		Deque<Future<Void>> running = new ArrayDeque<>();
+		int submitted = 0;
+		try {
+			for(int r=0; r<numRegions; r++) {
+				while(submitted<numRegions && running.size()<window) {
+					final int from = submitted*regionBlocks;
+					final int to = Math.min(numBlocks, from + regionBlocks);
+					running.add(pool.submit(()->computeChecksums(fc, size, from, to)));
+					submitted++;
+				}
+				await(running.poll());
+				if(sendTo!=null) {
+					int from = r*regionBlocks;
+					sendTo.sendChecksums(weakChecksums, strongChecksums, from, Math.min(numBlocks, from + regionBlocks));
+				}
+			}
+		}finally {
+			for(Future<Void> f: running) {
+				f.cancel(true);
+			}
+		}
+		if(cacheKey!=null)signatureCache.put(cacheKey, weakChecksums, strongChecksums);
+	}
+
+	// compute the checksums for the given range of blocks
+	private Void computeChecksums(FileChannel fc, long size, int from, int to)
+			throws IOException, NoSuchAlgorithmException, DigestException {
+		MessageDigest md = Checksum.strongChecksum(checksumAlgorithm);
+		// read several blocks at a time
+		int blocksPerRead = Math.max(1, READ_SIZE / blocksize);
+		ByteBuffer buf = BufferPool.HEAP.acquire(blocksPerRead*blocksize);
+		try {
+			byte[] data = buf.array();
+			for(int block=from; block<to; block+=blocksPerRead) {
+				long position = (long)block*blocksize;
+				int len = (int)Math.min((long)blocksPerRead*blocksize, size - position);
+				len = Math.min(len, (to-block)*blocksize);
+				buf.clear();
+				buf.limit(len);
+				while(buf.hasRemaining()) {
+					if(fc.read(buf, regionOffset + position + buf.position())<0) {
+						throw new IOException("Unexpected end of file at position "+(position + buf.position()));
+					}
+				}
+				for(int i=0, b=block; i<len; i+=blocksize, b++) {
+					int l = Math.min(blocksize, len-i);
+					weakChecksums[b] = Checksum.blockChecksum(data, i, l);
+					md.update(data, i, l);
+					md.digest(strongChecksums, b*DIGEST_LENGTH, DIGEST_LENGTH);
+				}
+			}
+		}finally {
+			BufferPool.HEAP.release(buf);
+		}
+		return null;
+	}
+
+	private static final int READ_SIZE = 256 * 1024;
+
+	private static void await(Future<Void> f) throws IOException, NoSuchAlgorithmException {
+		try {
+			f.get();
+		}catch(InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new IOException(ie);
+		}catch(ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if(cause instanceof IOException)throw (IOException)cause;
+			if(cause instanceof NoSuchAlgorithmException)throw (NoSuchAlgorithmException)cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * set the pool used for computing the checksums (default: the common pool)
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * set the strong checksum algorithm (see {@link Checksum#STRONG_CHECKSUMS}),
+	 * which must be the same as the one used by the Leader
+	 */
+	public void setChecksumAlgorithm(String algorithm) {
+		this.checksumAlgorithm = Checksum.checkStrongChecksum(algorithm);
+	}
+
+	private boolean inPlace = false;
+
+	/**
+	 * in-place mode: instead of writing a new file, only the changed parts of our
+	 * version are overwritten (the Leader must be in in-place mode, too). This saves
+	 * I/O and disk space, but if the sync fails, the file is left in an inconsistent state.
+	 */
+	public void setInPlace(boolean inPlace) {
+		this.inPlace = inPlace;
+	}
+
+	// region mode: only the given region of our version is used, and the
+	// new version is written to the target channel at the given offset
+	private long regionOffset = 0;
+
+	private long regionLength = -1;
+
+	private FileChannel regionTarget;
+
+	private long regionTargetOffset;
+
+	/**
+	 * synchronize only a region of the file: the checksums are computed for the
+	 * given region of our version, and the Leader's version of the corresponding
+	 * region is written to the target (which must not be our file)
+	 *
+	 * @param offset - start of the region in our version
+	 * @param length - length of the region in our version
+	 * @param target - where to write the new version
+	 * @param targetOffset - start of the region in the new version
+	 */
+	public void setRegion(long offset, long length, FileChannel target, long targetOffset) {
+		this.regionOffset = offset;
+		this.regionLength = length;
+		this.regionTarget = target;
+		this.regionTargetOffset = targetOffset;
+	}
+
+	private SignatureCache signatureCache;
+
+	// whether the checksums were taken from the cache
+	private boolean cachedChecksums = false;
+
+	/**
+	 * use the given cache for the signatures of our version (which must not
+	 * be modified during the sync)
+	 */
+	public void setSignatureCache(SignatureCache signatureCache) {
+		this.signatureCache = signatureCache;
+	}
+
+	/**
+	 * record how the block size was chosen, e.g. {@link #BLOCKSIZE_AUTO}
+	 */
+	public void setBlocksizeChoice(String blocksizeChoice) {
+		this.blocksizeChoice = blocksizeChoice;
 	}
 
 	public FollowerChannel getChannel() {
@@ -169,11 +572,32 @@ public class Follower implements Callable<RsyncStats>{
 		return blocksize;
 	}
 
+	/**
+	 * get the weak checksums as a list (for convenience, the checksums
+	 * are stored in an array, see {@link #getWeakChecksumArray()})
+	 */
 	public List<Long> getWeakChecksums() {
-		return weakChecksums;
+		List<Long> res = new ArrayList<>(weakChecksums.length);
+		for(long w: weakChecksums)res.add(w);
+		return res;
 	}
 
 	public List<byte[]> getStrongChecksums() {
+		List<byte[]> res = new ArrayList<>(weakChecksums.length);
+		for(int i=0; i<weakChecksums.length; i++) {
+			res.add(Arrays.copyOfRange(strongChecksums, i*DIGEST_LENGTH, (i+1)*DIGEST_LENGTH));
+		}
+		return res;
+	}
+
+	public long[] getWeakChecksumArray() {
+		return weakChecksums;
+	}
+
+	/**
+	 * @return strong checksums of all blocks (16 bytes each)
+	 */
+	public byte[] getStrongChecksumArray() {
 		return strongChecksums;
 	}
 
@@ -193,6 +617,43 @@ public class Follower implements Callable<RsyncStats>{
 	}
 	
 	public static int reasonableBlockSize(File file){
-		return Math.max((int)file.length()/1000, DEFAULT_BLOCKSIZE);
+		return reasonableBlockSize(file.length());
+	}
+
+	/**
+	 * upper limit for the block size
+	 */
+	public static final int MAX_BLOCKSIZE = 1024*1024;
+
+	/**
+	 * choose the block size for a file of the given length. The signature costs
+	 * about 24 bytes per block, while each change costs about one block of literal
+	 * data, so the square root of the length balances the two. The result is
+	 * a multiple of 8 between {@link #DEFAULT_BLOCKSIZE} and {@link #MAX_BLOCKSIZE}
+	 */
+	public static int reasonableBlockSize(long length){
+		long size = (long)Math.sqrt((double)length) & ~7L;
+		return (int)Math.max(DEFAULT_BLOCKSIZE, Math.min(MAX_BLOCKSIZE, size));
+	}
+
+	/**
+	 * limit the requested block size to the allowed range
+	 */
+	public static int checkBlockSize(int blocksize){
+		return Math.max(DEFAULT_BLOCKSIZE, Math.min(MAX_BLOCKSIZE, blocksize));
+	}
+
+	/**
+	 * upper limit for the number of blocks, which keeps the signature below 100MB
+	 */
+	public static final int MAX_BLOCKS = 4*1024*1024;
+
+	/**
+	 * limit the requested block size to the allowed range, and increase it
+	 * if a file of the given length would have more than {@link #MAX_BLOCKS} blocks
+	 */
+	public static int checkBlockSize(int blocksize, long length){
+		long min = ((length + MAX_BLOCKS - 1) / MAX_BLOCKS + 7) & ~7L;
+		return (int)Math.min(Integer.MAX_VALUE & ~7, Math.max(checkBlockSize(blocksize), min));
 	}
 }
\ No newline at end of file
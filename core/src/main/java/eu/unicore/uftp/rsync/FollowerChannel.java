@@ -3,6 +3,8 @@ package eu.unicore.uftp.rsync;
 import java.io.IOException;
 import java.util.List;
 
+import eu.unicore.uftp.rsync.Checksum.ChecksumHolder;
+
 /**
  * @author schuller
  */
@@ -16,9 +18,51 @@ public interface FollowerChannel {
 	 * @param blocksize
 	 * @throws IOException
 	 */
-	public void sendToLeader(List<Long>weakChecksums, List<byte[]>strongChecksums, int blocksize)
-	throws IOException;
-	
+	public default void sendToLeader(List<Long>weakChecksums, List<byte[]>strongChecksums, int blocksize)
+	throws IOException {
+		ChecksumHolder holder = ChecksumHolder.create(weakChecksums, strongChecksums, blocksize);
+		sendChecksumHeader(blocksize, holder.numBlocks());
+		sendChecksums(holder.weakChecksums, holder.strongChecksums, 0, holder.numBlocks());
+	}
+
+	/**
+	 * start sending checksums to the Leader. This must be followed by calls to
+	 * {@link #sendChecksums(long[], byte[], int, int)} covering all the blocks in order
+	 *
+	 * @param blocksize
+	 * @param numBlocks - total number of blocks
+	 * @throws IOException
+	 */
+	public void sendChecksumHeader(int blocksize, int numBlocks) throws IOException;
+
+	/**
+	 * send the checksums of a range of blocks to the Leader
+	 *
+	 * @param weakChecksums - weak checksums
+	 * @param strongChecksums - strong checksums (16 bytes per block)
+	 * @param from - first block to send
+	 * @param to - end of the range (exclusive)
+	 * @throws IOException
+	 */
+	public void sendChecksums(long[] weakChecksums, byte[] strongChecksums, int from, int to) throws IOException;
+
+	/**
+	 * abort the exchange, e.g. because the checksums cannot be computed,
+	 * so the Leader does not wait forever
+	 */
+	public default void abort() {}
+
+	/**
+	 * receive the Leader's partition (the first message when syncing
+	 * a file in several partitions)
+	 *
+	 * @return the partition of the Leader's file
+	 * @throws IOException
+	 */
+	public default Partition receivePartition() throws IOException {
+		throw new IOException("Partitions are not supported by this channel");
+	}
+
 	/**
 	 * receive a rsync data item (literal diff data plus block reference)
 	 * 
@@ -3,22 +3,23 @@ package eu.unicore.uftp.rsync;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.concurrent.Callable;
 
-import eu.unicore.uftp.rsync.Checksum.BlockReference;
+import eu.unicore.uftp.dpc.BufferPool;
+import eu.unicore.uftp.dpc.Utils;
 import eu.unicore.uftp.rsync.Checksum.ChecksumHolder;
 
 /**
  * the Leader has an up-to-date copy of a file which should be synchronized with
  * the Follower copy. <br/>
  *
+ * The checksums may arrive in batches (see {@link LeaderChannel#receiveChecksumHeader()}),
+ * then the scan starts as soon as the first blocks are known. <br/>
+ *
  * Based on Andrew Tridgell's 'rsync' as described in
  * http://cs.anu.edu.au/techreports/1996/TR-CS-96-05.pdf
  *
@@ -35,7 +36,16 @@ public class Leader implements Callable<RsyncStats> {
     // we get this from the follower
     private int blockSize;
 
-    private final Map<Long, List<BlockReference>> checksums = new HashMap<>();
+    private ChecksumIndex checksums;
+
+    private String checksumAlgorithm = Checksum.MD5;
+
+    private boolean inPlace = false;
+
+    // the region of the file to synchronize (length -1: up to the end of the file)
+    private long offset = 0;
+
+    private long length = -1;
     
     public Leader(File file, LeaderChannel channel, String fileName) throws IOException {
         this(new RandomAccessFile(file, "r"), channel, fileName);
@@ -57,123 +67,265 @@ public class Leader implements Callable<RsyncStats> {
     @Override
     public RsyncStats call() throws Exception {
         long start = System.currentTimeMillis();
-        ChecksumHolder fromFollower = channel.receiveChecksums();
+        fromFollower = channel.receiveChecksumHeader();
         blockSize = fromFollower.blocksize;
         stats.blocksize = blockSize;
-        stats.blocks = fromFollower.weakChecksums.size();
-        for(int index = 0; index<fromFollower.weakChecksums.size(); index++) {
-			long weakCS = fromFollower.weakChecksums.get(index);
-			List<BlockReference> ref = checksums.get(weakCS);
-			if(ref==null) {
-				ref = new ArrayList<>();
-				checksums.put(weakCS, ref);
-			}
-			ref.add(new BlockReference(index, fromFollower.strongChecksums.get(index)));
-		}
+        stats.blocks = fromFollower.numBlocks();
+        stats.checksumAlgorithm = checksumAlgorithm;
+        checksums = new ChecksumIndex(stats.blocks, fromFollower.digestLength);
+        Thread receiver = null;
+        if(fromFollower.received<stats.blocks) {
+        	// receive the rest of the checksums while scanning
+        	receiver = Utils.newThread(this::receiveChecksums, "rsync-checksums");
+        	receiver.setDaemon(true);
+        	receiver.start();
+        }
+        updateIndex();
         findMatches();
+        if(receiver!=null) {
+        	receiver.join();
+        	if(receiveError!=null)throw receiveError;
+        }
         stats.duration = System.currentTimeMillis() - start;
         return stats;
     }
 
-    protected void findMatches() throws IOException, NoSuchAlgorithmException {
-    	RollingChecksum rollingChecksum = new RollingChecksum();
-    	MessageDigest md = MessageDigest.getInstance("MD5");
+    private ChecksumHolder fromFollower;
+
+    private volatile Exception receiveError;
+
+    // number of blocks added to the index
+    private int indexed = 0;
+
+    private final Object lock = new Object();
+
+    /**
+     * while the checksums are still arriving, the scan may only proceed to
+     * this distance before the end of the indexed blocks, so that matches
+     * of blocks which have moved by less than that are not missed
+     */
+    static final long LOOKAHEAD = 4 * 1024 * 1024;
+
+    private void receiveChecksums() {
+    	try {
+    		while(fromFollower.received<fromFollower.numBlocks()) {
+    			channel.receiveChecksums(fromFollower);
+    			synchronized (lock) {
+    				lock.notifyAll();
+    			}
+    		}
+    	}catch(Exception ex) {
+    		receiveError = ex;
+    	}finally {
+    		synchronized (lock) {
+    			lock.notifyAll();
+    		}
+    	}
+    }
+
+    // add the checksums received so far to the index (called from the scanning thread only)
+    private void updateIndex() {
+    	int received = fromFollower.received;
+    	for(; indexed<received; indexed++) {
+    		checksums.add(fromFollower.weakChecksums[indexed], fromFollower.strongChecksums,
+    				indexed*fromFollower.digestLength);
+    	}
+    }
+
+    // up to which file position the index is good enough for scanning
+    private long maxScan() {
+    	if(indexed==stats.blocks)return Long.MAX_VALUE;
+    	return (long)indexed*blockSize - blockSize - LOOKAHEAD;
+    }
+
+    /**
+     * wait until the index is good enough for scanning at the given position
+     */
+    private void awaitIndex(long position) throws IOException {
+    	while(true) {
+    		updateIndex();
+    		if(position<=maxScan())return;
+    		if(receiveError!=null)throw new IOException("Error receiving checksums", receiveError);
+    		synchronized (lock) {
+    			if(fromFollower.received==indexed && receiveError==null) {
+    				try {
+    					lock.wait(1000);
+    				}catch(InterruptedException ie) {
+    					Thread.currentThread().interrupt();
+    					throw new IOException(ie);
+    				}
+    			}
+    		}
+    	}
+    }
+
+    /**
+     * minimum size of the buffer used for scanning the file
+     */
+    static final int SCAN_BUFFER_SIZE = 1024 * 1024;
+
+    /**
+     * stream the file through a large buffer, rolling the weak checksum over
+     * the buffered data. Strong checksums are computed from the buffer, too
+     */
+    protected void findMatches() throws IOException, GeneralSecurityException {
+    	MessageDigest md = Checksum.strongChecksum(checksumAlgorithm);
     	stats.matches = 0;
         stats.weakMatches = 0;
         stats.misses = 0;
-        long total = file.length();
-        long endOfLastMatch = 0;
-        long k = 0;
-        long l = blockSize - 1;
-        byte[] block = new byte[blockSize];
-        boolean blockInvalid = false;
-        boolean missCounted = false;
-        
-        int read = file.read(block);
-        if (total < blockSize || read < blockSize) {
+        long total = length>=0 ? length : file.length() - offset;
+        final int bs = blockSize;
+        if (total < bs) {
         	// send all the data and finish
-        	file.seek(0);
+        	file.seek(offset);
             channel.sendData(total, file.getChannel(), -1);
             stats.transferred += total;
             return;
         }
-        Long checkSum = rollingChecksum.init(block);
-     	while (l < total) {
-     		int index=-1;
-            // two level check
-            List<BlockReference> refs = checksums.get(checkSum);
-            if(refs!=null) {
-            	stats.weakMatches++;
-                if(blockInvalid) {
-            		file.seek(k);
-                	file.read(block);
-                	blockInvalid = false;
-                }
-                md.reset();
-                byte[] strongChecksum = md.digest(block);
-                for(BlockReference br: refs) {
-                	if(Arrays.equals(strongChecksum, br.strongChecksum)){
-                		index = br.index;
-                		break;
-                	}
-                }
-            }
-            if (index>=0) {
-            	stats.matches++;
-            	missCounted = false;
-            	long numBytes = k - endOfLastMatch;
-                if(numBytes>0)file.seek(endOfLastMatch);
-                // send literal data and index of matching block
-                channel.sendData(numBytes, file.getChannel(), index);
-                stats.transferred += numBytes;
-                // reset search to the end of the match
-                endOfLastMatch = l+1;
-                k += blockSize;
-                if(numBytes>0)file.seek(k);
-                l = k-1+file.read(block);
-                _avail = 0;
-                checkSum = rollingChecksum.reset(block, k, l);
-            } else if (l<(total-blockSize)){
-            	if(!missCounted) {
-            		missCounted = true;
-            		stats.misses++;
-            	}
-            	// start byte-wise checksum update
-            	blockInvalid = true;
-            	k++;
-                l++;
-                checkSum = rollingChecksum.update(read0());
-            }
-            else {
-            	break;
-            }
+        byte[] strongChecksum = new byte[md.getDigestLength()];
+        long endOfLastMatch = 0;
+        boolean missCounted = false;
+        ByteBuffer pooled = BufferPool.HEAP.acquire(Math.max(SCAN_BUFFER_SIZE, 2*bs));
+        buf = pooled.array();
+        bufLen = 0;
+        try {
+        	// window [k, k+bs) is at buf[pos, pos+bs)
+        	long k = 0;
+        	int pos = fill(k);
+        	int a = a(pos), b = b(pos);
+        	while(true) {
+        		awaitIndex(k);
+        		int index = -1;
+        		long checkSum = Checksum.sum(a, b);
+        		// two level check
+        		if(checksums.containsWeak(checkSum)) {
+        			stats.weakMatches++;
+        			md.update(buf, pos, bs);
+        			md.digest(strongChecksum, 0, strongChecksum.length);
+        			// in-place mode: the follower has already overwritten the data before 'k'
+        			int minBlock = inPlace ? (int)((k + bs - 1) / bs) : 0;
+        			index = checksums.find(checkSum, strongChecksum, 0, minBlock);
+        		}
+        		if (index>=0) {
+        			stats.matches++;
+        			missCounted = false;
+        			long numBytes = k - endOfLastMatch;
+        			if(numBytes>0)file.seek(offset + endOfLastMatch);
+        			// send literal data and index of matching block
+        			channel.sendData(numBytes, file.getChannel(), index);
+        			stats.transferred += numBytes;
+        			// continue search after the end of the match
+        			k += bs;
+        			endOfLastMatch = k;
+        			if(k + bs > total)break;
+        			pos += bs;
+        			if(pos + bs > bufLen)pos = fill(k);
+        			a = a(pos);
+        			b = b(pos);
+        			continue;
+        		}
+        		if(k + bs >= total)break;
+        		if(!missCounted) {
+        			missCounted = true;
+        			stats.misses++;
+        		}
+        		// roll over the buffered data until the next candidate
+        		if(pos + bs >= bufLen)pos = fill(k);
+        		awaitIndex(k + 1);
+        		final int limit = (int)Math.min(Math.min(bufLen - bs, total - bufStart - bs),
+        				maxScan() - bufStart);
+        		final byte[] data = buf;
+        		do {
+        			int out = data[pos] & 0xFF;
+        			a = (a - out + (data[pos+bs] & 0xFF)) & 0xFFFF;
+        			b = (b - bs*out + a) & 0xFFFF;
+        			pos++;
+        		}while(pos < limit && !checksums.containsWeak(Checksum.sum(a, b)));
+        		k = bufStart + pos;
+        	}
+        }finally {
+        	BufferPool.HEAP.release(pooled);
+        	buf = null;
         }
         // finally, send any remaining data
         long numBytes = total - endOfLastMatch;
-        if(numBytes>0)file.seek(endOfLastMatch);
+        if(numBytes>0)file.seek(offset + endOfLastMatch);
         channel.sendData(numBytes, file.getChannel(), -1);
         stats.transferred += numBytes;
     }
 
-    // Buffer those single-byte reads... is there a smarter way?
-    byte[] _buf = new byte[0];
-    int _index = 0;
-    int _avail = 0;
+    /**
+     * set the strong checksum algorithm (see {@link Checksum#STRONG_CHECKSUMS}),
+     * which must be the same as the one used by the Follower
+     */
+    public void setChecksumAlgorithm(String algorithm) {
+        this.checksumAlgorithm = Checksum.checkStrongChecksum(algorithm);
+    }
+
+    /**
+     * in-place mode: the Follower updates its file in place, so only blocks which
+     * are not before the current position in the file may be referenced
+     */
+    public void setInPlace(boolean inPlace) {
+        this.inPlace = inPlace;
+    }
+
+    /**
+     * only synchronize the given region of the file (positions sent to the Follower
+     * are relative to the start of the region)
+     */
+    public void setRegion(long offset, long length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
+    // scan buffer, holding file data from 'bufStart' to 'bufStart+bufLen'
+    private byte[] buf;
+    private long bufStart;
+    private int bufLen;
     int refills = 0;
-    private byte read0() throws IOException {
-    	byte res = -1;
-    	if(_index>=_avail) {
-    		_buf = new byte[Math.max(2*blockSize, 32768)];
-    		_avail = file.read(_buf);
-    		if(_avail<0) {
-               throw new IOException("EOF");
-    		}
-        	_index = 0;
-    		refills++;
+
+    /**
+     * move the data starting at file position 'start' to the beginning of
+     * the buffer, and fill the rest of it (positional reads, so the file pointer
+     * used when sending literal data is not affected)
+     *
+     * @return position of 'start' in the buffer, i.e. 0
+     */
+    private int fill(long start) throws IOException {
+    	int keep = 0;
+    	if(start>=bufStart && start<bufStart+bufLen) {
+    		keep = (int)(bufStart + bufLen - start);
+    		System.arraycopy(buf, (int)(start-bufStart), buf, 0, keep);
+    	}
+    	bufStart = start;
+    	bufLen = keep;
+    	ByteBuffer target = ByteBuffer.wrap(buf, keep, buf.length-keep);
+    	FileChannel fc = file.getChannel();
+    	while(target.hasRemaining()) {
+    		int n = fc.read(target, offset + bufStart + target.position());
+    		if(n<0)break;
+    	}
+    	bufLen = target.position();
+    	refills++;
+    	return 0;
+    }
+
+    // weak checksum parts of the block at the given buffer position
+    private int a(int pos) {
+    	int sum = 0;
+    	for(int i=pos; i<pos+blockSize; i++) {
+    		sum += buf[i] & 0xFF;
+    	}
+    	return sum & 0xFFFF;
+    }
+
+    private int b(int pos) {
+    	long sum = 0;
+    	for(int i=pos; i<pos+blockSize; i++) {
+    		sum += (long)(pos+blockSize-i) * (buf[i] & 0xFF);
     	}
-    	res =_buf[_index];
-    	_index++;
-    	return res;
+    	return (int)(sum & 0xFFFF);
     }
 
 }
@@ -20,6 +20,32 @@ public interface LeaderChannel {
 	 * @throws IOException
 	 */
 	public ChecksumHolder receiveChecksums() throws IOException;
+
+	/**
+	 * start receiving checksums from the Follower in batches. The returned holder
+	 * has the block size and the arrays for all the checksums, which are
+	 * filled via {@link #receiveChecksums(ChecksumHolder)}. <br/>
+	 * By default, all the checksums are received at once.
+	 *
+	 * @return ChecksumHolder - weak and strong checksums
+	 * @throws IOException
+	 */
+	public default ChecksumHolder receiveChecksumHeader() throws IOException {
+		ChecksumHolder holder = receiveChecksums();
+		holder.received = holder.numBlocks();
+		return holder;
+	}
+
+	/**
+	 * receive the next batch of checksums into the given holder
+	 *
+	 * @param holder - as returned by {@link #receiveChecksumHeader()}
+	 * @return the number of blocks received so far
+	 * @throws IOException
+	 */
+	public default int receiveChecksums(ChecksumHolder holder) throws IOException {
+		return holder.received;
+	}
 	
 	/**
 	 * Send data: the given number of data bytes from the input 
@@ -33,6 +59,17 @@ public interface LeaderChannel {
 	 */
 	public void sendData(long bytes, ByteChannel source, int index)throws IOException;
 	
+	/**
+	 * tell the Follower which part of the file is synchronized via this channel
+	 * (the first message when syncing a file in several partitions)
+	 *
+	 * @param partition
+	 * @throws IOException
+	 */
+	public default void sendPartition(Partition partition) throws IOException {
+		throw new IOException("Partitions are not supported by this channel");
+	}
+
 	/**
 	 * shutdown the channel
 	 * @throws IOException
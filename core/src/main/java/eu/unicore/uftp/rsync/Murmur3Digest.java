@@ -0,0 +1,150 @@
+package eu.unicore.uftp.rsync;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+
+/**
+ * MurmurHash3 (x64, 128 bit variant, seed 0) as a {@link MessageDigest}. <br/>
+ *
+ * This is not a cryptographic hash, but it is several times faster than MD5
+ * and has the same length, so it can be used as the strong checksum of rsync
+ * blocks (which only protects against accidental collisions of the weak
+ * checksum). The digest bytes are h1 and h2 in little-endian order, as in
+ * the reference implementation.
+ */
+public class Murmur3Digest extends MessageDigest {
+
+	public static final String ALGORITHM = "MURMUR3-128";
+
+	private static final long C1 = 0x87c37b91114253d5L;
+	private static final long C2 = 0x4cf5ad432745937fL;
+
+	private long h1, h2;
+
+	private long length;
+
+	// partial 16 byte chunk from the previous update
+	private final byte[] tail = new byte[16];
+	private int tailLength;
+
+	public Murmur3Digest() {
+		super(ALGORITHM);
+	}
+
+	@Override
+	protected int engineGetDigestLength() {
+		return 16;
+	}
+
+	@Override
+	protected void engineUpdate(byte input) {
+		tail[tailLength++] = input;
+		length++;
+		if(tailLength==16) {
+			mix(tail, 0);
+			tailLength = 0;
+		}
+	}
+
+	@Override
+	protected void engineUpdate(byte[] input, int offset, int len) {
+		length += len;
+		if(tailLength>0) {
+			int n = Math.min(len, 16 - tailLength);
+			System.arraycopy(input, offset, tail, tailLength, n);
+			tailLength += n;
+			offset += n;
+			len -= n;
+			if(tailLength<16)return;
+			mix(tail, 0);
+			tailLength = 0;
+		}
+		int end = offset + (len & ~15);
+		for(; offset<end; offset+=16) {
+			mix(input, offset);
+		}
+		tailLength = len & 15;
+		System.arraycopy(input, offset, tail, 0, tailLength);
+	}
+
+	private void mix(byte[] data, int offset) {
+		long k1 = getLong(data, offset);
+		long k2 = getLong(data, offset+8);
+		h1 ^= mixK1(k1);
+		h1 = Long.rotateLeft(h1, 27);
+		h1 += h2;
+		h1 = h1 * 5 + 0x52dce729;
+		h2 ^= mixK2(k2);
+		h2 = Long.rotateLeft(h2, 31);
+		h2 += h1;
+		h2 = h2 * 5 + 0x38495ab5;
+	}
+
+	@Override
+	protected byte[] engineDigest() {
+		long k1 = 0, k2 = 0;
+		for(int i=tailLength-1; i>=8; i--) {
+			k2 = (k2 << 8) | (tail[i] & 0xFF);
+		}
+		for(int i=Math.min(tailLength, 8)-1; i>=0; i--) {
+			k1 = (k1 << 8) | (tail[i] & 0xFF);
+		}
+		h1 ^= mixK1(k1);
+		h2 ^= mixK2(k2);
+		h1 ^= length;
+		h2 ^= length;
+		h1 += h2;
+		h2 += h1;
+		h1 = fmix(h1);
+		h2 = fmix(h2);
+		h1 += h2;
+		h2 += h1;
+		byte[] result = new byte[16];
+		putLong(result, 0, h1);
+		putLong(result, 8, h2);
+		engineReset();
+		return result;
+	}
+
+	@Override
+	protected void engineReset() {
+		h1 = 0;
+		h2 = 0;
+		length = 0;
+		tailLength = 0;
+	}
+
+	private static long mixK1(long k1) {
+		k1 *= C1;
+		k1 = Long.rotateLeft(k1, 31);
+		return k1 * C2;
+	}
+
+	private static long mixK2(long k2) {
+		k2 *= C2;
+		k2 = Long.rotateLeft(k2, 33);
+		return k2 * C1;
+	}
+
+	private static long fmix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+
+	private static long getLong(byte[] data, int offset) {
+		return (long)LONG.get(data, offset);
+	}
+
+	private static void putLong(byte[] data, int offset, long value) {
+		LONG.set(data, offset, value);
+	}
+
+}
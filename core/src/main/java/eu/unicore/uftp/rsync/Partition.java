@@ -0,0 +1,47 @@
+package eu.unicore.uftp.rsync;
+
+/**
+ * one of several byte regions of a file, which are synchronized
+ * independently (and in parallel), see {@link PartitionedLeader}
+ */
+public class Partition {
+
+	public final int index;
+
+	public final int count;
+
+	// length of the whole file
+	public final long total;
+
+	public final long offset;
+
+	public final long length;
+
+	public Partition(int index, int count, long total) {
+		if(count<1 || index<0 || index>=count || total<0) {
+			throw new IllegalArgumentException("Invalid partition "+index+"/"+count+" of "+total+" bytes");
+		}
+		this.index = index;
+		this.count = count;
+		this.total = total;
+		this.offset = start(index);
+		this.length = start(index+1) - offset;
+	}
+
+	private long start(int i) {
+		// same as total*i/count, without overflow
+		return (total / count) * i + (total % count) * i / count;
+	}
+
+	/**
+	 * the corresponding partition of a file with the given length
+	 */
+	public Partition of(long otherTotal) {
+		return new Partition(index, count, otherTotal);
+	}
+
+	public String toString() {
+		return "["+index+"/"+count+": "+offset+"+"+length+"]";
+	}
+
+}
@@ -0,0 +1,177 @@
+package eu.unicore.uftp.rsync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
+
+import eu.unicore.uftp.dpc.Utils;
+import eu.unicore.uftp.server.DefaultFileAccess;
+import eu.unicore.uftp.server.UserFileAccess;
+
+/**
+ * the Follower side of {@link PartitionedLeader}: each partition is
+ * synchronized by its own Follower, which writes its part of the new
+ * version directly to a temporary file. When all partitions are done,
+ * the temporary file replaces our version.
+ */
+public class PartitionedFollower implements Callable<RsyncStats> {
+
+	private final File file;
+
+	private final List<? extends FollowerChannel> channels;
+
+	private final Closeable connection;
+
+	private final int blocksize;
+
+	private String blocksizeChoice = Follower.BLOCKSIZE_AUTO;
+
+	private String checksumAlgorithm = Checksum.MD5;
+
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	private UserFileAccess fileAccess = new UserFileAccess(new DefaultFileAccess(), "", "");
+
+	/**
+	 * @param file - our (out-of-date) version
+	 * @param channels - one channel per partition
+	 * @param blocksize - block size, or 0 to choose one based on the size of the file
+	 * @param connection - closed if one of the partitions fails, so the others do not block
+	 */
+	public PartitionedFollower(File file, List<? extends FollowerChannel> channels, int blocksize, Closeable connection) {
+		this.file = file;
+		this.channels = channels;
+		this.connection = connection;
+		if(blocksize>0) {
+			this.blocksize = Follower.checkBlockSize(blocksize, file.length());
+			this.blocksizeChoice = Follower.BLOCKSIZE_REQUESTED;
+		}
+		else {
+			// per partition
+			this.blocksize = Follower.reasonableBlockSize(file.length() / Math.max(1, channels.size()));
+		}
+	}
+
+	@Override
+	public RsyncStats call() throws Exception {
+		long start = System.currentTimeMillis();
+		String fileName = file.getAbsolutePath();
+		int count = channels.size();
+		// the Leader's partition on each channel (the channels may not be in the same order on both sides)
+		Partition[] partitions = new Partition[count];
+		boolean[] seen = new boolean[count];
+		for(int i=0; i<count; i++) {
+			Partition p = channels.get(i).receivePartition();
+			if(p.count!=count || seen[p.index] || (i>0 && p.total!=partitions[0].total)) {
+				throw new IOException("Invalid partition "+p);
+			}
+			seen[p.index] = true;
+			partitions[i] = p;
+		}
+		long total = partitions[0].total;
+		List<FutureTask<RsyncStats>> tasks = new ArrayList<>();
+		File tmpFile = new File(file.getParentFile(), "__"+file.getName()+"__rsync__tmp");
+		try(RandomAccessFile source = fileAccess.getRandomAccessFile(file, "r");
+			RandomAccessFile tmp = fileAccess.getRandomAccessFile(tmpFile, "rw")){
+			FileChannel target = tmp.getChannel();
+			target.truncate(0);
+			long length = source.length();
+			for(int i=0; i<count; i++) {
+				FollowerChannel channel = channels.get(i);
+				Partition leaderPart = partitions[i];
+				Partition ours = leaderPart.of(length);
+				Follower follower = new Follower(source, channel, fileName+ours, blocksize);
+				follower.setBlocksizeChoice(blocksizeChoice);
+				follower.setChecksumAlgorithm(checksumAlgorithm);
+				follower.setPool(pool);
+				follower.setFileAccess(fileAccess);
+				follower.setRegion(ours.offset, ours.length, target, leaderPart.offset);
+				tasks.add(new FutureTask<>(()->{
+					try {
+						return follower.call();
+					}catch(Exception ex) {
+						failed(ex);
+						throw ex;
+					}
+				}));
+			}
+			for(int i=1; i<count; i++) {
+				Utils.newThread(tasks.get(i), "rsync-partition-"+i).start();
+			}
+			tasks.get(0).run();
+			for(FutureTask<RsyncStats> task: tasks) {
+				try {
+					task.get();
+				}catch(ExecutionException ee) {
+					// reported below
+				}
+			}
+			if(error==null && target.size()>total)target.truncate(total);
+		}
+		if(error!=null) {
+			tmpFile.delete();
+			throw error;
+		}
+		RsyncStats stats = new RsyncStats(fileName);
+		stats.blocksize = blocksize;
+		stats.blocksizeChoice = blocksizeChoice;
+		stats.checksumAlgorithm = checksumAlgorithm;
+		stats.partitions = count;
+		stats.written = 0;
+		for(FutureTask<RsyncStats> task: tasks) {
+			RsyncStats s = task.get();
+			stats.blocks += s.blocks;
+			stats.transferred += s.transferred;
+			stats.written += s.written;
+		}
+		fileAccess.asUser(()->{
+			File backup = new File(file.getParentFile(), "__"+file.getName()+"__rsync__orig");
+			file.renameTo(backup);
+			tmpFile.renameTo(file);
+			backup.delete();
+		});
+		stats.duration = System.currentTimeMillis() - start;
+		return stats;
+	}
+
+	// the first error (the others are usually caused by closing the connection)
+	private Exception error;
+
+	private synchronized void failed(Exception ex) {
+		if(error==null) {
+			error = ex;
+			Utils.closeQuietly(connection);
+		}
+	}
+
+	/**
+	 * set the strong checksum algorithm, which must be the same as the one used by the Leader
+	 */
+	public void setChecksumAlgorithm(String algorithm) {
+		this.checksumAlgorithm = Checksum.checkStrongChecksum(algorithm);
+	}
+
+	/**
+	 * set the pool used for computing the checksums
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	public void setFileAccess(UserFileAccess fileAccess) {
+		this.fileAccess = fileAccess;
+	}
+
+	public int getBlocksize() {
+		return blocksize;
+	}
+
+}
@@ -0,0 +1,121 @@
+package eu.unicore.uftp.rsync;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import eu.unicore.uftp.dpc.Utils;
+import eu.unicore.uftp.server.DefaultFileAccess;
+import eu.unicore.uftp.server.UserFileAccess;
+
+/**
+ * synchronizes a file in several partitions (byte regions), each with its own
+ * Leader and channel (e.g. one per data stream), so that the scan of a large
+ * file and the data transfer run in parallel. Each partition is matched against
+ * the corresponding partition of the Follower's file, so data that has moved
+ * across partition boundaries is sent as literal data.
+ */
+public class PartitionedLeader implements Callable<RsyncStats> {
+
+	private final File file;
+
+	private final List<? extends LeaderChannel> channels;
+
+	private final String fileName;
+
+	private final Closeable connection;
+
+	private String checksumAlgorithm = Checksum.MD5;
+
+	private UserFileAccess fileAccess = new UserFileAccess(new DefaultFileAccess(), "", "");
+
+	/**
+	 * @param file - the up-to-date file
+	 * @param channels - one channel per partition
+	 * @param fileName - file name
+	 * @param connection - closed if one of the partitions fails, so the others do not block
+	 */
+	public PartitionedLeader(File file, List<? extends LeaderChannel> channels, String fileName, Closeable connection) {
+		this.file = file;
+		this.channels = channels;
+		this.fileName = fileName;
+		this.connection = connection;
+	}
+
+	@Override
+	public RsyncStats call() throws Exception {
+		long start = System.currentTimeMillis();
+		long total = file.length();
+		int count = channels.size();
+		List<FutureTask<RsyncStats>> tasks = new ArrayList<>();
+		for(int i=0; i<count; i++) {
+			Partition p = new Partition(i, count, total);
+			LeaderChannel channel = channels.get(i);
+			tasks.add(new FutureTask<>(()->{
+				try(RandomAccessFile raf = fileAccess.getRandomAccessFile(file, "r")){
+					channel.sendPartition(p);
+					Leader leader = new Leader(raf, channel, fileName+p);
+					leader.setChecksumAlgorithm(checksumAlgorithm);
+					leader.setRegion(p.offset, p.length);
+					return leader.call();
+				}catch(Exception ex) {
+					failed(ex);
+					throw ex;
+				}
+			}));
+		}
+		for(int i=1; i<count; i++) {
+			Utils.newThread(tasks.get(i), "rsync-partition-"+i).start();
+		}
+		tasks.get(0).run();
+		RsyncStats stats = new RsyncStats(fileName);
+		stats.checksumAlgorithm = checksumAlgorithm;
+		stats.partitions = count;
+		stats.matches = 0;
+		stats.weakMatches = 0;
+		stats.misses = 0;
+		for(FutureTask<RsyncStats> task: tasks) {
+			try {
+				RsyncStats s = task.get();
+				stats.blocks += s.blocks;
+				stats.blocksize = s.blocksize;
+				stats.transferred += s.transferred;
+				stats.matches += s.matches;
+				stats.weakMatches += s.weakMatches;
+				stats.misses += s.misses;
+			}catch(ExecutionException ee) {
+				// reported below
+			}
+		}
+		if(error!=null)throw error;
+		stats.duration = System.currentTimeMillis() - start;
+		return stats;
+	}
+
+	// the first error (the others are usually caused by closing the connection)
+	private Exception error;
+
+	private synchronized void failed(Exception ex) {
+		if(error==null) {
+			error = ex;
+			Utils.closeQuietly(connection);
+		}
+	}
+
+	/**
+	 * set the strong checksum algorithm, which must be the same as the one used by the Follower
+	 */
+	public void setChecksumAlgorithm(String algorithm) {
+		this.checksumAlgorithm = Checksum.checkStrongChecksum(algorithm);
+	}
+
+	public void setFileAccess(UserFileAccess fileAccess) {
+		this.fileAccess = fileAccess;
+	}
+
+}
@@ -1,7 +1,5 @@
 package eu.unicore.uftp.rsync;
 
-import java.util.Arrays;
-
 /**
  * Compute the rolling checksum.<br/>
  *  
@@ -48,7 +46,10 @@ public class RollingChecksum {
 		this.l = l;
 		A_kl = Checksum.a(data);
 		B_kl = Checksum.b(data, k, l);
-		this.data = Arrays.copyOf(data, data.length);
+		if(this.data==null || this.data.length!=data.length) {
+			this.data = new byte[data.length];
+		}
+		System.arraycopy(data, 0, this.data, 0, data.length);
 		this.Xk = data[0] & 0xFF;
 		this.position = 0;
 		return Checksum.sum(A_kl, B_kl);
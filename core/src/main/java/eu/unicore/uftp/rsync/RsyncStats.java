@@ -24,6 +24,22 @@ public class RsyncStats {
 	
 	public int blocksize;
 	
+	public String checksumAlgorithm;
+	
+	// how the block size was chosen
+	public String blocksizeChoice;
+	
+	// whether the follower's checksums came from the signature cache
+	public boolean cachedChecksums;
+	
+	// follower: whether the file was updated in place, and the number of bytes written
+	public boolean inPlace;
+	
+	public long written=-1;
+	
+	// number of partitions synchronized in parallel
+	public int partitions=1;
+	
 	public RsyncStats(String fileName){
 		this.fileName=fileName;
 	}
@@ -33,9 +49,14 @@ public class RsyncStats {
 		sb.append("'"+fileName+"' : "+duration+"ms, transferred: "+transferred);
 		sb.append("\n blocks: ").append(blocks);
 		sb.append(" size: ").append(blocksize);
+		if(blocksizeChoice!=null)sb.append(" (").append(blocksizeChoice).append(")");
+		if(cachedChecksums)sb.append(" (cached checksums)");
+		if(checksumAlgorithm!=null)sb.append(" checksum: ").append(checksumAlgorithm);
+		if(partitions>1)sb.append(" partitions: ").append(partitions);
 		if(matches>=0)sb.append("\n matches: "+matches);
 		if(weakMatches>=0)sb.append(", weak : "+weakMatches);
 		if(misses>=0)sb.append(", misses: "+misses);
+		if(written>=0)sb.append("\n written: "+written+(inPlace ? " (in place)" : ""));
 		return sb.toString();
 	}
 
@@ -0,0 +1,217 @@
+package eu.unicore.uftp.rsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.logging.log4j.Logger;
+
+import eu.unicore.uftp.dpc.Utils;
+import eu.unicore.uftp.rsync.Checksum.ChecksumHolder;
+
+/**
+ * Persistent cache of rsync signatures (weak and strong checksums of all blocks),
+ * so that the Follower does not have to re-read large files which have not changed
+ * since the last sync. <br/>
+ *
+ * Entries are stored as files in a directory, one per (file, block size, checksum
+ * algorithm). An entry is only used if the file's size, modification time and
+ * inode are the same as when the entry was written. If the total size of the
+ * entries exceeds the limit, the least recently used ones are removed.<br/>
+ *
+ * The server-side cache is enabled by setting the {@link #CACHE_DIR} property.
+ */
+public class SignatureCache {
+
+	private static final Logger logger = Utils.getLogger(Utils.LOG_SERVER, SignatureCache.class);
+
+	public static final String CACHE_DIR = "UFTP_SYNC_CACHE_DIR";
+
+	public static final String CACHE_SIZE = "UFTP_SYNC_CACHE_SIZE";
+
+	private static final int MAGIC = 0x55525331;
+
+	private static final String SUFFIX = ".sig";
+
+	private static SignatureCache defaultCache;
+
+	private static boolean initialised = false;
+
+	/**
+	 * get the cache configured via the {@link #CACHE_DIR} and {@link #CACHE_SIZE}
+	 * properties, or <code>null</code> if no cache directory is set
+	 */
+	public static synchronized SignatureCache getDefault() {
+		if(!initialised) {
+			initialised = true;
+			String dir = Utils.getProperty(CACHE_DIR, null);
+			if(dir!=null) {
+				long maxSize = Long.parseLong(Utils.getProperty(CACHE_SIZE, String.valueOf(1024L*1024*1024)));
+				defaultCache = new SignatureCache(new File(dir), maxSize);
+				logger.info("Using rsync signature cache <{}>, max size {}", dir, maxSize);
+			}
+		}
+		return defaultCache;
+	}
+
+	private final File directory;
+
+	private final long maxSize;
+
+	/**
+	 * @param directory - directory for storing the signatures (will be created if necessary)
+	 * @param maxSize - maximum total size of the stored signatures in bytes
+	 */
+	public SignatureCache(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+		directory.mkdirs();
+	}
+
+	/**
+	 * get the signature of the given file, or <code>null</code> if there is no valid entry
+	 */
+	public ChecksumHolder get(Key key) {
+		File entry = new File(directory, key.name());
+		if(!entry.exists())return null;
+		try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry), 65536))){
+			if(in.readInt()!=MAGIC || !key.toString().equals(in.readUTF())) {
+				return null;
+			}
+			ChecksumHolder holder = new ChecksumHolder();
+			holder.blocksize = in.readInt();
+			int numBlocks = in.readInt();
+			holder.weakChecksums = new long[numBlocks];
+			for(int i=0; i<numBlocks; i++) {
+				holder.weakChecksums[i] = in.readLong();
+			}
+			holder.strongChecksums = new byte[numBlocks*holder.digestLength];
+			in.readFully(holder.strongChecksums);
+			holder.received = numBlocks;
+			// for LRU
+			entry.setLastModified(System.currentTimeMillis());
+			return holder;
+		}catch(IOException ex) {
+			logger.debug("Cannot read cached signature <{}>: {}", entry, ex.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * store the signature of the given file, unless the file has been modified
+	 */
+	public void put(Key key, long[] weakChecksums, byte[] strongChecksums) {
+		try {
+			if(!key.equals(Key.of(key.file, key.blocksize, key.algorithm)))return;
+			File tmp = File.createTempFile("sig", ".tmp", directory);
+			try{
+				try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536))){
+					out.writeInt(MAGIC);
+					out.writeUTF(key.toString());
+					out.writeInt(key.blocksize);
+					out.writeInt(weakChecksums.length);
+					for(long w: weakChecksums) {
+						out.writeLong(w);
+					}
+					out.write(strongChecksums);
+				}
+				Files.move(tmp.toPath(), new File(directory, key.name()).toPath(),
+						StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			}finally {
+				tmp.delete();
+			}
+			evict();
+		}catch(IOException ex) {
+			logger.warn("Cannot store signature of <{}>: {}", key.file, ex.getMessage());
+		}
+	}
+
+	/**
+	 * remove the least recently used entries until the total size is below the limit
+	 */
+	synchronized void evict() {
+		File[] entries = directory.listFiles((d, name) -> name.endsWith(SUFFIX));
+		if(entries==null)return;
+		long total = 0;
+		for(File f: entries)total += f.length();
+		if(total<=maxSize)return;
+		Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+		for(File f: entries) {
+			if(total<=maxSize)break;
+			long size = f.length();
+			if(f.delete())total -= size;
+		}
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * identifies a version of a file
+	 */
+	public static class Key {
+
+		private final File file;
+		private final int blocksize;
+		private final String algorithm;
+		private final long size;
+		private final long modified;
+		private final String inode;
+
+		private Key(File file, int blocksize, String algorithm, BasicFileAttributes attrs) {
+			this.file = file;
+			this.blocksize = blocksize;
+			this.algorithm = algorithm;
+			this.size = attrs.size();
+			this.modified = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+			this.inode = String.valueOf(attrs.fileKey());
+		}
+
+		public static Key of(File file, int blocksize, String algorithm) throws IOException {
+			File f = file.getAbsoluteFile();
+			return new Key(f, blocksize, algorithm, Files.readAttributes(f.toPath(), BasicFileAttributes.class));
+		}
+
+		// the entry name depends on the file (not its version), so older versions are replaced
+		String name() {
+			try {
+				MessageDigest md = MessageDigest.getInstance("SHA-256");
+				md.update((file.getPath()+"|"+blocksize+"|"+algorithm).getBytes(StandardCharsets.UTF_8));
+				return Utils.hexString(md.digest()) + SUFFIX;
+			}catch(NoSuchAlgorithmException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		@Override
+		public String toString() {
+			return file.getPath()+"|"+blocksize+"|"+algorithm+"|"+size+"|"+modified+"|"+inode;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key))return false;
+			return toString().equals(o.toString());
+		}
+
+		@Override
+		public int hashCode() {
+			return toString().hashCode();
+		}
+	}
+}
@@ -1,43 +1,103 @@
 package eu.unicore.uftp.rsync;
 
+import java.io.Closeable;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
 import java.util.List;
 
+import eu.unicore.uftp.dpc.Utils;
+import eu.unicore.uftp.jparss.PBaseSocket;
+
 public class SocketFollowerChannel implements FollowerChannel {
 
-	private final Socket socket;
+	private final InputStream in;
+
+	private final OutputStream out;
+
+	private final Closeable connection;
 
-	public SocketFollowerChannel(Socket socket){
-		this.socket=socket;
+	public SocketFollowerChannel(Socket socket) throws IOException {
+		this(socket.getInputStream(), socket.getOutputStream(), socket);
+	}
+
+	/**
+	 * use the given streams, which must not read ahead of the data consumed by the channel
+	 *
+	 * @param connection - closed when the exchange is aborted
+	 */
+	public SocketFollowerChannel(InputStream in, OutputStream out, Closeable connection){
+		this.in=in;
+		this.out=out;
+		this.connection=connection;
+	}
+
+	/**
+	 * create one channel for each of the individual streams of the given socket
+	 */
+	public static List<SocketFollowerChannel> perStream(PBaseSocket socket) throws IOException {
+		List<SocketFollowerChannel> channels = new ArrayList<>();
+		for(int i=0; i<socket.getNumberOfStreams(); i++) {
+			channels.add(new SocketFollowerChannel(socket.getInputStream(i), socket.getOutputStream(i), socket));
+		}
+		return channels;
 	}
 
 	@Override
-	public void sendToLeader(List<Long> weakChecksums,
-			List<byte[]> strongChecksums, int blocksize) throws IOException {
-		DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+	public void sendChecksumHeader(int blocksize, int numBlocks) throws IOException {
+		DataOutputStream dos = new DataOutputStream(out);
 		dos.writeInt(blocksize);
-		int numBlocks = weakChecksums.size();
-		dos.writeInt(numBlocks);	
-		for(int i=0;i<numBlocks;i++){
-			dos.writeLong(weakChecksums.get(i));
-			byte[]cs = strongChecksums.get(i);
-			if(cs.length!=16){
-				// be paranoid
-				throw new IllegalStateException("Strong checksum at index "+i+" has unexpected size "+cs.length);
+		dos.writeInt(numBlocks);
+		dos.flush();
+	}
+
+	@Override
+	public void sendChecksums(long[] weakChecksums, byte[] strongChecksums, int from, int to)
+			throws IOException {
+		// write in batches rather than value by value
+		int batchSize = 1024;
+		ByteBuffer batch = ByteBuffer.allocate(batchSize*(8+DIGEST_LENGTH));
+		OutputStream os = out;
+		for(int i=from; i<to; i++){
+			batch.putLong(weakChecksums[i]);
+			batch.put(strongChecksums, i*DIGEST_LENGTH, DIGEST_LENGTH);
+			if(!batch.hasRemaining() || i==to-1) {
+				os.write(batch.array(), 0, batch.position());
+				batch.clear();
 			}
-			dos.write(cs);
 		}
-		dos.flush();
+		os.flush();
+	}
+
+	private static final int DIGEST_LENGTH = 16;
+
+	@Override
+	public void abort() {
+		Utils.closeQuietly(connection);
+	}
+
+	@Override
+	public Partition receivePartition() throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		int index = dis.readInt();
+		int count = dis.readInt();
+		long total = dis.readLong();
+		try {
+			return new Partition(index, count, total);
+		}catch(IllegalArgumentException ex) {
+			throw new IOException(ex.getMessage());
+		}
 	}
 
 	@Override
 	public RsyncData receive() throws IOException {
-		DataInputStream dis = new DataInputStream(socket.getInputStream());
+		DataInputStream dis = new DataInputStream(in);
 		final int index = dis.readInt();
 		final long length = dis.readLong();
 
@@ -57,7 +117,7 @@ public class SocketFollowerChannel implements FollowerChannel {
 			public int read(ByteBuffer dst) throws IOException {
 				int maxlen = Math.min(dst.remaining(),buf.length);
 				maxlen = Math.min(maxlen, (int)(length-read));
-				int len = socket.getInputStream().read(buf, 0, maxlen);
+				int len = in.read(buf, 0, maxlen);
 				if(len>=0){
 					read+=len;
 					dst.put(buf,0,len);
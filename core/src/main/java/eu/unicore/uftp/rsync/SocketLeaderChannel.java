@@ -3,42 +3,93 @@ package eu.unicore.uftp.rsync;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.util.ArrayList;
+import java.util.List;
 
+import eu.unicore.uftp.jparss.PBaseSocket;
 import eu.unicore.uftp.rsync.Checksum.ChecksumHolder;
 
 public class SocketLeaderChannel implements LeaderChannel{
 
-	private final Socket socket;
+	private final InputStream in;
 
-	public SocketLeaderChannel(Socket socket){
-		this.socket=socket;
+	private final OutputStream out;
+
+	public SocketLeaderChannel(Socket socket) throws IOException {
+		this(socket.getInputStream(), socket.getOutputStream());
+	}
+
+	/**
+	 * use the given streams, which must not read ahead of the data consumed by the channel
+	 */
+	public SocketLeaderChannel(InputStream in, OutputStream out){
+		this.in=in;
+		this.out=out;
+	}
+
+	/**
+	 * create one channel for each of the individual streams of the given socket
+	 */
+	public static List<SocketLeaderChannel> perStream(PBaseSocket socket) throws IOException {
+		List<SocketLeaderChannel> channels = new ArrayList<>();
+		for(int i=0; i<socket.getNumberOfStreams(); i++) {
+			channels.add(new SocketLeaderChannel(socket.getInputStream(i), socket.getOutputStream(i)));
+		}
+		return channels;
 	}
 
 	@Override
 	public ChecksumHolder receiveChecksums() throws IOException {
-		DataInputStream dis = new DataInputStream(socket.getInputStream());
+		ChecksumHolder res = receiveChecksumHeader();
+		while(res.received<res.numBlocks()) {
+			receiveChecksums(res);
+		}
+		return res;
+	}
+
+	@Override
+	public ChecksumHolder receiveChecksumHeader() throws IOException {
+		DataInputStream dis = new DataInputStream(in);
 		ChecksumHolder res = new ChecksumHolder();
 		res.blocksize = dis.readInt();
 		int numBlocks = dis.readInt();
-		res.weakChecksums = new ArrayList<>();
-		res.strongChecksums = new ArrayList<>();
-		for(int i=0; i<numBlocks; i++){
-			res.weakChecksums.add(dis.readLong());
-			byte[]cs=new byte[16];
-			dis.readFully(cs);
-			res.strongChecksums.add(cs);
-		}
+		res.weakChecksums = new long[numBlocks];
+		res.strongChecksums = new byte[numBlocks*res.digestLength];
 		return res;
 	}
 
+	// read in batches rather than value by value
+	private static final int BATCH_SIZE = 1024;
+
+	private ByteBuffer batch;
+
+	@Override
+	public int receiveChecksums(ChecksumHolder holder) throws IOException {
+		int entryLength = 8 + holder.digestLength;
+		if(batch==null) {
+			batch = ByteBuffer.allocate(BATCH_SIZE*entryLength);
+		}
+		int i = holder.received;
+		int n = Math.min(BATCH_SIZE, holder.numBlocks()-i);
+		new DataInputStream(in).readFully(batch.array(), 0, n*entryLength);
+		batch.clear();
+		for(int j=i; j<i+n; j++) {
+			holder.weakChecksums[j] = batch.getLong();
+			batch.get(holder.strongChecksums, j*holder.digestLength, holder.digestLength);
+		}
+		holder.received = i+n;
+		return holder.received;
+	}
+
 	@Override
 	public void sendData(long bytes, ByteChannel source, int index)
 			throws IOException {
-		DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+		DataOutputStream dos = new DataOutputStream(out);
 		// send index first
 		dos.writeInt(index);
 		dos.writeLong(bytes);
@@ -55,12 +106,21 @@ public class SocketLeaderChannel implements LeaderChannel{
 			len = source.read(buf);
 			if(len>0){
 				buf.flip();
-				socket.getOutputStream().write(buf.array(),0,len);
+				out.write(buf.array(),0,len);
 				buf.clear();
 				remaining-=len;
 			}
 		}
-		socket.getOutputStream().flush();
+		out.flush();
+	}
+
+	@Override
+	public void sendPartition(Partition partition) throws IOException {
+		DataOutputStream dos = new DataOutputStream(out);
+		dos.writeInt(partition.index);
+		dos.writeInt(partition.count);
+		dos.writeLong(partition.total);
+		dos.flush();
 	}
 
 	@Override
@@ -0,0 +1,268 @@
+package eu.unicore.uftp.rsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.Logger;
+
+import eu.unicore.uftp.dpc.Utils;
+
+/**
+ * the TreeFollower has an out-of-date copy of a directory tree which should
+ * be synchronized with the TreeLeader's copy. <br/>
+ *
+ * A file is considered unchanged if size and modification time (in seconds)
+ * are the same on both sides. New and small files are transferred as a whole,
+ * other changed files are updated using rsync. The requests are sent by a
+ * separate thread, while the replies are processed in order. Local files which
+ * do not exist on the Leader side are not deleted.
+ */
+public class TreeFollower extends TreeSync implements Callable<TreeSyncStats> {
+
+	private static final Logger logger = Utils.getLogger(Utils.LOG_SERVER, TreeFollower.class);
+
+	/**
+	 * files smaller than this are always transferred as a whole
+	 */
+	public static final long WHOLE_FILE_LIMIT = 64 * 1024;
+
+	// maximum number of outstanding requests
+	private static final int MAX_REQUESTS = 64;
+
+	private final Closeable connection;
+
+	private Predicate<File> filter = f -> true;
+
+	private SignatureCache signatureCache;
+
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+
+	private final BlockingQueue<Request> requests = new ArrayBlockingQueue<>(MAX_REQUESTS);
+
+	private static final Request NO_MORE_REQUESTS = new Request(null, null, 0, 0, END);
+
+	private volatile Exception senderError;
+
+	private volatile boolean aborted = false;
+
+	/**
+	 * @param root - the local directory
+	 * @param in - data from the Leader
+	 * @param out - data to the Leader
+	 * @param connection - closed if the synchronization is aborted
+	 */
+	public TreeFollower(File root, InputStream in, OutputStream out, Closeable connection) {
+		super(root, in, out);
+		this.connection = connection;
+	}
+
+	/**
+	 * only update files accepted by the given filter
+	 */
+	public void setFilter(Predicate<File> filter) {
+		this.filter = filter;
+	}
+
+	public void setSignatureCache(SignatureCache signatureCache) {
+		this.signatureCache = signatureCache;
+	}
+
+	/**
+	 * set the pool used for computing checksums
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public TreeSyncStats call() throws Exception {
+		long start = System.currentTimeMillis();
+		TreeSyncStats stats = new TreeSyncStats(root.getPath());
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+		// the complete listing is read first, so the Leader is never blocked
+		List<Request> listing = new ArrayList<>();
+		String path;
+		while(!(path = dis.readUTF()).isEmpty()) {
+			listing.add(new Request(path, resolve(path), dis.readLong(), dis.readLong(), END));
+		}
+		stats.files = listing.size();
+		SocketFollowerChannel channel = new SocketFollowerChannel(dis, dos, connection);
+		Thread sender = Utils.newThread(()->sendRequests(listing, dos, channel, stats), "rsync-tree-requests");
+		sender.start();
+		try {
+			Request r;
+			while((r = requests.take())!=NO_MORE_REQUESTS) {
+				if(r.type==WHOLE) {
+					receiveWhole(r, dis);
+					stats.copied++;
+				}
+				else {
+					if(inPlace)r.signed.await();
+					try {
+						r.follower.reconstructFile();
+					}finally {
+						r.release();
+					}
+					stats.synced++;
+				}
+				final Request done = r;
+				fileAccess.asUser(()->done.target.setLastModified(done.modified));
+			}
+		}catch(Exception ex) {
+			aborted = true;
+			Utils.closeQuietly(connection);
+			sender.interrupt();
+			sender.join();
+			for(Request q: requests) {
+				if(q.file!=null)Utils.closeQuietly(q.file);
+			}
+			// report the original problem if sending the requests failed
+			if(senderError!=null)throw senderError;
+			throw ex;
+		}
+		sender.join();
+		if(senderError!=null)throw senderError;
+		dos.writeByte(END);
+		dos.flush();
+		stats.transferred = transferred();
+		stats.duration = System.currentTimeMillis() - start;
+		return stats;
+	}
+
+	// decide what to do with each file, and send the requests
+	private void sendRequests(List<Request> listing, DataOutputStream dos, FollowerChannel channel, TreeSyncStats stats) {
+		try {
+			for(Request r: listing) {
+				if(!filter.test(r.target) || r.target.isDirectory()) {
+					logger.debug("Skipping <{}>", r.target);
+					stats.skipped++;
+					continue;
+				}
+				boolean exists = r.target.exists();
+				long localSize = exists ? r.target.length() : -1;
+				if(localSize==r.size && r.target.lastModified()/1000==r.modified/1000) {
+					stats.unchanged++;
+					continue;
+				}
+				if(!exists || localSize==0 || r.size<WHOLE_FILE_LIMIT) {
+					r.type = WHOLE;
+					dos.writeByte(WHOLE);
+					dos.writeUTF(r.path);
+					enqueue(r, dos);
+				}
+				else {
+					r.type = SYNC;
+					r.file = fileAccess.getRandomAccessFile(r.target, "r");
+					boolean queued = false;
+					try {
+						r.follower = new Follower(r.file, channel, r.target.getPath(),
+								Follower.reasonableBlockSize(localSize));
+						r.follower.setBlocksizeChoice(Follower.BLOCKSIZE_AUTO);
+						r.follower.setFileAccess(fileAccess);
+						r.follower.setChecksumAlgorithm(checksumAlgorithm);
+						r.follower.setInPlace(inPlace);
+						r.follower.setPool(pool);
+						r.follower.setSignatureCache(signatureCache);
+						dos.writeByte(SYNC);
+						dos.writeUTF(r.path);
+						enqueue(r, dos);
+						queued = true;
+						r.follower.computeChecksums(channel);
+					}finally {
+						r.signed.countDown();
+						// the receiver only releases the file if it got the request
+						if(queued)r.release();
+						else Utils.closeQuietly(r.file);
+					}
+				}
+			}
+			dos.writeByte(END);
+			dos.flush();
+			requests.put(NO_MORE_REQUESTS);
+		}catch(Exception ex) {
+			if(!aborted) {
+				senderError = ex;
+				Utils.closeQuietly(connection);
+			}
+			requests.offer(NO_MORE_REQUESTS);
+		}
+	}
+
+	private void enqueue(Request r, DataOutputStream dos) throws IOException, InterruptedException {
+		if(!requests.offer(r)) {
+			// make sure the Leader can process the outstanding requests
+			dos.flush();
+			requests.put(r);
+		}
+	}
+
+	private void receiveWhole(Request r, DataInputStream dis) throws Exception {
+		long size = dis.readLong();
+		createParents(r.target.getParentFile());
+		try(RandomAccessFile raf = fileAccess.getRandomAccessFile(r.target, "rw")){
+			byte[] buf = new byte[BUFFER_SIZE];
+			long remaining = size;
+			while(remaining>0) {
+				int n = dis.read(buf, 0, (int)Math.min(buf.length, remaining));
+				if(n<0)throw new IOException("Unexpected end of data, missing "+remaining+" bytes of <"+r.path+">");
+				raf.write(buf, 0, n);
+				remaining -= n;
+			}
+			raf.setLength(size);
+		}
+	}
+
+	private void createParents(File dir) throws IOException {
+		if(dir.isDirectory())return;
+		if(!dir.equals(root))createParents(dir.getParentFile());
+		fileAccess.mkdir(dir.getPath());
+	}
+
+	private static class Request {
+
+		final String path;
+		final File target;
+		final long size;
+		final long modified;
+		byte type;
+
+		// for rsync requests
+		RandomAccessFile file;
+		Follower follower;
+		final CountDownLatch signed = new CountDownLatch(1);
+		// the file is used by both the sender and the receiver
+		final AtomicInteger users = new AtomicInteger(2);
+
+		Request(String path, File target, long size, long modified, byte type) {
+			this.path = path;
+			this.target = target;
+			this.size = size;
+			this.modified = modified;
+			this.type = type;
+		}
+
+		// the last user closes the file
+		void release() {
+			if(users.decrementAndGet()==0)Utils.closeQuietly(file);
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package eu.unicore.uftp.rsync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Predicate;
+
+import org.apache.logging.log4j.Logger;
+
+import eu.unicore.uftp.client.FileInfo;
+import eu.unicore.uftp.dpc.Utils;
+
+/**
+ * the TreeLeader has an up-to-date copy of a directory tree which should
+ * be synchronized with the TreeFollower's copy. <br/>
+ *
+ * Symbolic links to directories are not followed, and empty directories
+ * are not replicated.
+ */
+public class TreeLeader extends TreeSync implements Callable<TreeSyncStats> {
+
+	private static final Logger logger = Utils.getLogger(Utils.LOG_SERVER, TreeLeader.class);
+
+	private Predicate<File> filter = f -> true;
+
+	// the files we offered, by relative path
+	private final Map<String, File> files = new HashMap<>();
+
+	/**
+	 * @param root - the local directory
+	 * @param in - data from the Follower
+	 * @param out - data to the Follower
+	 */
+	public TreeLeader(File root, InputStream in, OutputStream out) {
+		super(root, in, out);
+	}
+
+	/**
+	 * only offer files accepted by the given filter
+	 */
+	public void setFilter(Predicate<File> filter) {
+		this.filter = filter;
+	}
+
+	@Override
+	public TreeSyncStats call() throws Exception {
+		long start = System.currentTimeMillis();
+		TreeSyncStats stats = new TreeSyncStats(root.getPath());
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+		sendListing(root, "", dos);
+		dos.writeUTF("");
+		dos.flush();
+		stats.files = files.size();
+		while(true) {
+			if(dis.available()==0)dos.flush();
+			byte type = dis.readByte();
+			if(type==END)break;
+			String path = dis.readUTF();
+			File file = files.get(path);
+			if(file==null)throw new IOException("File <"+path+"> was not offered");
+			try(RandomAccessFile raf = fileAccess.getRandomAccessFile(file, "r")){
+				if(type==WHOLE) {
+					sendWhole(raf, dos);
+					stats.copied++;
+				}
+				else if(type==SYNC) {
+					Leader leader = new Leader(raf, new SocketLeaderChannel(dis, dos), file.getPath());
+					leader.setChecksumAlgorithm(checksumAlgorithm);
+					leader.setInPlace(inPlace);
+					logger.debug(leader.call());
+					stats.synced++;
+				}
+				else throw new IOException("Invalid request type "+type);
+			}
+		}
+		dos.flush();
+		// wait until the Follower has processed everything
+		if(dis.readByte()!=END)throw new IOException("Protocol error: expected end of synchronization");
+		stats.unchanged = stats.files - stats.copied - stats.synced;
+		stats.transferred = transferred();
+		stats.duration = System.currentTimeMillis() - start;
+		return stats;
+	}
+
+	private void sendListing(File dir, String prefix, DataOutputStream dos) throws IOException {
+		FileInfo[] ls = fileAccess.listFiles(dir);
+		if(ls==null)throw new IOException("Cannot list directory <"+dir+">");
+		Arrays.sort(ls, Comparator.comparing(FileInfo::getPath));
+		for(FileInfo info: ls) {
+			File f = new File(dir, info.getPath());
+			String path = prefix + info.getPath();
+			if(!filter.test(f))continue;
+			if(info.isDirectory()) {
+				if(!Files.isSymbolicLink(f.toPath())) {
+					sendListing(f, path + "/", dos);
+				}
+				continue;
+			}
+			dos.writeUTF(path);
+			dos.writeLong(info.getSize());
+			dos.writeLong(info.getLastModified());
+			files.put(path, f);
+		}
+	}
+
+	private void sendWhole(RandomAccessFile raf, DataOutputStream dos) throws IOException {
+		long size = raf.length();
+		dos.writeLong(size);
+		byte[] buf = new byte[BUFFER_SIZE];
+		long remaining = size;
+		while(remaining>0) {
+			int n = raf.read(buf, 0, (int)Math.min(buf.length, remaining));
+			if(n<0)throw new IOException("Unexpected end of file, missing "+remaining+" bytes");
+			dos.write(buf, 0, n);
+			remaining -= n;
+		}
+	}
+
+}
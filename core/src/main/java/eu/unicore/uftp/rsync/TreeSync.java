@@ -0,0 +1,136 @@
+package eu.unicore.uftp.rsync;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import eu.unicore.uftp.server.DefaultFileAccess;
+import eu.unicore.uftp.server.UserFileAccess;
+
+/**
+ * common parts of {@link TreeLeader} and {@link TreeFollower}, which synchronize
+ * a directory tree over a single data connection. <br/>
+ *
+ * The Leader sends the list of its files (relative path, size, modification time).
+ * The Follower compares the list with its own files and requests the changed ones,
+ * either as a whole, or using rsync (i.e. the request is followed by the checksums,
+ * see {@link Follower}). The Leader answers the requests in order, while the Follower
+ * keeps sending further requests, so there is no round trip per file.
+ */
+abstract class TreeSync {
+
+	// request types
+	static final byte END = 0;
+
+	static final byte WHOLE = 1;
+
+	static final byte SYNC = 2;
+
+	static final int BUFFER_SIZE = 65536;
+
+	protected final File root;
+
+	protected final CountingInputStream in;
+
+	protected final CountingOutputStream out;
+
+	protected UserFileAccess fileAccess = new UserFileAccess(new DefaultFileAccess(), "", "");
+
+	protected String checksumAlgorithm = Checksum.MD5;
+
+	protected boolean inPlace = false;
+
+	protected TreeSync(File root, InputStream in, OutputStream out) {
+		this.root = root;
+		this.in = new CountingInputStream(in);
+		this.out = new CountingOutputStream(out);
+	}
+
+	public void setFileAccess(UserFileAccess fileAccess) {
+		this.fileAccess = fileAccess;
+	}
+
+	/**
+	 * set the strong checksum algorithm for files that are synchronized using rsync
+	 */
+	public void setChecksumAlgorithm(String algorithm) {
+		this.checksumAlgorithm = Checksum.checkStrongChecksum(algorithm);
+	}
+
+	/**
+	 * update files in place, see {@link Follower#setInPlace(boolean)}
+	 */
+	public void setInPlace(boolean inPlace) {
+		this.inPlace = inPlace;
+	}
+
+	/**
+	 * check that the path sent by the other side is relative and does not
+	 * leave the tree, and return the corresponding file
+	 */
+	protected File resolve(String path) throws IOException {
+		boolean valid = !path.isEmpty() && !path.startsWith("/") && path.indexOf('\\')<0;
+		if(valid) {
+			for(String part: path.split("/", -1)) {
+				if(part.isEmpty() || ".".equals(part) || "..".equals(part)) {
+					valid = false;
+					break;
+				}
+			}
+		}
+		if(!valid)throw new IOException("Invalid path <"+path+">");
+		return new File(root, path);
+	}
+
+	protected long transferred() {
+		return in.count + out.count;
+	}
+
+	static class CountingInputStream extends FilterInputStream {
+
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if(b>=0)count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if(n>0)count += n;
+			return n;
+		}
+	}
+
+	static class CountingOutputStream extends FilterOutputStream {
+
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+
+}
@@ -0,0 +1,44 @@
+package eu.unicore.uftp.rsync;
+
+/**
+ * some stats about the synchronization of a directory tree
+ */
+public class TreeSyncStats {
+
+	private final String root;
+
+	public long duration;
+
+	// number of bytes sent/received via the data connection
+	public long transferred;
+
+	// number of regular files in the Leader's tree
+	public int files;
+
+	public int unchanged;
+
+	// files transferred as a whole
+	public int copied;
+
+	// files updated using rsync
+	public int synced;
+
+	// files that could not be accessed on the Follower side
+	public int skipped;
+
+	public TreeSyncStats(String root){
+		this.root = root;
+	}
+
+	public String toString(){
+		StringBuilder sb=new StringBuilder();
+		sb.append("'"+root+"' : "+duration+"ms, transferred: "+transferred);
+		sb.append("\n files: ").append(files);
+		sb.append(", unchanged: ").append(unchanged);
+		sb.append(", copied: ").append(copied);
+		sb.append(", synced: ").append(synced);
+		if(skipped>0)sb.append(", skipped: ").append(skipped);
+		return sb.toString();
+	}
+
+}
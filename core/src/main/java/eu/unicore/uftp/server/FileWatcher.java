@@ -4,8 +4,6 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.util.concurrent.TimeUnit;
 
-import eu.unicore.uftp.dpc.Utils;
-
 /**
  * helper to watch a file and invoke a specific action if it was modified.
  * This should be executed periodically, for example using a scheduled executor
@@ -31,7 +29,7 @@ public class FileWatcher implements Runnable {
 	}
 
 	public void schedule(int delay, TimeUnit timeunit){
-		Utils.getExecutor().scheduleWithFixedDelay(this, delay, delay, timeunit);
+		ServerExecutors.getHousekeepingExecutor().scheduleWithFixedDelay(this, delay, delay, timeunit);
 	}
 
 	/**
@@ -1,7 +1,9 @@
 package eu.unicore.uftp.server;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
 
 /**
  * provide server sockets within a given port range
@@ -27,12 +29,24 @@ public class PortManager {
 		this.upperBound = upperBound;
 	}
 
+	/**
+	 * create a new server socket. The socket is backed by a {@link ServerSocketChannel},
+	 * so accepted data connections have a channel, which allows to use zero-copy
+	 * file transfers
+	 */
 	public ServerSocket getServerSocket() throws IOException {
 		int port = 0;
 		if(upperBound>lowerBound){
 			port = getPort();
 		}
-		return new ServerSocket(port);
+		ServerSocketChannel ssc = ServerSocketChannel.open();
+		try{
+			ssc.bind(new InetSocketAddress(port));
+		}catch(IOException e) {
+			ssc.close();
+			throw e;
+		}
+		return ssc.socket();
 	}
 	
 	public void free(ServerSocket s) throws IOException {
@@ -0,0 +1,200 @@
+package eu.unicore.uftp.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import eu.unicore.uftp.dpc.Utils;
+
+/**
+ * Dedicated thread pools for the different kinds of server-side work,
+ * so that e.g. a burst of slow requests on the command port cannot delay
+ * client logins on the data port:
+ * <ul>
+ *   <li>handshake: processing new client connections until the session worker starts</li>
+ *   <li>command: processing requests received on the command port</li>
+ *   <li>housekeeping: periodic tasks like request expiry and file watchers</li>
+ *   <li>hash: fork-join pool for computing multi-part hashes</li>
+ * </ul>
+ *
+ * The handshake and command pools have a bounded queue, tasks are
+ * rejected (with a {@link RejectedExecutionException}) if it is full.
+ * Pool sizes and queue lengths are set via properties. The current
+ * usage and the number of rejected tasks are available via {@link #getStats()}.
+ */
+public class ServerExecutors {
+
+	public static final String HANDSHAKE_THREADS = "UFTP_HANDSHAKE_THREADS";
+	public static final String HANDSHAKE_QUEUE = "UFTP_HANDSHAKE_QUEUE";
+	public static final String COMMAND_THREADS = "UFTP_COMMAND_THREADS";
+	public static final String COMMAND_QUEUE = "UFTP_COMMAND_QUEUE";
+	public static final String HOUSEKEEPING_THREADS = "UFTP_HOUSEKEEPING_THREADS";
+	public static final String HASH_THREADS = "UFTP_HASH_THREADS";
+
+	public static final String HANDSHAKE = "Handshake";
+	public static final String COMMAND = "Command";
+	public static final String HOUSEKEEPING = "Housekeeping";
+	public static final String HASH = "Hash";
+
+	private static ThreadPoolExecutor handshake;
+	private static ThreadPoolExecutor command;
+	private static ScheduledThreadPoolExecutor housekeeping;
+	private static ForkJoinPool hash;
+
+	private static final Map<String, ThreadPoolExecutor> executors = new LinkedHashMap<>();
+	private static final Map<String, RejectionCounter> rejections = new LinkedHashMap<>();
+
+	private ServerExecutors() {}
+
+	/**
+	 * executor for processing new client connections on the data port
+	 */
+	public static synchronized ExecutorService getHandshakeExecutor() {
+		if(handshake == null) {
+			handshake = create(HANDSHAKE, getInt(HANDSHAKE_THREADS, 16), getInt(HANDSHAKE_QUEUE, 1024));
+		}
+		return handshake;
+	}
+
+	/**
+	 * executor for processing requests received on the command port
+	 */
+	public static synchronized ExecutorService getCommandExecutor() {
+		if(command == null) {
+			command = create(COMMAND, getInt(COMMAND_THREADS, 8), getInt(COMMAND_QUEUE, 256));
+		}
+		return command;
+	}
+
+	/**
+	 * scheduler for periodic housekeeping tasks
+	 */
+	public static synchronized ScheduledExecutorService getHousekeepingExecutor() {
+		if(housekeeping == null) {
+			RejectionCounter rc = new RejectionCounter(HOUSEKEEPING);
+			housekeeping = new ScheduledThreadPoolExecutor(getInt(HOUSEKEEPING_THREADS, 2),
+					threadFactory(HOUSEKEEPING), rc);
+			register(HOUSEKEEPING, housekeeping, rc);
+		}
+		return housekeeping;
+	}
+
+	/**
+	 * fork-join pool for CPU-bound work like computing multi-part hashes
+	 */
+	public static synchronized ForkJoinPool getHashPool() {
+		if(hash == null) {
+			final AtomicInteger count = new AtomicInteger(0);
+			hash = new ForkJoinPool(getInt(HASH_THREADS, Runtime.getRuntime().availableProcessors()),
+					(pool)->{
+						ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+						t.setName("UFTPD-"+HASH+"-"+count.incrementAndGet());
+						return t;
+					}, null, false);
+			final ForkJoinPool p = hash;
+			Runtime.getRuntime().addShutdownHook(new Thread(()->p.shutdownNow()));
+		}
+		return hash;
+	}
+
+	/**
+	 * get the current statistics of all executors, as a map of executor name to a
+	 * description like "threads=2/16 active=1 queued=0 completed=25 rejected=0"
+	 */
+	public static synchronized Map<String, String> getStats() {
+		Map<String, String> stats = new LinkedHashMap<>();
+		for(Map.Entry<String, ThreadPoolExecutor> e: executors.entrySet()) {
+			ThreadPoolExecutor ex = e.getValue();
+			stats.put(e.getKey(), String.format("threads=%d/%d active=%d queued=%d completed=%d rejected=%d",
+					ex.getPoolSize(), ex.getMaximumPoolSize(), ex.getActiveCount(),
+					ex.getQueue().size(), ex.getCompletedTaskCount(),
+					rejections.get(e.getKey()).count.get()));
+		}
+		if(hash!=null) {
+			stats.put(HASH, String.format("threads=%d/%d active=%d queued=%d steals=%d",
+					hash.getPoolSize(), hash.getParallelism(), hash.getActiveThreadCount(),
+					hash.getQueuedSubmissionCount()+hash.getQueuedTaskCount(), hash.getStealCount()));
+		}
+		return stats;
+	}
+
+	/**
+	 * number of tasks rejected by the named executor
+	 */
+	public static synchronized long getRejectedCount(String name) {
+		RejectionCounter rc = rejections.get(name);
+		return rc != null ? rc.count.get() : 0;
+	}
+
+	/**
+	 * number of tasks waiting in the queue of the named executor
+	 */
+	public static synchronized int getQueueDepth(String name) {
+		ThreadPoolExecutor ex = executors.get(name);
+		return ex != null ? ex.getQueue().size() : 0;
+	}
+
+	static ThreadPoolExecutor create(String name, int threads, int queueLength) {
+		RejectionCounter rc = new RejectionCounter(name);
+		ThreadPoolExecutor ex = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<>(queueLength), threadFactory(name), rc);
+		ex.allowCoreThreadTimeOut(true);
+		register(name, ex, rc);
+		return ex;
+	}
+
+	private static void register(String name, ThreadPoolExecutor ex, RejectionCounter rc) {
+		executors.put(name, ex);
+		rejections.put(name, rc);
+		Runtime.getRuntime().addShutdownHook(new Thread(()->ex.shutdownNow()));
+	}
+
+	private static ThreadFactory threadFactory(String name) {
+		final AtomicInteger count = new AtomicInteger(0);
+		return (r)->{
+			Thread t = Utils.newThread(r, "UFTPD-"+name+"-"+count.incrementAndGet());
+			if(!t.isDaemon())t.setDaemon(true);
+			return t;
+		};
+	}
+
+	private static int getInt(String property, int defaultValue) {
+		try {
+			return Math.max(1, Integer.parseInt(Utils.getProperty(property, String.valueOf(defaultValue))));
+		}catch(NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * counts and rejects tasks
+	 */
+	private static class RejectionCounter implements RejectedExecutionHandler {
+
+		private final String name;
+
+		private final AtomicLong count = new AtomicLong(0);
+
+		RejectionCounter(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+			count.incrementAndGet();
+			throw new RejectedExecutionException(name+" executor is busy or shut down");
+		}
+	}
+}
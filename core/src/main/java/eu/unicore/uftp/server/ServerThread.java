@@ -7,6 +7,7 @@ import java.net.SocketTimeoutException;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -70,7 +71,12 @@ public class ServerThread extends Thread {
             while (!isHalt) {
                 try {
                     final Connection connection = server.accept();
-                    Utils.getExecutor().execute(()->processConnection(connection, maxStreams));
+                    try {
+                        ServerExecutors.getHandshakeExecutor().execute(()->processConnection(connection, maxStreams));
+                    } catch (RejectedExecutionException ree) {
+                        logger.warn("Rejecting connection attempt from {}: {}", connection.getAddress(), ree.getMessage());
+                        connection.close();
+                    }
                 } catch (SocketTimeoutException ste) {
                     //timeout, just re-try if not halted
                 } catch (IOException e) {
@@ -90,7 +96,8 @@ public class ServerThread extends Thread {
         try {
         	final UFTPBaseRequest job = checkValid(connection);
         	if(job!=null){
-        		WorkerFactories.INSTANCE.createWorker(this, connection, job, maxStreams, bufferSize).start();
+        		Thread worker = WorkerFactories.INSTANCE.createWorker(this, connection, job, maxStreams, bufferSize);
+        		Utils.start(worker, worker.getName());
         		return;
         	}
         } catch (ProtocolViolationException e) {
@@ -197,7 +204,7 @@ public class ServerThread extends Thread {
     }
 
     private final void setupExpiryCheck() {
-    	Utils.getExecutor().scheduleWithFixedDelay(()-> {
+    	ServerExecutors.getHousekeepingExecutor().scheduleWithFixedDelay(()-> {
     		try{
     			jobStore.checkForExpiredJobs();
     		}catch(Exception ex) {}},
@@ -28,6 +28,36 @@ public interface UFTPCommands {
     // server can unpack archive data from incoming data stream
     public static final String ARCHIVE = "ARCHIVE";
 
+    // multiple data streams can be used in "decoupled" mode
+    // (i.e. not running in lockstep), enabled via "OPTS MULTISTREAM DECOUPLED"
+    public static final String MULTISTREAM_DECOUPLED = "MULTISTREAM-DECOUPLED";
+
+    // multistream mode option, "OPTS MULTISTREAM DECOUPLED|LOCKSTEP"
+    public static final String MULTISTREAM = "MULTISTREAM";
+
+    // chunk size for the decoupled multistream mode can be set via "OPTS CHUNKSIZE <size>|AUTO"
+    public static final String CHUNKSIZE = "CHUNKSIZE";
+
+    // multi-part hashes (computed in parallel), enabled via "OPTS HASH-PARTS <part size>"
+    public static final String HASH_PARTS = "HASH-PARTS";
+
+    // strong checksum for rsync blocks can be chosen via "OPTS SYNC-CHECKSUM <algorithm>"
+    public static final String SYNC_CHECKSUM = "SYNC-CHECKSUM";
+
+    // rsync block size can be set via "OPTS SYNC-BLOCKSIZE <size>|AUTO"
+    public static final String SYNC_BLOCKSIZE = "SYNC-BLOCKSIZE";
+
+    // rsync can update the file in place, enabled via "OPTS SYNC-INPLACE ON"
+    public static final String SYNC_INPLACE = "SYNC-INPLACE";
+
+    // rsync of a single file can use all data streams in parallel (one partition
+    // of the file per stream), enabled via "OPTS SYNC-PARALLEL ON"
+    public static final String SYNC_PARALLEL = "SYNC-PARALLEL";
+
+    // whole directory trees can be synchronized via "SYNC-TREE-TO-CLIENT <dir>"
+    // and "SYNC-TREE-TO-SERVER <dir>"
+    public static final String SYNC_TREE = "SYNC-TREE";
+
     // pseudo feature denoting that server expects RFC compliant
     // "RANG startbyte endbyte"
     public static final String FEATURE_RFC_RANG = "RFC_RANG";
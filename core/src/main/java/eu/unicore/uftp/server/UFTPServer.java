@@ -129,6 +129,7 @@ public class UFTPServer implements Runnable {
 		logger.info("Maximum streams per connection: {}", maxStreams);
 		logger.info("File buffer size per client: {} kB", bufferSize);
 		logger.info("Client IP check is {}", (checkClientIP ? "ENABLED" : "DISABLED"));
+		logger.info("Virtual threads are {}", (Utils.isVirtualThreads() ? "ENABLED" : "DISABLED"));
 
 		// setup key file list for getUserinfo()
 		String fileListS = Utils.getProperty(UFTPConstants.ENV_UFTP_KEYFILES, null);
@@ -154,10 +155,10 @@ public class UFTPServer implements Runnable {
 					sslHelper.checkAccess(jobSocket);
 
 					JobConnectionWorker jcw = new JobConnectionWorker(jobSocket, svrThread);
-					Utils.getExecutor().execute(jcw);
+					ServerExecutors.getCommandExecutor().execute(jcw);
 
 				} catch (RejectedExecutionException ree) {
-					handleErrorAndClose(jobSocket, "", ree);
+					handleErrorAndClose(jobSocket, "Rejecting command connection from "+jobSocket.getInetAddress(), ree);
 				} catch (IOException e) {
 					handleErrorAndClose(jobSocket, "Error receiving job", e);
 				}
@@ -225,6 +226,8 @@ public class UFTPServer implements Runnable {
 		}
 		sb.append("\nListenPort: ").append(srvport);
 		sb.append("\nListenAddress: ").append(srvip.getHostAddress());
+		ServerExecutors.getStats().forEach((name, stats)->
+			sb.append("\nExecutor.").append(name).append(": ").append(stats));
 		return sb.toString();
 	}
 
@@ -8,8 +8,10 @@ import java.net.UnknownHostException;
 import java.util.Arrays;
 import java.util.Properties;
 
+import eu.unicore.uftp.dpc.CryptoContext;
 import eu.unicore.uftp.dpc.Session;
 import eu.unicore.uftp.dpc.Utils;
+import eu.unicore.uftp.dpc.Utils.CompressionAlgorithm;
 import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
 
 /**
@@ -42,6 +44,13 @@ public class UFTPSessionRequest extends UFTPBaseRequest {
      * whether to compress the data
      */
     private boolean compress;
+
+    private CompressionAlgorithm compressionAlgorithm = CompressionAlgorithm.GZIP;
+
+    /**
+     * compression level (1-9), 0 for the algorithm's default
+     */
+    private int compressionLevel = 0;
     
     /**
      * encryption key - null for no encryption
@@ -50,6 +59,11 @@ public class UFTPSessionRequest extends UFTPBaseRequest {
 
     private EncryptionAlgorithm algo = EncryptionAlgorithm.BLOWFISH;
 
+    /**
+     * prepared key material and ciphers, created on first use
+     */
+    private CryptoContext cryptoContext;
+
     /**
      * whether to append to an existing file
      */
@@ -113,6 +127,8 @@ public class UFTPSessionRequest extends UFTPBaseRequest {
         baseDirectory = properties.getProperty("file");
         append = Boolean.parseBoolean(properties.getProperty("append"));
         compress = Boolean.parseBoolean(properties.getProperty("compress"));
+        compressionAlgorithm = CompressionAlgorithm.valueOf(properties.getProperty("compress-algo", "GZIP"));
+        compressionLevel = Integer.parseInt(properties.getProperty("compress-level", "0"));
         streams = Integer.parseInt(properties.getProperty("streams", "2"));
         key = Utils.decodeBase64(properties.getProperty("key"));
         algo = EncryptionAlgorithm.valueOf(properties.getProperty("algo", "BLOWFISH"));
@@ -142,6 +158,12 @@ public class UFTPSessionRequest extends UFTPBaseRequest {
         os.write(("append=" + String.valueOf(append) + "\n").getBytes());
         os.write(("streams=" + String.valueOf(streams) + "\n").getBytes());
         os.write(("compress=" + String.valueOf(compress) + "\n").getBytes());
+        if (compress && compressionAlgorithm != CompressionAlgorithm.GZIP) {
+            os.write(("compress-algo=" + compressionAlgorithm + "\n").getBytes());
+        }
+        if (compress && compressionLevel > 0) {
+            os.write(("compress-level=" + compressionLevel + "\n").getBytes());
+        }
         if(group!=null){
         	os.write(("group=" + group + "\n").getBytes());
         }
@@ -217,20 +239,51 @@ public class UFTPSessionRequest extends UFTPBaseRequest {
 		this.compress = compress;
 	}
 
+	public CompressionAlgorithm getCompressionAlgorithm() {
+		return compressionAlgorithm;
+	}
+
+	public void setCompressionAlgorithm(CompressionAlgorithm compressionAlgorithm) {
+		this.compressionAlgorithm = compressionAlgorithm;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public void setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+	}
+
 	public byte[] getKey() {
 		return key;
 	}
 
-	public void setKey(byte[] key) {
+	public synchronized void setKey(byte[] key) {
 		this.key = key;
+		this.cryptoContext = null;
 	}
 
 	public EncryptionAlgorithm getEncryptionAlgorithm() {
 		return algo;
 	}
 
-	public void setEncryptionAlgorithm(EncryptionAlgorithm algo) {
+	public synchronized void setEncryptionAlgorithm(EncryptionAlgorithm algo) {
 		this.algo = algo;
+		this.cryptoContext = null;
+	}
+
+	/**
+	 * the crypto context for this job's key, which is shared by all
+	 * sessions and data streams of the job
+	 *
+	 * @return the context or <code>null</code> if there is no key
+	 */
+	public synchronized CryptoContext getCryptoContext() {
+		if(cryptoContext==null && key!=null) {
+			cryptoContext = new CryptoContext(key, algo);
+		}
+		return cryptoContext;
 	}
 
 	public boolean isAppend() {
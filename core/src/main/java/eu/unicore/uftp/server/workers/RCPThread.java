@@ -8,6 +8,7 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import eu.unicore.uftp.client.UFTPSessionClient;
+import eu.unicore.uftp.dpc.Utils.CompressionAlgorithm;
 import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
 import eu.unicore.util.Log;
 
@@ -25,6 +26,8 @@ public class RCPThread extends Thread {
 	private final String secret;
 	private byte[] key;
 	private EncryptionAlgorithm encryptionAlgorithm;
+	private CompressionAlgorithm compressionAlgorithm = CompressionAlgorithm.GZIP;
+	private int compressionLevel = 0;
 
 	boolean isSend;
 	private String remotePath;
@@ -68,6 +71,11 @@ public class RCPThread extends Thread {
 		this.compress = compress;
 	}
 
+	public void setCompression(CompressionAlgorithm algo, int level) {
+		this.compressionAlgorithm = algo;
+		this.compressionLevel = level;
+	}
+
 	public void setRange(long offset, long size) {
 		this.offset = offset;
 		this.size = size;
@@ -85,6 +93,8 @@ public class RCPThread extends Thread {
 			c.setKey(key);
 			c.setEncryptionAlgorithm(encryptionAlgorithm);
 			c.setCompress(compress);
+			c.setCompressionAlgorithm(compressionAlgorithm);
+			c.setCompressionLevel(compressionLevel);
 			c.connect();
 			statusMessage = "RUNNING";
 			if(isSend) {
@@ -8,7 +8,13 @@ import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.SocketChannel;
 import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.List;
 
 import org.apache.commons.compress.archivers.ArchiveEntry;
@@ -18,10 +24,15 @@ import org.apache.commons.compress.archivers.ArchiveStreamFactory;
 import org.apache.logging.log4j.Logger;
 
 import eu.unicore.uftp.dpc.AuthorizationFailureException;
+import eu.unicore.uftp.dpc.BufferPool;
+import eu.unicore.uftp.dpc.CompressionStats;
 import eu.unicore.uftp.dpc.DPCServer.Connection;
+import eu.unicore.uftp.dpc.MultipartHash;
 import eu.unicore.uftp.dpc.Session;
+import eu.unicore.uftp.dpc.Session.Mode;
 import eu.unicore.uftp.dpc.UFTPConstants;
 import eu.unicore.uftp.dpc.Utils;
+import eu.unicore.uftp.jparss.PBaseSocket;
 import eu.unicore.uftp.jparss.PSocket;
 import eu.unicore.uftp.rsync.Leader;
 import eu.unicore.uftp.rsync.LeaderChannel;
@@ -30,6 +41,13 @@ import eu.unicore.uftp.rsync.Follower;
 import eu.unicore.uftp.rsync.FollowerChannel;
 import eu.unicore.uftp.rsync.SocketLeaderChannel;
 import eu.unicore.uftp.rsync.SocketFollowerChannel;
+import eu.unicore.uftp.rsync.PartitionedFollower;
+import eu.unicore.uftp.rsync.PartitionedLeader;
+import eu.unicore.uftp.rsync.SignatureCache;
+import eu.unicore.uftp.rsync.TreeFollower;
+import eu.unicore.uftp.rsync.TreeLeader;
+import eu.unicore.uftp.rsync.TreeSyncStats;
+import eu.unicore.uftp.server.ServerExecutors;
 import eu.unicore.uftp.server.ServerThread;
 import eu.unicore.uftp.server.requests.UFTPSessionRequest;
 import eu.unicore.util.Log;
@@ -64,10 +82,45 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 
 	private final int maxStreams;
 
-	private final byte[] buffer = new byte[BUFFSIZE];
+	/**
+	 * max number of bytes handed to a single FileChannel.transferTo() call
+	 */
+	public final static int ZEROCOPY_CHUNKSIZE = 8 * 1024 * 1024;
+
+	/**
+	 * zero-copy transfers can be switched off via this property / environment variable
+	 */
+	public static final String DISABLE_ZEROCOPY = "UFTP_DISABLE_ZEROCOPY";
+
+	private static final boolean zeroCopyEnabled = !Boolean.parseBoolean(Utils.getProperty(DISABLE_ZEROCOPY, "false"));
+
+	/**
+	 * memory-mapped reads of large files (RETR and HASH) can be switched on via this
+	 * property / environment variable
+	 */
+	public static final String ENABLE_MMAP = "UFTP_ENABLE_MMAP";
+
+	/**
+	 * minimum number of bytes to be read before memory-mapping is used
+	 */
+	public static final String MMAP_THRESHOLD = "UFTP_MMAP_THRESHOLD";
+
+	/**
+	 * size of the segments that are mapped one after the other
+	 */
+	public final static int MMAP_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+	private static final boolean mmapEnabled = Boolean.parseBoolean(Utils.getProperty(ENABLE_MMAP, "false"));
+
+	private static final long mmapThreshold = Long.parseLong(Utils.getProperty(MMAP_THRESHOLD, String.valueOf(MMAP_SEGMENT_SIZE)));
 
 	private Socket socket = null;
 
+	/**
+	 * statistics on block compression in this session
+	 */
+	private final CompressionStats compressionStats = new CompressionStats();
+
 	/**
 	 * FILE read/write buffer size
 	 */
@@ -130,6 +183,11 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 					connection.sendError(500, Log.createFaultMessage("", afe));
 					continue;
 				}
+				if(socket instanceof PSocket) {
+					// multistream options may have been changed by the client
+					((PSocket)socket).setDecoupled(session.isDecoupledStreams());
+					((PSocket)socket).setChunkSize(session.getChunkSize());
+				}
 				switch (action) {
 
 				case Session.ACTION_OPEN_SOCKET:
@@ -158,6 +216,14 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 					syncToServer(session);
 					break;
 
+				case Session.ACTION_SYNC_TREE_TO_CLIENT:
+					syncTreeToClient(session);
+					break;
+
+				case Session.ACTION_SYNC_TREE_TO_SERVER:
+					syncTreeToServer(session);
+					break;
+
 				case Session.ACTION_END:
 					cleanup();
 					break;
@@ -221,6 +287,11 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 	 * @throws java.lang.InterruptedException
 	 */
 	protected void sendData(Session session) throws IOException, InterruptedException {
+		SocketChannel channel = getZeroCopyChannel();
+		if(channel!=null) {
+			sendDataZeroCopy(session, channel);
+			return;
+		}
 		RandomAccessFile ra = session.getLocalRandomAccessFile();
 		OutputStream target = preSend(session);
 		
@@ -229,22 +300,98 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 		long startTime = System.currentTimeMillis();
 		long bytesToSend = session.getNumberOfBytes();
 		boolean controlRate = job.getRateLimit() > 0;
-		final int bufSize = buffer.length;
+		final int bufSize = BUFFSIZE;
+		final ByteBuffer pooled = BufferPool.HEAP.acquire(bufSize);
+		final byte[] buffer = pooled.array();
 		int n, len;
 		long total = 0;
+		try {
+			long mappable = getMappableBytes(ra, session.getOffset(), bytesToSend);
+			long position = session.getOffset();
+			while (total < mappable) {
+				MappedByteBuffer segment = map(ra, position, mappable - total);
+				while(segment.hasRemaining()) {
+					n = Math.min(bufSize, segment.remaining());
+					segment.get(buffer, 0, n);
+					target.write(buffer, 0, n);
+					total += n;
+					if (controlRate) {
+						controlRate(total, startTime);
+					}
+				}
+				position += segment.capacity();
+			}
+			if(mappable>0)ra.seek(position);
+			while (total < bytesToSend) {
+				len = (int) Math.min(bufSize, bytesToSend - total);
+				n = ra.read(buffer, 0, len);
+				if (n < 0) {
+					break;
+				}
+				target.write(buffer, 0, n);
+				total += n;
+				if (controlRate) {
+					controlRate(total, startTime);
+				}
+			}
+			postSend(target, session, total, startTime, "Send", true);
+		}catch(Exception ex) {
+			// stop any encrypting threads, the session ends anyway
+			Utils.closeQuietly(target);
+			throw ex;
+		}finally {
+			BufferPool.HEAP.release(pooled);
+		}
+	}
+
+	/**
+	 * send data from a file using FileChannel.transferTo(), i.e. without
+	 * copying the data through user space. If the rate is limited, data is 
+	 * sent in slices of about 1/10th of the rate limit
+	 *
+	 * @param session - the session containing the required information
+	 * @param target - the data channel
+	 * @throws IOException
+	 * @throws java.lang.InterruptedException
+	 */
+	protected void sendDataZeroCopy(Session session, SocketChannel target) throws IOException, InterruptedException {
+		FileChannel source = session.getLocalRandomAccessFile().getChannel();
+		long position = session.getOffset();
+		long startTime = System.currentTimeMillis();
+		long bytesToSend = session.getNumberOfBytes();
+		boolean controlRate = job.getRateLimit() > 0;
+		long sliceSize = controlRate ?
+				Math.max(BUFFSIZE, Math.min(ZEROCOPY_CHUNKSIZE, job.getRateLimit() / 10)) : ZEROCOPY_CHUNKSIZE;
+		long n, len;
+		long total = 0;
 		while (total < bytesToSend) {
-			len = (int) Math.min(bufSize, bytesToSend - total);
-			n = ra.read(buffer, 0, len);
-			if (n < 0) {
+			len = Math.min(sliceSize, bytesToSend - total);
+			n = source.transferTo(position + total, len, target);
+			if (n <= 0) {
+				// blocking channel, so this means end of file
 				break;
 			}
-			target.write(buffer, 0, n);
 			total += n;
 			if (controlRate) {
 				controlRate(total, startTime);
 			}
 		}
-		postSend(target, session, total, startTime, "Send", true);
+		postSend(null, session, total, startTime, "Send", true);
+	}
+
+	/**
+	 * check whether we can send/receive data directly via the data connection's channel:
+	 * no encryption, no compression and a single (non-parallel) data connection
+	 * 
+	 * @return the socket channel, or <code>null</code> if zero-copy cannot be used
+	 */
+	private SocketChannel getZeroCopyChannel() {
+		if(!zeroCopyEnabled || socket==null || socket instanceof PSocket
+				|| job.getKey()!=null || job.isCompress()) {
+			return null;
+		}
+		SocketChannel channel = socket.getChannel();
+		return channel!=null && channel.isBlocking() ? channel : null;
 	}
 
 	/**
@@ -255,28 +402,58 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 	 * @throws java.lang.InterruptedException
 	 */
 	protected void sendHashData(Session session) throws IOException, InterruptedException {
+		if(session.getHashPartSize()>0) {
+			sendMultipartHashData(session);
+			return;
+		}
 		RandomAccessFile ra = session.getLocalRandomAccessFile();
 		ra.seek(session.getOffset());
 		long startTime = System.currentTimeMillis();
 		long intervalStart = System.currentTimeMillis();
 		long bytesToSend = session.getNumberOfBytes();
-		final int bufSize = buffer.length;
+		final int bufSize = BUFFSIZE;
+		final ByteBuffer pooled = BufferPool.HEAP.acquire(bufSize);
+		final byte[] buffer = pooled.array();
 		int n, len;
 		long total = 0;
 		MessageDigest md = session.getMessageDigest();
-		while (total < bytesToSend) {
-			len = (int) Math.min(bufSize, bytesToSend - total);
-			n = ra.read(buffer, 0, len);
-			if (n < 0) {
-				break;
+		try {
+			long mappable = getMappableBytes(ra, session.getOffset(), bytesToSend);
+			long position = session.getOffset();
+			while (total < mappable) {
+				MappedByteBuffer segment = map(ra, position, mappable - total);
+				// digest directly from the mapping, in slices
+				// so that the keep-alive check runs regularly
+				while(segment.hasRemaining()) {
+					n = Math.min(MMAP_SLICE_SIZE, segment.remaining());
+					segment.limit(segment.position() + n);
+					md.update(segment);
+					segment.limit(segment.capacity());
+					total += n;
+					if(System.currentTimeMillis()-intervalStart > 30000) {
+						intervalStart = System.currentTimeMillis();
+						connection.sendControl("213-");
+					}
+				}
+				position += segment.capacity();
 			}
-			md.update(buffer, 0, n);
-			total += n;
-			// keep the client entertained
-			if(System.currentTimeMillis()-intervalStart > 30000) {
-				intervalStart = System.currentTimeMillis();
-				connection.sendControl("213-");
+			if(mappable>0)ra.seek(position);
+			while (total < bytesToSend) {
+				len = (int) Math.min(bufSize, bytesToSend - total);
+				n = ra.read(buffer, 0, len);
+				if (n < 0) {
+					break;
+				}
+				md.update(buffer, 0, n);
+				total += n;
+				// keep the client entertained
+				if(System.currentTimeMillis()-intervalStart > 30000) {
+					intervalStart = System.currentTimeMillis();
+					connection.sendControl("213-");
+				}
 			}
+		}finally {
+			BufferPool.HEAP.release(pooled);
 		}
 		String hash = Utils.hexString(md);
 		String msg = "213 "+session.getHashAlgorithm()+" "
@@ -286,38 +463,93 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 		postSend(null, session, total, startTime, session.getHashAlgorithm(), false);
 	}
 
-	protected void readData(Session session) throws IOException, InterruptedException {
-		InputStream reader;
-		if(!(socket instanceof PSocket)){
-			if (job.getKey() != null) {
-				//need to wrap here for encryption
-				reader = Utils.getDecryptStream(socket.getInputStream(), job.getKey(), job.getEncryptionAlgorithm());
-			} else {
-				reader = socket.getInputStream();
+	/**
+	 * compute a multi-part hash, where the parts are hashed in parallel.
+	 * The part hashes are sent (in order) as they become available,
+	 * followed by the root hash
+	 *
+	 * @param session - the session containing the required information
+	 * @throws IOException
+	 */
+	protected void sendMultipartHashData(Session session) throws IOException {
+		RandomAccessFile ra = session.getLocalRandomAccessFile();
+		long startTime = System.currentTimeMillis();
+		long offset = session.getOffset();
+		long length = Math.max(0, Math.min(session.getNumberOfBytes(), ra.length() - offset));
+		String algo = session.getHashAlgorithm();
+		connection.sendControl("213-");
+		MultipartHash.Callback callback = new MultipartHash.Callback() {
+			@Override
+			public void part(int index, long first, long last, byte[] digest) throws IOException {
+				connection.sendControl(" "+index+" "+first+"-"+last+" "+Utils.hexString(digest));
 			}
-			if(job.isCompress()){
-				reader = Utils.getDecompressStream(reader);
+			@Override
+			public void waiting() throws IOException {
+				connection.sendControl("213-");
 			}
+		};
+		String hash;
+		try {
+			List<byte[]> parts = MultipartHash.compute(ra.getChannel(), algo, offset, length,
+					session.getHashPartSize(), ServerExecutors.getHashPool(), callback);
+			hash = Utils.hexString(MultipartHash.combine(algo, parts));
+		}catch(NoSuchAlgorithmException e) {
+			throw new IOException(e);
 		}
-		else {
-			reader = socket.getInputStream();
-		}
+		String msg = "213 "+algo+" "+offset+"-"+(offset+length-1)
+					+ " "+hash+" "+session.getLocalFile().getPath();
+		connection.sendControl(msg);
+		postSend(null, session, length, startTime, algo, false);
+	}
+
+	private static final int MMAP_SLICE_SIZE = 1024 * 1024;
+
+	/**
+	 * get the number of bytes to read via memory-mapping, starting at the
+	 * given offset. Returns 0 if mapping is disabled or the number of bytes
+	 * is below the threshold
+	 */
+	private long getMappableBytes(RandomAccessFile ra, long offset, long bytesToRead) throws IOException {
+		if(!mmapEnabled)return 0;
+		long available = Math.min(bytesToRead, ra.length() - offset);
+		return available >= mmapThreshold ? available : 0;
+	}
+
+	// map the next segment (read-only)
+	private MappedByteBuffer map(RandomAccessFile ra, long position, long remaining) throws IOException {
+		long len = Math.min(MMAP_SEGMENT_SIZE, remaining);
+		return ra.getChannel().map(MapMode.READ_ONLY, position, len);
+	}
+
+	protected void readData(Session session) throws IOException, InterruptedException {
+		// plain data is read directly from the data channel
+		SocketChannel channel = session.isArchiveMode() ? null : getZeroCopyChannel();
+		InputStream reader = channel==null ? preReceive() : null;
 		long startTime = System.currentTimeMillis();
 
 		long total = 0;
 		long numFiles = -1;
 
-		if(session.isArchiveMode()) {
-			try{
-				ReceivedDataStats rcv = readArchiveData(session, reader);
-				total = rcv.size;
-				numFiles = rcv.numFiles;
-			}catch(Exception ex) {
-				throw new IOException(ex);
+		try {
+			if(session.isArchiveMode()) {
+				try{
+					ReceivedDataStats rcv = readArchiveData(session, reader);
+					total = rcv.size;
+					numFiles = rcv.numFiles;
+				}catch(Exception ex) {
+					throw new IOException(ex);
+				}
 			}
-		}
-		else {
-			total = readNormalData(session, reader);
+			else if(channel!=null) {
+				total = readNormalData(session, channel);
+			}
+			else {
+				total = readNormalData(session, reader);
+			}
+		}catch(Exception ex) {
+			// stop any decrypting threads, the session ends anyway
+			Utils.closeQuietly(reader);
+			throw ex;
 		}
 		if(!session.isKeepAlive())Utils.closeQuietly(reader);
 		session.reset();
@@ -326,6 +558,25 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 		logUsage("Receive", total, millis, connection.getAddress(), numFiles);
 	}
 
+	private InputStream preReceive() throws IOException {
+		InputStream reader = null;
+		if(!(socket instanceof PSocket)){
+			if (job.getKey() != null) {
+				//need to wrap here for encryption
+				reader = Utils.getDecryptStream(socket.getInputStream(), job.getCryptoContext());
+			} else {
+				reader = socket.getInputStream();
+			}
+			if(job.isCompress()){
+				reader = Utils.getDecompressStream(reader, job.getCompressionAlgorithm(), compressionStats);
+			}
+		}
+		else {
+			reader = socket.getInputStream();
+		}
+		return reader;
+	}
+
 	private long readNormalData(Session session, InputStream reader) throws IOException, InterruptedException {
 		long offset = session.getOffset();
 		long bytesToRead = session.getNumberOfBytes();
@@ -339,6 +590,17 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 		return total;
 	}
 
+	private long readNormalData(Session session, SocketChannel source) throws IOException, InterruptedException {
+		long offset = session.getOffset();
+		long bytesToRead = session.getNumberOfBytes();
+		FileChannel target = session.getLocalRandomAccessFile().getChannel();
+		long total = copyData(source, target, offset, bytesToRead);
+		if(!session.haveRange()){
+			// make sure we truncate to properly handle over-writing existing files
+			target.truncate(offset+total);
+		}
+		return total;
+	}
 
 	private ReceivedDataStats readArchiveData(Session session, InputStream reader)
 			throws IOException, ArchiveException, InterruptedException {
@@ -385,26 +647,65 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 	// controls transfer rate
 	private long copyData(InputStream in, RandomAccessFile ra, long bytesToRead) 
 			throws IOException, InterruptedException {
-		final int bufSize = buffer.length;
+		final int bufSize = BUFFSIZE;
+		final ByteBuffer pooled = BufferPool.HEAP.acquire(bufSize);
+		final byte[] buffer = pooled.array();
 		int n, len;
 		long total = 0;
 		long startTime = System.currentTimeMillis();
 		boolean controlRate = job.getRateLimit() > 0;
-		while (total < bytesToRead) {
-			len = (int) Math.min(bufSize, bytesToRead - total);
-			n = in.read(buffer, 0, len);
-			if (n < 0) {
-				break;
-			}
-			ra.write(buffer, 0, n);
-			total += n;
-			if (controlRate) {
-				controlRate(total, startTime);
+		try {
+			while (total < bytesToRead) {
+				len = (int) Math.min(bufSize, bytesToRead - total);
+				n = in.read(buffer, 0, len);
+				if (n < 0) {
+					break;
+				}
+				ra.write(buffer, 0, n);
+				total += n;
+				if (controlRate) {
+					controlRate(total, startTime);
+				}
 			}
+		}finally {
+			BufferPool.HEAP.release(pooled);
 		}
 		return total;
 	}
 	
+	// copy the given amount of bytes from the data channel to the target file
+	// at the given position, using a pooled direct buffer. Controls transfer rate
+	private long copyData(SocketChannel in, FileChannel out, long position, long bytesToRead)
+			throws IOException, InterruptedException {
+		final int bufSize = Math.max(BUFFSIZE, bufferSize);
+		ByteBuffer buf = BufferPool.DIRECT.acquire(bufSize);
+		int n;
+		long total = 0;
+		long startTime = System.currentTimeMillis();
+		boolean controlRate = job.getRateLimit() > 0;
+		try {
+			while (total < bytesToRead) {
+				buf.clear();
+				buf.limit((int) Math.min(bufSize, bytesToRead - total));
+				n = in.read(buf);
+				if (n < 0) {
+					break;
+				}
+				buf.flip();
+				while(buf.hasRemaining()) {
+					position += out.write(buf, position);
+				}
+				total += n;
+				if (controlRate) {
+					controlRate(total, startTime);
+				}
+			}
+		}finally {
+			BufferPool.DIRECT.release(buf);
+		}
+		return total;
+	}
+
 	/**
 	 * send data from a file
 	 *
@@ -418,22 +719,32 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 		long bytesToSend = session.getNumberOfBytes();
 		long startTime = System.currentTimeMillis();
 		boolean controlRate = job.getRateLimit() > 0;
-		final int bufSize = buffer.length;
+		final int bufSize = BUFFSIZE;
+		final ByteBuffer pooled = BufferPool.HEAP.acquire(bufSize);
+		final byte[] buffer = pooled.array();
 		int n, len;
 		long total = 0;
-		while (total < bytesToSend) {
-			len = (int) Math.min(bufSize, bytesToSend - total);
-			n = source.read(buffer, 0, len);
-			if (n < 0) {
-				break;
-			}
-			target.write(buffer, 0, n);
-			total += n;
-			if (controlRate) {
-				controlRate(total, startTime);
+		try {
+			while (total < bytesToSend) {
+				len = (int) Math.min(bufSize, bytesToSend - total);
+				n = source.read(buffer, 0, len);
+				if (n < 0) {
+					break;
+				}
+				target.write(buffer, 0, n);
+				total += n;
+				if (controlRate) {
+					controlRate(total, startTime);
+				}
 			}
+			postSend(target, session, total, startTime, "Send", true);
+		}catch(Exception ex) {
+			// stop any encrypting threads, the session ends anyway
+			Utils.closeQuietly(target);
+			throw ex;
+		}finally {
+			BufferPool.HEAP.release(pooled);
 		}
-		postSend(target, session, total, startTime, "Send", true);
 	}
 	
 	private OutputStream preSend(Session session)throws IOException {
@@ -441,12 +752,12 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 		if(!(socket instanceof PSocket)){
 			if (job.getKey() != null) {
 				//need to wrap here for encryption
-				target = Utils.getEncryptStream(socket.getOutputStream(), job.getKey(), job.getEncryptionAlgorithm());
+				target = Utils.getEncryptStream(socket.getOutputStream(), job.getCryptoContext());
 			} else {
 				target = socket.getOutputStream();
 			}
 			if(job.isCompress()){
-				target = Utils.getCompressStream(target);
+				target = Utils.getCompressStream(target, job.getCompressionAlgorithm(), job.getCompressionLevel(), compressionStats);
 			}
 		}
 		else {
@@ -457,8 +768,9 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 	
 	private void postSend(OutputStream target, Session session, long total, long startTime, String operation, boolean send226) throws IOException {
 		if(target!=null) {
-			target.flush();
+			// finish first, so encrypted data ends with a non-empty last chunk
 			Utils.finishWriting(target);
+			target.flush();
 			if(!session.isKeepAlive())Utils.closeQuietly(target);
 		}
 		session.reset(send226);
@@ -467,22 +779,82 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 	}
 	
 	protected void syncToClient(Session session) throws Exception {
+		if(useSyncPartitions(session)) {
+			PartitionedLeader leader = new PartitionedLeader(session.getLocalFile(),
+					SocketLeaderChannel.perStream((PBaseSocket)socket),
+					session.getLocalFile().getAbsolutePath(), socket);
+			leader.setFileAccess(session.getFileAccess());
+			leader.setChecksumAlgorithm(session.getSyncChecksum());
+			logger.info(leader.call());
+			return;
+		}
 		LeaderChannel channel = new SocketLeaderChannel(socket);
 		String name = session.getLocalFile().getAbsolutePath();
 		Leader master = new Leader(session.getLocalRandomAccessFile(), channel, name);
+		master.setChecksumAlgorithm(session.getSyncChecksum());
+		master.setInPlace(session.isSyncInPlace());
 		RsyncStats stats = master.call();
 		logger.info(stats);
 	}
 
 	protected void syncToServer(Session session) throws Exception {
+		if(useSyncPartitions(session)) {
+			PartitionedFollower follower = new PartitionedFollower(session.getLocalFile(),
+					SocketFollowerChannel.perStream((PBaseSocket)socket),
+					session.getSyncBlockSize(), socket);
+			follower.setFileAccess(session.getFileAccess());
+			follower.setChecksumAlgorithm(session.getSyncChecksum());
+			follower.setPool(ServerExecutors.getHashPool());
+			logger.info(follower.call());
+			return;
+		}
 		FollowerChannel channel = new SocketFollowerChannel(socket);
 		String name = session.getLocalFile().getAbsolutePath();
-		int blockSize = Follower.reasonableBlockSize(session.getLocalFile());
+		int blockSize = session.getSyncBlockSize();
+		boolean requested = blockSize>0;
+		if(requested) {
+			blockSize = Follower.checkBlockSize(blockSize, session.getLocalFile().length());
+		}
+		else {
+			blockSize = Follower.reasonableBlockSize(session.getLocalFile());
+		}
 		Follower slave = new Follower(session.getLocalRandomAccessFile(), channel, name, blockSize);
+		slave.setBlocksizeChoice(requested ? Follower.BLOCKSIZE_REQUESTED : Follower.BLOCKSIZE_AUTO);
 		slave.setFileAccess(session.getFileAccess());
+		slave.setChecksumAlgorithm(session.getSyncChecksum());
+		slave.setInPlace(session.isSyncInPlace());
+		slave.setPool(ServerExecutors.getHashPool());
+		slave.setSignatureCache(SignatureCache.getDefault());
 		RsyncStats stats = slave.call();
 		logger.info(stats);
 	}
+
+	// rsync with one partition per data stream (not in in-place mode)
+	private boolean useSyncPartitions(Session session) {
+		return session.isSyncParallel() && !session.isSyncInPlace() && socket instanceof PBaseSocket;
+	}
+
+	protected void syncTreeToClient(Session session) throws Exception {
+		TreeLeader leader = new TreeLeader(session.getLocalFile(), socket.getInputStream(), socket.getOutputStream());
+		leader.setFileAccess(session.getFileAccess());
+		leader.setFilter(f -> session.checkACL(f, Mode.READ));
+		leader.setChecksumAlgorithm(session.getSyncChecksum());
+		leader.setInPlace(session.isSyncInPlace());
+		TreeSyncStats stats = leader.call();
+		logger.info(stats);
+	}
+
+	protected void syncTreeToServer(Session session) throws Exception {
+		TreeFollower follower = new TreeFollower(session.getLocalFile(), socket.getInputStream(), socket.getOutputStream(), socket);
+		follower.setFileAccess(session.getFileAccess());
+		follower.setFilter(f -> session.checkACL(f, Mode.WRITE));
+		follower.setChecksumAlgorithm(session.getSyncChecksum());
+		follower.setInPlace(session.isSyncInPlace());
+		follower.setPool(ServerExecutors.getHashPool());
+		follower.setSignatureCache(SignatureCache.getDefault());
+		TreeSyncStats stats = follower.call();
+		logger.info(stats);
+	}
 		
 	/**
 	 * create a new Socket with the specified number of parallel TCP streams
@@ -500,8 +872,10 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 		if (n > 1) {
 			logger.info("Creating parallel socket with " + n + " streams.");
 			@SuppressWarnings("resource")
-			PSocket parallelSocket = new PSocket(job.getKey(), job.isCompress(), job.getEncryptionAlgorithm());
+			PSocket parallelSocket = PSocket.create(job.getKey(), job.isCompress(), job.getEncryptionAlgorithm());
 			parallelSocket.init(1, dataCons.size());
+			parallelSocket.setCompression(job.getCompressionAlgorithm(), job.getCompressionLevel(), compressionStats);
+			if(job.getKey()!=null)parallelSocket.setCryptoContext(job.getCryptoContext());
 			for (Socket dataCon : dataCons) {
 				parallelSocket.addSocketStream(dataCon);
 			}
@@ -537,6 +911,8 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 	 * The format is:
 	 *    [Sent|Received] [clientIP] [user:group] [bytes] [kb/sec]   
 	 * </p>
+	 * With LZ4 or DEFLATE compression, the compression statistics of the
+	 * session so far (ratio, blocks sent compressed, CPU time) are appended.
 	 */
 	protected void logUsage(String operation, long dataSize, long consumedMillis, InetAddress clientIP, long numFiles){
 		if(!logger.isInfoEnabled())return;
@@ -556,10 +932,13 @@ public class UFTPWorker extends Thread implements UFTPConstants {
 				r = r / 1000f;
 				unit = " MB/sec";
 			}
-			sb.append("[").append((long)r).append(unit);
+			sb.append("[").append((long)r).append(unit).append("] ");
+		}
+		if(compressionStats.getBlocks()>0) {
+			sb.append("[").append(job.getCompressionAlgorithm()).append(" session ");
+			sb.append(compressionStats).append("]");
 		}
-		sb.append("]");
-		String msg = sb.toString();
+		String msg = sb.toString().trim();
 
 		logger.info(msg);
 	}
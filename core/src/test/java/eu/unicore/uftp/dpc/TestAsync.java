@@ -108,6 +108,11 @@ public class TestAsync extends ClientServerTestBase{
 			new Thread(producer, "Producer").start();
 			while(ad.getRunningTasks()>0)Thread.sleep(1000);
 			ad.stop();
+			producer.stop();
+			// all buffers have been handed back to the pool
+			System.out.println(BufferPool.DIRECT);
+			assertTrue(queue.isEmpty());
+			assertEquals(0, BufferPool.DIRECT.getOutstanding());
 			long rSize=client.getFileSize("test");
 			assertEquals(realSource.length(),rSize);
 		}
@@ -0,0 +1,265 @@
+package eu.unicore.uftp.dpc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.uftp.dpc.Utils.CompressionAlgorithm;
+
+public class TestBlockCompression {
+
+	private final CompressionAlgorithm[] algos = { CompressionAlgorithm.LZ4, CompressionAlgorithm.DEFLATE };
+
+	@Test
+	public void testCodecs() throws Exception {
+		Random r = new Random(42);
+		for(CompressionAlgorithm algo: algos) {
+			for(int level: new int[] {0, 1, 9}) {
+				BlockCodec codec = BlockCompression.createCodec(algo, level);
+				for(byte[] data: new byte[][] { new byte[0], "abc".getBytes(), textData(13), textData(70000),
+					randomData(r, 1000), randomData(r, BlockCompression.BLOCK_SIZE), repeatedData(BlockCompression.BLOCK_SIZE),
+					mixedData(r, BlockCompression.BLOCK_SIZE) }) {
+					byte[] compressed = new byte[codec.maxCompressedLength(data.length)];
+					int n = codec.compress(data, data.length, compressed, 0);
+					assertTrue(n<=compressed.length);
+					byte[] decompressed = new byte[data.length];
+					codec.decompress(compressed, 0, n, decompressed, data.length);
+					assertArrayEquals(data, decompressed);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRatio() throws Exception {
+		byte[] data = textData(BlockCompression.BLOCK_SIZE);
+		for(CompressionAlgorithm algo: algos) {
+			BlockCodec codec = BlockCompression.createCodec(algo, 0);
+			byte[] compressed = new byte[codec.maxCompressedLength(data.length)];
+			int n = codec.compress(data, data.length, compressed, 0);
+			System.out.println(algo+": "+data.length+" -> "+n+" bytes");
+			assertTrue(n < data.length/3);
+		}
+	}
+
+	@Test
+	public void testGzipLevel() throws Exception {
+		byte[] data = mixedData(new Random(42), 4*BlockCompression.BLOCK_SIZE);
+		int[] sizes = new int[10];
+		for(int level: new int[] {1, 9}) {
+			ByteArrayOutputStream sink = new ByteArrayOutputStream();
+			try(OutputStream os = Utils.getCompressStream(sink, CompressionAlgorithm.GZIP, level)){
+				os.write(data);
+			}
+			sizes[level] = sink.size();
+			assertArrayEquals(data, decompress(sink.toByteArray(), CompressionAlgorithm.GZIP));
+		}
+		// the level is passed on to the deflater
+		assertTrue(sizes[9] < sizes[1], "level 1: "+sizes[1]+", level 9: "+sizes[9]);
+	}
+
+	@Test
+	public void testStreams() throws Exception {
+		Random r = new Random(42);
+		for(CompressionAlgorithm algo: algos) {
+			for(int size: new int[] {0, 1, 1000, BlockCompression.BLOCK_SIZE, 3*BlockCompression.BLOCK_SIZE+17}) {
+				byte[] data = mixedData(r, size);
+				byte[] compressed = compress(data, algo, 4096);
+				System.out.println(algo+": "+size+" -> "+compressed.length+" bytes");
+				assertArrayEquals(data, decompress(compressed, algo));
+			}
+		}
+	}
+
+	@Test
+	public void testFlushAndFinish() throws Exception {
+		for(CompressionAlgorithm algo: algos) {
+			ByteArrayOutputStream sink = new ByteArrayOutputStream();
+			OutputStream os = Utils.getCompressStream(sink, algo, 0);
+			os.write("hello".getBytes());
+			os.flush();
+			InputStream is = Utils.getDecompressStream(new ByteArrayInputStream(sink.toByteArray()), algo);
+			byte[] buf = new byte[5];
+			assertEquals(5, is.read(buf));
+			assertEquals("hello", new String(buf));
+			os.write(" world".getBytes());
+			Utils.finishWriting(os);
+			// followed by other data that must not be consumed
+			sink.write("more".getBytes());
+			ByteArrayInputStream source = new ByteArrayInputStream(sink.toByteArray());
+			is = Utils.getDecompressStream(source, algo);
+			assertEquals("hello world", new String(is.readAllBytes()));
+			assertEquals("more", new String(source.readAllBytes()));
+		}
+	}
+
+	@Test
+	public void testCorruptData() throws Exception {
+		Random r = new Random(42);
+		for(CompressionAlgorithm algo: algos) {
+			byte[] data = mixedData(r, 2*BlockCompression.BLOCK_SIZE+100);
+			byte[] compressed = compress(data, algo, 65536);
+			// truncated
+			byte[] truncated = Arrays.copyOf(compressed, compressed.length-10);
+			assertThrows(IOException.class, ()->decompress(truncated, algo));
+			// invalid lengths
+			byte[] invalid = compressed.clone();
+			invalid[4] = 127;
+			assertThrows(IOException.class, ()->decompress(invalid, algo));
+			// invalid block type
+			byte[] invalidType = compressed.clone();
+			invalidType[8] = 7;
+			assertThrows(IOException.class, ()->decompress(invalidType, algo));
+			// random garbage must not cause anything but IOExceptions
+			BlockCodec codec = BlockCompression.createCodec(algo, 0);
+			byte[] out = new byte[1000];
+			for(int i=0; i<1000; i++) {
+				byte[] garbage = randomData(r, 1+r.nextInt(200));
+				try{
+					codec.decompress(garbage, 0, garbage.length, out, out.length);
+				}catch(IOException ok) {}
+			}
+		}
+	}
+
+	@Test
+	public void testAdaptive() throws Exception {
+		Random r = new Random(42);
+		int blocks = 4;
+		for(CompressionAlgorithm algo: algos) {
+			// incompressible data is sent as it is
+			CompressionStats stats = new CompressionStats();
+			byte[] data = randomData(r, blocks*BlockCompression.BLOCK_SIZE);
+			byte[] compressed = compress(data, algo, 65536, stats);
+			System.out.println(algo+" random data: "+stats);
+			assertEquals(data.length+blocks*BlockCompression.HEADER_LENGTH, compressed.length);
+			assertEquals(blocks, stats.getBlocks());
+			assertEquals(0, stats.getCompressedBlocks());
+			assertArrayEquals(data, decompress(compressed, algo));
+			// mixed: only the compressible blocks are compressed
+			stats = new CompressionStats();
+			data = textData(blocks*BlockCompression.BLOCK_SIZE);
+			byte[] random = randomData(r, BlockCompression.BLOCK_SIZE);
+			System.arraycopy(random, 0, data, BlockCompression.BLOCK_SIZE, random.length);
+			compressed = compress(data, algo, 65536, stats);
+			System.out.println(algo+" mixed data: "+stats);
+			assertEquals(blocks-1, stats.getCompressedBlocks());
+			assertTrue(stats.getRatio()>1.5);
+			CompressionStats readStats = new CompressionStats();
+			try(InputStream is = Utils.getDecompressStream(new ByteArrayInputStream(compressed), algo, readStats)){
+				assertArrayEquals(data, is.readAllBytes());
+			}
+			assertEquals(stats.getRawBytes(), readStats.getRawBytes());
+			assertEquals(stats.getEncodedBytes(), readStats.getEncodedBytes());
+			assertEquals(blocks-1, readStats.getCompressedBlocks());
+		}
+	}
+
+	@Test
+	public void testEntropySampling() throws Exception {
+		Random r = new Random(42);
+		int[] histogram = new int[256];
+		int size = BlockCompression.BLOCK_SIZE;
+		assertTrue(BlockCompression.looksIncompressible(randomData(r, size), size, histogram));
+		assertFalse(BlockCompression.looksIncompressible(textData(size), size, histogram));
+		assertFalse(BlockCompression.looksIncompressible(repeatedData(size), size, histogram));
+		// small blocks are always tried
+		assertFalse(BlockCompression.looksIncompressible(randomData(r, 1000), 1000, histogram));
+	}
+
+	@Test
+	public void testParallel() throws Exception {
+		Random r = new Random(42);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for(CompressionAlgorithm algo: algos) {
+				BlockCodec codec = BlockCompression.createCodec(algo, 0);
+				for(int size: new int[] {0, 1, BlockCompression.BLOCK_SIZE, 10*BlockCompression.BLOCK_SIZE+17}) {
+					byte[] data = mixedData(r, size);
+					// must produce exactly the same data as the sequential stream
+					ByteArrayOutputStream sink = new ByteArrayOutputStream();
+					try(OutputStream os = new ParallelChunkedOutputStream(sink,
+							()->BlockCompression.encoder(BlockCompression.createCodec(algo, 0)),
+							BlockCompression.BLOCK_SIZE, BlockCompression.maxFrameLength(codec), pool, 3)){
+						write(os, data, 10000);
+					}
+					assertArrayEquals(compress(data, algo, 10000), sink.toByteArray());
+					assertArrayEquals(data, decompress(sink.toByteArray(), algo));
+				}
+			}
+		}finally {
+			pool.shutdownNow();
+		}
+	}
+
+	private byte[] compress(byte[] data, CompressionAlgorithm algo, int writeSize) throws IOException {
+		return compress(data, algo, writeSize, null);
+	}
+
+	private byte[] compress(byte[] data, CompressionAlgorithm algo, int writeSize, CompressionStats stats) throws IOException {
+		BlockCodec codec = BlockCompression.createCodec(algo, 0);
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		try(OutputStream os = new ChunkedOutputStream(sink, BlockCompression.encoder(codec, stats),
+				BlockCompression.BLOCK_SIZE, BlockCompression.maxFrameLength(codec))){
+			write(os, data, writeSize);
+		}
+		return sink.toByteArray();
+	}
+
+	private void write(OutputStream os, byte[] data, int writeSize) throws IOException {
+		for(int i=0; i<data.length; i+=writeSize) {
+			os.write(data, i, Math.min(writeSize, data.length-i));
+		}
+	}
+
+	private byte[] decompress(byte[] data, CompressionAlgorithm algo) throws IOException {
+		try(InputStream is = Utils.getDecompressStream(new ByteArrayInputStream(data), algo)){
+			return is.readAllBytes();
+		}
+	}
+
+	private byte[] randomData(Random r, int size) {
+		byte[] data = new byte[size];
+		r.nextBytes(data);
+		return data;
+	}
+
+	private byte[] repeatedData(int size) {
+		byte[] data = new byte[size];
+		Arrays.fill(data, (byte)'x');
+		return data;
+	}
+
+	private byte[] textData(int size) {
+		StringBuilder sb = new StringBuilder();
+		for(int i=0; sb.length()<size; i++) {
+			sb.append(i).append(": test1 test2 test3\n");
+		}
+		return Arrays.copyOf(sb.toString().getBytes(), size);
+	}
+
+	// alternating compressible and random parts
+	private byte[] mixedData(Random r, int size) {
+		byte[] data = textData(size);
+		for(int i=0; i<size; i+=20000) {
+			int n = Math.min(5000, size-i);
+			byte[] random = randomData(r, n);
+			System.arraycopy(random, 0, data, i, n);
+		}
+		return data;
+	}
+
+}
@@ -0,0 +1,89 @@
+package eu.unicore.uftp.dpc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.jupiter.api.Test;
+
+public class TestBufferPool {
+
+	@Test
+	public void testSizeClasses() {
+		BufferPool pool = new BufferPool(true, 1024*1024);
+		ByteBuffer b = pool.acquire(100);
+		assertTrue(b.isDirect());
+		assertEquals(BufferPool.MIN_SIZE, b.capacity());
+		assertEquals(100, b.limit());
+		assertEquals(0, b.position());
+		pool.release(b);
+		b = pool.acquire(BufferPool.MIN_SIZE+1);
+		assertEquals(2*BufferPool.MIN_SIZE, b.capacity());
+		pool.release(b);
+		b = pool.acquire(65536);
+		assertEquals(65536, b.capacity());
+		pool.release(b);
+		// too large for pooling
+		b = pool.acquire(BufferPool.MAX_SIZE+1);
+		assertEquals(BufferPool.MAX_SIZE+1, b.capacity());
+		pool.release(b);
+		assertEquals(BufferPool.MIN_SIZE+2*BufferPool.MIN_SIZE+65536, pool.getPooledBytes());
+		assertEquals(0, pool.getOutstanding());
+		System.out.println(pool);
+	}
+
+	@Test
+	public void testReuse() {
+		BufferPool pool = new BufferPool(false, 1024*1024);
+		ByteBuffer b1 = pool.acquire(16384);
+		assertFalse(b1.isDirect());
+		b1.put((byte)1);
+		pool.release(b1);
+		ByteBuffer b2 = pool.acquire(10000);
+		assertSame(b1, b2);
+		assertEquals(0, b2.position());
+		assertEquals(10000, b2.limit());
+		assertEquals(1, pool.getAllocated());
+		assertEquals(1, pool.getReused());
+		pool.release(b2);
+		// buffers from the other kind of pool are not taken
+		pool.release(ByteBuffer.allocateDirect(16384));
+		assertEquals(16384, pool.getPooledBytes());
+		pool.clear();
+		assertEquals(0, pool.getPooledBytes());
+	}
+
+	@Test
+	public void testBound() {
+		BufferPool pool = new BufferPool(true, 3*BufferPool.MIN_SIZE);
+		ByteBuffer[] buffers = new ByteBuffer[5];
+		for(int i=0; i<buffers.length; i++) {
+			buffers[i] = pool.acquire(BufferPool.MIN_SIZE);
+		}
+		assertEquals(5, pool.getOutstanding());
+		for(ByteBuffer b: buffers) {
+			pool.release(b);
+		}
+		assertEquals(0, pool.getOutstanding());
+		assertEquals(3*BufferPool.MIN_SIZE, pool.getPooledBytes());
+	}
+
+	@Test
+	public void testLeakDetection() {
+		BufferPool pool = new BufferPool(true, 1024*1024);
+		pool.setLeakDetection(true);
+		ByteBuffer b = pool.acquire(8192);
+		IllegalStateException ise = assertThrows(IllegalStateException.class, ()->pool.checkLeaks());
+		System.out.println(ise.getMessage());
+		assertTrue(ise.getCause().getMessage().contains("8192"));
+		pool.release(b);
+		pool.checkLeaks();
+		assertThrows(IllegalStateException.class, ()->pool.release(b));
+		pool.setLeakDetection(false);
+	}
+
+}
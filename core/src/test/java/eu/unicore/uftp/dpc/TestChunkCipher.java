@@ -0,0 +1,210 @@
+package eu.unicore.uftp.dpc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
+
+public class TestChunkCipher {
+
+	private final EncryptionAlgorithm[] algos = { EncryptionAlgorithm.AES_GCM, EncryptionAlgorithm.CHACHA20 };
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		for(EncryptionAlgorithm algo: algos) {
+			for(int size: new int[] {0, 1, 1000, ChunkCipher.CHUNK_SIZE, 3*ChunkCipher.CHUNK_SIZE+17}) {
+				byte[] key = Utils.createKey(algo);
+				byte[] data = randomData(size);
+				byte[] encrypted = encrypt(data, key, algo, 4096);
+				System.out.println(algo+": "+size+" -> "+encrypted.length+" bytes");
+				assertArrayEquals(data, decrypt(encrypted, key, algo));
+			}
+		}
+	}
+
+	@Test
+	public void testFlush() throws Exception {
+		EncryptionAlgorithm algo = EncryptionAlgorithm.AES_GCM;
+		byte[] key = Utils.createKey(algo);
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		ChunkCipherOutputStream os = new ChunkCipherOutputStream(sink, key, algo);
+		os.write("hello".getBytes());
+		os.flush();
+		int flushed = sink.size();
+		assertEquals(ChunkCipher.NONCE_LENGTH+4+5+ChunkCipher.TAG_LENGTH, flushed);
+		InputStream is = Utils.getDecryptStream(new ByteArrayInputStream(sink.toByteArray()), key, algo);
+		byte[] buf = new byte[5];
+		assertEquals(5, is.read(buf));
+		assertEquals("hello", new String(buf));
+		os.write(" world".getBytes());
+		os.finish();
+		// followed by other data that must not be consumed
+		sink.write("more".getBytes());
+		ByteArrayInputStream source = new ByteArrayInputStream(sink.toByteArray());
+		is = Utils.getDecryptStream(source, key, algo);
+		assertEquals("hello world", new String(is.readAllBytes()));
+		assertEquals("more", new String(source.readAllBytes()));
+	}
+
+	@Test
+	public void testTampering() throws Exception {
+		for(EncryptionAlgorithm algo: algos) {
+			byte[] key = Utils.createKey(algo);
+			byte[] encrypted = encrypt(randomData(2*ChunkCipher.CHUNK_SIZE+100), key, algo, 65536);
+			int firstChunk = ChunkCipher.NONCE_LENGTH+4+ChunkCipher.CHUNK_SIZE+ChunkCipher.TAG_LENGTH;
+			// modified data
+			byte[] modified = encrypted.clone();
+			modified[firstChunk+100] ^= 1;
+			assertThrows(IOException.class, ()->decrypt(modified, key, algo));
+			// wrong key
+			assertThrows(IOException.class, ()->decrypt(encrypted, Utils.createKey(algo), algo));
+			// dropped chunk
+			byte[] dropped = new byte[encrypted.length-firstChunk+ChunkCipher.NONCE_LENGTH];
+			System.arraycopy(encrypted, 0, dropped, 0, ChunkCipher.NONCE_LENGTH);
+			System.arraycopy(encrypted, firstChunk, dropped, ChunkCipher.NONCE_LENGTH, encrypted.length-firstChunk);
+			assertThrows(IOException.class, ()->decrypt(dropped, key, algo));
+			// truncated after a full chunk
+			byte[] truncated = Arrays.copyOf(encrypted, firstChunk);
+			IOException e = assertThrows(IOException.class, ()->decrypt(truncated, key, algo));
+			System.out.println(e.getMessage());
+			// last chunk no longer marked as last
+			byte[] unmarked = encrypted.clone();
+			int lastHeader = firstChunk + 4 + ChunkCipher.CHUNK_SIZE + ChunkCipher.TAG_LENGTH;
+			unmarked[lastHeader] &= 0x7f;
+			assertThrows(IOException.class, ()->decrypt(unmarked, key, algo));
+		}
+	}
+
+	@Test
+	public void testParallel() throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for(EncryptionAlgorithm algo: algos) {
+				for(int size: new int[] {0, 1000, ChunkCipher.CHUNK_SIZE, 10*ChunkCipher.CHUNK_SIZE+17}) {
+					byte[] key = Utils.createKey(algo);
+					byte[] data = randomData(size);
+					// parallel encryption, sequential decryption
+					ByteArrayOutputStream sink = new ByteArrayOutputStream();
+					try(OutputStream os = new ParallelChunkCipherOutputStream(sink, key, algo, pool, 3)){
+						os.write(data);
+					}
+					byte[] encrypted = sink.toByteArray();
+					assertEquals(encrypt(data, key, algo, 8192).length, encrypted.length);
+					assertArrayEquals(data, decrypt(encrypted, key, algo));
+					// sequential encryption, parallel decryption
+					encrypted = encrypt(data, key, algo, 8192);
+					try(InputStream is = new ParallelChunkCipherInputStream(
+							new ByteArrayInputStream(encrypted), key, algo, pool, 3)){
+						assertArrayEquals(data, is.readAllBytes());
+					}
+					System.out.println(algo+": "+size+" bytes OK");
+				}
+			}
+		}finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testParallelFlushAndTampering() throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			EncryptionAlgorithm algo = EncryptionAlgorithm.AES_GCM;
+			byte[] key = Utils.createKey(algo);
+			ByteArrayOutputStream sink = new ByteArrayOutputStream();
+			ParallelChunkCipherOutputStream os = new ParallelChunkCipherOutputStream(sink, key, algo, pool, 2);
+			os.write("hello".getBytes());
+			os.flush();
+			assertEquals(ChunkCipher.NONCE_LENGTH+4+5+ChunkCipher.TAG_LENGTH, sink.size());
+			os.write(randomData(5*ChunkCipher.CHUNK_SIZE));
+			os.finish();
+			sink.write("more".getBytes());
+			byte[] encrypted = sink.toByteArray();
+			ByteArrayInputStream source = new ByteArrayInputStream(encrypted);
+			InputStream is = new ParallelChunkCipherInputStream(source, key, algo, pool, 2);
+			assertEquals(5+5*ChunkCipher.CHUNK_SIZE, is.readAllBytes().length);
+			// stops after the last chunk
+			assertEquals("more", new String(source.readAllBytes()));
+			// modified data in the last chunk
+			encrypted[encrypted.length-100] ^= 1;
+			InputStream is2 = new ParallelChunkCipherInputStream(new ByteArrayInputStream(encrypted), key, algo, pool, 2);
+			assertThrows(IOException.class, ()->is2.readAllBytes());
+			// truncated
+			InputStream is3 = new ParallelChunkCipherInputStream(
+					new ByteArrayInputStream(Arrays.copyOf(encrypted, 200000)), key, algo, pool, 2);
+			assertThrows(IOException.class, ()->is3.readAllBytes());
+		}finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testParallelWriterStopsOnError() throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			EncryptionAlgorithm algo = EncryptionAlgorithm.AES_GCM;
+			OutputStream failing = new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					throw new IOException("broken pipe");
+				}
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					throw new IOException("broken pipe");
+				}
+			};
+			OutputStream os = new ParallelChunkCipherOutputStream(failing, Utils.createKey(algo), algo, pool, 2);
+			byte[] data = randomData(ChunkCipher.CHUNK_SIZE);
+			// the stream is abandoned without calling close()
+			assertThrows(IOException.class, ()->{
+				for(int i=0; i<100; i++)os.write(data);
+			});
+			for(Thread t: Thread.getAllStackTraces().keySet()) {
+				if(t.getName().startsWith("UFTP-Chunk-Writer")) {
+					assertTrue(t.isDaemon());
+					t.join(5000);
+					assertFalse(t.isAlive(), t.getName()+" still running");
+				}
+			}
+		}finally {
+			pool.shutdown();
+		}
+	}
+
+	private byte[] randomData(int size) {
+		byte[] data = new byte[size];
+		new Random(size).nextBytes(data);
+		return data;
+	}
+
+	private byte[] encrypt(byte[] data, byte[] key, EncryptionAlgorithm algo, int writeSize) throws IOException {
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		try(OutputStream os = Utils.getEncryptStream(sink, key, algo)){
+			for(int pos=0; pos<data.length; pos+=writeSize) {
+				os.write(data, pos, Math.min(writeSize, data.length-pos));
+			}
+		}
+		return sink.toByteArray();
+	}
+
+	private byte[] decrypt(byte[] encrypted, byte[] key, EncryptionAlgorithm algo) throws IOException {
+		try(InputStream is = Utils.getDecryptStream(new ByteArrayInputStream(encrypted), key, algo)){
+			return is.readAllBytes();
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+package eu.unicore.uftp.dpc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
+
+public class TestCryptoContext {
+
+	@Test
+	public void testReuse() throws Exception {
+		for(EncryptionAlgorithm algo: new EncryptionAlgorithm[]
+				{ EncryptionAlgorithm.BLOWFISH, EncryptionAlgorithm.AES }) {
+			CryptoContext context = new CryptoContext(Utils.createKey(algo), algo);
+			Cipher c = context.getCipher(Cipher.ENCRYPT_MODE);
+			context.release(c);
+			assertSame(c, context.getCipher(Cipher.DECRYPT_MODE));
+			assertThrows(IllegalArgumentException.class, ()->context.getChunkCipher());
+		}
+		for(EncryptionAlgorithm algo: new EncryptionAlgorithm[]
+				{ EncryptionAlgorithm.AES_GCM, EncryptionAlgorithm.CHACHA20 }) {
+			CryptoContext context = new CryptoContext(Utils.createKey(algo), algo);
+			ChunkCipher c = context.getChunkCipher();
+			context.release(c);
+			assertSame(c, context.getChunkCipher());
+			assertThrows(IllegalArgumentException.class, ()->context.getCipher(Cipher.ENCRYPT_MODE));
+		}
+		assertThrows(IllegalArgumentException.class,
+				()->new CryptoContext(new byte[16], EncryptionAlgorithm.AES));
+		assertThrows(IllegalArgumentException.class,
+				()->new CryptoContext(new byte[16], EncryptionAlgorithm.CHACHA20));
+	}
+
+	@Test
+	public void testStreams() throws Exception {
+		Random r = new Random();
+		for(EncryptionAlgorithm algo: EncryptionAlgorithm.values()) {
+			byte[] key = Utils.createKey(algo);
+			CryptoContext context = new CryptoContext(key, algo);
+			for(int i=0; i<20; i++) {
+				byte[] data = new byte[r.nextInt(200000)];
+				r.nextBytes(data);
+				byte[] encrypted = encrypt(data, context, i%2==0);
+				assertArrayEquals(data, decrypt(encrypted, context, i%3==0));
+				// must be readable with a fresh context, too
+				assertArrayEquals(data, decrypt(encrypted, new CryptoContext(key, algo), false));
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrentStreams() throws Exception {
+		ExecutorService es = Executors.newFixedThreadPool(4);
+		try {
+			for(EncryptionAlgorithm algo: EncryptionAlgorithm.values()) {
+				CryptoContext context = new CryptoContext(Utils.createKey(algo), algo);
+				List<Future<?>> results = new ArrayList<>();
+				for(int t=0; t<4; t++) {
+					results.add(es.submit(()->{
+						Random r = new Random();
+						for(int i=0; i<50; i++) {
+							byte[] data = new byte[r.nextInt(100000)];
+							r.nextBytes(data);
+							assertArrayEquals(data, decrypt(encrypt(data, context, true), context, false));
+						}
+						return null;
+					}));
+				}
+				for(Future<?> f: results)f.get();
+			}
+		}finally {
+			es.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testStreamsReleaseCiphers() throws Exception {
+		byte[] data = new byte[100000];
+		new Random().nextBytes(data);
+		for(EncryptionAlgorithm algo: new EncryptionAlgorithm[]
+				{ EncryptionAlgorithm.BLOWFISH, EncryptionAlgorithm.AES }) {
+			CryptoContext context = new CryptoContext(Utils.createKey(algo), algo);
+			Cipher c = context.getCipher(Cipher.ENCRYPT_MODE);
+			context.release(c);
+			byte[] encrypted = encrypt(data, context, true);
+			assertArrayEquals(data, decrypt(encrypted, context, true));
+			// both streams used and returned the same cipher
+			assertSame(c, context.getCipher(Cipher.ENCRYPT_MODE));
+			assertNotSame(c, context.getCipher(Cipher.ENCRYPT_MODE));
+		}
+		for(EncryptionAlgorithm algo: new EncryptionAlgorithm[]
+				{ EncryptionAlgorithm.AES_GCM, EncryptionAlgorithm.CHACHA20 }) {
+			CryptoContext context = new CryptoContext(Utils.createKey(algo), algo);
+			ChunkCipher c = context.getChunkCipher();
+			context.release(c);
+			ByteArrayOutputStream sink = new ByteArrayOutputStream();
+			try(OutputStream os = new ChunkCipherOutputStream(sink, context)){
+				os.write(data);
+			}
+			try(InputStream is = new ChunkCipherInputStream(new ByteArrayInputStream(sink.toByteArray()), context)){
+				assertArrayEquals(data, is.readAllBytes());
+			}
+			assertSame(c, context.getChunkCipher());
+			assertNotSame(c, context.getChunkCipher());
+		}
+	}
+
+	private byte[] encrypt(byte[] data, CryptoContext context, boolean finish) throws IOException {
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		OutputStream os = Utils.getEncryptStream(sink, context);
+		os.write(data);
+		if(finish) {
+			Utils.finishWriting(os);
+			os.flush();
+		}
+		os.close();
+		return sink.toByteArray();
+	}
+
+	private byte[] decrypt(byte[] data, CryptoContext context, boolean close) throws IOException {
+		InputStream is = Utils.getDecryptStream(new ByteArrayInputStream(data), context);
+		byte[] result = is.readAllBytes();
+		if(close)is.close();
+		return result;
+	}
+
+}
@@ -0,0 +1,93 @@
+package eu.unicore.uftp.dpc;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.UUID;
+
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.uftp.client.UFTPSessionClient;
+import eu.unicore.uftp.client.UFTPSessionClient.HashInfo;
+import eu.unicore.uftp.server.ClientServerTestBase;
+import eu.unicore.uftp.server.requests.UFTPSessionRequest;
+import eu.unicore.uftp.server.workers.UFTPWorker;
+
+/**
+ * RETR and HASH with memory-mapped reads switched on
+ */
+public class TestMemoryMapping extends ClientServerTestBase {
+
+	static {
+		System.setProperty(UFTPWorker.ENABLE_MMAP, "true");
+		System.setProperty(UFTPWorker.MMAP_THRESHOLD, "100000");
+	}
+
+	@Test
+	public void testHash() throws Exception {
+		File dataFile = new File(dataDir, "source-"+System.currentTimeMillis());
+		// more than one mapped segment
+		makeTestFile(dataFile, 1024*1024, 70);
+		String fileName = dataFile.getName();
+		String secret = UUID.randomUUID().toString();
+		UFTPSessionRequest job = new UFTPSessionRequest(host, "nobody", secret, dataDir.getAbsolutePath());
+		job.sendTo(host[0], jobPort);
+		Thread.sleep(1000);
+		try(UFTPSessionClient client = new UFTPSessionClient(host, srvPort)){
+			client.setSecret(secret);
+			client.connect();
+			for(String algo: new String[] {"MD5", "SHA-256"}) {
+				client.setHashAlgorithm(algo);
+				HashInfo hashInfo = client.getHash(fileName);
+				System.out.println("Remote hash: "+hashInfo.fullInfo());
+				assertEquals(Utils.hexString(Utils.digest(dataFile, algo)), hashInfo.hash);
+				// range, below the mapping threshold
+				hashInfo = client.getHash(fileName, 123, 1000);
+				assertEquals(digest(dataFile, algo, 123, 1000), hashInfo.hash);
+				// range with unaligned offset
+				hashInfo = client.getHash(fileName, 4567, 3*1024*1024);
+				assertEquals(digest(dataFile, algo, 4567, 3*1024*1024), hashInfo.hash);
+			}
+		}
+	}
+
+	@Test
+	public void testRead() throws Exception {
+		File dataFile = new File(dataDir, "source-"+System.currentTimeMillis());
+		makeTestFile(dataFile, 1024*1024, 3);
+		String fileName = dataFile.getName();
+		String secret = UUID.randomUUID().toString();
+		UFTPSessionRequest job = new UFTPSessionRequest(host, "nobody", secret, dataDir.getAbsolutePath());
+		// multiple streams, so data is sent via the mapped path
+		job.setStreams(2);
+		job.sendTo(host[0], jobPort);
+		Thread.sleep(1000);
+		try(UFTPSessionClient client = new UFTPSessionClient(host, srvPort)){
+			client.setSecret(secret);
+			client.setNumConnections(2);
+			client.connect();
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			client.get(fileName, bos);
+			assertEquals(Utils.md5(dataFile), Utils.hexString(MessageDigest.getInstance("MD5").digest(bos.toByteArray())));
+			bos = new ByteArrayOutputStream();
+			client.get(fileName, 1001, 2*1024*1024, bos);
+			assertEquals(2*1024*1024, bos.size());
+			assertEquals(digest(dataFile, "MD5", 1001, 2*1024*1024),
+					Utils.hexString(MessageDigest.getInstance("MD5").digest(bos.toByteArray())));
+		}
+	}
+
+	private String digest(File file, String algo, long offset, long length) throws Exception {
+		MessageDigest md = MessageDigest.getInstance(algo);
+		try(RandomAccessFile ra = new RandomAccessFile(file, "r")){
+			byte[] data = new byte[(int)length];
+			ra.seek(offset);
+			ra.readFully(data);
+			md.update(data);
+		}
+		return Utils.hexString(md);
+	}
+}
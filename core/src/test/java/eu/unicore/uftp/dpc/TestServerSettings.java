@@ -56,6 +56,7 @@ public class TestServerSettings extends ClientServerTestBase {
 		UFTPPingRequest ping = new UFTPPingRequest();
 		String reply = ping.sendTo(host[0], jobPort);
 		System.out.println(reply);
+		assertTrue(reply.contains("Executor.Command: threads="));
 	}
 	
 	@Test
@@ -12,6 +12,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
+import java.util.Arrays;
 import java.util.List;
 import java.util.UUID;
 
@@ -49,6 +50,16 @@ public class TestSessionBasics extends ClientServerTestBase{
 		_clientRead(8, false);
 	}
 
+	@Test
+	public void testClientReadParallelLockstep() throws Exception {
+		System.setProperty("UFTP_DISABLE_DECOUPLED_STREAMS", "true");
+		try {
+			_clientRead(2, false);
+		}finally {
+			System.clearProperty("UFTP_DISABLE_DECOUPLED_STREAMS");
+		}
+	}
+
 	@Test
 	public void testClientReadParallelNoThreads() throws Exception {
 		PConfig.usethreads = false;
@@ -108,6 +119,39 @@ public class TestSessionBasics extends ClientServerTestBase{
 		}
 	}
 
+	@Test
+	public void testClientReadLargeFileRateLimited() throws Exception {
+		File realSource = new File(dataDir, "source-"+UUID.randomUUID().toString());
+		makeTestFile(realSource, 1024*1024, 4);
+		String secret = UUID.randomUUID().toString();
+		UFTPSessionRequest job = new UFTPSessionRequest(host, "nobody", secret, dataDir.getAbsolutePath());
+		job.setRateLimit(8*1024*1024);
+		job.setStreams(1);
+		job.sendTo(host[0], jobPort);
+		Thread.sleep(1000);
+		try(UFTPSessionClient client = new UFTPSessionClient(host, srvPort)){
+			client.setSecret(secret);
+			client.connect();
+			File target = new File(dataDir, "target-"+realSource.getName());
+			try(FileOutputStream fos = new FileOutputStream(target)){
+				client.get(realSource.getName(), fos);
+			}
+			checkFile(target, Utils.md5(realSource));
+			// partial read
+			int offset = 1000;
+			int length = 2*1024*1024;
+			try(FileOutputStream fos = new FileOutputStream(target)){
+				assertEquals(length, client.get(realSource.getName(), offset, length, fos));
+			}
+			byte[] expected = new byte[length];
+			try(FileInputStream fis = new FileInputStream(realSource)){
+				fis.skip(offset);
+				IOUtils.readFully(fis, expected);
+			}
+			assertTrue(Arrays.equals(expected, FileUtils.readFileToByteArray(target)));
+		}
+	}
+
 	@Test
 	public void testClientWrite() throws Exception {
 		_clientWrite(1, false);
@@ -123,6 +167,16 @@ public class TestSessionBasics extends ClientServerTestBase{
 		_clientWrite(2, false);
 	}
 
+	@Test
+	public void testClientWriteParallelLockstep() throws Exception {
+		System.setProperty("UFTP_DISABLE_DECOUPLED_STREAMS", "true");
+		try {
+			_clientWrite(2, false);
+		}finally {
+			System.clearProperty("UFTP_DISABLE_DECOUPLED_STREAMS");
+		}
+	}
+
 	@Test
 	public void testClientWriteParallelNoThreads() throws Exception {
 		PConfig.usethreads = false;
@@ -165,6 +219,75 @@ public class TestSessionBasics extends ClientServerTestBase{
 		}
 	}
 
+	@Test
+	public void testParallelChunkSizes() throws Exception {
+		File realSource = new File(dataDir, "source-"+UUID.randomUUID().toString());
+		makeTestFile(realSource, 1024*1024, 5);
+		String expected = Utils.md5(realSource);
+		String secret = UUID.randomUUID().toString();
+		UFTPSessionRequest job = new UFTPSessionRequest(host, "nobody", secret, dataDir.getAbsolutePath());
+		job.setStreams(4);
+		job.sendTo(host[0], jobPort);
+		Thread.sleep(1000);
+		try(UFTPSessionClient client = new UFTPSessionClient(host, srvPort)){
+			client.setSecret(secret);
+			client.setNumConnections(4);
+			client.setChunkSize(PConfig.AUTO_CHUNKSIZE);
+			client.connect();
+			assertTrue(client.isDecoupledStreams());
+			File target = new File(dataDir, "target-"+realSource.getName());
+			try(FileOutputStream fos = new FileOutputStream(target)){
+				client.get(realSource.getName(), fos);
+			}
+			checkFile(target, expected);
+			client.setChunkSize(65536);
+			String remoteName = "upload-"+realSource.getName();
+			try(FileInputStream fis = new FileInputStream(realSource)){
+				client.put(remoteName, realSource.length(), fis);
+			}
+			checkFile(new File(dataDir, remoteName), expected);
+		}
+	}
+
+	@Test
+	public void testParallelNio() throws Exception {
+		PConfig.usenio = true;
+		try {
+			_parallelTransfer();
+			System.setProperty("UFTP_DISABLE_DECOUPLED_STREAMS", "true");
+			_parallelTransfer();
+		}finally {
+			PConfig.usenio = false;
+			System.clearProperty("UFTP_DISABLE_DECOUPLED_STREAMS");
+		}
+	}
+
+	private void _parallelTransfer() throws Exception {
+		File realSource = new File(dataDir, "source-"+UUID.randomUUID().toString());
+		makeTestFile(realSource, 1024*1024, 5);
+		String expected = Utils.md5(realSource);
+		String secret = UUID.randomUUID().toString();
+		UFTPSessionRequest job = new UFTPSessionRequest(host, "nobody", secret, dataDir.getAbsolutePath());
+		job.setStreams(3);
+		job.sendTo(host[0], jobPort);
+		Thread.sleep(1000);
+		try(UFTPSessionClient client = new UFTPSessionClient(host, srvPort)){
+			client.setSecret(secret);
+			client.setNumConnections(3);
+			client.connect();
+			File target = new File(dataDir, "target-"+realSource.getName());
+			try(FileOutputStream fos = new FileOutputStream(target)){
+				client.get(realSource.getName(), fos);
+			}
+			checkFile(target, expected);
+			String remoteName = "upload-"+realSource.getName();
+			try(FileInputStream fis = new FileInputStream(realSource)){
+				client.put(remoteName, realSource.length(), fis);
+			}
+			checkFile(new File(dataDir, remoteName), expected);
+		}
+	}
+
 	@Test
 	public void testClientWriteMultipleParts() throws Exception {
 		String realSourceName="target/testdata/sourcefile";
@@ -204,6 +327,35 @@ public class TestSessionBasics extends ClientServerTestBase{
 		}
 	}
 
+	@Test
+	public void testClientOverwriteLargeFile() throws Exception {
+		File realSource = new File(dataDir, "source-"+UUID.randomUUID().toString());
+		makeTestFile(realSource, 1024*1024, 3);
+		String secret = UUID.randomUUID().toString();
+		String cwd = dataDir.getAbsolutePath();
+		UFTPSessionRequest job = new UFTPSessionRequest(host, "nobody", secret, cwd);
+		job.sendTo(host[0], jobPort);
+		Thread.sleep(1000);
+
+		try(UFTPSessionClient client = new UFTPSessionClient(host, srvPort)){
+			client.setSecret(secret);
+			client.connect();
+			File remote = new File(cwd, "target-"+realSource.getName());
+			try(FileInputStream fis=new FileInputStream(realSource)){
+				client.put(remote.getName(), realSource.length(), fis);
+			}
+			checkFile(remote, Utils.md5(realSource));
+			// overwrite with a smaller file, which must truncate the existing one
+			String testString = "this is a test for the session client";
+			Utils.writeToFile(testString, realSource);
+			try(FileInputStream fis=new FileInputStream(realSource)){
+				client.put(remote.getName(), realSource.length(), fis);
+			}
+			assertEquals(realSource.length(), client.getFileSize(remote.getName()));
+			checkFile(remote, Utils.md5(realSource));
+		}
+	}
+
 	@Test
 	public void testClientAppendMultipleParts() throws Exception {
 		String realSourceName="target/testdata/sourcefile";
@@ -331,6 +483,7 @@ public class TestSessionBasics extends ClientServerTestBase{
 			client.setKey(key);
 			client.setCompress(compress);
 			client.connect();
+			assertTrue(client.isDecoupledStreams());
 			client.get(sourceFile.getName(),fos);
 		}
 		System.out.println("Finished client.");
@@ -3,6 +3,7 @@ package eu.unicore.uftp.dpc;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
@@ -13,6 +14,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -20,16 +22,22 @@ import java.util.Date;
 import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.jupiter.api.Test;
 
 import eu.unicore.uftp.client.UFTPSessionClient;
 import eu.unicore.uftp.client.UFTPSessionClient.HashInfo;
 import eu.unicore.uftp.dpc.Session.Mode;
+import eu.unicore.uftp.dpc.Utils.CompressionAlgorithm;
 import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
+import eu.unicore.uftp.jparss.PConfig;
+import eu.unicore.uftp.rsync.Follower;
 import eu.unicore.uftp.rsync.RsyncStats;
 import eu.unicore.uftp.rsync.TestRsync;
+import eu.unicore.uftp.rsync.TreeSyncStats;
 import eu.unicore.uftp.server.ClientServerTestBase;
+import eu.unicore.uftp.server.UFTPCommands;
 import eu.unicore.uftp.server.requests.UFTPSessionRequest;
 
 public class TestSessionFeatures extends ClientServerTestBase{
@@ -60,6 +68,187 @@ public class TestSessionFeatures extends ClientServerTestBase{
 		}
 	}
 
+	@Test
+	public void testSyncWithFastChecksum() throws Exception {
+		String masterName="source-"+System.currentTimeMillis();
+		File masterFile=new File(dataDir,masterName);
+		String slaveName="copy-"+System.currentTimeMillis();
+		File slaveFile=new File(dataDir,slaveName);
+		String secret = UUID.randomUUID().toString();
+		String cwd = dataDir.getAbsolutePath();
+		UFTPSessionRequest job = new UFTPSessionRequest(host, "nobody", secret, cwd);
+		job.sendTo(host[0], jobPort);
+		Thread.sleep(1000);
+		try(UFTPSessionClient client = new UFTPSessionClient(host, srvPort)){
+			client.setSecret(secret);
+			client.connect();
+			assertTrue(client.supportsSyncChecksums());
+			assertEquals("MD5", client.getSessionOptions().get("SYNC-CHECKSUM"));
+			assertThrows(IllegalArgumentException.class, ()->client.setSyncChecksum("CRC32"));
+			assertEquals("MURMUR3-128", client.setSyncChecksum("murmur3-128"));
+			TestRsync.writeTestFiles(masterFile, slaveFile, 1024*1024, 10, 1);
+			RsyncStats stats=client.syncRemoteFile(masterFile, slaveName);
+			System.out.println(stats);
+			assertEquals("MURMUR3-128", stats.checksumAlgorithm);
+			assertTrue(stats.matches>0);
+			Thread.sleep(2000);
+			assertEquals(Utils.md5(masterFile),Utils.md5(slaveFile));
+			TestRsync.writeTestFiles(masterFile, slaveFile, 1024*1024, 10, 1);
+			stats=client.syncLocalFile(slaveName, masterFile);
+			assertEquals(Utils.md5(masterFile),Utils.md5(slaveFile));
+		}
+	}
+
+	@Test
+	public void testSyncBlockSize() throws Exception {
+		String masterName="source-"+System.currentTimeMillis();
+		File masterFile=new File(dataDir,masterName);
+		String slaveName="copy-"+System.currentTimeMillis();
+		File slaveFile=new File(dataDir,slaveName);
+		String secret = UUID.randomUUID().toString();
+		String cwd = dataDir.getAbsolutePath();
+		UFTPSessionRequest job = new UFTPSessionRequest(host, "nobody", secret, cwd);
+		job.sendTo(host[0], jobPort);
+		Thread.sleep(1000);
+		try(UFTPSessionClient client = new UFTPSessionClient(host, srvPort)){
+			client.setSecret(secret);
+			client.connect();
+			assertEquals("AUTO", client.getSessionOptions().get("SYNC-BLOCKSIZE"));
+			TestRsync.writeTestFiles(masterFile, slaveFile, 1024*1024, 4, 1);
+			RsyncStats stats=client.syncRemoteFile(masterFile, slaveName);
+			System.out.println(stats);
+			assertEquals(Follower.reasonableBlockSize(masterFile.length()), stats.blocksize);
+			Thread.sleep(2000);
+			assertEquals(Utils.md5(masterFile),Utils.md5(slaveFile));
+
+			assertEquals("8192", client.setSyncBlockSize(8192));
+			assertEquals("8192", client.getSessionOptions().get("SYNC-BLOCKSIZE"));
+			TestRsync.writeTestFiles(masterFile, slaveFile, 1024*1024, 4, 1);
+			stats=client.syncRemoteFile(masterFile, slaveName);
+			System.out.println(stats);
+			assertEquals(8192, stats.blocksize);
+			Thread.sleep(2000);
+			assertEquals(Utils.md5(masterFile),Utils.md5(slaveFile));
+			TestRsync.writeTestFiles(masterFile, slaveFile, 1024*1024, 4, 1);
+			stats=client.syncLocalFile(slaveName, masterFile);
+			System.out.println(stats);
+			assertEquals(8192, stats.blocksize);
+			assertEquals(Follower.BLOCKSIZE_REQUESTED, stats.blocksizeChoice);
+			assertEquals(Utils.md5(masterFile),Utils.md5(slaveFile));
+
+			assertEquals("AUTO", client.setSyncBlockSize(0));
+			stats=client.syncLocalFile(slaveName, masterFile);
+			assertEquals(Follower.BLOCKSIZE_AUTO, stats.blocksizeChoice);
+		}
+	}
+
+	@Test
+	public void testSyncInPlace() throws Exception {
+		String masterName="source-"+System.currentTimeMillis();
+		File masterFile=new File(dataDir,masterName);
+		String slaveName="copy-"+System.currentTimeMillis();
+		File slaveFile=new File(dataDir,slaveName);
+		String secret = UUID.randomUUID().toString();
+		String cwd = dataDir.getAbsolutePath();
+		UFTPSessionRequest job = new UFTPSessionRequest(host, "nobody", secret, cwd);
+		job.sendTo(host[0], jobPort);
+		Thread.sleep(1000);
+		try(UFTPSessionClient client = new UFTPSessionClient(host, srvPort)){
+			client.setSecret(secret);
+			client.connect();
+			assertEquals("OFF", client.getSessionOptions().get("SYNC-INPLACE"));
+			client.setSyncInPlace(true);
+			assertEquals("ON", client.getSessionOptions().get("SYNC-INPLACE"));
+			TestRsync.writeTestFiles(masterFile, slaveFile, 1024*1024, 4, 1);
+			RsyncStats stats=client.syncRemoteFile(masterFile, slaveName);
+			System.out.println(stats);
+			Thread.sleep(2000);
+			assertEquals(Utils.md5(masterFile),Utils.md5(slaveFile));
+			TestRsync.writeTestFiles(masterFile, slaveFile, 1024*1024, 4, 1);
+			stats=client.syncLocalFile(slaveName, masterFile);
+			System.out.println(stats);
+			assertTrue(stats.inPlace);
+			assertTrue(stats.written < masterFile.length());
+			assertEquals(Utils.md5(masterFile),Utils.md5(slaveFile));
+		}
+	}
+
+	@Test
+	public void testSyncParallel() throws Exception {
+		int numCon = 3;
+		String masterName="source-"+System.currentTimeMillis();
+		File masterFile=new File(dataDir,masterName);
+		String slaveName="copy-"+System.currentTimeMillis();
+		File slaveFile=new File(dataDir,slaveName);
+		String secret = UUID.randomUUID().toString();
+		String cwd = dataDir.getAbsolutePath();
+		UFTPSessionRequest job = new UFTPSessionRequest(host, "nobody", secret, cwd);
+		job.setStreams(numCon);
+		job.sendTo(host[0], jobPort);
+		Thread.sleep(1000);
+		try(UFTPSessionClient client = new UFTPSessionClient(host, srvPort)){
+			client.setSecret(secret);
+			client.setNumConnections(numCon);
+			client.connect();
+			assertEquals("OFF", client.getSessionOptions().get("SYNC-PARALLEL"));
+			client.setSyncParallel(true);
+			assertEquals("ON", client.getSessionOptions().get("SYNC-PARALLEL"));
+			TestRsync.writeTestFiles(masterFile, slaveFile, 1024*1024, 5, 2);
+			RsyncStats stats=client.syncRemoteFile(masterFile, slaveName);
+			System.out.println(stats);
+			assertEquals(numCon, stats.partitions);
+			assertTrue(stats.transferred < masterFile.length()/10);
+			Thread.sleep(1000);
+			assertEquals(Utils.md5(masterFile),Utils.md5(slaveFile));
+			// local file of a different size
+			TestRsync.writeTestFilesOffset(masterFile, slaveFile, 1024*1024, 4, 5000);
+			stats=client.syncLocalFile(slaveName, masterFile);
+			System.out.println(stats);
+			assertEquals(numCon, stats.partitions);
+			assertEquals(Utils.md5(masterFile),Utils.md5(slaveFile));
+		}
+	}
+
+	@Test
+	public void testSyncTree() throws Exception {
+		String masterName="tree-source-"+System.currentTimeMillis();
+		File masterDir=new File(dataDir,masterName);
+		String slaveName="tree-copy-"+System.currentTimeMillis();
+		File slaveDir=new File(dataDir,slaveName);
+		new File(masterDir,"sub").mkdirs();
+		new File(slaveDir,"sub").mkdirs();
+		TestRsync.writeTestFiles(new File(masterDir,"sub/data"), new File(slaveDir,"sub/data"), 1024*1024, 2, 1);
+		new File(slaveDir,"sub/data").setLastModified(System.currentTimeMillis()-3600*1000);
+		TestRsync.writeTextFiles(new File(masterDir,"text"), new File(dataDir,"unused-"+System.currentTimeMillis()), 50, 1);
+		String secret = UUID.randomUUID().toString();
+		String cwd = dataDir.getAbsolutePath();
+		UFTPSessionRequest job = new UFTPSessionRequest(host, "nobody", secret, cwd);
+		job.sendTo(host[0], jobPort);
+		Thread.sleep(1000);
+		try(UFTPSessionClient client = new UFTPSessionClient(host, srvPort)){
+			client.setSecret(secret);
+			client.connect();
+			assertTrue(client.getServerFeatures().contains(UFTPCommands.SYNC_TREE));
+			TreeSyncStats stats = client.syncRemoteTree(masterDir, slaveName);
+			System.out.println(stats);
+			assertEquals(2, stats.files);
+			assertEquals(1, stats.synced);
+			assertEquals(1, stats.copied);
+			assertEquals(Utils.md5(new File(masterDir,"sub/data")),Utils.md5(new File(slaveDir,"sub/data")));
+			assertEquals(Utils.md5(new File(masterDir,"text")),Utils.md5(new File(slaveDir,"text")));
+			// into a new local directory
+			File localCopy = new File(dataDir,"tree-local-"+System.currentTimeMillis());
+			stats = client.syncLocalTree(slaveName, localCopy);
+			System.out.println(stats);
+			assertEquals(2, stats.copied);
+			assertEquals(Utils.md5(new File(masterDir,"sub/data")),Utils.md5(new File(localCopy,"sub/data")));
+			// nothing to do
+			stats = client.syncLocalTree(slaveName, localCopy);
+			assertEquals(2, stats.unchanged);
+			assertThrows(IOException.class, ()->client.syncLocalTree("no-such-dir", localCopy));
+		}
+	}
+
 	@Test
 	public void testACLSetup() throws Exception {
 		System.setProperty("uftp-unit-test", "true");
@@ -309,6 +498,115 @@ public class TestSessionFeatures extends ClientServerTestBase{
 		checkFile(targetFile, expected);
 	}
 
+	@Test
+	public void testAuthenticatedEncryption() throws Exception {
+		// inline and in parallel
+		for(String threads: new String[] {"1", "4"}) {
+			System.setProperty(ChunkCipher.CRYPTO_THREADS, threads);
+			try {
+				for(EncryptionAlgorithm algo: new EncryptionAlgorithm[]
+						{ EncryptionAlgorithm.AES_GCM, EncryptionAlgorithm.CHACHA20 }) {
+					for(int numCon: new int[] {1, 2}) {
+						runAuthenticatedEncryption(algo, numCon);
+					}
+				}
+			}finally {
+				System.clearProperty(ChunkCipher.CRYPTO_THREADS);
+			}
+		}
+	}
+
+	private void runAuthenticatedEncryption(EncryptionAlgorithm algo, int numCon) throws Exception {
+		System.out.println("*** "+algo+" with "+numCon+" connection(s), "+ChunkCipher.getThreads()+" thread(s)");
+		byte[] key = Utils.createKey(algo);
+		File sourceFile = new File(dataDir,"testsourcefile-"+System.currentTimeMillis());
+		makeTestFile2(sourceFile, 1024*500);
+		String secret = UUID.randomUUID().toString();
+		UFTPSessionRequest job = new UFTPSessionRequest(host, "nobody", secret,
+				sourceFile.getParentFile().getAbsolutePath());
+		job.setKey(key);
+		job.setEncryptionAlgorithm(algo);
+		job.setStreams(numCon);
+		job.sendTo(host[0], jobPort);
+		Thread.sleep(1000);
+		String uploaded = "upload-"+System.currentTimeMillis();
+		File target = new File(dataDir, "download-"+System.currentTimeMillis());
+		try(UFTPSessionClient client = new UFTPSessionClient(host, srvPort)){
+			client.setSecret(secret);
+			client.setNumConnections(numCon);
+			client.setKey(key);
+			client.setEncryptionAlgorithm(algo);
+			client.connect();
+			assertTrue(client.getServerFeatures().contains("CRYPTED-"+algo));
+			try(FileInputStream fis = new FileInputStream(sourceFile)){
+				client.put(uploaded, sourceFile.length(), fis);
+			}
+			try(FileOutputStream fos = new FileOutputStream(target)){
+				client.get(uploaded, fos);
+			}
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			client.get(sourceFile.getName(), 100, 20, bos);
+			assertEquals(20, bos.size());
+		}
+		checkFile(target, Utils.md5(sourceFile));
+	}
+
+	@Test
+	public void testBlockCompression() throws Exception {
+		// inline and in parallel
+		for(String threads: new String[] {"1", "4"}) {
+			System.setProperty(BlockCompression.COMPRESS_THREADS, threads);
+			try {
+				for(CompressionAlgorithm algo: new CompressionAlgorithm[]
+						{ CompressionAlgorithm.LZ4, CompressionAlgorithm.DEFLATE }) {
+					for(int numCon: new int[] {1, 2}) {
+						runBlockCompression(algo, numCon);
+					}
+				}
+			}finally {
+				System.clearProperty(BlockCompression.COMPRESS_THREADS);
+			}
+		}
+	}
+
+	private void runBlockCompression(CompressionAlgorithm algo, int numCon) throws Exception {
+		System.out.println("*** "+algo+" with "+numCon+" connection(s), "+BlockCompression.getThreads()+" thread(s)");
+		File sourceFile = new File(dataDir,"testsourcefile-"+System.currentTimeMillis());
+		makeTestFile2(sourceFile, 1024*500);
+		String secret = UUID.randomUUID().toString();
+		UFTPSessionRequest job = new UFTPSessionRequest(host, "nobody", secret,
+				sourceFile.getParentFile().getAbsolutePath());
+		job.setCompress(true);
+		job.setCompressionAlgorithm(algo);
+		job.setCompressionLevel(1);
+		job.setStreams(numCon);
+		job.sendTo(host[0], jobPort);
+		Thread.sleep(1000);
+		String uploaded = "upload-"+System.currentTimeMillis();
+		File target = new File(dataDir, "download-"+System.currentTimeMillis());
+		try(UFTPSessionClient client = new UFTPSessionClient(host, srvPort)){
+			client.setSecret(secret);
+			client.setNumConnections(numCon);
+			client.setCompress(true);
+			client.setCompressionAlgorithm(algo);
+			client.setCompressionLevel(1);
+			client.connect();
+			assertTrue(client.getServerFeatures().contains("COMPRESSED-"+algo));
+			try(FileInputStream fis = new FileInputStream(sourceFile)){
+				client.put(uploaded, sourceFile.length(), fis);
+			}
+			try(FileOutputStream fos = new FileOutputStream(target)){
+				client.get(uploaded, fos);
+			}
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			client.get(sourceFile.getName(), 100, 20, bos);
+			assertEquals(20, bos.size());
+			System.out.println(client.getCompressionStats());
+			assertTrue(client.getCompressionStats().getRatio()>2);
+		}
+		checkFile(target, Utils.md5(sourceFile));
+	}
+
 	@Test
 	public void testHashing() throws Exception {
 		String fileName = "source-"+System.currentTimeMillis();
@@ -345,6 +643,62 @@ public class TestSessionFeatures extends ClientServerTestBase{
 		}
 	}
 
+	@Test
+	public void testMultipartHashing() throws Exception {
+		String fileName = "source-"+System.currentTimeMillis();
+		File dataFile = new File("target/testdata/"+fileName);
+		makeTestFile(dataFile, 1024*1024, 10);
+		try(FileOutputStream fos = new FileOutputStream(dataFile, true)){
+			fos.write(new byte[123]);
+		}
+		String secret = UUID.randomUUID().toString();
+		String cwd = dataDir.getAbsolutePath();
+		UFTPSessionRequest job = new UFTPSessionRequest(host, "nobody", secret, cwd);
+		job.sendTo(host[0], jobPort);
+		Thread.sleep(1000);
+
+		try(UFTPSessionClient client = new UFTPSessionClient(host, srvPort);
+			RandomAccessFile ra = new RandomAccessFile(dataFile, "r")){
+			client.setSecret(secret);
+			client.connect();
+			assertTrue(client.supportsMultipartHashes());
+			IOException ok = assertThrows(IOException.class, ()->{
+				client.setHashPartSize(1024);
+			});
+			assertTrue(ok.getMessage().contains("at least"));
+			long partSize = 1024*1024;
+			assertEquals(String.valueOf(partSize), client.setHashPartSize(partSize));
+			assertEquals(String.valueOf(partSize), client.getSessionOptions().get("HASH-PARTS"));
+			for(String algo: new String[] {"MD5", "SHA-256"}) {
+				client.setHashAlgorithm(algo);
+				HashInfo hashInfo = client.getHash(fileName);
+				System.out.println("Remote hash: "+hashInfo.fullInfo()+" parts: "+hashInfo.parts.size());
+				assertEquals(11, hashInfo.parts.size());
+				assertEquals(dataFile.length()-1, hashInfo.lastByte);
+				List<byte[]> local = MultipartHash.compute(ra.getChannel(), algo, 0, dataFile.length(),
+						partSize, ForkJoinPool.commonPool(), null);
+				for(int i=0; i<local.size(); i++) {
+					assertEquals(Utils.hexString(local.get(i)), hashInfo.parts.get(i).hash);
+				}
+				assertEquals(Utils.hexString(MultipartHash.combine(algo, local)), hashInfo.hash);
+				// range
+				hashInfo = client.getHash(fileName, 1000, 3*partSize);
+				System.out.println("Remote hash: "+hashInfo.fullInfo()+" parts: "+hashInfo.parts.size());
+				assertEquals(3, hashInfo.parts.size());
+				assertEquals(1000, hashInfo.parts.get(0).firstByte);
+				assertEquals(1000+3*partSize-1, hashInfo.parts.get(2).lastByte);
+				local = MultipartHash.compute(ra.getChannel(), algo, 1000, 3*partSize,
+						partSize, ForkJoinPool.commonPool(), null);
+				assertEquals(Utils.hexString(MultipartHash.combine(algo, local)), hashInfo.hash);
+			}
+			// back to single hashes
+			assertEquals("OFF", client.setHashPartSize(0));
+			HashInfo hashInfo = client.getHash(fileName);
+			assertNull(hashInfo.parts);
+			assertEquals(Utils.hexString(Utils.digest(dataFile, "SHA-256")), hashInfo.hash);
+		}
+	}
+
 	@Test
 	public void testRCP() throws Exception {
 		File originalFile = new File("target/testdata/source-"+System.currentTimeMillis());
@@ -413,7 +767,14 @@ public class TestSessionFeatures extends ClientServerTestBase{
 			assertEquals("MD5", opts.get("HASH"));
 			client.setSessionOption("HASH", "SHA-1");
 			opts = client.getSessionOptions();
-			assertEquals("SHA-1", opts.get("HASH"));	
+			assertEquals("SHA-1", opts.get("HASH"));
+			assertEquals("DECOUPLED", opts.get("MULTISTREAM"));
+			client.setChunkSize(4*1024*1024);
+			opts = client.getSessionOptions();
+			assertEquals(String.valueOf(4*1024*1024), opts.get("CHUNKSIZE"));
+			client.setChunkSize(PConfig.AUTO_CHUNKSIZE);
+			opts = client.getSessionOptions();
+			assertEquals("AUTO", opts.get("CHUNKSIZE"));
 		}
 	}
 
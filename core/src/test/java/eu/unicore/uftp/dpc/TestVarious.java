@@ -2,8 +2,10 @@ package eu.unicore.uftp.dpc;
 
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -11,6 +13,11 @@ import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
@@ -61,8 +68,7 @@ public class TestVarious {
 
 	@Test
 	public void testCryptoStream() throws Exception{
-		for(EncryptionAlgorithm algo: new EncryptionAlgorithm[]
-		   { EncryptionAlgorithm.BLOWFISH, EncryptionAlgorithm.AES })
+		for(EncryptionAlgorithm algo: EncryptionAlgorithm.values())
 		{
 			runCryptoStreamTest(algo);
 		}
@@ -142,4 +148,31 @@ public class TestVarious {
 			assertThrows(IllegalStateException.class, ()->p.getLocalPort());
 		}
 	}
+
+	@Test
+	public void testVirtualThreads() throws Exception {
+		boolean supported = Utils.isVirtualThreadsSupported();
+		System.out.println("Virtual threads supported: "+supported);
+		try {
+			assertEquals(supported, Utils.setVirtualThreads(true));
+			CountDownLatch latch = new CountDownLatch(2);
+			List<String> names = Collections.synchronizedList(new ArrayList<>());
+			Runnable task = ()->{
+				names.add(Thread.currentThread().getName());
+				latch.countDown();
+			};
+			Utils.newThread(task, "test-thread").start();
+			Thread worker = Utils.start(task, "test-worker");
+			assertTrue(latch.await(10, TimeUnit.SECONDS));
+			// the returned thread is the one that ran the task
+			worker.join(10000);
+			assertFalse(worker.isAlive());
+			assertEquals("test-worker", worker.getName());
+			assertTrue(names.contains("test-thread"));
+			assertTrue(names.contains("test-worker"));
+		}finally {
+			Utils.setVirtualThreads(false);
+		}
+		assertFalse(Utils.isVirtualThreads());
+	}
 }
@@ -0,0 +1,39 @@
+package eu.unicore.uftp.functional;
+
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.uftp.rsync.Checksum;
+
+/**
+ * rough comparison of the strong rsync checksums for typical block sizes.
+ * This is a benchmark, and not part of the default test run
+ */
+public class TestChecksumPerformance {
+
+	@Test
+	public void testStrongChecksums() throws Exception {
+		byte[] data = new byte[64*1024*1024];
+		new Random().nextBytes(data);
+		for(String algo: Checksum.STRONG_CHECKSUMS) {
+			MessageDigest md = Checksum.strongChecksum(algo);
+			for(int blockSize: new int[] {512, 8192, 65536}) {
+				byte[] digest = new byte[16];
+				long best = Long.MAX_VALUE;
+				for(int run=0; run<3; run++) {
+					long start = System.nanoTime();
+					for(int i=0; i<data.length; i+=blockSize) {
+						md.update(data, i, blockSize);
+						md.digest(digest, 0, 16);
+					}
+					best = Math.min(best, System.nanoTime()-start);
+				}
+				System.out.printf("%-12s block size %6d: %6d MB/s%n", algo, blockSize,
+						data.length*1000L/Math.max(1, best));
+			}
+		}
+	}
+
+}
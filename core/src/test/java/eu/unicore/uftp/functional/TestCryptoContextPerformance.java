@@ -0,0 +1,63 @@
+package eu.unicore.uftp.functional;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.uftp.dpc.CryptoContext;
+import eu.unicore.uftp.dpc.Utils;
+import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
+
+/**
+ * compares the throughput for many small streams, creating the ciphers
+ * for each stream vs. re-using them via a shared {@link CryptoContext}.
+ * This is a benchmark, and not part of the default test run
+ */
+public class TestCryptoContextPerformance {
+
+	@Test
+	public void testSmallStreamThroughput() throws Exception {
+		int numStreams = 2000;
+		byte[] data = new byte[4096];
+		new Random().nextBytes(data);
+		for(EncryptionAlgorithm algo: EncryptionAlgorithm.values()) {
+			byte[] key = Utils.createKey(algo);
+			CryptoContext shared = new CryptoContext(key, algo);
+			// warm up
+			for(int i=0; i<200; i++) {
+				roundTrip(data, new CryptoContext(key, algo));
+				roundTrip(data, shared);
+			}
+			long start = System.nanoTime();
+			for(int i=0; i<numStreams; i++) {
+				roundTrip(data, new CryptoContext(key, algo));
+			}
+			long perStream = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i=0; i<numStreams; i++) {
+				roundTrip(data, shared);
+			}
+			long cached = System.nanoTime() - start;
+			System.out.printf("%s: %d streams of %d bytes: new ciphers per stream %d ms, shared context %d ms%n",
+					algo, numStreams, data.length, perStream/1000000, cached/1000000);
+		}
+	}
+
+	private void roundTrip(byte[] data, CryptoContext context) throws IOException {
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		try(OutputStream os = Utils.getEncryptStream(sink, context)){
+			os.write(data);
+		}
+		try(InputStream is = Utils.getDecryptStream(new ByteArrayInputStream(sink.toByteArray()), context)){
+			assertEquals(data.length, is.readAllBytes().length);
+		}
+	}
+
+}
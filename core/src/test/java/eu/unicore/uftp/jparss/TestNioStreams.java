@@ -0,0 +1,174 @@
+package eu.unicore.uftp.jparss;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.uftp.dpc.Utils.EncryptionAlgorithm;
+
+public class TestNioStreams {
+
+	static final int numStreams = 4;
+
+	SocketChannel[] senders;
+
+	SocketChannel[] receivers;
+
+	ExecutorService executor;
+
+	byte[] data;
+
+	@BeforeEach
+	public void setup() throws IOException {
+		senders = new SocketChannel[numStreams];
+		receivers = new SocketChannel[numStreams];
+		try(ServerSocketChannel ssc = ServerSocketChannel.open()){
+			ssc.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+			for(int i=0; i<numStreams; i++) {
+				senders[i] = SocketChannel.open(ssc.getLocalAddress());
+				receivers[i] = ssc.accept();
+			}
+		}
+		executor = Executors.newSingleThreadExecutor();
+		data = new byte[5*1024*1024+123];
+		new Random().nextBytes(data);
+	}
+
+	@AfterEach
+	public void cleanup() throws IOException {
+		executor.shutdownNow();
+		for(int i=0; i<numStreams; i++) {
+			senders[i].close();
+			receivers[i].close();
+		}
+	}
+
+	@Test
+	public void testLockstepNioWriter() throws Exception {
+		Future<?> f = send(new PNioOutputStream(senders, false, 0), 16384);
+		try(InputStream is = new PInputStream(streams(receivers))){
+			assertArrayEquals(data, readAll(is, 16384));
+		}
+		f.get();
+	}
+
+	@Test
+	public void testLockstepNioReader() throws Exception {
+		Future<?> f = send(new POutputStream(outputs(senders)), 16384);
+		try(InputStream is = new PNioInputStream(receivers, false)){
+			assertArrayEquals(data, readAll(is, 16384));
+		}
+		f.get();
+	}
+
+	@Test
+	public void testDecoupledNio() throws Exception {
+		Future<?> f = send(new PNioOutputStream(senders, true, 65536), 1000);
+		try(InputStream is = new PNioInputStream(receivers, true)){
+			assertArrayEquals(data, readAll(is, 3333));
+		}
+		f.get();
+	}
+
+	@Test
+	public void testDecoupledNioWriter() throws Exception {
+		Future<?> f = send(new PNioOutputStream(senders, true, PConfig.AUTO_CHUNKSIZE), 16384);
+		try(InputStream is = new PDecoupledInputStream(streams(receivers))){
+			assertArrayEquals(data, readAll(is, 16384));
+		}
+		f.get();
+	}
+
+	@Test
+	public void testDecoupledNioReader() throws Exception {
+		Future<?> f = send(new PDecoupledOutputStream(outputs(senders), 32768), 16384);
+		try(InputStream is = new PNioInputStream(receivers, true)){
+			assertArrayEquals(data, readAll(is, 16384));
+		}
+		f.get();
+	}
+
+	@Test
+	public void testModeMismatch() throws Exception {
+		send(new PNioOutputStream(senders, false, 0), 16384);
+		try(InputStream is = new PNioInputStream(receivers, true)){
+			assertThrows(IOException.class, ()->is.readAllBytes());
+		}
+	}
+
+	@Test
+	public void testSocketFallback() throws Exception {
+		try(PNioSocket plain = new PNioSocket(null, false, null);
+			PNioSocket encrypted = new PNioSocket(new byte[32], false, EncryptionAlgorithm.AES);
+			PNioSocket compressed = new PNioSocket(null, true, null)) {
+			for(PNioSocket s: new PNioSocket[] {plain, encrypted, compressed}) {
+				s.init(1, numStreams);
+				for(SocketChannel c: senders) {
+					s.addSocketStream(c.socket());
+				}
+			}
+			assertTrue(plain.isNio());
+			assertFalse(encrypted.isNio());
+			assertFalse(compressed.isNio());
+			assertTrue(plain.getOutputStream() instanceof PNioOutputStream);
+		}
+	}
+
+	private Future<?> send(OutputStream os, int writeSize) {
+		Callable<Void> task = () -> {
+			try(os){
+				for(int pos=0; pos<data.length; pos+=writeSize) {
+					os.write(data, pos, Math.min(writeSize, data.length-pos));
+				}
+			}
+			return null;
+		};
+		return executor.submit(task);
+	}
+
+	private byte[] readAll(InputStream is, int readSize) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[readSize];
+		int n;
+		while((n=is.read(buf))>-1) {
+			bos.write(buf, 0, n);
+		}
+		return bos.toByteArray();
+	}
+
+	private InputStream[] streams(SocketChannel[] channels) throws IOException {
+		InputStream[] res = new InputStream[channels.length];
+		for(int i=0; i<channels.length; i++) {
+			res[i] = channels[i].socket().getInputStream();
+		}
+		return res;
+	}
+
+	private OutputStream[] outputs(SocketChannel[] channels) throws IOException {
+		OutputStream[] res = new OutputStream[channels.length];
+		for(int i=0; i<channels.length; i++) {
+			res[i] = channels[i].socket().getOutputStream();
+		}
+		return res;
+	}
+}
@@ -0,0 +1,183 @@
+package eu.unicore.uftp.jparss;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class TestParallelStreams {
+
+	@Test
+	public void testDecoupledRoundTrip() throws Exception {
+		int numStreams = 4;
+		byte[] data = new byte[3*1024*1024+17];
+		Random r = new Random();
+		r.nextBytes(data);
+		ByteArrayOutputStream[] sinks = new ByteArrayOutputStream[numStreams];
+		for(int i=0; i<numStreams; i++) {
+			sinks[i] = new ByteArrayOutputStream();
+		}
+		try(PDecoupledOutputStream os = new PDecoupledOutputStream(sinks)){
+			int pos = 0;
+			while(pos<data.length) {
+				int len = Math.min(data.length-pos, 1+r.nextInt(32768));
+				os.write(data, pos, len);
+				pos += len;
+			}
+			os.flush();
+		}
+		InputStream[] sources = new InputStream[numStreams];
+		for(int i=0; i<numStreams; i++) {
+			sources[i] = new ByteArrayInputStream(sinks[i].toByteArray());
+		}
+		byte[] result = new byte[data.length];
+		try(PDecoupledInputStream is = new PDecoupledInputStream(sources)){
+			int pos = 0;
+			while(true) {
+				// read sizes are independent of the write sizes
+				int n = is.read(result, pos, Math.min(result.length-pos, 1000));
+				if(n<=0)break;
+				pos += n;
+			}
+			assertEquals(data.length, pos);
+			assertEquals(-1, is.read());
+		}
+		assertArrayEquals(data, result);
+	}
+
+	@Test
+	public void testDecoupledChunking() throws Exception {
+		int chunkSize = 65536;
+		ByteArrayOutputStream[] sinks = new ByteArrayOutputStream[] {
+				new ByteArrayOutputStream(), new ByteArrayOutputStream() };
+		byte[] data = new byte[1000];
+		int total = 0;
+		try(PDecoupledOutputStream os = new PDecoupledOutputStream(sinks, chunkSize)){
+			// small writes are coalesced into chunks
+			for(int i=0; i<200; i++) {
+				os.write(data);
+				total += data.length;
+			}
+		}
+		int expectedChunks = (total + chunkSize - 1) / chunkSize;
+		int wireSize = sinks[0].size() + sinks[1].size();
+		assertEquals(total + expectedChunks*PConfig.pheaderlen, wireSize);
+	}
+
+	@Test
+	public void testDecoupledAutoChunkSize() throws Exception {
+		int numStreams = 3;
+		byte[] data = new byte[4*1024*1024];
+		new Random().nextBytes(data);
+		ByteArrayOutputStream[] sinks = new ByteArrayOutputStream[numStreams];
+		for(int i=0; i<numStreams; i++) {
+			sinks[i] = new ByteArrayOutputStream();
+		}
+		try(PDecoupledOutputStream os = new PDecoupledOutputStream(sinks, PConfig.AUTO_CHUNKSIZE)){
+			for(int pos=0; pos<data.length; pos+=16384) {
+				os.write(data, pos, 16384);
+			}
+			int size = os.getChunkSize();
+			assertTrue(size>=PConfig.minChunkSize && size<=PConfig.maxChunkSize);
+			assertEquals(size, Integer.highestOneBit(size));
+		}
+		InputStream[] sources = new InputStream[numStreams];
+		for(int i=0; i<numStreams; i++) {
+			sources[i] = new ByteArrayInputStream(sinks[i].toByteArray());
+		}
+		try(PDecoupledInputStream is = new PDecoupledInputStream(sources)){
+			assertArrayEquals(data, is.readAllBytes());
+		}
+	}
+
+	@Test
+	public void testChunkSizeLimits() {
+		assertEquals(PConfig.minChunkSize, PConfig.checkChunkSize(1));
+		assertEquals(PConfig.maxChunkSize, PConfig.checkChunkSize(Integer.MAX_VALUE));
+		assertEquals(PConfig.AUTO_CHUNKSIZE, PConfig.checkChunkSize(PConfig.AUTO_CHUNKSIZE));
+		assertEquals(2*1024*1024, PConfig.checkChunkSize(2*1024*1024));
+	}
+
+	@Test
+	public void testDecoupledReordering() throws Exception {
+		// stream 0 carries the chunks 1 and 2, stream 1 carries chunk 0
+		ByteArrayOutputStream s0 = new ByteArrayOutputStream();
+		writeChunk(s0, PConfig.dmagic, 0, 1, "two ".getBytes());
+		writeChunk(s0, PConfig.dmagic, 0, 2, "three".getBytes());
+		ByteArrayOutputStream s1 = new ByteArrayOutputStream();
+		writeChunk(s1, PConfig.dmagic, 1, 0, "one ".getBytes());
+		InputStream[] sources = new InputStream[] {
+				new ByteArrayInputStream(s0.toByteArray()),
+				new ByteArrayInputStream(s1.toByteArray()),
+		};
+		try(PDecoupledInputStream is = new PDecoupledInputStream(sources)){
+			assertEquals("one two three", new String(is.readAllBytes()));
+		}
+	}
+
+	@Test
+	public void testDecoupledMissingChunk() throws Exception {
+		ByteArrayOutputStream s0 = new ByteArrayOutputStream();
+		writeChunk(s0, PConfig.dmagic, 0, 0, "one ".getBytes());
+		writeChunk(s0, PConfig.dmagic, 0, 2, "three".getBytes());
+		InputStream[] sources = new InputStream[] { new ByteArrayInputStream(s0.toByteArray()) };
+		try(PDecoupledInputStream is = new PDecoupledInputStream(sources)){
+			assertThrows(IOException.class, ()->is.readAllBytes());
+		}
+	}
+
+	@Test
+	public void testDecoupledRejectsLockstepData() throws Exception {
+		ByteArrayOutputStream s0 = new ByteArrayOutputStream();
+		writeChunk(s0, PConfig.magic, 0, 0, "one".getBytes());
+		InputStream[] sources = new InputStream[] { new ByteArrayInputStream(s0.toByteArray()) };
+		try(PDecoupledInputStream is = new PDecoupledInputStream(sources)){
+			IOException e = assertThrows(IOException.class, ()->is.readAllBytes());
+			assertEquals("Bad magic number (non-matching stream mode?)", e.getCause().getMessage());
+		}
+	}
+
+	@Test
+	public void testDecoupledWriteError() throws Exception {
+		OutputStream broken = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				throw new IOException("broken");
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				throw new IOException("broken");
+			}
+		};
+		PDecoupledOutputStream os = new PDecoupledOutputStream(new OutputStream[] { broken, broken });
+		assertThrows(IOException.class, ()->{
+			for(int i=0; i<100; i++) {
+				os.write(new byte[1024]);
+			}
+			os.flush();
+		});
+		assertThrows(IOException.class, ()->os.close());
+	}
+
+	private void writeChunk(OutputStream os, short magic, int pos, int seq, byte[] data) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(PConfig.pheaderlen);
+		header.putShort(magic);
+		header.putShort((short)pos);
+		header.putInt(seq);
+		header.putInt(data.length);
+		header.putInt(data.length);
+		os.write(header.array());
+		os.write(data);
+	}
+
+}
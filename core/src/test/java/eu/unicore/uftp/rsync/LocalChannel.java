@@ -4,7 +4,6 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
 import java.nio.channels.ReadableByteChannel;
-import java.util.List;
 import java.util.concurrent.SynchronousQueue;
 
 import eu.unicore.uftp.rsync.Checksum.ChecksumHolder;
@@ -25,11 +24,23 @@ public class LocalChannel implements FollowerChannel, LeaderChannel {
 	// slave channel
 	
 	@Override
-	public void sendToLeader(List<Long> weakChecksums, List<byte[]> strongChecksums, int blocksize)throws IOException{
+	public void sendChecksumHeader(int blocksize, int numBlocks) throws IOException {
 		holder=new ChecksumHolder();
 		holder.blocksize=blocksize;
-		holder.weakChecksums=weakChecksums;
-		holder.strongChecksums=strongChecksums;
+		holder.weakChecksums=new long[numBlocks];
+		holder.strongChecksums=new byte[numBlocks*holder.digestLength];
+		if(numBlocks==0)handoff();
+	}
+
+	@Override
+	public void sendChecksums(long[] weakChecksums, byte[] strongChecksums, int from, int to) throws IOException {
+		System.arraycopy(weakChecksums, from, holder.weakChecksums, from, to-from);
+		System.arraycopy(strongChecksums, from*holder.digestLength, holder.strongChecksums,
+				from*holder.digestLength, (to-from)*holder.digestLength);
+		if(to==holder.numBlocks())handoff();
+	}
+
+	private void handoff() throws IOException {
 		try{
 			if(!dryRun)handoff2.put(holder);
 		}catch(Exception ex){
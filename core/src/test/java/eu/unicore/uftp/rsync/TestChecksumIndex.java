@@ -0,0 +1,57 @@
+package eu.unicore.uftp.rsync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class TestChecksumIndex {
+
+	@Test
+	public void testLookup() {
+		int numBlocks = 10000;
+		Random r = new Random(42);
+		long[] weak = new long[numBlocks];
+		byte[] strong = new byte[numBlocks*16];
+		r.nextBytes(strong);
+		for(int i=0; i<numBlocks; i++) {
+			weak[i] = r.nextLong() & 0xFFFFFFFFL;
+		}
+		// some blocks sharing a weak checksum
+		weak[100] = weak[200] = weak[300];
+		// start small to force growing the index
+		ChecksumIndex index = new ChecksumIndex(16, 16);
+		for(int i=0; i<numBlocks; i++) {
+			index.add(weak[i], strong, i*16);
+		}
+		assertEquals(numBlocks, index.size());
+		for(int i=0; i<numBlocks; i++) {
+			assertTrue(index.containsWeak(weak[i]));
+			assertEquals(i, index.find(weak[i], strong, i*16));
+		}
+		// wrong strong checksum
+		byte[] other = new byte[16];
+		assertEquals(-1, index.find(weak[5], other, 0));
+		// unknown weak checksums are (mostly) rejected
+		int found = 0;
+		for(int i=0; i<100000; i++) {
+			long w = r.nextLong() & 0xFFFFFFFFL;
+			if(index.containsWeak(w)) {
+				found++;
+				assertEquals(-1, index.find(w, other, 0));
+			}
+		}
+		System.out.println("False positives: "+found);
+		assertTrue(found<100);
+	}
+
+	@Test
+	public void testEmpty() {
+		ChecksumIndex index = new ChecksumIndex(0, 16);
+		assertFalse(index.containsWeak(12345));
+		assertEquals(-1, index.find(12345, new byte[16], 0));
+	}
+}
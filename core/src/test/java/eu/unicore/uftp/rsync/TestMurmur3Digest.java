@@ -0,0 +1,41 @@
+package eu.unicore.uftp.rsync;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.uftp.dpc.Utils;
+
+public class TestMurmur3Digest {
+
+	@Test
+	public void testDigest() throws Exception {
+		MessageDigest md = Checksum.strongChecksum("murmur3-128");
+		assertEquals(16, md.getDigestLength());
+		// reference value
+		byte[] fox = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+		assertEquals("6c1b07bc7bbc4be347939ac4a93c437a", Utils.hexString(md.digest(fox)).toLowerCase());
+		assertEquals("00000000000000000000000000000000", Utils.hexString(md.digest()));
+		// incremental updates give the same result
+		byte[] data = new byte[1000];
+		new Random().nextBytes(data);
+		for(int len=0; len<data.length; len+=37) {
+			md.update(data, 0, len);
+			byte[] expected = md.digest();
+			for(int i=0; i<len; i+=5) {
+				if(i%2==0)md.update(data[i]);
+				else md.update(data, i, 1);
+				md.update(data, i+1, Math.min(4, len-i-1));
+			}
+			assertArrayEquals(expected, md.digest(), "length "+len);
+		}
+		assertThrows(IllegalArgumentException.class, ()->Checksum.strongChecksum("CRC32"));
+	}
+
+}
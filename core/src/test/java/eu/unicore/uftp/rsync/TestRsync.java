@@ -6,7 +6,11 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 
 import org.apache.commons.io.FileUtils;
@@ -14,6 +18,7 @@ import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import eu.unicore.uftp.dpc.BufferPool;
 import eu.unicore.uftp.dpc.Utils;
 
 public class TestRsync {
@@ -24,10 +29,13 @@ public class TestRsync {
 	public void init(){
 		FileUtils.deleteQuietly(dataDir);
 		dataDir.mkdirs();
+		BufferPool.DIRECT.setLeakDetection(true);
 	}
 	
 	@AfterEach
 	public void cleanup(){
+		BufferPool.DIRECT.checkLeaks();
+		BufferPool.DIRECT.setLeakDetection(false);
 		//FileUtils.deleteQuietly(dataDir);
 	}
 	
@@ -184,6 +192,150 @@ public class TestRsync {
 		assertEquals(masterMd5, synched);
 	}
 
+	@Test
+	public void testParallelChecksums()throws Exception{
+		File file=new File(dataDir,"slave");
+		int blockSize = 1000;
+		byte[] data = new byte[2*Follower.REGION_SIZE+12345];
+		new Random().nextBytes(data);
+		try(FileOutputStream os=new FileOutputStream(file)){
+			os.write(data);
+		}
+		Follower slave=new Follower(new RandomAccessFile(file, "r"),null,file.getAbsolutePath(),blockSize);
+		slave.setPool(new ForkJoinPool(3));
+		slave.computeChecksums();
+		long[] weak = slave.getWeakChecksumArray();
+		byte[] strong = slave.getStrongChecksumArray();
+		int numBlocks = (data.length+blockSize-1)/blockSize;
+		assertEquals(numBlocks, weak.length);
+		MessageDigest md = MessageDigest.getInstance("MD5");
+		for(int i=0; i<numBlocks; i++) {
+			int start = i*blockSize;
+			byte[] block = Arrays.copyOfRange(data, start, Math.min(start+blockSize, data.length));
+			assertEquals(Checksum.checksum(block, start, start+block.length-1), weak[i]);
+			assertArrayEquals(md.digest(block), Arrays.copyOfRange(strong, i*16, (i+1)*16));
+		}
+	}
+
+	@Test
+	public void testShiftedData()throws Exception{
+		File masterFile=new File(dataDir,"master");
+		File slaveFile=new File(dataDir,"slave");
+		// master has some extra bytes at the beginning and in the middle,
+		// so blocks are found at unaligned positions across scan buffer refills
+		byte[] data = new byte[3*Leader.SCAN_BUFFER_SIZE+1234];
+		new Random().nextBytes(data);
+		int blockSize = 4096;
+		int middle = data.length/2;
+		try(FileOutputStream os1=new FileOutputStream(masterFile);
+			FileOutputStream os2=new FileOutputStream(slaveFile)){
+			os1.write(new byte[17]);
+			os1.write(data, 0, middle);
+			os1.write(new byte[blockSize+5]);
+			os1.write(data, middle, data.length-middle);
+			os2.write(data);
+		}
+		String masterMd5=Utils.md5(masterFile);
+		LocalChannel channel=new LocalChannel(false);
+		Follower slave=new Follower(new RandomAccessFile(slaveFile, "r"),channel,slaveFile.getAbsolutePath(),blockSize);
+		Leader master=new Leader(new RandomAccessFile(masterFile,"r"),channel,masterFile.getAbsolutePath());
+		Future<RsyncStats> f=Utils.getExecutor().submit(slave);
+		RsyncStats masterStats=master.call();
+		RsyncStats slaveStats=f.get();
+		System.out.println(slaveStats);
+		System.out.println(masterStats);
+		assertEquals(masterMd5, Utils.md5(slaveFile));
+		// all full blocks but the one containing the middle offset are found
+		assertEquals(data.length/blockSize-1, masterStats.matches);
+		assertTrue(masterStats.transferred < 3*blockSize);
+	}
+
+	@Test
+	public void testInPlace()throws Exception{
+		File masterFile=new File(dataDir,"master");
+		File slaveFile=new File(dataDir,"slave");
+		int blockSize = 4096;
+		byte[] data = new byte[2*1024*1024+100];
+		new Random().nextBytes(data);
+		// appended data
+		try(FileOutputStream os1=new FileOutputStream(masterFile);
+			FileOutputStream os2=new FileOutputStream(slaveFile)){
+			os1.write(data);
+			os2.write(data, 0, data.length-50000);
+		}
+		Object inode = Files.readAttributes(slaveFile.toPath(), "fileKey").get("fileKey");
+		RsyncStats stats = syncInPlace(masterFile, slaveFile, blockSize);
+		assertEquals(Utils.md5(masterFile), Utils.md5(slaveFile));
+		assertEquals(inode, Files.readAttributes(slaveFile.toPath(), "fileKey").get("fileKey"));
+		assertTrue(stats.written < 50000 + blockSize);
+		// changes, deleted and inserted data
+		try(FileOutputStream os2=new FileOutputStream(slaveFile)){
+			os2.write(data, 0, 100000);
+			os2.write(new byte[1000]);
+			os2.write(data, 100000, 500000);
+			os2.write(data, 700000, data.length-700000);
+			os2.write(new byte[12345]);
+		}
+		try(RandomAccessFile ra = new RandomAccessFile(slaveFile, "rw")){
+			ra.seek(1500000);
+			ra.write(new byte[] {1,2,3});
+		}
+		stats = syncInPlace(masterFile, slaveFile, blockSize);
+		assertEquals(Utils.md5(masterFile), Utils.md5(slaveFile));
+		assertEquals(inode, Files.readAttributes(slaveFile.toPath(), "fileKey").get("fileKey"));
+		assertTrue(stats.written < data.length);
+		// shorter
+		try(FileOutputStream os1=new FileOutputStream(masterFile)){
+			os1.write(data, 0, 1000000);
+		}
+		stats = syncInPlace(masterFile, slaveFile, blockSize);
+		assertEquals(Utils.md5(masterFile), Utils.md5(slaveFile));
+		assertTrue(stats.written < blockSize);
+	}
+
+	private RsyncStats syncInPlace(File masterFile, File slaveFile, int blockSize) throws Exception {
+		LocalChannel channel=new LocalChannel(false);
+		try(RandomAccessFile slaveRA = new RandomAccessFile(slaveFile, "r");
+			RandomAccessFile masterRA = new RandomAccessFile(masterFile, "r")){
+			Follower slave=new Follower(slaveRA,channel,slaveFile.getAbsolutePath(),blockSize);
+			slave.setInPlace(true);
+			Leader master=new Leader(masterRA,channel,masterFile.getAbsolutePath());
+			master.setInPlace(true);
+			Future<RsyncStats> f=Utils.getExecutor().submit(slave);
+			System.out.println(master.call());
+			RsyncStats stats=f.get();
+			System.out.println(stats);
+			assertTrue(stats.inPlace);
+			return stats;
+		}
+	}
+
+	@Test
+	public void testBlockSizePolicy() {
+		assertEquals(Follower.DEFAULT_BLOCKSIZE, Follower.reasonableBlockSize(0));
+		assertEquals(Follower.DEFAULT_BLOCKSIZE, Follower.reasonableBlockSize(100*1024));
+		assertEquals(1024, Follower.reasonableBlockSize(1024*1024));
+		assertEquals(32768, Follower.reasonableBlockSize(1024*1024*1024));
+		assertEquals(Follower.MAX_BLOCKSIZE, Follower.reasonableBlockSize(1024L*1024*1024*1024));
+		assertEquals(Follower.MAX_BLOCKSIZE, Follower.reasonableBlockSize(Long.MAX_VALUE));
+		for(long size=1000; size<1000000000000L; size*=7) {
+			int bs = Follower.reasonableBlockSize(size);
+			assertEquals(0, bs % 8);
+			// signature is bounded by about sqrt(size) blocks
+			assertTrue(size/bs <= Math.max(Math.sqrt(size)+8, size/Follower.DEFAULT_BLOCKSIZE));
+		}
+		assertEquals(Follower.DEFAULT_BLOCKSIZE, Follower.checkBlockSize(1));
+		assertEquals(Follower.MAX_BLOCKSIZE, Follower.checkBlockSize(Integer.MAX_VALUE));
+		assertEquals(4096, Follower.checkBlockSize(4096));
+		// the number of blocks is limited for large files
+		assertEquals(4096, Follower.checkBlockSize(4096, 1024L*1024*1024));
+		long large = 64L*1024*1024*1024;
+		int bs = Follower.checkBlockSize(Follower.DEFAULT_BLOCKSIZE, large);
+		assertEquals(0, bs % 8);
+		assertTrue(large/bs <= Follower.MAX_BLOCKS);
+		assertTrue(Follower.checkBlockSize(Follower.DEFAULT_BLOCKSIZE, Long.MAX_VALUE) > 0);
+	}
+
 	/**
 	 * param blockSize
 	 * @param numBlocks - number of blocks
@@ -4,13 +4,20 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 
+import com.sun.management.UnixOperatingSystemMXBean;
+
 import org.apache.commons.io.FileUtils;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
@@ -74,6 +81,226 @@ public class TestRsyncViaSocket {
 		serverSocket.close();
 	}
 	
+	@Test
+	public void testPipelined()throws Exception{
+		File masterFile=new File(dataDir,"master");
+		File slaveFile=new File(dataDir,"slave");
+		// many more blocks than sent in one batch, and a file much larger
+		// than the leader's lookahead, so the scan starts on a partial index
+		byte[] data = new byte[(int)(3*Leader.LOOKAHEAD)+777];
+		new Random().nextBytes(data);
+		int blockSize = 1024;
+		int middle = data.length/2;
+		try(FileOutputStream os1=new FileOutputStream(masterFile);
+			FileOutputStream os2=new FileOutputStream(slaveFile)){
+			os1.write(new byte[33]);
+			os1.write(data, 0, middle);
+			os1.write(new byte[blockSize+3]);
+			os1.write(data, middle, data.length-middle);
+			os2.write(data);
+		}
+		String masterMd5=Utils.md5(masterFile);
+		try(ServerSocket serverSocket=new ServerSocket(0)){
+			Future<Socket>getServerSock=Utils.getExecutor().submit(new GetServerSideSocket(serverSocket));
+			try(Socket client=new Socket("localhost",serverSocket.getLocalPort());
+				Socket server=getServerSock.get()){
+				Follower slave=new Follower(new RandomAccessFile(slaveFile, "r"),
+						new SocketFollowerChannel(client),slaveFile.getAbsolutePath(),blockSize);
+				Leader master=new Leader(new RandomAccessFile(masterFile,"r"),
+						new SocketLeaderChannel(server),masterFile.getAbsolutePath());
+				Future<RsyncStats> f=Utils.getExecutor().submit(slave);
+				RsyncStats masterStats=master.call();
+				RsyncStats slaveStats=f.get();
+				System.out.println(slaveStats);
+				System.out.println(masterStats);
+				assertEquals(masterMd5, Utils.md5(slaveFile));
+				// all full blocks but the one containing the middle offset are found
+				assertEquals(data.length/blockSize-1, masterStats.matches);
+				assertTrue(masterStats.transferred < 3*blockSize);
+			}
+		}
+	}
+
+	@Test
+	public void testPartitioned()throws Exception{
+		File masterFile=new File(dataDir,"master");
+		File slaveFile=new File(dataDir,"slave");
+		int count=4;
+		// insertions and changes spread over the file, so the partitions of the
+		// two versions are not aligned
+		String masterMd5=writeTestFiles(masterFile, slaveFile, 100000, 40, 1);
+		try(RandomAccessFile raf=new RandomAccessFile(masterFile, "rw")){
+			byte[] data=new byte[(int)raf.length()];
+			raf.readFully(data);
+			raf.seek(1234);
+			raf.write(new byte[777]);
+			raf.write(data, 1234, data.length-1234);
+		}
+		masterMd5=Utils.md5(masterFile);
+		List<Socket> sockets=new ArrayList<>();
+		List<SocketLeaderChannel> leaderChannels=new ArrayList<>();
+		List<SocketFollowerChannel> followerChannels=new ArrayList<>();
+		try(ServerSocket serverSocket=new ServerSocket(0)){
+			for(int i=0; i<count; i++){
+				Future<Socket>getServerSock=Utils.getExecutor().submit(new GetServerSideSocket(serverSocket));
+				Socket client=new Socket("localhost",serverSocket.getLocalPort());
+				Socket server=getServerSock.get();
+				sockets.add(client);
+				sockets.add(server);
+				leaderChannels.add(new SocketLeaderChannel(server));
+				// streams are in a different order on the follower side
+				followerChannels.add(0, new SocketFollowerChannel(client));
+			}
+			PartitionedFollower slave=new PartitionedFollower(slaveFile, followerChannels, 0, null);
+			PartitionedLeader master=new PartitionedLeader(masterFile, leaderChannels, masterFile.getAbsolutePath(), null);
+			Future<RsyncStats> f=Utils.getExecutor().submit(slave);
+			RsyncStats masterStats=master.call();
+			RsyncStats slaveStats=f.get();
+			System.out.println(slaveStats);
+			System.out.println(masterStats);
+			assertEquals(masterMd5, Utils.md5(slaveFile));
+			assertEquals(count, masterStats.partitions);
+			// literal data: the changed blocks, the insertion, and the data moved across partition boundaries
+			assertTrue(masterStats.transferred < masterFile.length()/10);
+		}finally{
+			for(Socket s: sockets)s.close();
+		}
+	}
+
+	@Test
+	public void testPartitions(){
+		long total=1000003;
+		long end=0;
+		for(int i=0; i<7; i++){
+			Partition p=new Partition(i, 7, total);
+			assertEquals(end, p.offset);
+			end=p.offset+p.length;
+		}
+		assertEquals(total, end);
+		assertEquals(0, new Partition(2, 3, 0).length);
+		Partition huge=new Partition(2, 3, Long.MAX_VALUE);
+		assertEquals(Long.MAX_VALUE, huge.offset+huge.length);
+		assertThrows(IllegalArgumentException.class, ()->new Partition(3, 3, 100));
+	}
+
+	@Test
+	public void testTree()throws Exception{
+		File leaderDir=new File(dataDir,"leader");
+		File followerDir=new File(dataDir,"follower");
+		new File(leaderDir,"sub/deeper").mkdirs();
+		new File(followerDir,"sub").mkdirs();
+		// changed large file (rsync), changed small file, unchanged file, new files
+		writeTestFiles(new File(leaderDir,"sub/large"), new File(followerDir,"sub/large"), 16384, 20, 1);
+		writeTestFiles(new File(leaderDir,"small"), new File(followerDir,"small"), 100, 1, 1);
+		writeTestFiles(new File(leaderDir,"same"), new File(followerDir,"same"), 100, 1, 0);
+		writeTestFiles(new File(leaderDir,"sub/deeper/new"), new File(dataDir,"unused"), 100000, 1, 0);
+		FileUtils.writeStringToFile(new File(leaderDir,"empty"), "", "UTF-8");
+		long yesterday = System.currentTimeMillis()-24*3600*1000;
+		new File(followerDir,"sub/large").setLastModified(yesterday);
+		new File(followerDir,"small").setLastModified(yesterday);
+		new File(followerDir,"same").setLastModified(new File(leaderDir,"same").lastModified());
+		try(ServerSocket serverSocket=new ServerSocket(0)){
+			Future<Socket>getServerSock=Utils.getExecutor().submit(new GetServerSideSocket(serverSocket));
+			try(Socket client=new Socket("localhost",serverSocket.getLocalPort());
+				Socket server=getServerSock.get()){
+				TreeFollower follower=new TreeFollower(followerDir, client.getInputStream(), client.getOutputStream(), client);
+				TreeLeader leader=new TreeLeader(leaderDir, server.getInputStream(), server.getOutputStream());
+				Future<TreeSyncStats> f=Utils.getExecutor().submit(follower);
+				TreeSyncStats leaderStats=leader.call();
+				TreeSyncStats followerStats=f.get();
+				System.out.println(followerStats);
+				System.out.println(leaderStats);
+				assertEquals(5, followerStats.files);
+				assertEquals(1, followerStats.unchanged);
+				assertEquals(3, followerStats.copied);
+				assertEquals(1, followerStats.synced);
+				assertEquals(1, leaderStats.synced);
+				// the large file is not transferred as a whole
+				assertTrue(leaderStats.transferred < 100000 + 16384*20/2);
+			}
+		}
+		for(String name: new String[]{"sub/large","small","same","sub/deeper/new","empty"}){
+			File expected=new File(leaderDir,name);
+			File actual=new File(followerDir,name);
+			assertEquals(Utils.md5(expected), Utils.md5(actual), name);
+			assertEquals(expected.lastModified()/1000, actual.lastModified()/1000, name);
+		}
+	}
+
+	@Test
+	public void testTreeWithShorterLeaderFile()throws Exception{
+		File leaderDir=new File(dataDir,"leader");
+		File followerDir=new File(dataDir,"follower");
+		leaderDir.mkdirs();
+		followerDir.mkdirs();
+		// the Leader is done long before the Follower has sent all the checksums
+		writeTestFiles(new File(leaderDir,"shrunk"), new File(followerDir,"shrunk"), 1024*1024, 1, 1);
+		try(RandomAccessFile raf=new RandomAccessFile(new File(followerDir,"shrunk"), "rw")){
+			raf.setLength(64*1024*1024);
+		}
+		new File(leaderDir,"after").createNewFile();
+		try(ServerSocket serverSocket=new ServerSocket(0)){
+			Future<Socket>getServerSock=Utils.getExecutor().submit(new GetServerSideSocket(serverSocket));
+			try(Socket client=new Socket("localhost",serverSocket.getLocalPort());
+				Socket server=getServerSock.get()){
+				TreeFollower follower=new TreeFollower(followerDir, client.getInputStream(), client.getOutputStream(), client);
+				TreeLeader leader=new TreeLeader(leaderDir, server.getInputStream(), server.getOutputStream());
+				Future<TreeSyncStats> f=Utils.getExecutor().submit(follower);
+				leader.call();
+				TreeSyncStats followerStats=f.get();
+				assertEquals(1, followerStats.synced);
+				assertEquals(1, followerStats.copied);
+			}
+		}
+		assertEquals(Utils.md5(new File(leaderDir,"shrunk")), Utils.md5(new File(followerDir,"shrunk")));
+		assertTrue(new File(followerDir,"after").exists());
+	}
+
+	@Test
+	public void testTreeClosesFiles()throws Exception{
+		File leaderDir=new File(dataDir,"leader");
+		File followerDir=new File(dataDir,"follower");
+		leaderDir.mkdirs();
+		followerDir.mkdirs();
+		int numFiles=100;
+		long yesterday = System.currentTimeMillis()-24*3600*1000;
+		for(int i=0; i<numFiles; i++){
+			writeTestFiles(new File(leaderDir,"f"+i), new File(followerDir,"f"+i), 8192, 10, 1);
+			new File(followerDir,"f"+i).setLastModified(yesterday);
+		}
+		long openBefore=openFiles();
+		try(ServerSocket serverSocket=new ServerSocket(0)){
+			Future<Socket>getServerSock=Utils.getExecutor().submit(new GetServerSideSocket(serverSocket));
+			try(Socket client=new Socket("localhost",serverSocket.getLocalPort());
+				Socket server=getServerSock.get()){
+				TreeFollower follower=new TreeFollower(followerDir, client.getInputStream(), client.getOutputStream(), client);
+				TreeLeader leader=new TreeLeader(leaderDir, server.getInputStream(), server.getOutputStream());
+				Future<TreeSyncStats> f=Utils.getExecutor().submit(follower);
+				leader.call();
+				assertEquals(numFiles, f.get().synced);
+			}
+		}
+		if(openBefore>0){
+			// all the local files have been closed again
+			assertTrue(openFiles() < openBefore+numFiles/2, "open files: before "+openBefore+", after "+openFiles());
+		}
+	}
+
+	private long openFiles(){
+		OperatingSystemMXBean os=ManagementFactory.getOperatingSystemMXBean();
+		return os instanceof UnixOperatingSystemMXBean ?
+				((UnixOperatingSystemMXBean)os).getOpenFileDescriptorCount() : -1;
+	}
+
+	@Test
+	public void testTreeRejectsInvalidPaths()throws Exception{
+		TreeFollower follower=new TreeFollower(dataDir, null, null, null);
+		for(String path: new String[]{"/etc/passwd","../x","a/../../x","a//b","./a",""}){
+			assertThrows(IOException.class, ()->follower.resolve(path), path);
+		}
+		assertEquals(new File(dataDir,"a/b"), follower.resolve("a/b"));
+	}
+
 	/**
 	 * param blockSize
 	 * @param numBlocks - number of blocks
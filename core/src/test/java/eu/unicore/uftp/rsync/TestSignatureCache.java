@@ -0,0 +1,144 @@
+package eu.unicore.uftp.rsync;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import eu.unicore.uftp.dpc.Utils;
+
+public class TestSignatureCache {
+
+	static File dataDir=new File("target","data");
+
+	static File cacheDir=new File("target","sigcache");
+
+	@BeforeEach
+	public void init(){
+		FileUtils.deleteQuietly(dataDir);
+		FileUtils.deleteQuietly(cacheDir);
+		dataDir.mkdirs();
+	}
+
+	@AfterEach
+	public void cleanup(){
+		FileUtils.deleteQuietly(cacheDir);
+	}
+
+	@Test
+	public void testCachedSignatures() throws Exception {
+		SignatureCache cache = new SignatureCache(cacheDir, 1024*1024*1024);
+		File masterFile=new File(dataDir,"master");
+		File slaveFile=new File(dataDir,"slave");
+		TestRsync.writeTestFiles(masterFile, slaveFile, 65536, 16, 1);
+		RsyncStats stats = sync(masterFile, slaveFile, cache);
+		assertFalse(stats.cachedChecksums);
+		assertEquals(Utils.md5(masterFile), Utils.md5(slaveFile));
+		Object inode = Files.readAttributes(slaveFile.toPath(), "fileKey").get("fileKey");
+		long modified = slaveFile.lastModified();
+		// the file has been replaced, so the signature is computed again
+		stats = sync(masterFile, slaveFile, cache);
+		assertFalse(stats.cachedChecksums);
+		// the unchanged file is not rewritten...
+		assertEquals(inode, Files.readAttributes(slaveFile.toPath(), "fileKey").get("fileKey"));
+		assertEquals(modified, slaveFile.lastModified());
+		// ...so its signature is now taken from the cache
+		stats = sync(masterFile, slaveFile, cache);
+		assertTrue(stats.cachedChecksums);
+		assertEquals(inode, Files.readAttributes(slaveFile.toPath(), "fileKey").get("fileKey"));
+		assertEquals(Utils.md5(masterFile), Utils.md5(slaveFile));
+		// modified master: cached signature of the follower's version is still fine
+		try(RandomAccessFile ra = new RandomAccessFile(masterFile, "rw")){
+			ra.seek(1000);
+			ra.write(new byte[] {1,2,3});
+		}
+		stats = sync(masterFile, slaveFile, cache);
+		assertTrue(stats.cachedChecksums);
+		assertEquals(Utils.md5(masterFile), Utils.md5(slaveFile));
+		// but the follower's version has changed now
+		stats = sync(masterFile, slaveFile, cache);
+		assertFalse(stats.cachedChecksums);
+		assertEquals(Utils.md5(masterFile), Utils.md5(slaveFile));
+	}
+
+	@Test
+	public void testInvalidation() throws Exception {
+		SignatureCache cache = new SignatureCache(cacheDir, 1024*1024*1024);
+		File file = new File(dataDir, "file");
+		writeRandom(file, 100000);
+		SignatureCache.Key key = SignatureCache.Key.of(file, 1024, Checksum.MD5);
+		assertNull(cache.get(key));
+		long[] weak = new long[98];
+		byte[] strong = new byte[98*16];
+		new Random().nextBytes(strong);
+		cache.put(key, weak, strong);
+		assertNotNull(cache.get(key));
+		assertEquals(98, cache.get(key).numBlocks());
+		assertNull(cache.get(SignatureCache.Key.of(file, 2048, Checksum.MD5)));
+		assertNull(cache.get(SignatureCache.Key.of(file, 1024, Murmur3Digest.ALGORITHM)));
+		// same size, different modification time
+		writeRandom(file, 100000);
+		file.setLastModified(System.currentTimeMillis()+10000);
+		assertNull(cache.get(SignatureCache.Key.of(file, 1024, Checksum.MD5)));
+		// entries for modified files are not stored
+		cache.put(key, weak, strong);
+		assertNull(cache.get(SignatureCache.Key.of(file, 1024, Checksum.MD5)));
+	}
+
+	@Test
+	public void testEviction() throws Exception {
+		// room for about two entries
+		SignatureCache cache = new SignatureCache(cacheDir, 2*(1000*24)+2000);
+		SignatureCache.Key[] keys = new SignatureCache.Key[4];
+		for(int i=0; i<keys.length; i++) {
+			File file = new File(dataDir, "file"+i);
+			writeRandom(file, 1000*512);
+			keys[i] = SignatureCache.Key.of(file, 512, Checksum.MD5);
+			cache.put(keys[i], new long[1000], new byte[1000*16]);
+			// most recently used
+			assertNotNull(cache.get(keys[i]));
+			new File(cacheDir, keys[i].name()).setLastModified(System.currentTimeMillis()-10000*(keys.length-i));
+		}
+		assertNull(cache.get(keys[0]));
+		assertNull(cache.get(keys[1]));
+		assertNotNull(cache.get(keys[2]));
+		assertNotNull(cache.get(keys[3]));
+	}
+
+	private RsyncStats sync(File masterFile, File slaveFile, SignatureCache cache) throws Exception {
+		LocalChannel channel=new LocalChannel(false);
+		try(RandomAccessFile slaveRA = new RandomAccessFile(slaveFile, "r");
+			RandomAccessFile masterRA = new RandomAccessFile(masterFile, "r")){
+			Follower slave=new Follower(slaveRA,channel,slaveFile.getAbsolutePath(),4096);
+			slave.setSignatureCache(cache);
+			Leader master=new Leader(masterRA,channel,masterFile.getAbsolutePath());
+			Future<RsyncStats> f=Utils.getExecutor().submit(slave);
+			RsyncStats masterStats=master.call();
+			System.out.println(masterStats);
+			RsyncStats stats = f.get();
+			System.out.println(stats);
+			return stats;
+		}
+	}
+
+	private void writeRandom(File file, int size) throws Exception {
+		byte[] data = new byte[size];
+		new Random().nextBytes(data);
+		try(FileOutputStream os = new FileOutputStream(file)){
+			os.write(data);
+		}
+	}
+}
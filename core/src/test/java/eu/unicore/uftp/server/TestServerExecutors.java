@@ -0,0 +1,59 @@
+package eu.unicore.uftp.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class TestServerExecutors {
+
+	@Test
+	public void testQueueAndRejections() throws Exception {
+		ThreadPoolExecutor ex = ServerExecutors.create("Test", 1, 1);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		try {
+			Runnable task = ()->{
+				started.countDown();
+				try{
+					release.await();
+				}catch(InterruptedException ie) {}
+			};
+			ex.execute(task);
+			assertTrue(started.await(10, TimeUnit.SECONDS));
+			ex.execute(task);
+			assertEquals(1, ServerExecutors.getQueueDepth("Test"));
+			assertThrows(RejectedExecutionException.class, ()->ex.execute(task));
+			assertEquals(1, ServerExecutors.getRejectedCount("Test"));
+			Map<String,String> stats = ServerExecutors.getStats();
+			System.out.println(stats);
+			assertEquals("threads=1/1 active=1 queued=1 completed=0 rejected=1", stats.get("Test"));
+		}finally {
+			release.countDown();
+			ex.shutdown();
+		}
+		assertTrue(ex.awaitTermination(10, TimeUnit.SECONDS));
+		assertEquals(2, ex.getCompletedTaskCount());
+	}
+
+	@Test
+	public void testDedicatedExecutors() throws Exception {
+		CountDownLatch latch = new CountDownLatch(3);
+		ServerExecutors.getHandshakeExecutor().execute(()->latch.countDown());
+		ServerExecutors.getCommandExecutor().execute(()->latch.countDown());
+		ServerExecutors.getHousekeepingExecutor().schedule(()->latch.countDown(), 10, TimeUnit.MILLISECONDS);
+		assertTrue(latch.await(10, TimeUnit.SECONDS));
+		Map<String,String> stats = ServerExecutors.getStats();
+		System.out.println(stats);
+		assertTrue(stats.containsKey(ServerExecutors.HANDSHAKE));
+		assertTrue(stats.containsKey(ServerExecutors.COMMAND));
+		assertTrue(stats.containsKey(ServerExecutors.HOUSEKEEPING));
+	}
+}